@@ -0,0 +1,233 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.TreeCache;
+import org.jboss.cache.config.Option;
+import org.jboss.cache.eviction.ClockConfiguration;
+import org.jboss.cache.eviction.ClockPolicy;
+import org.jboss.cache.eviction.ElementSizeConfiguration;
+import org.jboss.cache.eviction.ElementSizePolicy;
+import org.jboss.cache.eviction.EvictionConfiguration;
+import org.jboss.cache.eviction.EvictionPolicy;
+import org.jboss.cache.eviction.LFUConfiguration;
+import org.jboss.cache.eviction.LFUPolicy;
+import org.jboss.cache.eviction.LRUConfiguration;
+import org.jboss.cache.eviction.LRUPolicy;
+import org.jboss.cache.eviction.Region;
+import org.jboss.cache.eviction.RegionManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers shared by the benchmarks: building caches for a given cache mode and
+ * locking configuration, and populating a tree of a given depth and fan-out.
+ */
+final class BenchmarkSupport
+{
+   /**
+    * Value of the <tt>locking</tt> benchmark parameter that selects optimistic locking.  All
+    * other values are interpreted as the {@link org.jboss.cache.lock.IsolationLevel} to use
+    * with pessimistic locking.
+    */
+   static final String OPTIMISTIC = "OPTIMISTIC";
+
+   static final String KEY = "key";
+
+   static final String VALUE = "value";
+
+   /**
+    * Fqn of the regions created by {@link #createEvictionRegion(String, int)}.
+    */
+   static final Fqn EVICTION_REGION = Fqn.fromString("/region");
+
+   /**
+    * A JGroups stack bound to the loopback interface.  TCP/TCPPING is used rather than UDP
+    * as multicast on loopback is not available on every box the benchmarks run on.
+    */
+   static final String LOOPBACK_PROPS =
+         "TCP(bind_addr=127.0.0.1;start_port=7800;loopback=true;" +
+         "recv_buf_size=20000000;send_buf_size=640000):" +
+         "TCPPING(initial_hosts=127.0.0.1[7800];port_range=5;timeout=3000;num_initial_members=2):" +
+         "MERGE2(min_interval=5000;max_interval=10000):" +
+         "FD_SOCK:" +
+         "VERIFY_SUSPECT(timeout=1500):" +
+         "pbcast.NAKACK(use_mcast_xmit=false;gc_lag=50;retransmit_timeout=600,1200,2400,4800):" +
+         "pbcast.STABLE(desired_avg_gossip=20000):" +
+         "pbcast.GMS(join_timeout=5000;join_retry_timeout=2000;shun=false;print_local_addr=false):" +
+         "pbcast.STATE_TRANSFER";
+
+   private BenchmarkSupport()
+   {
+   }
+
+   /**
+    * Creates, but does not start, a cache.
+    *
+    * @param cacheMode one of the cache mode strings accepted by {@link TreeCache#setCacheMode(String)}
+    * @param locking   an isolation level name, or {@link #OPTIMISTIC}
+    * @param lockFreeReads see {@link TreeCache#setLockFreeReads(boolean)}
+    * @param precompiledChains see {@link TreeCache#setUsePrecompiledInterceptorChains(boolean)}
+    */
+   static TreeCache createCache(String cacheMode, String locking, boolean lockFreeReads, boolean precompiledChains)
+           throws Exception
+   {
+      TreeCache cache = new TreeCache();
+      cache.setCacheMode(cacheMode);
+      cache.setClusterName("jbosscache-benchmark-" + cacheMode);
+      cache.setClusterProperties(LOOPBACK_PROPS);
+      cache.setUseInterceptorMbeans(false);
+      cache.setFetchInMemoryState(false);
+      cache.setTransactionManagerLookupClass("org.jboss.cache.DummyTransactionManagerLookup");
+      cache.setUsePrecompiledInterceptorChains(precompiledChains);
+      if (OPTIMISTIC.equals(locking))
+      {
+         cache.setNodeLockingScheme("OPTIMISTIC");
+      }
+      else
+      {
+         cache.setNodeLockingScheme("PESSIMISTIC");
+         cache.setIsolationLevel(locking);
+         cache.setLockFreeReads(lockFreeReads);
+      }
+      return cache;
+   }
+
+   /**
+    * Starts the cache(s) needed for a cache mode.  LOCAL needs one cache; all clustered modes
+    * start a second member so that every write is really sent over the channel.
+    *
+    * @return the started caches; the first element is the one the benchmarks operate on.
+    */
+   static TreeCache[] startCaches(String cacheMode, String locking, boolean lockFreeReads, boolean precompiledChains)
+           throws Exception
+   {
+      int count = "LOCAL".equals(cacheMode) ? 1 : 2;
+      TreeCache[] caches = new TreeCache[count];
+      for (int i = 0; i < count; i++)
+      {
+         caches[i] = createCache(cacheMode, locking, lockFreeReads, precompiledChains);
+         caches[i].startService();
+      }
+      return caches;
+   }
+
+   static void stopCaches(TreeCache[] caches)
+   {
+      if (caches == null) return;
+      for (int i = caches.length - 1; i >= 0; i--)
+      {
+         if (caches[i] != null)
+         {
+            caches[i].stopService();
+            caches[i].destroyService();
+         }
+      }
+   }
+
+   /**
+    * Returns the parent Fqn of the benchmark leaves for a given depth: a chain of
+    * <tt>depth - 1</tt> nodes, so that the leaves themselves sit at <tt>depth</tt>.
+    */
+   static Fqn parentFqn(int depth)
+   {
+      List elements = new ArrayList(depth);
+      for (int i = 1; i < depth; i++) elements.add("level" + i);
+      return new Fqn(elements);
+   }
+
+   /**
+    * Returns the Fqns of <tt>fanOut</tt> leaves under <tt>parent</tt>.
+    */
+   static Fqn[] leafFqns(Fqn parent, int fanOut)
+   {
+      Fqn[] leaves = new Fqn[fanOut];
+      for (int i = 0; i < fanOut; i++) leaves[i] = new Fqn(parent, "n" + i);
+      return leaves;
+   }
+
+   /**
+    * Puts {@link #KEY} into every leaf in every cache.  The puts are local only, so that
+    * populating large trees in clustered modes does not dominate the setup time.
+    */
+   static void populate(TreeCache[] caches, Fqn[] leaves) throws Exception
+   {
+      Option local = new Option();
+      local.setCacheModeLocal(true);
+      for (int c = 0; c < caches.length; c++)
+      {
+         for (int i = 0; i < leaves.length; i++)
+            caches[c].put(leaves[i], KEY, VALUE, local);
+      }
+   }
+
+   /**
+    * Creates a region outside a cache evicting down to <tt>maxNodes</tt>, whose policy does
+    * not evict anything from a cache, so that only the work of the eviction queue is measured.
+    *
+    * @param algorithm one of <tt>LRU</tt>, <tt>CLOCK</tt>, <tt>LFU</tt> and <tt>ELEMENT_SIZE</tt>
+    */
+   static Region createEvictionRegion(String algorithm, int maxNodes) throws Exception
+   {
+      EvictionPolicy policy;
+      EvictionConfiguration config;
+      if ("CLOCK".equals(algorithm))
+      {
+         policy = new ClockPolicy()
+         {
+            public void evict(Fqn fqn)
+            {
+            }
+         };
+         ClockConfiguration clock = new ClockConfiguration();
+         clock.setMaxNodes(maxNodes);
+         config = clock;
+      }
+      else if ("LFU".equals(algorithm))
+      {
+         policy = new LFUPolicy()
+         {
+            public void evict(Fqn fqn)
+            {
+            }
+         };
+         LFUConfiguration lfu = new LFUConfiguration();
+         lfu.setMaxNodes(maxNodes);
+         // LFU evicts down to minNodes
+         lfu.setMinNodes(maxNodes);
+         config = lfu;
+      }
+      else if ("ELEMENT_SIZE".equals(algorithm))
+      {
+         policy = new ElementSizePolicy()
+         {
+            public void evict(Fqn fqn)
+            {
+            }
+         };
+         ElementSizeConfiguration elementSize = new ElementSizeConfiguration();
+         elementSize.setMaxNodes(maxNodes);
+         elementSize.setMaxElementsPerNode(Integer.MAX_VALUE);
+         config = elementSize;
+      }
+      else
+      {
+         policy = new LRUPolicy()
+         {
+            public void evict(Fqn fqn)
+            {
+            }
+         };
+         LRUConfiguration lru = new LRUConfiguration();
+         lru.setMaxNodes(maxNodes);
+         config = lru;
+      }
+      return new RegionManager().createRegion(EVICTION_REGION, policy, config);
+   }
+}
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.TreeCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading and writing <tt>batchSize</tt> nodes one call at a time with the bulk
+ * {@link TreeCache#getAll(java.util.Collection, Object)} and {@link TreeCache#putAll(Map)}
+ * calls.  Scores are batches per millisecond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.io=ALL-UNNAMED"})
+public class BulkBenchmark
+{
+   @Param({"LOCAL", "REPL_SYNC"})
+   public String cacheMode;
+
+   @Param({"REPEATABLE_READ"})
+   public String locking;
+
+   @Param({"50", "500"})
+   public int batchSize;
+
+   TreeCache[] caches;
+
+   TreeCache cache;
+
+   Fqn[] leaves;
+
+   List fqns;
+
+   Map data;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      caches = BenchmarkSupport.startCaches(cacheMode, locking, false, false);
+      cache = caches[0];
+      leaves = BenchmarkSupport.leafFqns(BenchmarkSupport.parentFqn(3), batchSize);
+      BenchmarkSupport.populate(caches, leaves);
+      fqns = Arrays.asList(leaves);
+      data = new HashMap();
+      for (int i = 0; i < leaves.length; i++)
+      {
+         Map attributes = new HashMap();
+         attributes.put(BenchmarkSupport.KEY, BenchmarkSupport.VALUE);
+         data.put(leaves[i], attributes);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      BenchmarkSupport.stopCaches(caches);
+   }
+
+   @Benchmark
+   public Object getEach() throws Exception
+   {
+      Object last = null;
+      for (int i = 0; i < leaves.length; i++)
+         last = cache.get(leaves[i], BenchmarkSupport.KEY);
+      return last;
+   }
+
+   @Benchmark
+   public Object getAll() throws Exception
+   {
+      return cache.getAll(fqns, BenchmarkSupport.KEY);
+   }
+
+   @Benchmark
+   public void putEach() throws Exception
+   {
+      for (int i = 0; i < leaves.length; i++)
+         cache.put(leaves[i], (Map) data.get(leaves[i]));
+   }
+
+   @Benchmark
+   public void putAll() throws Exception
+   {
+      cache.putAll(data);
+   }
+}
@@ -0,0 +1,122 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.eviction.EvictionAlgorithm;
+import org.jboss.cache.eviction.EvictionException;
+import org.jboss.cache.eviction.Region;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures an eviction pass of an algorithm, LRU and CLOCK by default, over a region holding
+ * <tt>nodes</tt> nodes, its <tt>maxNodes</tt>.  Each pass processes {@link #VISITS} visits of
+ * random resident nodes and {@link #ADDS} new nodes, and so evicts about {@link #ADDS} nodes.
+ * The algorithms run on a region of their own, see
+ * {@link BenchmarkSupport#createEvictionRegion(String, int)}.
+ * <p/>
+ * The regions of 10 and 50 million nodes need a large heap, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar EvictionAlgorithmBenchmark -jvmArgsAppend -Xmx24g
+ * </pre>
+ * The sorted queues of the LFU and ElementSize algorithms are measured with e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar EvictionAlgorithmBenchmark -p algorithm=LFU,ELEMENT_SIZE -p nodes=5000000
+ * </pre>
+ * See {@link EvictionQueueFootprint} for the memory taken per node by the queues.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvictionAlgorithmBenchmark
+{
+   static final int VISITS = 10000;
+
+   static final int ADDS = 1000;
+
+   /**
+    * Nodes added between two passes while filling the region, below the capacity of the
+    * event queue of the region.
+    */
+   private static final int FILL_BATCH = 100000;
+
+   private static final Fqn PARENT = BenchmarkSupport.EVICTION_REGION;
+
+   @Param({"LRU", "CLOCK"})
+   public String algorithm;
+
+   @Param({"1000000", "10000000", "50000000"})
+   public int nodes;
+
+   Region region;
+   EvictionAlgorithm evictionAlgorithm;
+
+   /**
+    * The last <tt>nodes</tt> Fqns added, by number modulo <tt>nodes</tt>.
+    */
+   Fqn[] fqns;
+   int added;
+   int seed = 1;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      region = BenchmarkSupport.createEvictionRegion(algorithm, nodes);
+      evictionAlgorithm = region.getEvictionPolicy().getEvictionAlgorithm();
+      fqns = new Fqn[nodes];
+      for (int i = 1; i <= nodes; i++)
+      {
+         add();
+         if (i % FILL_BATCH == 0) evictionAlgorithm.process(region);
+      }
+      evictionAlgorithm.process(region);
+   }
+
+   private void add()
+   {
+      Fqn fqn = new Fqn(PARENT, new Integer(added));
+      fqns[added % nodes] = fqn;
+      added++;
+      region.setAddedNode(fqn);
+   }
+
+   /**
+    * Returns a random index into {@link #fqns}; xorshift, so as not to measure a Random.
+    */
+   private int nextIndex()
+   {
+      seed ^= seed << 13;
+      seed ^= seed >>> 17;
+      seed ^= seed << 5;
+      return (seed & Integer.MAX_VALUE) % nodes;
+   }
+
+   @Benchmark
+   public int pass() throws EvictionException
+   {
+      for (int i = 0; i < ADDS; i++) add();
+      for (int i = 0; i < VISITS; i++) region.setVisitedNode(fqns[nextIndex()]);
+      evictionAlgorithm.process(region);
+      return evictionAlgorithm.getEvictionQueue().getNumberOfNodes();
+   }
+}
@@ -0,0 +1,67 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.eviction.EvictionAlgorithm;
+import org.jboss.cache.eviction.Region;
+
+/**
+ * Reports the heap used per node by the eviction queues of the LRU and CLOCK algorithms.
+ * Not a JMH benchmark; run it with
+ * <pre>
+ * java -cp target/benchmarks.jar org.jboss.cache.benchmark.EvictionQueueFootprint [nodes]
+ * </pre>
+ * For each algorithm <tt>nodes</tt> (default 1000000) nodes are added to a region of that
+ * <tt>maxNodes</tt>, see {@link BenchmarkSupport#createEvictionRegion(String, int)}, and the
+ * growth of the used heap is divided by the number of nodes.  The Fqns are created
+ * beforehand, so the figures are the cost of the NodeEntry and of the queue structure.
+ */
+public class EvictionQueueFootprint
+{
+   private static final String[] ALGORITHMS = {"LRU", "CLOCK"};
+
+   public static void main(String[] args) throws Exception
+   {
+      int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      Fqn parent = BenchmarkSupport.EVICTION_REGION;
+      Fqn[] fqns = new Fqn[nodes];
+      for (int i = 0; i < nodes; i++) fqns[i] = new Fqn(parent, new Integer(i));
+
+      for (int a = 0; a < ALGORITHMS.length; a++)
+      {
+         Region region = BenchmarkSupport.createEvictionRegion(ALGORITHMS[a], nodes);
+         EvictionAlgorithm algorithm = region.getEvictionPolicy().getEvictionAlgorithm();
+         // the first pass creates the queue
+         algorithm.process(region);
+
+         long before = usedHeap();
+         for (int i = 0; i < nodes; i++)
+         {
+            region.setAddedNode(fqns[i]);
+            if ((i + 1) % 100000 == 0) algorithm.process(region);
+         }
+         algorithm.process(region);
+         long after = usedHeap();
+         System.out.println(ALGORITHMS[a] + ": " + (after - before) / nodes + " bytes/node");
+         algorithm.getEvictionQueue().clear();
+      }
+   }
+
+   private static long usedHeap() throws InterruptedException
+   {
+      Runtime runtime = Runtime.getRuntime();
+      long used = Long.MAX_VALUE;
+      for (int i = 0; i < 5; i++)
+      {
+         System.gc();
+         Thread.sleep(100);
+         used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+      }
+      return used;
+   }
+}
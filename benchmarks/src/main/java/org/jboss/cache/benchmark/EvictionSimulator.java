@@ -0,0 +1,230 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.TreeCache;
+import org.jboss.cache.eviction.EvictionAlgorithm;
+import org.jboss.cache.eviction.EvictionConfiguration;
+import org.jboss.cache.eviction.EvictionPolicy;
+import org.jboss.cache.eviction.Region;
+import org.jboss.cache.eviction.RegionManager;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays an access log against the eviction policies and reports their hit ratio.  Not a
+ * JMH benchmark; run it with
+ * <pre>
+ * java -cp target/benchmarks.jar org.jboss.cache.benchmark.EvictionSimulator trace maxNodes [accessesPerPass]
+ * </pre>
+ * The trace holds one access per line: an Fqn if the line starts with <tt>/</tt>, otherwise
+ * the name of a node under <tt>/trace</tt>.  For every policy a region of <tt>maxNodes</tt>
+ * nodes is simulated: an access to a node held by the region is a hit and a visit, any other
+ * access is a miss and adds the node, as a cache loader would.  The eviction algorithm runs
+ * every <tt>accessesPerPass</tt> accesses (default 1000), as the eviction thread runs every
+ * <tt>wakeUpIntervalSeconds</tt>, so the region may exceed <tt>maxNodes</tt> in between.
+ */
+public class EvictionSimulator
+{
+   private static final String[][] POLICIES = {
+         {"LRU", "org.jboss.cache.eviction.LRUPolicy"},
+         {"LFU", "org.jboss.cache.eviction.LFUPolicy"},
+         {"FIFO", "org.jboss.cache.eviction.FIFOPolicy"},
+         {"MRU", "org.jboss.cache.eviction.MRUPolicy"},
+         {"TinyLFU", "org.jboss.cache.eviction.TinyLFUPolicy"}};
+
+   private static final Fqn REGION = Fqn.fromString("/trace");
+
+   public static void main(String[] args) throws Exception
+   {
+      if (args.length < 2)
+      {
+         System.err.println("usage: EvictionSimulator trace maxNodes [accessesPerPass]");
+         System.exit(1);
+      }
+      Fqn[] trace = readTrace(args[0]);
+      int maxNodes = Integer.parseInt(args[1]);
+      int accessesPerPass = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+      // the events of a pass must fit into the event queue of the region
+      accessesPerPass = Math.max(1, Math.min(accessesPerPass, RegionManager.CAPACITY / 2));
+
+      System.out.println(trace.length + " accesses, maxNodes " + maxNodes + ", " + accessesPerPass + " accesses per pass");
+      System.out.println("policy      hit ratio    evictions      time");
+      for (int p = 0; p < POLICIES.length; p++)
+      {
+         EvictionPolicy policy = (EvictionPolicy) Class.forName(POLICIES[p][1]).newInstance();
+         long start = System.currentTimeMillis();
+         SimulatedPolicy simulated = simulate(policy, maxNodes, accessesPerPass, trace);
+         long time = System.currentTimeMillis() - start;
+         System.out.println(pad(POLICIES[p][0], 10)
+               + pad(percent(simulated.hits, trace.length), 12)
+               + pad(String.valueOf(simulated.evictions), 13)
+               + pad(time + " ms", 10));
+      }
+   }
+
+   /**
+    * Reads a trace, sharing one Fqn between the accesses to the same node.
+    */
+   static Fqn[] readTrace(String file) throws Exception
+   {
+      Map fqns = new HashMap();
+      List accesses = new ArrayList();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try
+      {
+         String line;
+         while ((line = reader.readLine()) != null)
+         {
+            line = line.trim();
+            if (line.length() == 0) continue;
+            Fqn fqn = (Fqn) fqns.get(line);
+            if (fqn == null)
+            {
+               fqn = line.startsWith(Fqn.SEPARATOR) ? Fqn.fromString(line) : new Fqn(REGION, line);
+               fqns.put(line, fqn);
+            }
+            accesses.add(fqn);
+         }
+      }
+      finally
+      {
+         reader.close();
+      }
+      return (Fqn[]) accesses.toArray(new Fqn[accesses.size()]);
+   }
+
+   static SimulatedPolicy simulate(EvictionPolicy policy, int maxNodes, int accessesPerPass, Fqn[] trace)
+           throws Exception
+   {
+      EvictionConfiguration config = (EvictionConfiguration) policy.getEvictionConfigurationClass().newInstance();
+      setIfPresent(config, "setMaxNodes", maxNodes);
+      // LFU evicts down to minNodes
+      setIfPresent(config, "setMinNodes", maxNodes);
+
+      SimulatedPolicy simulated = new SimulatedPolicy(policy);
+      Region region = new RegionManager().createRegion(REGION, simulated, config);
+      EvictionAlgorithm algorithm = policy.getEvictionAlgorithm();
+
+      Set resident = simulated.resident;
+      int pending = 0;
+      for (int i = 0; i < trace.length; i++)
+      {
+         Fqn fqn = trace[i];
+         if (resident.contains(fqn))
+         {
+            simulated.hits++;
+            region.setVisitedNode(fqn);
+         }
+         else
+         {
+            resident.add(fqn);
+            region.setAddedNode(fqn);
+         }
+         if (++pending == accessesPerPass)
+         {
+            algorithm.process(region);
+            pending = 0;
+         }
+      }
+      algorithm.process(region);
+      return simulated;
+   }
+
+   private static void setIfPresent(Object bean, String setter, int value) throws Exception
+   {
+      Method method;
+      try
+      {
+         method = bean.getClass().getMethod(setter, new Class[]{Integer.TYPE});
+      }
+      catch (NoSuchMethodException e)
+      {
+         return;
+      }
+      method.invoke(bean, new Object[]{new Integer(value)});
+   }
+
+   private static String percent(long part, long whole)
+   {
+      long basisPoints = whole == 0 ? 0 : part * 10000 / whole;
+      String fraction = String.valueOf(basisPoints % 100);
+      return basisPoints / 100 + "." + (fraction.length() < 2 ? "0" + fraction : fraction) + " %";
+   }
+
+   private static String pad(String s, int width)
+   {
+      StringBuffer padded = new StringBuffer(s);
+      while (padded.length() < width) padded.append(' ');
+      return padded.append(' ').toString();
+   }
+
+   /**
+    * Runs the algorithm of a policy, and removes the nodes it evicts from the simulated
+    * region instead of from a cache.
+    */
+   static class SimulatedPolicy implements EvictionPolicy
+   {
+      final EvictionPolicy policy;
+      final Set resident = new HashSet();
+      long hits;
+      long evictions;
+
+      SimulatedPolicy(EvictionPolicy policy)
+      {
+         this.policy = policy;
+      }
+
+      public void evict(Fqn fqn)
+      {
+         if (resident.remove(fqn)) evictions++;
+      }
+
+      public Set getChildrenNames(Fqn fqn)
+      {
+         return null;
+      }
+
+      public boolean hasChild(Fqn fqn)
+      {
+         return false;
+      }
+
+      public Object getCacheData(Fqn fqn, Object key)
+      {
+         return null;
+      }
+
+      public void configure(TreeCache cache)
+      {
+      }
+
+      public EvictionAlgorithm getEvictionAlgorithm()
+      {
+         return policy.getEvictionAlgorithm();
+      }
+
+      public Class getEvictionConfigurationClass()
+      {
+         return policy.getEvictionConfigurationClass();
+      }
+
+      public boolean canIgnoreEvent(Fqn fqn)
+      {
+         return false;
+      }
+   }
+}
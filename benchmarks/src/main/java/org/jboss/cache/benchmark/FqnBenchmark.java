@@ -0,0 +1,109 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.TreeCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link Fqn} operations on the path of every cache call.  <tt>equalFqns</tt>
+ * compares two equal Fqns that do not share their elements, and <tt>freshHashCode</tt> hashes
+ * a freshly built Fqn, so that neither benefits from a cached hash code.  <tt>lookup</tt>
+ * walks a populated tree with {@link TreeCache#peek(Fqn)}.  Run <tt>fromString</tt> with
+ * <tt>-jvmArgsAppend -Djboss.cache.fqn.internCacheSize=1024</tt> to measure the intern cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FqnBenchmark
+{
+   @Param({"1", "3", "6", "10"})
+   public int depth;
+
+   Fqn fqn;
+
+   Fqn copy;
+
+   Fqn parent;
+
+   String string;
+
+   TreeCache cache;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      parent = BenchmarkSupport.parentFqn(depth);
+      fqn = new Fqn(parent, "leaf");
+      copy = Fqn.fromString(fqn.toString());
+      string = fqn.toString();
+      cache = BenchmarkSupport.createCache("LOCAL", "READ_COMMITTED", false, false);
+      cache.startService();
+      BenchmarkSupport.populate(new TreeCache[] {cache}, BenchmarkSupport.leafFqns(parent, 10));
+      cache.put(fqn, BenchmarkSupport.KEY, BenchmarkSupport.VALUE);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      BenchmarkSupport.stopCaches(new TreeCache[] {cache});
+   }
+
+   @Benchmark
+   public boolean equalFqns()
+   {
+      return fqn.equals(copy);
+   }
+
+   @Benchmark
+   public int freshHashCode()
+   {
+      return new Fqn(parent, "leaf").hashCode();
+   }
+
+   @Benchmark
+   public boolean isChildOf()
+   {
+      return copy.isChildOf(parent);
+   }
+
+   @Benchmark
+   public Fqn getParent()
+   {
+      return fqn.getParent();
+   }
+
+   @Benchmark
+   public Fqn fromString()
+   {
+      return Fqn.fromString(string);
+   }
+
+   @Benchmark
+   public Object lookup()
+   {
+      return cache.peek(fqn);
+   }
+}
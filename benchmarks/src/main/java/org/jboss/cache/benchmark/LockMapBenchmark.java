@@ -0,0 +1,67 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.lock.LockMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reader registration in {@link LockMap}, the bookkeeping done by every
+ * read lock acquire and release on a node.  <tt>residentReaders</tt> owners hold
+ * the lock for the whole run, as on a hot parent node read by many transactions,
+ * while the benchmark threads register, check and remove themselves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class LockMapBenchmark
+{
+   @Param({"0", "10", "100", "500"})
+   public int residentReaders;
+
+   LockMap map;
+
+   @Setup(Level.Trial)
+   public void setUp()
+   {
+      map = new LockMap();
+      for (int i = 0; i < residentReaders; i++) map.addReader(new Object());
+   }
+
+   @State(Scope.Thread)
+   public static class Owner
+   {
+      final Object owner = new Object();
+   }
+
+   @Benchmark
+   public boolean addCheckRemoveReader(Owner owner)
+   {
+      map.addReader(owner.owner);
+      boolean owns = map.isOwner(owner.owner, LockMap.OWNER_READ);
+      map.removeReader(owner.owner);
+      return owns;
+   }
+}
@@ -0,0 +1,98 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.marshall.MethodCallFactory;
+import org.jboss.cache.marshall.MethodDeclarations;
+import org.jboss.cache.marshall.RegionManager;
+import org.jboss.cache.marshall.VersionAwareMarshaller;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marshalls and unmarshalls a <tt>replicate(putKeyValMethodLocal)</tt> call, as sent for a
+ * put in a replicated cache, through a {@link VersionAwareMarshaller} with and without
+ * direct marshalling.  <tt>value</tt> is a String, which the marshaller has a magic number
+ * for, or a Date, which goes through object serialization.  The <tt>bytes</tt> counter of
+ * <tt>marshall</tt> is the marshalled bytes per millisecond; run with <tt>-prof gc</tt> for
+ * the allocation per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.io=ALL-UNNAMED",
+      "--add-opens=java.base/java.lang.reflect=ALL-UNNAMED", "--add-opens=java.base/java.util=ALL-UNNAMED"})
+public class MarshallingBenchmark
+{
+   @Param({"true", "false"})
+   public boolean direct;
+
+   @Param({"string", "date"})
+   public String value;
+
+   VersionAwareMarshaller marshaller;
+
+   Object call;
+
+   byte[] buffer;
+
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   public static class Bytes
+   {
+      public long bytes;
+
+      @Setup(Level.Iteration)
+      public void reset()
+      {
+         bytes = 0;
+      }
+   }
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      marshaller = new VersionAwareMarshaller(new RegionManager(), false, false, "1.4.1.GA");
+      marshaller.setUseDirectMarshalling(direct);
+      Object v = "string".equals(value) ? (Object) "a session attribute value of some length" : new Date();
+      Object put = MethodCallFactory.create(MethodDeclarations.putKeyValMethodLocal,
+            new Object[]{null, Fqn.fromString("/JSESSION/localhost/app/3F2504E0-4F89-11D3-9A0C-0305E82C3301"), "attribute", v, Boolean.TRUE});
+      call = MethodCallFactory.create(MethodDeclarations.replicateMethod, new Object[]{put});
+      buffer = marshaller.objectToByteBuffer(call);
+   }
+
+   @Benchmark
+   public byte[] marshall(Bytes counter) throws Exception
+   {
+      byte[] b = marshaller.objectToByteBuffer(call);
+      counter.bytes += b.length;
+      return b;
+   }
+
+   @Benchmark
+   public Object unmarshall() throws Exception
+   {
+      return marshaller.objectFromByteBuffer(buffer);
+   }
+}
@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.TreeCache;
+
+/**
+ * Reports the heap used per node, for nodes holding 0, 1, 4 and 16 attributes.  Not a
+ * JMH benchmark; run it with
+ * <pre>
+ * java -cp target/benchmarks.jar org.jboss.cache.benchmark.NodeFootprint [nodes]
+ * </pre>
+ * For each attribute count a local cache is filled with <tt>nodes</tt> (default 200000)
+ * leaves under a single parent, through the public API so that every leaf has also been
+ * locked once, and the growth of the used heap is divided by the number of nodes.  Keys
+ * and values are shared between nodes, so the figures are the cost of the node
+ * structure itself.
+ */
+public class NodeFootprint
+{
+   private static final int[] ATTRIBUTES = {0, 1, 4, 16};
+
+   public static void main(String[] args) throws Exception
+   {
+      int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+      Object[] keys = new Object[16];
+      for (int i = 0; i < keys.length; i++) keys[i] = "key" + i;
+      Object[] names = new Object[nodes];
+      for (int i = 0; i < nodes; i++) names[i] = "n" + i;
+
+      for (int a = 0; a < ATTRIBUTES.length; a++)
+      {
+         int attributes = ATTRIBUTES[a];
+         TreeCache cache = BenchmarkSupport.createCache("LOCAL", "REPEATABLE_READ", false, false);
+         cache.startService();
+         Fqn parent = Fqn.fromString("/parent");
+         cache.put(parent, BenchmarkSupport.KEY, BenchmarkSupport.VALUE);
+         Fqn[] fqns = new Fqn[nodes];
+         for (int i = 0; i < nodes; i++) fqns[i] = new Fqn(parent, names[i]);
+
+         long before = usedHeap();
+         for (int i = 0; i < nodes; i++)
+         {
+            if (attributes == 0)
+               cache.put(fqns[i], null);
+            for (int k = 0; k < attributes; k++)
+               cache.put(fqns[i], keys[k], BenchmarkSupport.VALUE);
+         }
+         long after = usedHeap();
+         System.out.println(attributes + " attributes: " + (after - before) / nodes + " bytes/node");
+         BenchmarkSupport.stopCaches(new TreeCache[]{cache});
+      }
+   }
+
+   private static long usedHeap() throws InterruptedException
+   {
+      Runtime runtime = Runtime.getRuntime();
+      long used = Long.MAX_VALUE;
+      for (int i = 0; i < 5; i++)
+      {
+         System.gc();
+         Thread.sleep(100);
+         used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+      }
+      return used;
+   }
+}
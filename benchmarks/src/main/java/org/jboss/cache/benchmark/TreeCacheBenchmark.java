@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.benchmark;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.TreeCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the public {@link TreeCache} API through the full interceptor chain, for every
+ * cache mode and node locking scheme.  Use <tt>-p</tt> to restrict the (large) parameter
+ * space, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar TreeCacheBenchmark.get -p cacheMode=LOCAL -p locking=READ_COMMITTED,OPTIMISTIC
+ * </pre>
+ * The benchmark operates on <tt>fanOut</tt> leaf nodes, each of which sits at depth
+ * <tt>depth</tt> and holds a single attribute.  Clustered modes start a second cache on a
+ * loopback channel.  The forked JVM opens <tt>java.io</tt> to the marshalling code, which is
+ * needed on JDK 9 and later; the option is ignored by older VMs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.io=ALL-UNNAMED"})
+public class TreeCacheBenchmark
+{
+   @Param({"LOCAL", "REPL_SYNC", "REPL_ASYNC", "INVALIDATION_SYNC", "INVALIDATION_ASYNC"})
+   public String cacheMode;
+
+   /**
+    * Pessimistic locking with the given isolation level, or optimistic locking.
+    */
+   @Param({"NONE", "READ_UNCOMMITTED", "READ_COMMITTED", "REPEATABLE_READ", "SERIALIZABLE", "OPTIMISTIC"})
+   public String locking;
+
+   /**
+    * See {@link TreeCache#setLockFreeReads(boolean)}; only has an effect for READ_COMMITTED and NONE.
+    */
+   @Param({"false"})
+   public boolean lockFreeReads;
+
+   /**
+    * See {@link TreeCache#setUsePrecompiledInterceptorChains(boolean)}.
+    */
+   @Param({"false", "true"})
+   public boolean precompiledChains;
+
+   @Param({"1", "3", "6", "10"})
+   public int depth;
+
+   @Param({"10", "1000", "100000"})
+   public int fanOut;
+
+   TreeCache[] caches;
+
+   TreeCache cache;
+
+   Fqn parent;
+
+   Fqn[] leaves;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      caches = BenchmarkSupport.startCaches(cacheMode, locking, lockFreeReads, precompiledChains);
+      cache = caches[0];
+      parent = BenchmarkSupport.parentFqn(depth);
+      leaves = BenchmarkSupport.leafFqns(parent, fanOut);
+      BenchmarkSupport.populate(caches, leaves);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      BenchmarkSupport.stopCaches(caches);
+   }
+
+   /**
+    * Per-thread position in the leaf array, so that threads walk the leaves independently
+    * without sharing a counter.
+    */
+   @State(Scope.Thread)
+   public static class Cursor
+   {
+      int next;
+
+      @Setup(Level.Trial)
+      public void setUp()
+      {
+         next = (int) (Thread.currentThread().getId() * 7919);
+      }
+
+      Fqn next(Fqn[] leaves)
+      {
+         next = (next + 1) & Integer.MAX_VALUE;
+         return leaves[next % leaves.length];
+      }
+   }
+
+   @Benchmark
+   public Object get(Cursor cursor) throws Exception
+   {
+      return cache.get(cursor.next(leaves), BenchmarkSupport.KEY);
+   }
+
+   @Benchmark
+   public Object put(Cursor cursor) throws Exception
+   {
+      return cache.put(cursor.next(leaves), BenchmarkSupport.KEY, BenchmarkSupport.VALUE);
+   }
+
+   /**
+    * Removes the attribute from a leaf.  The attribute is first put back directly on the
+    * node (bypassing the interceptor chain and replication), so that every measured remove
+    * really removes something.
+    */
+   @Benchmark
+   public Object remove(Cursor cursor) throws Exception
+   {
+      Fqn fqn = cursor.next(leaves);
+      cache._put(null, fqn, BenchmarkSupport.KEY, BenchmarkSupport.VALUE, false);
+      return cache.remove(fqn, BenchmarkSupport.KEY);
+   }
+
+   @Benchmark
+   public Set getChildrenNames() throws Exception
+   {
+      return cache.getChildrenNames(parent);
+   }
+
+   @Benchmark
+   public boolean exists(Cursor cursor)
+   {
+      return cache.exists(cursor.next(leaves));
+   }
+}
@@ -5,6 +5,7 @@ package org.jboss.cache;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.cache.util.CompactMap;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -33,7 +34,7 @@ public abstract class AbstractNode implements DataNode
    /**
     * Map of children names to children.
     */
-   protected Map children;
+   protected volatile Map children;
   
    /**
     * Map of general data keys to values.
@@ -144,7 +145,7 @@ public abstract class AbstractNode implements DataNode
    protected final Map data()
    {
       if(data == null)
-         data=new HashMap();
+         data=new CompactMap();
       return data;
    }
    
@@ -41,6 +41,13 @@ public interface DataNode extends TreeNode
       throws InterruptedException, LockingException, TimeoutException;
 
 
+   /**
+    * Returns a number increased each time the node is write locked.  An operation
+    * that does not read lock an ancestor of its node checks that the number did not
+    * change, and so that no removal of the ancestor can have missed its node.
+    */
+   long getStructuralVersion();
+
    /**
     * Returns a copy of this node.
     */
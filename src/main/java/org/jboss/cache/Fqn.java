@@ -20,7 +20,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.StringTokenizer;
 
 /**
  * Fully qualified name.  A list of relatives names, which can be any Object,
@@ -39,6 +38,13 @@ import java.util.StringTokenizer;
  * The latter will result in 3 Fqns, called "a", "b" and "c", where "c" is a child of "b", "b" is a child of "a", and "a" hangs off Fqn.ROOT.
  * <p />
  * Another way to look at it is that the "/" separarator is only parsed when it form sa  part of a String passed in to Fqn.fromString() and not otherwise.
+ * <p />
+ * The elements are kept in an array.  As Fqns are immutable, the array is shared by
+ * Fqns derived from it without adding elements, e.g. {@link #getParent()} and
+ * {@link #getFqnChild(int)} return views that do not copy.  Setting the system property
+ * <code>jboss.cache.fqn.internCacheSize</code> to a positive number enables a bounded
+ * cache of the Fqns returned by {@link #fromString(String)}, so that frequently used
+ * string paths are only parsed once.
  * @version $Revision: 2341 $
  */
 public class Fqn implements Cloneable, Externalizable {
@@ -48,7 +54,15 @@ public class Fqn implements Cloneable, Externalizable {
     */
    public static final String SEPARATOR = "/";
 
-   private List elements;
+   private static final Object[] NO_ELEMENTS = new Object[0];
+
+   /**
+    * The elements are <code>elements[offset]</code> to <code>elements[offset + size - 1]</code>.
+    * The array may be shared with other Fqns and must never be modified.
+    */
+   private Object[] elements;
+   private int offset;
+   private int size;
    private transient int hash_code=0;
 
    /** 
@@ -89,6 +103,48 @@ public class Fqn implements Cloneable, Externalizable {
                                             "jboss.cache.fqn.123compatible", t);
       }
    }
+
+   /**
+    * Direct mapped cache of parsed Fqns, indexed by the hash code of the string; null if disabled.
+    */
+   private static final InternedFqn[] INTERN_CACHE;
+
+   static
+   {
+      int size = 0;
+      try
+      {
+         String value = (String) AccessController.doPrivileged(
+            new PrivilegedAction()
+            {
+               public Object run()
+               {
+                  return System.getProperty("jboss.cache.fqn.internCacheSize");
+               }
+            });
+         if (value != null)
+            size = Integer.parseInt(value.trim());
+      }
+      catch (SecurityException ignored)
+      {
+         // they just can't use system properties
+      }
+      catch (Throwable t)
+      {
+         LogFactory.getLog(Fqn.class).error("Caught throwable reading system property " +
+                                            "jboss.cache.fqn.internCacheSize", t);
+      }
+      if (size > 0)
+      {
+         int capacity = 1;
+         while (capacity < size && capacity < (1 << 20)) capacity <<= 1;
+         INTERN_CACHE = new InternedFqn[capacity];
+      }
+      else
+      {
+         INTERN_CACHE = null;
+      }
+   }
    
    private static final long serialVersionUID = -5351930616956603651L;
 
@@ -101,7 +157,7 @@ public class Fqn implements Cloneable, Externalizable {
     * Constructs a root FQN.
     */
    public Fqn() {
-      elements = Collections.EMPTY_LIST;
+      elements = NO_ELEMENTS;
    }
 
    /**
@@ -110,17 +166,20 @@ public class Fqn implements Cloneable, Externalizable {
     * @see #fromString(String)
     */
    public Fqn(Object name) {
-      elements = Collections.singletonList(name);
+      elements = new Object[] {name};
+      size = 1;
    }
 
    /**
     * Constructs a FQN from a list of names.
     */
    public Fqn(List names) {
-      if (names != null)
-         elements = new ArrayList(names);
+      if (names != null) {
+         elements = names.toArray();
+         size = elements.length;
+      }
       else
-         elements = Collections.EMPTY_LIST;
+         elements = NO_ELEMENTS;
    }
 
    /**
@@ -128,9 +187,10 @@ public class Fqn implements Cloneable, Externalizable {
     */
    public Fqn(Object[] names) {
       if (names == null)
-         elements = Collections.EMPTY_LIST;
+         elements = NO_ELEMENTS;
       else {
-         elements = Arrays.asList(names);
+         elements = (Object[]) names.clone();
+         size = elements.length;
       }
    }
 
@@ -138,58 +198,75 @@ public class Fqn implements Cloneable, Externalizable {
     * Constructs a FQN from a base and relative name.
     */
    public Fqn(Fqn base, Object relative_name) {
-      elements = new ArrayList(base.elements.size() + 1);
-      elements.addAll(base.elements);
-      elements.add(relative_name);
+      elements = base.copyElements(1);
+      elements[base.size] = relative_name;
+      size = elements.length;
    }
 
    /**
     * Constructs a FQN from a base and relative FQN.
     */
    public Fqn(Fqn base, Fqn relative) {
-      this(base, relative.elements);
+      elements = base.copyElements(relative.size);
+      System.arraycopy(relative.elements, relative.offset, elements, base.size, relative.size);
+      size = elements.length;
    }
 
    /**
     * Constructs a FQN from a base and a list of relative names.
     */
    public Fqn(Fqn base, List relative) {
-      elements = new ArrayList(base.elements.size() + relative.size());
-      elements.addAll(base.elements);
-      elements.addAll(relative);
+      elements = base.copyElements(relative.size());
+      int i = base.size;
+      for (Iterator it = relative.iterator(); it.hasNext();)
+         elements[i++] = it.next();
+      size = elements.length;
    }
 
    /**
     * Constructs a FQN from a base and two relative names.
     */
    public Fqn(Fqn base, Object relative_name1, Object relative_name2) {
-      elements = new ArrayList(base.elements.size() + 2);
-      elements.addAll(base.elements);
-      elements.add(relative_name1);
-      elements.add(relative_name2);
+      elements = base.copyElements(2);
+      elements[base.size] = relative_name1;
+      elements[base.size + 1] = relative_name2;
+      size = elements.length;
    }
 
    /**
     * Constructs a FQN from a base and three relative names.
     */
    public Fqn(Fqn base, Object relative_name1, Object relative_name2, Object relative_name3) {
-      elements = new ArrayList(base.elements.size() + 3);
-      elements.addAll(base.elements);
-      elements.add(relative_name1);
-      elements.add(relative_name2);
-      elements.add(relative_name3);
+      elements = base.copyElements(3);
+      elements[base.size] = relative_name1;
+      elements[base.size + 1] = relative_name2;
+      elements[base.size + 2] = relative_name3;
+      size = elements.length;
    }
 
    /**
-    * Construct from an unmodifiable list.
+    * Construct a view of a range of an array that is never modified.
     * For internal use.
     */
-   private static Fqn createFqn(List list) {
+   private static Fqn createFqn(Object[] elements, int offset, int size) {
+      if (size == 0)
+         return ROOT;
       Fqn fqn = new Fqn();
-      fqn.elements = list;
+      fqn.elements = elements;
+      fqn.offset = offset;
+      fqn.size = size;
       return fqn;
    }
 
+   /**
+    * Returns a new array holding the elements of this Fqn followed by <code>extra</code> empty slots.
+    */
+   private Object[] copyElements(int extra) {
+      Object[] copy = new Object[size + extra];
+      System.arraycopy(elements, offset, copy, 0, size);
+      return copy;
+   }
+
    /**
     * Returns a new FQN from a string, where the elements are deliminated by
     * one or more separator ({@link #SEPARATOR}) characters.<br><br>
@@ -212,16 +289,45 @@ public class Fqn implements Cloneable, Externalizable {
    public static Fqn fromString(String fqn) {
       if (fqn == null) 
          return ROOT;
-      return createFqn(parse(fqn));
-   }
-
-   private static List parse(String fqn) {
-      List list = new ArrayList();
-      StringTokenizer tok = new StringTokenizer(fqn, SEPARATOR);
-      while (tok.hasMoreTokens()) {
-         list.add(tok.nextToken());
+      InternedFqn[] cache = INTERN_CACHE;
+      if (cache == null)
+         return parse(fqn);
+      int index = (fqn.hashCode() & 0x7FFFFFFF) & (cache.length - 1);
+      InternedFqn interned = cache[index];
+      if (interned != null && interned.string.equals(fqn))
+         return interned.fqn;
+      Fqn parsed = parse(fqn);
+      // a racing thread may overwrite the slot; entries are immutable so that is harmless
+      cache[index] = new InternedFqn(fqn, parsed);
+      return parsed;
+   }
+
+   private static Fqn parse(String fqn) {
+      Object[] elements = new Object[8];
+      int count = 0;
+      int length = fqn.length();
+      int start = 0;
+      while (start < length) {
+         int end = fqn.indexOf('/', start);
+         if (end == -1)
+            end = length;
+         // empty elements, i.e. repeated separators, are skipped
+         if (end > start) {
+            if (count == elements.length) {
+               Object[] grown = new Object[count << 1];
+               System.arraycopy(elements, 0, grown, 0, count);
+               elements = grown;
+            }
+            elements[count++] = fqn.substring(start, end);
+         }
+         start = end + 1;
+      }
+      if (count != elements.length) {
+         Object[] trimmed = new Object[count];
+         System.arraycopy(elements, 0, trimmed, 0, count);
+         elements = trimmed;
       }
-      return list;
+      return createFqn(elements, 0, count);
    }
 
    /**
@@ -231,7 +337,7 @@ public class Fqn implements Cloneable, Externalizable {
     * @return A Fqn child object.
     */
    public Fqn getFqnChild(int index) {
-      return createFqn(elements.subList(0, index));
+      return getFqnChild(0, index);
    }
 
    /**
@@ -239,7 +345,11 @@ public class Fqn implements Cloneable, Externalizable {
     */
    public Fqn getFqnChild(int startIndex, int endIndex)
    {
-      return createFqn(elements.subList(startIndex, endIndex));
+      if (startIndex < 0 || endIndex > size || startIndex > endIndex)
+         throw new IndexOutOfBoundsException("startIndex: " + startIndex + ", endIndex: " + endIndex + ", size: " + size);
+      if (startIndex == 0 && endIndex == size)
+         return this;
+      return createFqn(elements, offset + startIndex, endIndex - startIndex);
    }
 
    /**
@@ -247,14 +357,16 @@ public class Fqn implements Cloneable, Externalizable {
     * The root node contains zero.
     */
    public int size() {
-      return elements.size();
+      return size;
    }
 
    /**
     * Returns the Nth element in the FQN.
     */
    public Object get(int index) {
-      return elements.get(index);
+      if (index < 0 || index >= size)
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      return elements[offset + index];
    }
 
    /**
@@ -263,21 +375,30 @@ public class Fqn implements Cloneable, Externalizable {
     */
    public Object getLast() {
       if (isRoot()) return SEPARATOR; 
-      return elements.get(elements.size() - 1);
+      return elements[offset + size - 1];
    }
 
    /**
     * Returns true if the FQN contains this element.
     */
    public boolean hasElement(Object o) {
-      return elements.lastIndexOf(o) != -1;
+      for (int i = offset + size - 1; i >= offset; i--) {
+         if (o == null ? elements[i] == null : o.equals(elements[i]))
+            return true;
+      }
+      return false;
    }
 
    /**
     * Clones the FQN.
     */
    public Object clone() {
-      return new Fqn(elements);
+      Fqn fqn = new Fqn();
+      fqn.elements = elements;
+      fqn.offset = offset;
+      fqn.size = size;
+      fqn.hash_code = hash_code;
+      return fqn;
    }
 
    /**
@@ -289,7 +410,18 @@ public class Fqn implements Cloneable, Externalizable {
       if(!(obj instanceof Fqn))
          return false;
       Fqn other=(Fqn)obj;
-      return elements.equals(other.elements);
+      if (size != other.size)
+         return false;
+      if (hash_code != 0 && other.hash_code != 0 && hash_code != other.hash_code)
+         return false;
+      // the last elements are the most likely to differ
+      for (int i = size - 1; i >= 0; i--) {
+         Object mine = elements[offset + i];
+         Object theirs = other.elements[other.offset + i];
+         if (mine != theirs && (mine == null || !mine.equals(theirs)))
+            return false;
+      }
+      return true;
    }
 
    /**
@@ -317,9 +449,9 @@ public class Fqn implements Cloneable, Externalizable {
       if (isRoot())
          return TreeCache.SEPARATOR;
       StringBuffer sb = new StringBuffer();
-      for (Iterator it = elements.iterator(); it.hasNext();)
+      for (int i = offset; i < offset + size; i++)
       {
-         sb.append(TreeCache.SEPARATOR).append(it.next());
+         sb.append(TreeCache.SEPARATOR).append(elements[i]);
       }
       return sb.toString();
    }
@@ -328,15 +460,13 @@ public class Fqn implements Cloneable, Externalizable {
       
 	  if (REL_123_COMPATIBLE)
 	  {
-		 out.writeObject(elements);
+		 out.writeObject(new ArrayList(peekElements()));
 	  }
 	  else
 	  {
-         out.writeShort(elements.size());
-         Object element;
-         for(Iterator it=elements.iterator(); it.hasNext();) {
-            element=it.next();
-            out.writeObject(element);
+         out.writeShort(size);
+         for (int i = offset; i < offset + size; i++) {
+            out.writeObject(elements[i]);
          }
 	  }
    }
@@ -345,16 +475,19 @@ public class Fqn implements Cloneable, Externalizable {
       
       if (REL_123_COMPATIBLE)
       {
-         elements=(List)in.readObject();
+         elements=((List)in.readObject()).toArray();
       }
       else
       {
          short length = in.readShort();
-         this.elements = new ArrayList(length);
+         this.elements = new Object[length];
          for (int i=0; i < length; i++) {
-            elements.add(in.readObject());
+            elements[i] = in.readObject();
          }
       }
+      offset = 0;
+      size = elements.length;
+      hash_code = 0;
    }
 
 
@@ -365,7 +498,7 @@ public class Fqn implements Cloneable, Externalizable {
     * @return true if the target is a child of parentFqn
     */
    public boolean isChildOf(Fqn parentFqn) {
-      if (parentFqn.elements.size() == elements.size())
+      if (parentFqn.size == size)
          return false;
       return isChildOrEquals(parentFqn);
    }
@@ -374,11 +507,14 @@ public class Fqn implements Cloneable, Externalizable {
     * Returns true if this fqn is equals or the child of parentFqn.
     */
    public boolean isChildOrEquals(Fqn parentFqn) {
-      List parentList = parentFqn.elements;
-      if (parentList.size() > elements.size())
+      if (parentFqn.size > size)
          return false;
-      for (int i = parentList.size() - 1; i >= 0; i--) {
-         if (!parentList.get(i).equals(elements.get(i)))
+      if (parentFqn.elements == elements && parentFqn.offset == offset)
+         return true;
+      for (int i = parentFqn.size - 1; i >= 0; i--) {
+         Object mine = elements[offset + i];
+         Object theirs = parentFqn.elements[parentFqn.offset + i];
+         if (mine != theirs && (theirs == null || !theirs.equals(mine)))
             return false;
       }
       return true;
@@ -391,8 +527,8 @@ public class Fqn implements Cloneable, Externalizable {
       int hashCode = 0;
       int count = 1; 
       Object o;
-      for (Iterator it=elements.iterator(); it.hasNext();) {
-         o = it.next();
+      for (int i = offset; i < offset + size; i++) {
+         o = elements[i];
          hashCode += (o == null) ? 0 : o.hashCode() * count++;
       }
       if (hashCode == 0) // fix degenerate case
@@ -405,13 +541,13 @@ public class Fqn implements Cloneable, Externalizable {
     */
    public Fqn getParent()
    {
-       switch (elements.size())
+       switch (size)
        {
            case 0:
            case 1:
                return ROOT;
            default:
-               return createFqn(elements.subList(0, elements.size() - 1));
+               return createFqn(elements, offset, size - 1);
        }
    }
 
@@ -420,7 +556,7 @@ public class Fqn implements Cloneable, Externalizable {
     */
    public boolean isRoot()
    {
-       return elements.isEmpty();
+       return size == 0;
    }
 
    /**
@@ -440,6 +576,21 @@ public class Fqn implements Cloneable, Externalizable {
     */
    public List peekElements()
    {
-       return Collections.unmodifiableList( elements );
+       return Collections.unmodifiableList( Arrays.asList(elements).subList(offset, offset + size) );
+   }
+
+   /**
+    * A string and the Fqn parsed from it.
+    */
+   private static final class InternedFqn
+   {
+      final String string;
+      final Fqn fqn;
+
+      InternedFqn(String string, Fqn fqn)
+      {
+         this.string = string;
+         this.fqn = fqn;
+      }
    }
 }
@@ -9,6 +9,7 @@ package org.jboss.cache;
 import org.jboss.cache.config.Option;
 
 import javax.transaction.Transaction;
+import java.util.List;
 
 /**
  * This context holds information specific to a method invocation.
@@ -23,6 +24,7 @@ public class InvocationContext
     // defaults to true.
     private boolean originLocal = true;
     private boolean txHasMods;
+    private List deltaCalls;
     
     public void setLocalRollbackOnly(boolean localRollbackOnly)
     {
@@ -127,6 +129,20 @@ public class InvocationContext
         txHasMods = b;
     }
 
+    /**
+     * Returns the calls replicating the last non-transactional put as a delta, if the
+     * put was recorded as one, or null.
+     */
+    public List getDeltaCalls()
+    {
+        return deltaCalls;
+    }
+
+    public void setDeltaCalls(List deltaCalls)
+    {
+        this.deltaCalls = deltaCalls;
+    }
+
     public boolean isLocalRollbackOnly()
     {
         return localRollbackOnly;
@@ -7,7 +7,6 @@
 package org.jboss.cache;
 
 
-import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.cache.factories.NodeFactory;
@@ -17,6 +16,7 @@ import org.jboss.cache.lock.TimeoutException;
 import org.jboss.cache.lock.UpgradeException;
 import org.jboss.cache.marshall.MethodCallFactory;
 import org.jboss.cache.marshall.MethodDeclarations;
+import org.jboss.cache.util.CompactMap;
 import org.jgroups.blocks.MethodCall;
 
 import java.io.Externalizable;
@@ -24,11 +24,14 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Basic data node class.
@@ -60,6 +63,20 @@ public class Node extends AbstractNode implements Externalizable
     */
    private IdentityLock lock_ = null;
 
+   /**
+    * Last committed copy of the data map, used when the cache serves reads without
+    * locks (see {@link TreeCache#isUsingLockFreeReads()}).  The map is never modified,
+    * only replaced: after each change made without holding the write lock, and just
+    * before the write lock is released.  <code>null</code> if there is no data.
+    */
+   private volatile Map committedData = null;
+
+   /**
+    * Increased each time the write lock is acquired, see {@link DataNode#getStructuralVersion()}.
+    * Only written by the owner of the write lock.
+    */
+   private volatile long structuralVersion = 0;
+
    /**
     * A reference of the TreeCache instance.
     */
@@ -81,6 +98,7 @@ public class Node extends AbstractNode implements Externalizable
       if (data != null)
       {
          this.data().putAll(data);
+         dataChanged();
       }
    }
 
@@ -102,6 +120,7 @@ public class Node extends AbstractNode implements Externalizable
             this.data = data;
          else
             this.data().putAll(data);
+         dataChanged();
       }
    }
 
@@ -112,6 +131,7 @@ public class Node extends AbstractNode implements Externalizable
    {
       init(child_name, fqn, cache);
       data().put(key, value);
+      dataChanged();
    }
 
    /**
@@ -140,23 +160,70 @@ public class Node extends AbstractNode implements Externalizable
    private synchronized void initLock()
    {
       if (lock_ == null)
-         lock_ = new IdentityLock(cache, fqn);
+         lock_ = isLockFreeReads() ? new CommittingLock() : new IdentityLock(cache, fqn);
+   }
+
+   private boolean isLockFreeReads()
+   {
+      return cache != null && cache.isUsingLockFreeReads();
+   }
+
+   /**
+    * Replaces the committed copy of the data with the current data.  Must be
+    * called holding this node's monitor.
+    */
+   private void publishData()
+   {
+      committedData = (data == null || data.isEmpty()) ? null : Collections.unmodifiableMap(new CompactMap(data));
+   }
+
+   /**
+    * Called holding this node's monitor after the data has changed.  The change is
+    * published right away unless the node is write locked, in which case it is
+    * published when the write lock is released.
+    */
+   private void dataChanged()
+   {
+      if (isLockFreeReads() && !isWriteLocked())
+         publishData();
    }
 
-   protected synchronized Map children()
+   /**
+    * Returns true if reads should use {@link #committedData} rather than the live data.
+    * The owner of the write lock reads the live data so that it sees its own changes.
+    */
+   private boolean readCommitted()
+   {
+      if (!isLockFreeReads())
+         return false;
+      Object writer = lock_ == null ? null : lock_.getWriterOwner();
+      if (writer == null)
+         return true;
+      GlobalTransaction gtx = cache.getInvocationContext().getGlobalTransaction();
+      return !writer.equals(gtx != null ? (Object) gtx : Thread.currentThread());
+   }
+
+   /**
+    * Returns the children map, creating it if needed.  Children are kept in a
+    * {@link ConcurrentHashMap}, which only allocates its table on the first insert
+    * and lets concurrent inserts of different children proceed in parallel.
+    */
+   protected Map children()
    {
-      if (children == null)
+      Map map = children;
+      if (map == null)
       {
-         if (getFqn().isRoot())
-         {
-            children = new ConcurrentReaderHashMap(64);
-         }
-         else
+         synchronized (this)
          {
-            children = new ConcurrentReaderHashMap(4);
+            map = children;
+            if (map == null)
+            {
+               map = new ConcurrentHashMap(getFqn().isRoot() ? 64 : 4);
+               children = map;
+            }
          }
       }
-      return children;
+      return map;
    }
 
    private void setTreeCacheInstance(TreeCache cache)
@@ -221,6 +288,11 @@ public class Node extends AbstractNode implements Externalizable
 
    public Object get(Object key)
    {
+      if (readCommitted())
+      {
+         Map committed = committedData;
+         return committed == null ? null : committed.get(key);
+      }
       synchronized (this)
       {
          return data == null ? null : data.get(key);
@@ -240,6 +312,11 @@ public class Node extends AbstractNode implements Externalizable
     */
    public Set getDataKeys()
    {
+      if (readCommitted())
+      {
+         Map committed = committedData;
+         return committed == null ? new HashSet(0) : committed.keySet();
+      }
       synchronized (this)
       {
          if (data == null)
@@ -281,6 +358,11 @@ public class Node extends AbstractNode implements Externalizable
 
    public Map getData()
    {
+      if (readCommitted())
+      {
+         Map committed = committedData;
+         return committed == null ? null : new HashMap(committed);
+      }
       synchronized (this)
       {
          if (data == null)
@@ -291,6 +373,11 @@ public class Node extends AbstractNode implements Externalizable
 
    public int numAttributes()
    {
+      if (readCommitted())
+      {
+         Map committed = committedData;
+         return committed == null ? 0 : committed.size();
+      }
       synchronized (this)
       {
          return data != null ? data.size() : 0;
@@ -306,8 +393,9 @@ public class Node extends AbstractNode implements Externalizable
             if (this.data != null)
                this.data.clear();
          }
-         if (data == null) return;
-         this.data().putAll(data);
+         if (data != null)
+            this.data().putAll(data);
+         dataChanged();
       }
    }
 
@@ -315,7 +403,9 @@ public class Node extends AbstractNode implements Externalizable
    {
       synchronized (this)
       {
-         return this.data().put(key, value);
+         Object old = this.data().put(key, value);
+         dataChanged();
+         return old;
       }
    }
 
@@ -325,33 +415,41 @@ public class Node extends AbstractNode implements Externalizable
       if (child_name == null)
          throw new IllegalArgumentException("null child name");
 
-      child = (DataNode) children().get(child_name);
+      Map children = children();
+      child = (DataNode) children.get(child_name);
       if (createIfNotExists && child == null)
       {
-         // construct the new child outside the synchronized block to avoid
-         // spending any more time than necessary in the synchronized section
+         // construct the new child before inserting it, so that racing
+         // creators only contend for the insert itself
          Fqn child_fqn = new Fqn(this.fqn, child_name);
          DataNode newChild = (DataNode) NodeFactory.getInstance().createNodeOfType(this, child_name, child_fqn, this, null, cache);
          if (newChild == null)
             throw new IllegalStateException();
-         synchronized (this)
+         if (children instanceof ConcurrentMap)
          {
-            // check again to see if the child exists
-            // after acquiring exclusive lock
-            child = (Node) children().get(child_name);
-            if (child == null)
+            child = (DataNode) ((ConcurrentMap) children).putIfAbsent(child_name, newChild);
+         }
+         else
+         {
+            // a map installed with setChildren()
+            synchronized (this)
             {
-               child = newChild;
-               children.put(child_name, child);
-               if (gtx != null)
-               {
-                  MethodCall undo_op = MethodCallFactory.create(MethodDeclarations.removeNodeMethodLocal,
-                          new Object[]{gtx, child_fqn, Boolean.FALSE});
-                  cache.addUndoOperation(gtx, undo_op);
-                  // add the node name to the list maintained for the current tx
-                  // (needed for abort/rollback of transaction)
-                  // cache.addNode(gtx, child.getFqn());
-               }
+               child = (DataNode) children.get(child_name);
+               if (child == null)
+                  children.put(child_name, newChild);
+            }
+         }
+         if (child == null)
+         {
+            child = newChild;
+            if (gtx != null)
+            {
+               MethodCall undo_op = MethodCallFactory.create(MethodDeclarations.removeNodeMethodLocal,
+                       new Object[]{gtx, child_fqn, Boolean.FALSE});
+               cache.addUndoOperation(gtx, undo_op);
+               // add the node name to the list maintained for the current tx
+               // (needed for abort/rollback of transaction)
+               // cache.addNode(gtx, child.getFqn());
             }
          }
 
@@ -385,7 +483,11 @@ public class Node extends AbstractNode implements Externalizable
    {
       synchronized (this)
       {
-         return data != null ? data.remove(key) : null;
+         if (data == null)
+            return null;
+         Object old = data.remove(key);
+         dataChanged();
+         return old;
       }
    }
 
@@ -398,6 +500,7 @@ public class Node extends AbstractNode implements Externalizable
             data.clear();
             data = null;
          }
+         dataChanged();
       }
    }
 
@@ -492,7 +595,7 @@ public class Node extends AbstractNode implements Externalizable
    {
       DataNode parent = (DataNode) getParent();
       DataNode n = (DataNode) NodeFactory.getInstance().createNodeOfType(parent, getName(), fqn, parent != null ? (DataNode) parent.clone() : null, data, cache);
-      n.setChildren(children == null ? null : (HashMap) ((HashMap) children).clone());
+      n.setChildren(children == null ? null : new ConcurrentHashMap(children));
       return n;
    }
 
@@ -560,6 +663,8 @@ public class Node extends AbstractNode implements Externalizable
                  append(", lock=").append(lock_.toString(DataNode.PRINT_LOCK_DETAILS)));
       }
       boolean flag = lock_.acquireWriteLock(caller, timeout);
+      if (flag)
+         structuralVersion++;
       if (trace)
       {
          log.trace(new StringBuffer("acquired WL: fqn=").append(fqn).append(", caller=").append(caller).
@@ -568,6 +673,11 @@ public class Node extends AbstractNode implements Externalizable
       return flag;
    }
 
+   public long getStructuralVersion()
+   {
+      return structuralVersion;
+   }
+
    public Set acquireAll(Object caller, long timeout, int lock_type) throws LockingException, TimeoutException, InterruptedException
    {
       DataNode tmp;
@@ -662,7 +772,8 @@ public class Node extends AbstractNode implements Externalizable
       out.writeObject(children);
       synchronized (this)
       {
-         out.writeObject(data);
+         // keep writing a HashMap, which 1.2.3 understands
+         out.writeObject(data instanceof CompactMap ? new HashMap(data) : data);
       }
    }
 
@@ -722,5 +833,39 @@ public class Node extends AbstractNode implements Externalizable
    {
       return containsKey(REMOVAL_MARKER);
    }
+
+   /**
+    * Lock used with lock-free reads: publishes the node's data just before the
+    * write lock is released, so that readers never see uncommitted changes.
+    */
+   private class CommittingLock extends IdentityLock
+   {
+      CommittingLock()
+      {
+         super(cache, fqn);
+      }
+
+      public void release(Object caller)
+      {
+         if (caller != null && caller.equals(getWriterOwner()))
+            publish();
+         super.release(caller);
+      }
+
+      public void releaseAll()
+      {
+         if (getWriterOwner() != null)
+            publish();
+         super.releaseAll();
+      }
+
+      private void publish()
+      {
+         synchronized (Node.this)
+         {
+            publishData();
+         }
+      }
+   }
 }
 
@@ -9,17 +9,62 @@ package org.jboss.cache;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.cache.marshall.JBCMethodCall;
+import org.jboss.cache.marshall.MarshalledMethodCall;
+import org.jboss.cache.marshall.MethodCallFactory;
 import org.jboss.cache.marshall.MethodDeclarations;
+import org.jboss.cache.util.LatencyHistogram;
 import org.jgroups.blocks.MethodCall;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
- * Periodically (or when certain size is exceeded) takes elements and replicates them.
+ * Collects asynchronous replication calls and replicates them in batches.  A batch is
+ * cut as soon as <tt>max_elements</tt> calls are queued, as soon as the estimated size
+ * of the queued calls reaches <tt>max_bytes</tt>, or when the oldest call has waited
+ * <tt>interval</tt> milliseconds, whichever comes first.
+ * <p/>
+ * Once started, the queue replicates through a pipeline, so that threads adding calls
+ * only pay for the enqueue.  A batcher thread cuts batches and hands each to a pool of
+ * <tt>marshalling_threads</tt> threads, which marshall them in parallel; a single sender
+ * thread sends the marshalled batches in the order they were cut, which keeps the calls
+ * of this member in order at the receivers, as {@link MethodDeclarations#replicateAllMethod}
+ * requires.  At most <tt>max_batches_in_flight</tt> batches are being marshalled or sent;
+ * when that many are, the batcher waits, and threads adding calls wait once
+ * <tt>max_batches_in_flight</tt> batches worth of calls are queued.  A queue which has not
+ * been started flushes in the thread adding the call that reaches a limit.
+ * <p/>
+ * Adding a call does not take a lock shared with other producers; calls are held in a
+ * lock free queue.
+ * <p/>
+ * If coalescing is enabled, calls made redundant by a later call in the same batch are
+ * dropped before sending: a put or remove of a key followed by a put of the same key, a
+ * remove of a key followed by another remove of it, a write to a node followed by a put
+ * replacing all its data, and repeated evictions of a node.  Only non transactional
+ * calls are coalesced, and any call the queue does not know how to reason about keeps
+ * the calls before it from being coalesced with the calls after it.  Receivers see the
+ * same final state, but fewer modification events.
  *
  * @author <a href="mailto:bela@jboss.org">Bela Ban</a> May 24, 2003
  * @version $Revision: 3706 $
@@ -30,20 +75,60 @@ public class ReplicationQueue {
 
    private TreeCache cache=null;
 
-   /** We flush every 5 seconds. Inactive if -1 or 0 */
+   /** Longest time in milliseconds a call waits before it is flushed. Inactive if -1 or 0 */
    private long interval=5000;
 
    /** Max elements before we flush */
    private long max_elements=500;
 
-   /** Holds the replication jobs: LinkedList<MethodCall> */
-   private List elements=new ArrayList();
+   /** Max estimated size in bytes of the queued calls before we flush. Inactive if 0 or less */
+   private long max_bytes=1024 * 1024;
 
-   /** For periodical replication */
-   private Timer timer=null;
+   /** Whether calls superseded by later calls are dropped */
+   private boolean coalescing=true;
 
-   /** The timer task, only calls flush() when executed by Timer */
-   private MyTask task=null;
+   /** Number of threads marshalling batches */
+   private int marshalling_threads=2;
+
+   /** Max batches being marshalled or sent at the same time */
+   private int max_batches_in_flight=4;
+
+   /** Holds the replication jobs: Queue<Element> */
+   private final ConcurrentLinkedQueue elements=new ConcurrentLinkedQueue();
+
+   /** Number and estimated size of the queued calls */
+   private final AtomicInteger num_elements=new AtomicInteger();
+   private final AtomicLong num_bytes=new AtomicLong();
+
+   /** Serializes cutting batches, so that batches are sent in order */
+   private final Object flush_lock=new Object();
+
+   /** Monitor the batcher waits on */
+   private final Object signal=new Object();
+
+   /** Set by a producer reaching a limit, cleared by the batcher when it cuts batches */
+   private final AtomicBoolean flush_requested=new AtomicBoolean();
+
+   /** True while the batcher waits for the first call of an empty queue */
+   private volatile boolean batcher_idle=false;
+
+   /** Monitor producers wait on while the queue is full */
+   private final Object space=new Object();
+   private final AtomicInteger waiting_producers=new AtomicInteger();
+
+   /** The pipeline, null if stopped */
+   private Thread batcher=null;
+   private Thread sender=null;
+   private Semaphore batch_permits=null;
+
+   /** Put after the last batch a batcher cuts; the sender stops when it takes it */
+   private static final Object END_OF_BATCHES=new Object();
+
+   private final AtomicLong flushes=new AtomicLong();
+   private final AtomicLong queued_calls=new AtomicLong();
+   private final AtomicLong coalesced_calls=new AtomicLong();
+   private final AtomicLong producer_waits=new AtomicLong();
+   private final LatencyHistogram queue_delay=new LatencyHistogram();
 
    public ReplicationQueue() {
    }
@@ -58,24 +143,23 @@ public class ReplicationQueue {
    }
 
    /**
-    * Returns the flush interval in milliseconds.
+    * Returns the longest time in milliseconds a call is held before it is replicated.
     */
    public long getInterval() {
       return interval;
    }
 
    /**
-    * Sets the flush interval in milliseconds.
+    * Sets the longest time in milliseconds a call is held before it is replicated.
     */
    public void setInterval(long interval) {
       this.interval=interval;
-      stop();
-      start();
+      wakeBatcher();
    }
 
    /**
     * Returns the maximum number of elements to hold.
-    * If the maximum number is reached, flushes in the calling thread.
+    * If the maximum number is reached, a batch is cut.
     */
    public long getMax_elements() {
       return max_elements;
@@ -89,32 +173,127 @@ public class ReplicationQueue {
    }
 
    /**
-    * Starts the asynchronous flush queue.
+    * Returns the estimated size in bytes of the calls to hold.
+    * If it is reached, a batch is cut.
+    */
+   public long getMax_bytes() {
+      return max_bytes;
+   }
+
+   /**
+    * Sets the estimated size in bytes of the calls to hold; 0 or less for no limit.
+    */
+   public void setMax_bytes(long max_bytes) {
+      this.max_bytes=max_bytes;
+   }
+
+   public boolean isCoalescing() {
+      return coalescing;
+   }
+
+   /**
+    * Sets whether calls superseded by a later call in the same batch are dropped.
+    */
+   public void setCoalescing(boolean coalescing) {
+      this.coalescing=coalescing;
+   }
+
+   public int getMarshalling_threads() {
+      return marshalling_threads;
+   }
+
+   /**
+    * Sets the number of threads marshalling batches; takes effect when the queue is started.
+    */
+   public void setMarshalling_threads(int marshalling_threads) {
+      this.marshalling_threads=Math.max(1, marshalling_threads);
+   }
+
+   public int getMax_batches_in_flight() {
+      return max_batches_in_flight;
+   }
+
+   /**
+    * Sets the maximum number of batches being marshalled or sent at the same time; takes
+    * effect when the queue is started.
+    */
+   public void setMax_batches_in_flight(int max_batches_in_flight) {
+      this.max_batches_in_flight=Math.max(1, max_batches_in_flight);
+   }
+
+   /**
+    * Starts the replication pipeline.
     */
    public synchronized void start() {
-      if(interval > 0) {
-         if(task == null)
-            task=new MyTask();
-         if(timer == null) {
-            timer=new Timer(true);
-            timer.schedule(task,
-                    500, // delay before initial flush
-                    interval); // interval between flushes
+      if(batcher != null)
+         return;
+      // each pipeline has its own, as a stopped one may still be cutting or sending, see stop()
+      final Semaphore permits=new Semaphore(max_batches_in_flight);
+      batch_permits=permits;
+      // batches cut but not sent yet, in order: BlockingQueue<Future<MethodCall>>
+      final LinkedBlockingQueue in_flight=new LinkedBlockingQueue();
+      final AtomicInteger thread_count=new AtomicInteger();
+      final ExecutorService marshallers=Executors.newFixedThreadPool(marshalling_threads, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t=new Thread(r, "ReplicationQueue marshaller-" + thread_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
          }
-      }
+      });
+      sender=new Thread("ReplicationQueue sender") {
+         public void run() {
+            sendBatches(in_flight, permits);
+         }
+      };
+      sender.setDaemon(true);
+      sender.start();
+      batcher=new Thread("ReplicationQueue batcher") {
+         public void run() {
+            try {
+               cutBatchesWhenDue(this, marshallers, in_flight, permits);
+            }
+            finally {
+               // the marshallers finish the batches submitted, and the sender sends them
+               marshallers.shutdown();
+               in_flight.add(END_OF_BATCHES);
+            }
+         }
+      };
+      batcher.setDaemon(true);
+      batcher.start();
    }
 
    /**
-    * Stops the asynchronous flush queue.
+    * Stops the replication pipeline, after handing the queued calls to it and waiting up
+    * to the cache's synchronous replication timeout for them to be sent.  Calls which are
+    * not sent by then are still sent in the background: once the batcher has cut the last
+    * batch, it shuts the marshalling threads down, and the sender stops after sending it.
     */
    public synchronized void stop() {
-      if(task != null) {
-         task.cancel();
-         task=null;
+      if(batcher == null)
+         return;
+      Thread b=batcher, s=sender;
+      long timeout=cache == null ? 5000 : cache.getSyncReplTimeout();
+      batcher=null;
+      sender=null;
+      wakeBatcher();
+      join(b, timeout);
+      join(s, timeout);
+      if (s.isAlive() && log.isWarnEnabled())
+         log.warn("replication queue stopped with calls still to send; they are sent in the background");
+      synchronized(space) {
+         space.notifyAll();
       }
-      if(timer != null) {
-         timer.cancel();
-         timer=null;
+   }
+
+   private static void join(Thread t, long timeout) {
+      if(t == Thread.currentThread())
+         return;
+      try {
+         t.join(timeout);
+      }
+      catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
       }
    }
 
@@ -125,30 +304,39 @@ public class ReplicationQueue {
    public void add(MethodCall job) {
       if (job == null)
          throw new NullPointerException("job is null");
-      synchronized (elements) {
-         elements.add(job);
-         if (elements.size() >= max_elements)
+      Element e=new Element(job);
+      elements.add(e);
+      int n=num_elements.incrementAndGet();
+      long size=num_bytes.addAndGet(e.size);
+      boolean full=n >= max_elements || (max_bytes > 0 && size >= max_bytes);
+      if (batcher == null) {
+         if (full)
             flush();
+         return;
       }
+      if (full && flush_requested.compareAndSet(false, true) || batcher_idle)
+         wakeBatcher();
+      if (full)
+         awaitSpace();
    }
 
    /**
-    * Flushes existing method calls.
+    * Replicates the queued calls: hands them to the pipeline if it is started, otherwise
+    * sends them in the calling thread.
     */
    public void flush() {
-      List l;
-      synchronized(elements) {
-         if (log.isTraceEnabled())
-            log.trace("flush(): flushing repl queue (num elements=" + elements.size() + ")");
-         l = new ArrayList(elements);
-         elements.clear();
+      if (batcher != null) {
+         flush_requested.set(true);
+         wakeBatcher();
+         return;
       }
-
-      if (l.size() > 0)
-      {
+      synchronized(flush_lock) {
+         List l=drain(Integer.MAX_VALUE);
+         if (l == null)
+            return;
          try {
             // send to all live nodes in the cluster
-            cache.callRemoteMethods(null, MethodDeclarations.replicateAllMethod, new Object[]{l}, false, true, 5000);
+            cache.callRemoteMethods(null, MethodDeclarations.replicateAllMethod, new Object[]{l}, false, true, cache.getSyncReplTimeout());
          }
          catch(Throwable t) {
             log.error("failed replicating " + l.size() + " elements in replication queue", t);
@@ -156,9 +344,410 @@ public class ReplicationQueue {
       }
    }
 
-   class MyTask extends TimerTask {
-      public void run() {
-         flush();
+   /**
+    * Returns the number of batches sent.
+    */
+   public long getFlushes() {
+      return flushes.get();
+   }
+
+   /**
+    * Returns the average number of calls sent per batch, after coalescing.
+    */
+   public double getAverageBatchSize() {
+      long n=flushes.get();
+      return n == 0 ? 0 : (double)(queued_calls.get() - coalesced_calls.get()) / n;
+   }
+
+   /**
+    * Returns the fraction of queued calls which were dropped by coalescing.
+    */
+   public double getCoalescingRatio() {
+      long n=queued_calls.get();
+      return n == 0 ? 0 : (double)coalesced_calls.get() / n;
+   }
+
+   /**
+    * Returns the time calls waited in the queue before being handed to the pipeline.
+    */
+   public LatencyHistogram getQueueDelay() {
+      return queue_delay;
+   }
+
+   /**
+    * Returns the number of batches being marshalled or sent.
+    */
+   public int getBatchesInFlight() {
+      Semaphore permits=batch_permits;
+      return permits == null || batcher == null ? 0 : max_batches_in_flight - permits.availablePermits();
+   }
+
+   /**
+    * Returns how often a thread adding a call had to wait for the pipeline to catch up.
+    */
+   public long getProducerWaits() {
+      return producer_waits.get();
+   }
+
+   public Map dumpStatistics() {
+      Map retval=new HashMap();
+      retval.put("Flushes", new Long(getFlushes()));
+      retval.put("QueuedCalls", new Long(queued_calls.get()));
+      retval.put("CoalescedCalls", new Long(coalesced_calls.get()));
+      retval.put("AverageBatchSize", new Double(getAverageBatchSize()));
+      retval.put("CoalescingRatio", new Double(getCoalescingRatio()));
+      retval.put("QueueDelayP50", new Long(queue_delay.getValueAtPercentile(50) / 1000000));
+      retval.put("QueueDelayP99", new Long(queue_delay.getValueAtPercentile(99) / 1000000));
+      retval.put("QueueDelayMax", new Long(queue_delay.getValueAtPercentile(100) / 1000000));
+      retval.put("BatchesInFlight", new Integer(getBatchesInFlight()));
+      retval.put("ProducerWaits", new Long(getProducerWaits()));
+      return retval;
+   }
+
+   public void resetStatistics() {
+      flushes.set(0);
+      queued_calls.set(0);
+      coalesced_calls.set(0);
+      producer_waits.set(0);
+      queue_delay.reset();
+   }
+
+   private void wakeBatcher() {
+      synchronized(signal) {
+         signal.notifyAll();
+      }
+   }
+
+   /**
+    * Makes a thread adding a call wait while <tt>max_batches_in_flight</tt> batches worth
+    * of calls are queued, and the pipeline is busy.
+    */
+   private void awaitSpace() {
+      if (!isOverfull())
+         return;
+      producer_waits.incrementAndGet();
+      waiting_producers.incrementAndGet();
+      try {
+         synchronized(space) {
+            while(batcher != null && isOverfull())
+               space.wait(100);
+         }
+      }
+      catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      finally {
+         waiting_producers.decrementAndGet();
+      }
+   }
+
+   private boolean isOverfull() {
+      return num_elements.get() >= max_elements * max_batches_in_flight ||
+            (max_bytes > 0 && num_bytes.get() >= max_bytes * max_batches_in_flight);
+   }
+
+   /**
+    * Run by the batcher: waits until a limit is reached or the oldest call is due, and
+    * cuts batches.  When stopped, cuts the calls still queued before returning.
+    */
+   private void cutBatchesWhenDue(Thread self, ExecutorService marshallers, BlockingQueue in_flight, Semaphore permits) {
+      while(true) {
+         try {
+            boolean running=batcher == self;
+            Element oldest=(Element)elements.peek();
+            if (oldest == null && !running)
+               return;
+            long wait=0;
+            if (oldest != null) {
+               long age=(System.nanoTime() - oldest.enqueued) / 1000000;
+               if (!running || flush_requested.get() || num_elements.get() >= max_elements ||
+                     (max_bytes > 0 && num_bytes.get() >= max_bytes) || (interval > 0 && age >= interval)) {
+                  flush_requested.set(false);
+                  cutBatches(marshallers, in_flight, permits);
+                  continue;
+               }
+               if (interval > 0)
+                  wait=interval - age;
+            }
+            synchronized(signal) {
+               // re-check under the monitor, producers notify holding it
+               batcher_idle=oldest == null;
+               if (batcher == self && !flush_requested.get() && (oldest != null || elements.isEmpty()))
+                  signal.wait(wait);
+               batcher_idle=false;
+            }
+         }
+         catch(InterruptedException e) {
+            return;
+         }
+         catch(Throwable t) {
+            log.error("failed cutting batches in replication queue", t);
+         }
+      }
+   }
+
+   /**
+    * Cuts the queued calls into batches of at most <tt>max_elements</tt> calls and
+    * <tt>max_bytes</tt>, and hands each to a marshalling thread.
+    */
+   private void cutBatches(ExecutorService marshallers, BlockingQueue in_flight, Semaphore permits) throws InterruptedException {
+      synchronized(flush_lock) {
+         int remaining=num_elements.get();
+         while(remaining > 0) {
+            int limit=(int)Math.min(remaining, Math.max(1, max_elements));
+            final List l=drain(limit);
+            if (l == null)
+               break;
+            remaining-=limit;
+            permits.acquire();
+            final JBCMethodCall call=MethodCallFactory.create(MethodDeclarations.replicateAllMethod, new Object[]{l});
+            in_flight.put(marshallers.submit(new Callable() {
+               public Object call() throws Exception {
+                  return new MarshalledMethodCall(call, cache.getMarshaller().objectToByteBuffer(call));
+               }
+            }));
+            if (waiting_producers.get() > 0) {
+               synchronized(space) {
+                  space.notifyAll();
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Run by the sender: sends the marshalled batches in the order they were cut, until
+    * it takes {@link #END_OF_BATCHES}.
+    */
+   private void sendBatches(BlockingQueue in_flight, Semaphore permits) {
+      while(true) {
+         Object batch;
+         try {
+            batch=in_flight.take();
+         }
+         catch(InterruptedException e) {
+            return;
+         }
+         if (batch == END_OF_BATCHES)
+            return;
+         try {
+            MethodCall call=(MethodCall)((Future)batch).get();
+            // send to all live nodes in the cluster
+            cache.callRemoteMethods(null, call, false, true, cache.getSyncReplTimeout());
+         }
+         catch(ExecutionException e) {
+            log.error("failed marshalling elements in replication queue", e.getCause());
+         }
+         catch(Throwable t) {
+            log.error("failed replicating elements in replication queue", t);
+         }
+         finally {
+            permits.release();
+         }
+      }
+   }
+
+   /**
+    * Takes up to <tt>limit</tt> calls from the queue, stopping early once
+    * <tt>max_bytes</tt> is reached, and coalesces them.
+    *
+    * @return the calls to send, or null if there were none
+    */
+   private List drain(int limit) {
+      List l=new ArrayList();
+      long now=System.nanoTime();
+      long bytes=0;
+      Element e;
+      while(l.size() < limit && (max_bytes <= 0 || bytes < max_bytes) && (e=(Element)elements.poll()) != null) {
+         num_elements.decrementAndGet();
+         num_bytes.addAndGet(-e.size);
+         bytes+=e.size;
+         queue_delay.record(now - e.enqueued);
+         l.add(e.call);
+      }
+      if (l.isEmpty())
+         return null;
+
+      int queued=l.size();
+      if (coalescing)
+         l=coalesce(l);
+      flushes.incrementAndGet();
+      queued_calls.addAndGet(queued);
+      coalesced_calls.addAndGet(queued - l.size());
+      if (log.isTraceEnabled())
+         log.trace("flushing repl queue (num elements=" + l.size() + ", coalesced from " + queued + ")");
+      return l;
+   }
+
+   /**
+    * Drops the calls superseded by a later call in the list.  The list is walked
+    * backwards, remembering the keys and nodes whose final state later calls determine.
+    */
+   static List coalesce(List calls) {
+      Set put_keys=new HashSet();
+      Set removed_keys=new HashSet();
+      Set replaced_nodes=new HashSet();
+      Set evicted_nodes=new HashSet();
+      boolean[] dropped=new boolean[calls.size()];
+      int drops=0;
+      for(int i=calls.size() - 1; i >= 0; i--) {
+         JBCMethodCall call=unwrap(calls.get(i));
+         int id=call == null ? -1 : call.getMethodId();
+         Object[] args=call == null ? null : call.getArgs();
+         if (args != null && id != MethodDeclarations.evictNodeMethodLocal_id && args[0] != null)
+            id=-1; // transactional
+         if (id != MethodDeclarations.evictNodeMethodLocal_id)
+            evicted_nodes.clear();
+         boolean drop=false;
+         switch(id) {
+            case MethodDeclarations.putKeyValMethodLocal_id: {
+               Object key=new KeyRef((Fqn)args[1], args[2]);
+               drop=replaced_nodes.contains(args[1]) || !put_keys.add(key);
+               break;
+            }
+            case MethodDeclarations.removeKeyMethodLocal_id: {
+               // a later remove does not supersede a put, which may have created the node
+               Object key=new KeyRef((Fqn)args[1], args[2]);
+               drop=replaced_nodes.contains(args[1]) || put_keys.contains(key) || !removed_keys.add(key);
+               break;
+            }
+            case MethodDeclarations.putDataEraseMethodLocal_id:
+               if (Boolean.TRUE.equals(args[4])) {
+                  drop=!replaced_nodes.add(args[1]);
+                  break;
+               }
+               // fall through, a put which keeps existing data
+            case MethodDeclarations.putDataMethodLocal_id: {
+               Map data=(Map)args[2];
+               drop=replaced_nodes.contains(args[1]);
+               if (!drop && data != null && !data.isEmpty()) {
+                  boolean superseded=true;
+                  for(Iterator it=data.keySet().iterator(); it.hasNext();) {
+                     if (put_keys.add(new KeyRef((Fqn)args[1], it.next())))
+                        superseded=false;
+                  }
+                  drop=superseded;
+               }
+               break;
+            }
+            case MethodDeclarations.removeDataMethodLocal_id:
+               drop=replaced_nodes.contains(args[1]);
+               break;
+            case MethodDeclarations.removeNodeMethodLocal_id:
+               // later writes still supersede earlier ones on both sides of a remove
+               break;
+            case MethodDeclarations.evictNodeMethodLocal_id:
+               drop=!evicted_nodes.add(args[0]);
+               break;
+            default:
+               put_keys.clear();
+               removed_keys.clear();
+               replaced_nodes.clear();
+               break;
+         }
+         if (drop) {
+            dropped[i]=true;
+            drops++;
+         }
+      }
+      if (drops == 0)
+         return calls;
+      List retval=new ArrayList(calls.size() - drops);
+      for(int i=0; i < dropped.length; i++) {
+         if (!dropped[i])
+            retval.add(calls.get(i));
+      }
+      return retval;
+   }
+
+   /**
+    * Returns the call wrapped by a {@link MethodDeclarations#replicateMethod} call, or null.
+    */
+   private static JBCMethodCall unwrap(Object o) {
+      if (!(o instanceof JBCMethodCall))
+         return null;
+      JBCMethodCall call=(JBCMethodCall)o;
+      if (call.getMethodId() != MethodDeclarations.replicateMethod_id)
+         return null;
+      Object inner=call.getArgs()[0];
+      return inner instanceof JBCMethodCall ? (JBCMethodCall)inner : null;
+   }
+
+   /**
+    * Returns a rough estimate of the serialized size of an argument, without serializing it.
+    */
+   static long estimateSize(Object o) {
+      if (o == null)
+         return 1;
+      if (o instanceof String)
+         return 3 + ((String)o).length();
+      if (o instanceof byte[])
+         return 5 + ((byte[])o).length;
+      if (o instanceof Number || o instanceof Boolean || o instanceof Character)
+         return 9;
+      if (o instanceof Fqn) {
+         Fqn fqn=(Fqn)o;
+         long size=5;
+         for(int i=0; i < fqn.size(); i++)
+            size+=estimateSize(fqn.get(i));
+         return size;
+      }
+      if (o instanceof MethodCall) {
+         Object[] args=((MethodCall)o).getArgs();
+         long size=5;
+         for(int i=0; args != null && i < args.length; i++)
+            size+=estimateSize(args[i]);
+         return size;
+      }
+      if (o instanceof Map) {
+         long size=5;
+         for(Iterator it=((Map)o).entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry=(Map.Entry)it.next();
+            size+=estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+         }
+         return size;
+      }
+      if (o instanceof Collection) {
+         long size=5;
+         for(Iterator it=((Collection)o).iterator(); it.hasNext();)
+            size+=estimateSize(it.next());
+         return size;
+      }
+      return 64;
+   }
+
+   private static class Element {
+      final MethodCall call;
+      final long enqueued=System.nanoTime();
+      final long size;
+
+      Element(MethodCall call) {
+         this.call=call;
+         this.size=estimateSize(call);
+      }
+   }
+
+   /**
+    * A key of a node's attribute map.
+    */
+   private static class KeyRef {
+      final Fqn fqn;
+      final Object key;
+
+      KeyRef(Fqn fqn, Object key) {
+         this.fqn=fqn;
+         this.key=key;
+      }
+
+      public boolean equals(Object o) {
+         if (!(o instanceof KeyRef))
+            return false;
+         KeyRef other=(KeyRef)o;
+         return fqn.equals(other.fqn) && (key == null ? other.key == null : key.equals(other.key));
+      }
+
+      public int hashCode() {
+         return fqn.hashCode() * 31 + (key == null ? 0 : key.hashCode());
       }
    }
 
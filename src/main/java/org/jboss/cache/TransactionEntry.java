@@ -11,16 +11,21 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.cache.config.Option;
 import org.jboss.cache.lock.IdentityLock;
+import org.jboss.cache.marshall.JBCMethodCall;
+import org.jboss.cache.marshall.MethodCallFactory;
+import org.jboss.cache.marshall.MethodDeclarations;
 import org.jgroups.blocks.MethodCall;
 
 import javax.transaction.Transaction;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 
 /**
  * This is the value (key being the {@link GlobalTransaction}) in the transaction table
@@ -28,7 +33,8 @@ import java.util.ListIterator;
  * <br>A TransactionEntry maintains
  * <ul>
  * <li>Handle to local Transactions: there can be more than 1 local TX associated with a GlobalTransaction
- * <li>List of modifications (Modification)
+ * <li>List of modifications (Modification), where puts of a map may be recorded as a delta
+ * (see {@link #createDelta})
  * <li>List of nodes that were created as part of lock acquisition. These nodes can be
  * safely deleted when a transaction is rolled back
  * <li>List of locks ({@link IdentityLock}) that have been acquired by
@@ -81,6 +87,11 @@ public class TransactionEntry {
     */
     protected List removedNodes = new LinkedList();
 
+   /**
+    * Number of puts recorded as a delta
+    */
+   protected int delta_modifications=0;
+
    /**
     * Constructs a new TransactionEntry.
     */
@@ -95,6 +106,90 @@ public class TransactionEntry {
       modification_list.add(m);
    }
 
+   /**
+    * Adds the calls replicating a put as a delta, created by {@link #createDelta}, to the
+    * modification list.
+    */
+   public void addDeltaModification(List delta) {
+      if (delta == null) return;
+      modification_list.addAll(delta);
+      delta_modifications++;
+   }
+
+   /**
+    * Returns the number of puts recorded as a delta rather than as the put itself.
+    */
+   public int getDeltaModifications() {
+      return delta_modifications;
+   }
+
+   /**
+    * Returns the calls replicating a put of a map as a delta against the data the node
+    * held before the put: a put of the attributes which were added or changed, and for
+    * an erasing put, a remove of each attribute it dropped (a tombstone).  Applied to a
+    * node holding the same data as this one before the put, they leave it in the same
+    * state as the put.
+    * <p/>
+    * The copy of the data holds the same value instances as the node, so a value mutated
+    * in place and put again equals its copy; such a value, put again as the same instance,
+    * is therefore replicated, unless it is of an immutable type.
+    *
+    * @param put    a {@link MethodDeclarations#putDataMethodLocal} or
+    *               {@link MethodDeclarations#putDataEraseMethodLocal} call
+    * @param before a copy of the data of the node before the put, null if the node does
+    *               not exist or has no data
+    * @return the delta, empty if the put changes nothing, or null if the put should be
+    *         replicated as is: when the delta has no fewer attributes than the put, or
+    *         the node's data has not been loaded from the cache loader
+    */
+   public static List createDelta(JBCMethodCall put, Map before) {
+      Object[] args=put.getArgs();
+      Map data=(Map)args[2];
+      if (data == null || before == null || before.containsKey(TreeCache.UNINITIALIZED))
+         return null;
+      boolean erase=put.getMethodId() == MethodDeclarations.putDataEraseMethodLocal_id && Boolean.TRUE.equals(args[4]);
+
+      Map changed=new HashMap();
+      for (Iterator i=data.entrySet().iterator(); i.hasNext();) {
+         Map.Entry entry=(Map.Entry)i.next();
+         Object key=entry.getKey(), value=entry.getValue();
+         Object old=before.get(key);
+         if (old == null ? value != null || !before.containsKey(key) : isChanged(old, value))
+            changed.put(key, value);
+      }
+      List removed=new ArrayList();
+      if (erase) {
+         for (Iterator i=before.keySet().iterator(); i.hasNext();) {
+            Object key=i.next();
+            if (!data.containsKey(key))
+               removed.add(key);
+         }
+      }
+      if (changed.size() + removed.size() >= data.size())
+         return null;
+
+      List delta=new ArrayList(removed.size() + 1);
+      if (!changed.isEmpty())
+         delta.add(MethodCallFactory.create(MethodDeclarations.putDataMethodLocal,
+               new Object[]{args[0], args[1], changed, args[3]}));
+      for (Iterator i=removed.iterator(); i.hasNext();)
+         delta.add(MethodCallFactory.create(MethodDeclarations.removeKeyMethodLocal,
+               new Object[]{args[0], args[1], i.next(), args[3]}));
+      return delta;
+   }
+
+   /**
+    * Returns true if <code>value</code> replaces <code>old</code> with a different value, or
+    * is the same instance of a type which may have been mutated in place.
+    */
+   private static boolean isChanged(Object old, Object value) {
+      if (old == value)
+         return !(value instanceof String || value instanceof Boolean || value instanceof Character
+               || value instanceof Integer || value instanceof Long || value instanceof Short
+               || value instanceof Byte || value instanceof Double || value instanceof Float);
+      return !old.equals(value);
+   }
+
     public void addCacheLoaderModification(MethodCall m)
     {
         if (m!=null) cl_mod_list.add(m);
@@ -172,6 +267,16 @@ public class TransactionEntry {
       }
    }
 
+   /**
+    * Removes a lock from the lock list, once it has been released before the
+    * transaction completes.
+    */
+   public void removeLock(IdentityLock l) {
+      synchronized(locks) {
+         locks.remove(l);
+      }
+   }
+
    /**
     * Add multiple locks to the lock list.
     * @param newLocks Collection<IdentityLock>
@@ -15,8 +15,11 @@ import org.jgroups.blocks.MethodCall;
 
 import javax.transaction.Transaction;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -115,6 +118,13 @@ public class TransactionTable {
       return gtx != null ? (TransactionEntry)txs.get(gtx) : null;
    }
 
+   /**
+    * Returns a copy of the set of global transactions in the table.
+    */
+   public Set getGlobalTransactions() {
+      return new HashSet(txs.keySet());
+   }
+
    /**
     * Associates the global transaction with a transaction entry.
     */
@@ -154,6 +164,19 @@ public class TransactionTable {
       entry.addModification(m);
    }
 
+   /**
+    * Adds the calls replicating a put as a delta to the global transaction.
+    * @see TransactionEntry#createDelta
+    */
+   public void addDeltaModification(GlobalTransaction gtx, List delta) {
+      TransactionEntry entry=get(gtx);
+      if(entry == null) {
+         log.error("transaction not found (gtx=" + gtx + ")");
+         return;
+      }
+      entry.addDeltaModification(delta);
+   }
+
     public void addCacheLoaderModification(GlobalTransaction gtx, MethodCall m)
     {
         TransactionEntry entry = get(gtx);
@@ -189,6 +212,18 @@ public class TransactionTable {
       entry.addLock(l);
    }
 
+   /**
+    * Removes a lock released before the global transaction completes.
+    */
+   public void removeLock(GlobalTransaction gtx, IdentityLock l) {
+      TransactionEntry entry=get(gtx);
+      if(entry == null) {
+         log.error("transaction entry not found for (gtx=" + gtx + ")");
+         return;
+      }
+      entry.removeLock(l);
+   }
+
    /**
     * Adds a collection of locks to the global transaction.
     */
@@ -28,6 +28,8 @@ import org.jboss.cache.lock.IsolationLevel;
 import org.jboss.cache.lock.LockStrategyFactory;
 import org.jboss.cache.lock.LockingException;
 import org.jboss.cache.lock.TimeoutException;
+import org.jboss.cache.marshall.Externalizer;
+import org.jboss.cache.marshall.ExternalizerRegistry;
 import org.jboss.cache.marshall.JBCMethodCall;
 import org.jboss.cache.marshall.MethodCallFactory;
 import org.jboss.cache.marshall.MethodDeclarations;
@@ -38,7 +40,10 @@ import org.jboss.cache.marshall.RegionNotFoundException;
 import org.jboss.cache.marshall.TreeCacheMarshaller;
 import org.jboss.cache.marshall.VersionAwareMarshaller;
 import org.jboss.cache.optimistic.DataVersion;
+import org.jboss.cache.optimistic.FqnComparator;
+import org.jboss.cache.statetransfer.ModificationLog;
 import org.jboss.cache.statetransfer.StateTransferFactory;
+import org.jboss.cache.statetransfer.StreamingStateTransferGenerator;
 import org.jboss.cache.statetransfer.StateTransferGenerator;
 import org.jboss.cache.statetransfer.StateTransferIntegrator;
 import org.jboss.cache.util.MBeanConfigurator;
@@ -51,6 +56,7 @@ import org.jgroups.ChannelNotConnectedException;
 import org.jgroups.JChannel;
 import org.jgroups.MembershipListener;
 import org.jgroups.Message;
+import org.jgroups.ExtendedMessageListener;
 import org.jgroups.MessageListener;
 import org.jgroups.View;
 import org.jgroups.blocks.GroupRequest;
@@ -75,7 +81,9 @@ import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.NotSerializableException;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -88,6 +96,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Vector;
 
 /**
@@ -224,6 +234,56 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
     */
    protected long repl_queue_interval = 5000;
 
+   /**
+    * Estimated size in bytes of the replicated elements to queue.
+    */
+   protected long repl_queue_max_bytes = 1024 * 1024;
+
+   /**
+    * True if queued elements superseded by later ones are dropped.
+    */
+   protected boolean repl_queue_coalescing = true;
+
+   /**
+    * True if puts of a map are replicated as a delta against the previous data of the node.
+    */
+   protected boolean delta_replication = false;
+
+   /**
+    * True if calls are marshalled through a direct buffer rather than an object stream.
+    */
+   protected boolean direct_marshalling = false;
+
+   /**
+    * Size from which marshalled calls and state transfers are compressed; 0 disables compression.
+    */
+   protected int compression_threshold = 0;
+
+   /**
+    * Number of threads marshalling and integrating streamed state; 1 streams it on the calling thread.
+    */
+   protected int state_transfer_threads = 1;
+
+   /**
+    * True if streamed transient state is generated without locking the subtree.
+    */
+   protected boolean non_blocking_state_transfer = false;
+
+   /**
+    * Set<ModificationLog> of the state transfers in progress without locks.
+    */
+   private final Set modificationLogs = new CopyOnWriteArraySet();
+
+   /**
+    * Number of threads marshalling queued elements.
+    */
+   protected int repl_queue_marshalling_threads = 2;
+
+   /**
+    * Maximum number of queued batches being marshalled or sent at the same time.
+    */
+   protected int repl_queue_max_batches_in_flight = 4;
+
    /**
     * True if MBean interceptors are used.
     *
@@ -284,6 +344,27 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
     * Require write locks on parents before adding or removing children.  Default false.
     */
    protected boolean lockParentForChildInsertRemove = false;
+
+   /**
+    * Only hold parent write locks while a child is inserted or removed.  Default false.
+    */
+   protected boolean latchParentForChildInsertRemove = false;
+
+   /**
+    * Skip read locks on the ancestors of the node an operation acts on.  Default false.
+    */
+   protected boolean ancestorLockElision = false;
+
+   /**
+    * Serve reads from committed node data without acquiring locks.  Default false.
+    */
+   protected boolean lockFreeReads = false;
+
+   /**
+    * True if {@link #lockFreeReads} is set and supported by the locking configuration.
+    * Evaluated in {@link #createService()}.
+    */
+   protected boolean usingLockFreeReads = false;
    
    /**
     * This ThreadLocal contains an {@see InvocationContext} object, which holds
@@ -325,6 +406,17 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
     */
    protected Interceptor interceptor_chain = null;
 
+   /**
+    * The interceptor each method id enters {@link #interceptor_chain} at, when the chain has
+    * been compiled; null otherwise.  See {@link #setUsePrecompiledInterceptorChains(boolean)}.
+    */
+   protected Interceptor[] interceptor_chain_by_method_id = null;
+
+   /**
+    * Compile the interceptor chain into one chain per method.  Default false.
+    */
+   protected boolean usePrecompiledInterceptorChains = false;
+
    /**
     * Method to acquire a TransactionManager. By default we use JBossTransactionManagerLookup. Has
     * to be set before calling {@link #start()}
@@ -654,6 +746,12 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
     */
    public void setInterceptorChain(Interceptor i)
    {
+      if (interceptor_chain_by_method_id != null)
+      {
+         // recompile, as the old chain's interceptors may have been moved or replaced
+         InterceptorChainFactory.uncompileInterceptorChain(interceptor_chain);
+         interceptor_chain_by_method_id = i == null ? null : InterceptorChainFactory.compileInterceptorChain(i);
+      }
       interceptor_chain = i;
    }
 
@@ -1033,8 +1131,11 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
          if (repl_queue == null)
          {
             repl_queue = new ReplicationQueue(this, repl_queue_interval, repl_queue_max_elements);
-            if (repl_queue_interval >= 0)
-               repl_queue.start();
+            repl_queue.setMax_bytes(repl_queue_max_bytes);
+            repl_queue.setCoalescing(repl_queue_coalescing);
+            repl_queue.setMarshalling_threads(repl_queue_marshalling_threads);
+            repl_queue.setMax_batches_in_flight(repl_queue_max_batches_in_flight);
+            repl_queue.start();
          }
       }
       else
@@ -1083,6 +1184,191 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
          repl_queue.setMax_elements(max_elements);
    }
 
+   /**
+    * Returns the estimated size in bytes of the elements the replication queue holds
+    * before it is flushed.
+    */
+   public long getReplQueueMaxBytes()
+   {
+      return repl_queue_max_bytes;
+   }
+
+   /**
+    * Sets the estimated size in bytes of the elements the replication queue holds
+    * before it is flushed; 0 or less for no limit.
+    */
+   public void setReplQueueMaxBytes(long max_bytes)
+   {
+      this.repl_queue_max_bytes = max_bytes;
+      if (repl_queue != null)
+         repl_queue.setMax_bytes(max_bytes);
+   }
+
+   /**
+    * Returns true if the replication queue drops elements superseded by later ones.
+    */
+   public boolean getReplQueueCoalescing()
+   {
+      return repl_queue_coalescing;
+   }
+
+   /**
+    * Sets whether the replication queue drops elements superseded by later ones.
+    */
+   public void setReplQueueCoalescing(boolean coalescing)
+   {
+      this.repl_queue_coalescing = coalescing;
+      if (repl_queue != null)
+         repl_queue.setCoalescing(coalescing);
+   }
+
+   /**
+    * Returns the number of threads marshalling the elements of the replication queue.
+    */
+   public int getReplQueueMarshallingThreads()
+   {
+      return repl_queue_marshalling_threads;
+   }
+
+   /**
+    * Sets the number of threads marshalling the elements of the replication queue.
+    * Takes effect when the replication queue is created.
+    */
+   public void setReplQueueMarshallingThreads(int threads)
+   {
+      this.repl_queue_marshalling_threads = threads;
+   }
+
+   /**
+    * Returns the maximum number of batches of the replication queue being marshalled or
+    * sent at the same time.
+    */
+   public int getReplQueueMaxBatchesInFlight()
+   {
+      return repl_queue_max_batches_in_flight;
+   }
+
+   /**
+    * Sets the maximum number of batches of the replication queue being marshalled or sent
+    * at the same time; threads adding elements wait when that many batches are queued.
+    * Takes effect when the replication queue is created.
+    */
+   public void setReplQueueMaxBatchesInFlight(int batches)
+   {
+      this.repl_queue_max_batches_in_flight = batches;
+   }
+
+   /**
+    * Returns true if puts of a map are replicated as a delta against the previous data of
+    * the node.
+    */
+   public boolean getDeltaReplication()
+   {
+      return delta_replication;
+   }
+
+   /**
+    * Sets whether puts of a map are replicated as a delta: only the attributes added or
+    * changed, and for puts replacing the data, removes of the attributes dropped.  A put
+    * whose delta is not smaller than the map is replicated as is.  Applies to replicated
+    * caches using pessimistic locking.  Replicas must hold the same data as this cache,
+    * as is the case when all modifications are replicated.  As replicas evict nodes
+    * independently, puts are replicated as is when an eviction policy is configured.
+    */
+   public void setDeltaReplication(boolean delta_replication)
+   {
+      this.delta_replication = delta_replication;
+   }
+
+   /**
+    * Returns true if calls are marshalled through a direct buffer rather than an object stream.
+    */
+   public boolean getDirectMarshalling()
+   {
+      return direct_marshalling;
+   }
+
+   /**
+    * Sets whether calls are marshalled into a buffer reused by the marshalling thread rather
+    * than through an object stream; applies from replication version 1.4.0 on.  Every member
+    * reads direct buffers whatever its own setting, but members of earlier versions do not.
+    */
+   public void setDirectMarshalling(boolean direct_marshalling)
+   {
+      this.direct_marshalling = direct_marshalling;
+      if (marshaller_ != null) marshaller_.setUseDirectMarshalling(direct_marshalling);
+   }
+
+   /**
+    * Returns the size from which marshalled calls and state transfers are compressed, or 0 if
+    * they are not.
+    */
+   public int getCompressionThreshold()
+   {
+      return compression_threshold;
+   }
+
+   /**
+    * Sets the size in bytes from which marshalled calls, responses and state transfers are
+    * compressed with a fast LZ4 style codec; 0 disables compression.  Every member reads
+    * compressed buffers whatever its own threshold, but members of earlier versions do not.
+    */
+   public void setCompressionThreshold(int compression_threshold)
+   {
+      this.compression_threshold = compression_threshold;
+      if (marshaller_ != null) marshaller_.getCompressor().setThreshold(compression_threshold);
+   }
+
+   /**
+    * Returns the number of threads marshalling and integrating streamed state.
+    */
+   public int getStateTransferThreads()
+   {
+      return state_transfer_threads;
+   }
+
+   /**
+    * Sets the number of threads marshalling and integrating streamed state.  With more than
+    * one, each child of the root of the state is a partition, which a thread of the provider
+    * marshals and a thread of the joiner builds apart from the tree and attaches once it is
+    * complete.  The joiner uses its own number of threads.  Members of earlier versions cannot
+    * read partitioned state, so this should only be set above 1 once none remains.
+    */
+   public void setStateTransferThreads(int threads)
+   {
+      this.state_transfer_threads = threads;
+   }
+
+   /**
+    * Returns whether streamed transient state is generated without locking the subtree.
+    */
+   public boolean getNonBlockingStateTransfer()
+   {
+      return non_blocking_state_transfer;
+   }
+
+   /**
+    * Sets whether streamed transient state is generated without locking the subtree, so that
+    * writers are not stalled while a member joins.  Each node is read locked only while its
+    * data is copied; the modifications made meanwhile are logged and sent to the joiner after
+    * the state, once the transactions in progress when the state was requested completed.
+    * Applies to pessimistic locking when no persistent state is fetched; otherwise the subtree
+    * is locked as before.  Joiners of earlier versions cannot read such state.
+    */
+   public void setNonBlockingStateTransfer(boolean non_blocking_state_transfer)
+   {
+      this.non_blocking_state_transfer = non_blocking_state_transfer;
+   }
+
+   /**
+    * Returns the compression statistics: buffers compressed, bytes before and after, and the
+    * time spent compressing and decompressing.
+    */
+   public Map dumpCompressionStatistics()
+   {
+      return getMarshaller().getCompressor().dumpStatistics();
+   }
+
    /**
     * Returns the replication queue.
     */
@@ -1091,6 +1377,16 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       return repl_queue;
    }
 
+   /**
+    * Returns the replication queue statistics: batches sent, average batch size,
+    * coalescing ratio, queue delay and batches in flight; empty if no replication queue is used.
+    */
+   public Map dumpReplQueueStatistics()
+   {
+      ReplicationQueue queue = repl_queue;
+      return queue == null ? new HashMap() : queue.dumpStatistics();
+   }
+
    /**
     * Returns the transaction isolation level.
     */
@@ -1149,6 +1445,108 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       this.lockParentForChildInsertRemove = lockParentForChildInsertRemove;
    }
 
+   /**
+    * Gets whether the parent write lock taken when {@link #setLockParentForChildInsertRemove(boolean)
+    * LockParentForChildInsertRemove} is set is only held while a child is inserted.
+    * <p/>
+    * The default value is <code>false</code>
+    */
+   public boolean getLatchParentForChildInsertRemove()
+   {
+      return latchParentForChildInsertRemove;
+   }
+
+   /**
+    * Sets whether the parent write lock taken when {@link #setLockParentForChildInsertRemove(boolean)
+    * LockParentForChildInsertRemove} is set is only held while a child is inserted.
+    * <p/>
+    * When set, the parent lock taken to insert a child acts as a short structural latch: it
+    * is released as soon as the operation has created and locked the child, rather than when
+    * the transaction completes.  Transactions adding children to the same parent then only
+    * serialize for the duration of the insert instead of for their whole lifetime.  The
+    * child itself stays locked until the transaction completes.  The parent is not latched
+    * if the transaction already holds a lock on it; that lock is upgraded and kept as usual.
+    * <p/>
+    * Removes are not affected: a removed node only leaves the tree when the transaction
+    * completes, so the parent lock taken to remove a child is held until then, as it is
+    * without this option.
+    * <p/>
+    * The default value is <code>false</code>
+    */
+   public void setLatchParentForChildInsertRemove(boolean latchParentForChildInsertRemove)
+   {
+      this.latchParentForChildInsertRemove = latchParentForChildInsertRemove;
+   }
+
+   /**
+    * Gets whether read locks on the ancestors of the node an operation acts on are
+    * skipped (when pessimistic locking is used.)
+    * <p/>
+    * The default value is <code>false</code>
+    */
+   public boolean getAncestorLockElision()
+   {
+      return ancestorLockElision;
+   }
+
+   /**
+    * Sets whether read locks on the ancestors of the node an operation acts on are
+    * skipped (when pessimistic locking is used.)  With elision, an operation on
+    * <code>/a/b/c</code> only locks <code>/a/b/c</code>, plus any ancestor that needs a
+    * write lock (see {@link #setLockParentForChildInsertRemove(boolean)}), instead of
+    * read locking <code>/</code>, <code>/a</code> and <code>/a/b</code> as well.  The
+    * number of locks per operation no longer grows with the depth of the node.
+    * <p/>
+    * An ancestor that is write locked by another transaction when it is traversed is
+    * read locked as usual.  Each node counts the times it is write locked; once the
+    * operation has locked its node, it checks that none of the ancestors it did not
+    * lock has been write locked since, as removing an ancestor does before it locks
+    * the nodes below it.  Otherwise it releases its locks and locks the ancestors as
+    * usual, so that it waits for the removal.  Removals always lock the ancestors.
+    * <p/>
+    * The default value is <code>false</code>
+    */
+   public void setAncestorLockElision(boolean ancestorLockElision)
+   {
+      this.ancestorLockElision = ancestorLockElision;
+   }
+
+   /**
+    * Gets whether reads are served from the last committed copy of each node's
+    * data without acquiring any locks.
+    * <p/>
+    * The default value is <code>false</code>
+    */
+   public boolean getLockFreeReads()
+   {
+      return lockFreeReads;
+   }
+
+   /**
+    * Sets whether reads are served from the last committed copy of each node's
+    * data without acquiring any locks.  Writers still take write locks, and a node's
+    * committed copy is replaced when its write lock is released.  Only supported with
+    * pessimistic locking and an isolation level of READ_COMMITTED or NONE; ignored
+    * otherwise.  Must be set before the cache is created.
+    * <p/>
+    * The default value is <code>false</code>
+    */
+   public void setLockFreeReads(boolean lockFreeReads)
+   {
+      this.lockFreeReads = lockFreeReads;
+   }
+
+   /**
+    * Returns true if lock-free reads are enabled and supported by the
+    * locking configuration of this cache.
+    *
+    * @see #setLockFreeReads(boolean)
+    */
+   public boolean isUsingLockFreeReads()
+   {
+      return usingLockFreeReads;
+   }
+
 
    public boolean getFetchStateOnStartup()
    {
@@ -1248,6 +1646,16 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       return evictionRegionManager_.getEvictionThreadWakeupIntervalSeconds();
    }
 
+   /**
+    * Returns, by eviction region, the number of passes of the eviction algorithm, their last,
+    * average and longest duration, the events processed by the last pass and the events
+    * queued; empty if there is no eviction policy.
+    */
+   public Map dumpEvictionStatistics()
+   {
+      return evictionRegionManager_ == null ? new HashMap() : evictionRegionManager_.dumpStatistics();
+   }
+
 
    /**
     * Sets the TransactionManagerLookup object
@@ -1302,6 +1710,32 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       use_interceptor_mbeans = useMbeans;
    }
 
+   /**
+    * Returns true if the interceptor chain is compiled into one chain per method.
+    * <p/>
+    * The default value is <code>false</code>
+    */
+   public boolean getUsePrecompiledInterceptorChains()
+   {
+      return usePrecompiledInterceptorChains;
+   }
+
+   /**
+    * Sets whether the interceptor chain is compiled into one chain per method when the
+    * cache is started.
+    * <p/>
+    * Each compiled chain leaves out the interceptors which do nothing for the method but
+    * pass it on, as the replication, invalidation and cache store interceptors do for
+    * reads.  Calls then skip those interceptors entirely instead of visiting each of them.
+    * Must be set before the cache is started.
+    * <p/>
+    * The default value is <code>false</code>
+    */
+   public void setUsePrecompiledInterceptorChains(boolean usePrecompiledInterceptorChains)
+   {
+      this.usePrecompiledInterceptorChains = usePrecompiledInterceptorChains;
+   }
+
    /**
     * Returns <code>this</code>.
     */
@@ -1427,8 +1861,18 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
 
       createEvictionPolicy();
 
+      usingLockFreeReads = lockFreeReads && !nodeLockingOptimistic &&
+              (isolationLevel == IsolationLevel.READ_COMMITTED || isolationLevel == IsolationLevel.NONE);
+      if (lockFreeReads && !usingLockFreeReads)
+      {
+         log.warn("LockFreeReads is only supported with PESSIMISTIC node locking and READ_COMMITTED or NONE " +
+                 "isolation; reads will acquire locks");
+      }
+
       // build interceptor chain
       interceptor_chain = new InterceptorChainFactory().buildInterceptorChain(this);
+      if (usePrecompiledInterceptorChains)
+         interceptor_chain_by_method_id = InterceptorChainFactory.compileInterceptorChain(interceptor_chain);
       // register interceptor mbeans
       isStandalone = (this.getServiceName() == null);
       if (use_interceptor_mbeans)
@@ -1586,6 +2030,7 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
          {
             log.warn("Replication queue not supported when using buddy replication.  Disabling repliction queue.");
             use_repl_queue = false;
+            if (repl_queue != null) repl_queue.stop();
             repl_queue = null;
          }
       }
@@ -1623,6 +2068,10 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
     */
    public void stopService()
    {
+      // sends the queued calls, so stop it while the channel is open
+      if (repl_queue != null)
+         repl_queue.stop();
+
       if (channel != null)
       {
          log.info("stopService(): closing the channel");
@@ -1642,9 +2091,6 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
 
       coordinator = false;
 
-      if (repl_queue != null)
-         repl_queue.stop();
-
       if (cacheLoaderManager != null)
       {
          cacheLoaderManager.stopCacheLoader();
@@ -1907,6 +2353,22 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       getMarshaller().unregisterClassLoader(fqn);
    }
 
+   /**
+    * Registers an externalizer which writes values of exactly the given class in a compact form
+    * of its own, in place of object serialization.  Values are only externalized once every other
+    * member has registered the same id, which is asked for as members join, so externalizers
+    * should be registered before the cache is started.
+    *
+    * @param id           the id written ahead of each value, between 0 and {@link ExternalizerRegistry#MAX_ID}
+    * @param type         the class of the values
+    * @param externalizer writes and reads the values
+    * @throws IllegalArgumentException if the id or the class is registered already
+    */
+   public void registerExternalizer(int id, Class type, Externalizer externalizer)
+   {
+      getMarshaller().registerExternalizer(id, type, externalizer);
+   }
+
    /**
     * Causes the cache to transfer state for the subtree rooted at
     * <code>subtreeFqn</code> and to begin accepting replication messages
@@ -2663,7 +3125,105 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
     */
    public byte[] _getState(Fqn fqn, boolean fetchTransientState, boolean fetchPersistentState, long timeout, boolean force, boolean suppressErrors) throws Throwable
    {
+      DataNode rootNode = findStateTransferRoot(fqn, fetchPersistentState);
+      if (rootNode == null)
+         return null;
+
+      Object owner = getOwnerForLock();
+
+      try
+      {
+         if (fetchTransientState || fetchPersistentState)
+         {
+            if (log.isDebugEnabled())
+               log.info("locking the subtree at " + fqn + " to transfer state");
+            acquireLocksForStateTransfer(rootNode, owner, timeout, true, force);
+         }
+
+         StateTransferGenerator generator =
+                 StateTransferFactory.getStateTransferGenerator(this);
+
+         return generator.generateStateTransfer(rootNode,
+                 fetchTransientState,
+                 fetchPersistentState,
+                 suppressErrors);
+      }
+      finally
+      {
+         releaseStateTransferLocks(rootNode, owner, true);
+      }
+   }
+
+   /**
+    * Writes the state for the portion of the tree named by <code>fqn</code>
+    * to a stream, node by node, so that the state is never held in memory as
+    * a whole.  Used when the channel transfers state with
+    * <tt>STREAMING_STATE_TRANSFER</tt>; the stream is read by
+    * {@link #_setState(InputStream, DataNode, ClassLoader)}.  If there is no
+    * state to give, an empty state is written.  The stream is closed.
+    *
+    * @see #_getState(Fqn, boolean, boolean, long, boolean, boolean)
+    */
+   public void _getState(OutputStream os, Fqn fqn, boolean fetchTransientState, boolean fetchPersistentState, long timeout, boolean force, boolean suppressErrors) throws Throwable
+   {
+      StreamingStateTransferGenerator generator =
+              StateTransferFactory.getStreamingStateTransferGenerator(this);
+
+      DataNode rootNode = findStateTransferRoot(fqn, fetchPersistentState);
+      if (rootNode == null)
+      {
+         generator.generateStateTransfer(null, os, false, false, suppressErrors, null);
+         return;
+      }
+
+      if (non_blocking_state_transfer && fetchTransientState && !fetchPersistentState
+              && !isNodeLockingOptimistic())
+      {
+         ModificationLog modificationLog = new ModificationLog(rootNode.getFqn(), tx_table, timeout);
+         modificationLogs.add(modificationLog);
+         try
+         {
+            if (log.isDebugEnabled())
+               log.debug("streaming state of " + fqn + " without locking the subtree");
+            generator.generateStateTransfer(rootNode, os, true, false, suppressErrors,
+                    modificationLog);
+         }
+         finally
+         {
+            modificationLogs.remove(modificationLog);
+         }
+         return;
+      }
+
+      Object owner = getOwnerForLock();
 
+      try
+      {
+         if (fetchTransientState || fetchPersistentState)
+         {
+            if (log.isDebugEnabled())
+               log.info("locking the subtree at " + fqn + " to stream state");
+            acquireLocksForStateTransfer(rootNode, owner, timeout, true, force);
+         }
+
+         generator.generateStateTransfer(rootNode, os,
+                 fetchTransientState,
+                 fetchPersistentState,
+                 suppressErrors,
+                 null);
+      }
+      finally
+      {
+         releaseStateTransferLocks(rootNode, owner, true);
+      }
+   }
+
+   /**
+    * Returns the node whose state is to be transferred, or <code>null</code>
+    * if there is none or no state can be given for it.
+    */
+   private DataNode findStateTransferRoot(Fqn fqn, boolean fetchPersistentState)
+   {
       if (marshaller_ != null)
       {
          // can't give state for regions currently being activated/inactivated
@@ -2688,40 +3248,17 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
 
       DataNode rootNode = findNode(fqn);
       if (rootNode == null)
-         return null;
-
-      boolean getRoot = rootNode.equals(root);
-
-      if (fetchPersistentState && (!getRoot) &&
-              !((cacheLoaderManager.isExtendedCacheLoader())))
-      {
-         throw new UnsupportedOperationException("Cache loader does not support " +
-                 "ExtendedCacheLoader; partial state transfer not supported");
-      }
-
-      Object owner = getOwnerForLock();
-
-      try
-      {
-         if (fetchTransientState || fetchPersistentState)
-         {
-            if (log.isDebugEnabled())
-               log.info("locking the subtree at " + fqn + " to transfer state");
-            acquireLocksForStateTransfer(rootNode, owner, timeout, true, force);
-         }
+         return null;
 
-         StateTransferGenerator generator =
-                 StateTransferFactory.getStateTransferGenerator(this);
+      boolean getRoot = rootNode.equals(root);
 
-         return generator.generateStateTransfer(rootNode,
-                 fetchTransientState,
-                 fetchPersistentState,
-                 suppressErrors);
-      }
-      finally
+      if (fetchPersistentState && (!getRoot) &&
+              !((cacheLoaderManager.isExtendedCacheLoader())))
       {
-         releaseStateTransferLocks(rootNode, owner, true);
+         throw new UnsupportedOperationException("Cache loader does not support " +
+                 "ExtendedCacheLoader; partial state transfer not supported");
       }
+      return rootNode;
    }
 
    /**
@@ -2849,6 +3386,83 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
 
    }
 
+   /**
+    * Set the portion of the cache rooted in <code>targetRoot</code> to the
+    * state read, node by node, from a stream written by
+    * {@link #_getState(OutputStream, Fqn, boolean, boolean, long, boolean, boolean)}.
+    * The stream is closed.
+    *
+    * @param is         the streamed state
+    * @param targetRoot node into which the state should be integrated
+    * @param cl         classloader to use to unmarshal the state, or
+    *                   <code>null</code> if the TCCL should be used
+    */
+   private void _setState(InputStream is, DataNode targetRoot, ClassLoader cl)
+           throws Exception
+   {
+      log.info("receiving the streamed state");
+
+      Object owner = getOwnerForLock();
+      try
+      {
+         // Acquire a lock on the root node
+         acquireLocksForStateTransfer(targetRoot, owner, state_fetch_timeout,
+                 true, true);
+
+         StateTransferIntegrator integrator =
+                 StateTransferFactory.getStateTransferIntegrator(is,
+                         targetRoot.getFqn(),
+                         this);
+
+         try
+         {
+            integrator.integrateTransientState(targetRoot, cl);
+            notifyAllNodesCreated(targetRoot);
+         }
+         catch (Throwable t)
+         {
+            log.error("failed setting transient state", t);
+         }
+
+         // also closes the stream
+         integrator.integratePersistentState();
+      }
+      finally
+      {
+         releaseStateTransferLocks(targetRoot, owner, true);
+      }
+   }
+
+   /**
+    * Records a modification in the logs of the state transfers in progress
+    * whose subtree it affects.
+    */
+   private void logModification(Modification m)
+   {
+      GlobalTransaction gtx = getInvocationContext().getGlobalTransaction();
+      for (Iterator it = modificationLogs.iterator(); it.hasNext();)
+      {
+         ModificationLog modificationLog = (ModificationLog) it.next();
+         if (modificationLog.isLogged(m.getFqn()))
+            modificationLog.add(m, gtx);
+      }
+   }
+
+   /**
+    * Records the data of every node of a subtree added back to the tree.
+    */
+   private void logSubtree(DataNode node)
+   {
+      Map data = node.getData();
+      logModification(new Modification(Modification.PUT_DATA_ERASE, node.getFqn(),
+              data == null ? new HashMap() : new HashMap(data)));
+      if (node.hasChildren())
+      {
+         for (Iterator it = node.getChildren().values().iterator(); it.hasNext();)
+            logSubtree((DataNode) it.next());
+      }
+   }
+
    /**
     * Returns the replication version.
     */
@@ -3974,6 +4588,245 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       invokeMethod(m);
    }
 
+   /**
+    * Returns the values associated with <code>key</code> in each of the given nodes, as a map
+    * from {@link Fqn} to value.  Nodes which do not exist, or do not hold the key, map to
+    * <code>null</code>.
+    * <p/>
+    * The nodes are read in a single pass through the interceptor chain.  They are locked in
+    * {@link FqnComparator} order, so concurrent bulk operations cannot deadlock on each
+    * other, and the locks are held until all nodes have been read, or in a transaction
+    * until it completes.
+    *
+    * @param fqns the names of the nodes to read
+    * @param key  the key
+    */
+   public Map getAll(Collection fqns, Object key) throws CacheException
+   {
+      Set sorted = new TreeSet(FqnComparator.INSTANCE);
+      sorted.addAll(fqns);
+      List calls = new ArrayList(sorted.size());
+      for (Iterator i = sorted.iterator(); i.hasNext();)
+         calls.add(MethodCallFactory.create(MethodDeclarations.getKeyValueMethodLocal, new Object[]{i.next(), key, Boolean.TRUE}));
+      List results = invokeBulk(calls);
+      Map values = new HashMap();
+      int n = 0;
+      for (Iterator i = sorted.iterator(); i.hasNext(); n++)
+         values.put(i.next(), results.get(n));
+      return values;
+   }
+
+   /**
+    * Returns the nodes with the given names, as a map from {@link Fqn} to {@link Node}.  Nodes
+    * which do not exist are left out.  The nodes are read in a single pass through the
+    * interceptor chain, see {@link #getAll(Collection, Object)}.
+    *
+    * @param fqns the names of the nodes to read
+    */
+   public Map getAll(Collection fqns) throws CacheException
+   {
+      Set sorted = new TreeSet(FqnComparator.INSTANCE);
+      sorted.addAll(fqns);
+      List calls = new ArrayList(sorted.size());
+      for (Iterator i = sorted.iterator(); i.hasNext();)
+         calls.add(MethodCallFactory.create(MethodDeclarations.getNodeMethodLocal, new Object[]{i.next()}));
+      List results = invokeBulk(calls);
+      Map nodes = new HashMap();
+      int n = 0;
+      for (Iterator i = sorted.iterator(); i.hasNext(); n++)
+      {
+         Object fqn = i.next();
+         if (results.get(n) != null)
+            nodes.put(fqn, results.get(n));
+      }
+      return nodes;
+   }
+
+   /**
+    * Adds the attributes of each entry of <code>data</code>, which maps an {@link Fqn} to a
+    * map of attributes, to the named node, creating nodes which do not exist, as
+    * {@link #put(Fqn, Map)} does.
+    * <p/>
+    * All nodes are written in a single pass through the interceptor chain, locked in
+    * {@link FqnComparator} order.  In a replicated cache the writes are sent as one batch,
+    * and a cache store receives them in one {@link org.jboss.cache.loader.CacheLoader#put(List)}
+    * call.  The writes are atomic: outside a transaction they run in a transaction of their
+    * own, begun and committed or rolled back here, so that if one fails none is applied.  A
+    * cache without a {@link TransactionManager} cannot do so; it writes the nodes one at a
+    * time, each replicated and stored as it is applied, so that if one fails, the ones before
+    * it stay applied on every member and in the store, and the ones after it are not applied.
+    * Such a cache then makes a remote call and a cache store call per node.
+    *
+    * @param data maps {@link Fqn}s to the attributes to put into those nodes
+    */
+   public void putAll(Map data) throws CacheException
+   {
+      Transaction implicitTx = beginImplicitTransaction();
+      boolean success = false;
+      try
+      {
+         GlobalTransaction tx = getCurrentTransaction();
+         Map sorted = new TreeMap(FqnComparator.INSTANCE);
+         sorted.putAll(data);
+         List calls = new ArrayList(sorted.size());
+         for (Iterator i = sorted.entrySet().iterator(); i.hasNext();)
+         {
+            Map.Entry entry = (Map.Entry) i.next();
+            calls.add(MethodCallFactory.create(MethodDeclarations.putDataMethodLocal, new Object[]{tx, entry.getKey(), entry.getValue(), Boolean.TRUE}));
+         }
+         invokeBulk(calls);
+         success = true;
+      }
+      finally
+      {
+         endImplicitTransaction(implicitTx, success);
+      }
+   }
+
+   /**
+    * Removes the given nodes and their subtrees, as {@link #remove(Fqn)} does.  The nodes are
+    * removed in a single pass through the interceptor chain, atomically as far as the cache
+    * allows; see {@link #putAll(Map)}.
+    *
+    * @param fqns the names of the nodes to remove
+    */
+   public void removeAll(Collection fqns) throws CacheException
+   {
+      Transaction implicitTx = beginImplicitTransaction();
+      boolean success = false;
+      try
+      {
+         GlobalTransaction tx = getCurrentTransaction();
+         Set sorted = new TreeSet(FqnComparator.INSTANCE);
+         sorted.addAll(fqns);
+         if (sorted.remove(Fqn.ROOT))
+         {
+            // as in remove(Fqn), removing the root removes all its children
+            Set children = _getChildrenNames(Fqn.ROOT);
+            if (children != null)
+            {
+               for (Iterator i = children.iterator(); i.hasNext();)
+               {
+                  Fqn childFqn = new Fqn(Fqn.ROOT, i.next());
+                  if (!internalFqns.contains(childFqn)) sorted.add(childFqn);
+               }
+            }
+         }
+         List calls = new ArrayList(sorted.size());
+         for (Iterator i = sorted.iterator(); i.hasNext();)
+            calls.add(MethodCallFactory.create(MethodDeclarations.removeNodeMethodLocal, new Object[]{tx, i.next(), Boolean.TRUE}));
+         invokeBulk(calls);
+         success = true;
+      }
+      finally
+      {
+         endImplicitTransaction(implicitTx, success);
+      }
+   }
+
+   /**
+    * Begins a transaction for a bulk write made outside a transaction.
+    *
+    * @return the transaction begun, or null if a transaction is already associated with the
+    *         thread or there is no transaction manager
+    */
+   private Transaction beginImplicitTransaction() throws CacheException
+   {
+      if (tm == null || getLocalTransaction() != null)
+         return null;
+      try
+      {
+         tm.begin();
+         return tm.getTransaction();
+      }
+      catch (Exception e)
+      {
+         throw new CacheException("unable to begin a transaction for a bulk write", e);
+      }
+   }
+
+   /**
+    * Commits, or rolls back if the bulk write failed, a transaction begun by
+    * {@link #beginImplicitTransaction()}.  A failure to roll back is logged, so as not to hide
+    * the failure of the write.
+    */
+   private void endImplicitTransaction(Transaction tx, boolean commit) throws CacheException
+   {
+      if (tx == null)
+         return;
+      if (commit)
+      {
+         try
+         {
+            tm.commit();
+         }
+         catch (Exception e)
+         {
+            throw new CacheException("bulk write rolled back", e);
+         }
+      }
+      else
+      {
+         try
+         {
+            tm.rollback();
+         }
+         catch (Exception e)
+         {
+            log.warn("failed rolling back bulk write", e);
+         }
+      }
+   }
+
+   /**
+    * Passes the given calls through the interceptor chain as a single {@link #_bulk(List)}
+    * call and returns their results.  The calls are invoked one after the other instead with
+    * optimistic locking or buddy replication, whose interceptors handle calls one at a time,
+    * and for writes made outside a transaction, which a failing call would otherwise leave
+    * applied here only.  Invoked one at a time, the calls are atomic only in a transaction.
+    */
+   protected List invokeBulk(List calls) throws CacheException
+   {
+      if (calls.isEmpty())
+         return Collections.EMPTY_LIST;
+      if (isNodeLockingOptimistic() || buddyManager != null ||
+              (getLocalTransaction() == null && containsCrudMethod(calls)))
+      {
+         List results = new ArrayList(calls.size());
+         for (Iterator i = calls.iterator(); i.hasNext();)
+            results.add(invokeMethod((MethodCall) i.next()));
+         return results;
+      }
+      MethodCall m = MethodCallFactory.create(MethodDeclarations.bulkMethodLocal, new Object[]{calls});
+      return (List) invokeMethod(m);
+   }
+
+   private static boolean containsCrudMethod(List calls)
+   {
+      for (Iterator i = calls.iterator(); i.hasNext();)
+      {
+         if (MethodDeclarations.isCrudMethod(((JBCMethodCall) i.next()).getMethodId()))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * Invokes each of the given get, put and remove calls on this cache and returns their
+    * results in order, <code>null</code> for void methods.  Stops at the first call which
+    * throws an exception, leaving the calls before it applied; writes are therefore only
+    * passed as a bulk call in a transaction, which rolls them back, see
+    * {@link #invokeBulk(List)}.  The interceptors treat a bulk call as the list of its calls,
+    * taking the locks for all of them before any is invoked.
+    */
+   public List _bulk(List method_calls) throws Throwable
+   {
+      List results = new ArrayList(method_calls.size());
+      for (Iterator i = method_calls.iterator(); i.hasNext();)
+         results.add(((MethodCall) i.next()).invoke(this));
+      return results;
+   }
+
    /**
     * Lock a given node (or the entire subtree starting at this node)
     * @param fqn The FQN of the node
@@ -4299,6 +5152,8 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
          {
             n.getParent().removeChild(n.getName());
          }
+         if (!modificationLogs.isEmpty())
+            logModification(new Modification(Modification.REMOVE_NODE, f));
       }
       else
       {
@@ -4663,6 +5518,9 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       }
 
       n.put(data, erase_contents);
+      if (!modificationLogs.isEmpty())
+         logModification(new Modification(erase_contents ? Modification.PUT_DATA_ERASE : Modification.PUT_DATA,
+                 fqn, data == null ? new HashMap() : new HashMap(data)));
 
       if (tx != null && create_undo_ops)
       {
@@ -4714,6 +5572,8 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
 
       notifyNodeModify(fqn, true);
       old_value = n.put(key, value);
+      if (!modificationLogs.isEmpty())
+         logModification(new Modification(Modification.PUT_KEY_VALUE, fqn, key, value));
 
       n.unmarkForRemoval(false);
 
@@ -4882,6 +5742,8 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
          parent_node.removeChild(n.getName());
       else
          n.markForRemoval();
+      if (!eviction && !modificationLogs.isEmpty())
+         logModification(new Modification(Modification.REMOVE_NODE, fqn));
 
       if (eviction)
          parent_node.setChildrenLoaded(false);
@@ -4952,6 +5814,8 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       }
       notifyNodeModify(fqn, true);
       old_value = n.remove(key);
+      if (!modificationLogs.isEmpty())
+         logModification(new Modification(Modification.REMOVE_KEY_VALUE, fqn, key));
 
       // create a compensating method call (reverting the effect of
       // this modification) and put it into the TX's undo list.
@@ -5042,6 +5906,8 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       n.clear();
       if (eviction)
          n.put(UNINITIALIZED, null); // required by cache loader to subsequently load the element again
+      else if (!modificationLogs.isEmpty())
+         logModification(new Modification(Modification.REMOVE_DATA, fqn));
 
       if (sendNodeEvent)
       {
@@ -5175,6 +6041,8 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       tmp.addChild(child_name, old_node);
       // make sure any deleted markers are removed from this child.
       old_node.unmarkForRemoval(true);
+      if (!modificationLogs.isEmpty())
+         logSubtree(old_node);
       notifyNodeCreated(new Fqn(parent_fqn, child_name));
    }
 
@@ -5447,6 +6315,14 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       }
    }
 
+   /**
+    * Returns the ids of the externalizers registered with this cache, for a member which joined.
+    */
+   public List _getExternalizerIds()
+   {
+      return getMarshaller().getExternalizerRegistry().getIds();
+   }
+
    public void _remoteAnnounceBuddyPoolName(IpAddress address, String buddyPoolName)
    {
       try
@@ -5629,7 +6505,7 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
 
    /*-------------------- MessageListener ----------------------*/
 
-   class MessageListenerAdaptor implements MessageListener
+   class MessageListenerAdaptor implements ExtendedMessageListener
    {
       final Log my_log;   // Need this to run under jdk1.3
       final boolean trace;
@@ -5712,6 +6588,80 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
          }
       }
 
+      /**
+       * Streams the current cache (tree), when the channel uses
+       * <tt>STREAMING_STATE_TRANSFER</tt>.
+       */
+      public void getState(OutputStream ostream)
+      {
+         try
+         {
+            _getState(ostream, Fqn.ROOT, fetchInMemoryState, getFetchPersistentState(), getInitialStateRetrievalTimeout(), true, true);
+         }
+         catch (Throwable t)
+         {
+            // the joining member sees the stream end early
+            my_log.error("Caught " + t.getClass().getName() +
+                    " while streaming the state for an initial state transfer request", t);
+            try
+            {
+               ostream.close();
+            }
+            catch (IOException e)
+            {
+            }
+         }
+      }
+
+      public void setState(InputStream istream)
+      {
+         try
+         {
+            TreeCache.this._setState(istream, root, null);
+            isStateSet = true;
+         }
+         catch (Throwable t)
+         {
+            my_log.error("failed setting streamed state", t);
+            if (t instanceof Exception)
+               setStateException = (Exception) t;
+            else
+               setStateException = new Exception(t);
+         }
+         finally
+         {
+            synchronized (stateLock)
+            {
+               // Notify wait that state has been set.
+               stateLock.notifyAll();
+            }
+         }
+      }
+
+      /**
+       * Partial state transfer through the channel is not used; the whole
+       * state is returned.
+       */
+      public byte[] getState(String state_id)
+      {
+         return getState();
+      }
+
+      public void setState(String state_id, byte[] state)
+      {
+         setState(state);
+      }
+
+      public void getState(String state_id, OutputStream ostream)
+      {
+         getState(ostream);
+      }
+
+      public void setState(String state_id, InputStream istream)
+      {
+         setState(istream);
+      }
+
    }
 
    /*-------------------- End of MessageListener ----------------------*/
@@ -5754,6 +6704,61 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
          // are so they can figure out who the coordinator is
          members.notifyAll();
       }
+
+      if (new_mbrs != null) negotiateExternalizers(new_mbrs);
+   }
+
+   /**
+    * Stops using externalizers which not all of the new members are known to have, and asks the
+    * members which joined for theirs, in the background.  Members which fail to answer, such as
+    * members running an older version, never get externalized values.
+    */
+   private void negotiateExternalizers(Vector new_mbrs)
+   {
+      final ExternalizerRegistry registry = getMarshaller().getExternalizerRegistry();
+      Address local_addr = (Address) getLocalAddress();
+      registry.viewAccepted(new_mbrs, local_addr);
+      if (registry.isEmpty()) return;
+
+      final List joined = new ArrayList();
+      for (Iterator i = new_mbrs.iterator(); i.hasNext();)
+      {
+         Address mbr = (Address) i.next();
+         if (!mbr.equals(local_addr) && !registry.hasMemberIds(mbr)) joined.add(mbr);
+      }
+      if (joined.isEmpty()) return;
+
+      // not on the view thread, which must not block on a synchronous call
+      Thread t = new Thread("TreeCache externalizer negotiation")
+      {
+         public void run()
+         {
+            MethodCall call = MethodCallFactory.create(MethodDeclarations.getExternalizerIdsMethod, new Object[]{});
+            for (Iterator i = joined.iterator(); i.hasNext();)
+            {
+               Address mbr = (Address) i.next();
+               try
+               {
+                  List rsps = callRemoteMethods(Collections.singletonList(mbr), call, GroupRequest.GET_ALL, true, sync_repl_timeout);
+                  Object ids = rsps == null || rsps.isEmpty() ? null : rsps.get(0);
+                  if (ids instanceof List)
+                  {
+                     registry.setMemberIds(mbr, (List) ids);
+                  }
+                  else if (log.isDebugEnabled())
+                  {
+                     log.debug("Member " + mbr + " did not return externalizer ids (" + ids + "); values sent to it are serialized");
+                  }
+               }
+               catch (Throwable e)
+               {
+                  if (log.isDebugEnabled()) log.debug("Unable to get externalizer ids from " + mbr + "; values sent to it are serialized", e);
+               }
+            }
+         }
+      };
+      t.setDaemon(true);
+      t.start();
    }
 
 
@@ -5916,6 +6921,13 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
    {
       try
       {
+         Interceptor[] chains = interceptor_chain_by_method_id;
+         if (chains != null && m instanceof JBCMethodCall)
+         {
+            int id = ((JBCMethodCall) m).getMethodId();
+            if (id >= 0 && id < chains.length)
+               return chains[id].invoke(m);
+         }
          return interceptor_chain.invoke(m);
       }
       catch (CacheException ce)
@@ -6040,6 +7052,8 @@ public class TreeCache extends ServiceMBeanSupport implements TreeCacheMBean, Cl
       if (marshaller_ == null)
       {
          marshaller_ = new VersionAwareMarshaller(getRegionManager(), inactiveOnStartup, useRegionBasedMarshalling, getReplicationVersion());
+         marshaller_.getCompressor().setThreshold(compression_threshold);
+         marshaller_.setUseDirectMarshalling(direct_marshalling);
       }
       return marshaller_;
    }
@@ -8,6 +8,7 @@ package org.jboss.cache;
 
 import org.jboss.cache.config.Option;
 import org.jboss.cache.loader.CacheLoader;
+import org.jboss.cache.marshall.Externalizer;
 import org.jboss.cache.marshall.RegionNameConflictException;
 import org.jboss.cache.marshall.RegionNotFoundException;
 import org.jboss.cache.marshall.TreeCacheMarshaller;
@@ -15,6 +16,7 @@ import org.jboss.system.ServiceMBean;
 import org.w3c.dom.Element;
 
 import java.lang.reflect.Method;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -128,6 +130,16 @@ public interface TreeCacheMBean extends ServiceMBean
      */
     void unregisterClassLoader(String fqn) throws RegionNotFoundException;
 
+    /**
+     * Registers an externalizer for values of exactly the given class, used once every
+     * other member has registered the same id.
+     *
+     * @param id           the id written ahead of each value
+     * @param type         the class of the values
+     * @param externalizer writes and reads the values
+     */
+    void registerExternalizer(int id, Class type, Externalizer externalizer);
+
     /**
      * Get the cluster properties (e.g. the protocol stack specification in case of JGroups)
      */
@@ -221,6 +233,70 @@ public interface TreeCacheMBean extends ServiceMBean
 
     void setReplQueueMaxElements(int max_elements);
 
+    long getReplQueueMaxBytes();
+
+    void setReplQueueMaxBytes(long max_bytes);
+
+    boolean getReplQueueCoalescing();
+
+    void setReplQueueCoalescing(boolean coalescing);
+
+    boolean getDeltaReplication();
+
+    void setDeltaReplication(boolean delta_replication);
+
+    boolean getDirectMarshalling();
+
+    /**
+     * Sets whether calls are marshalled through a direct buffer rather than an
+     * object stream; members of earlier versions cannot read such buffers.
+     */
+    void setDirectMarshalling(boolean direct_marshalling);
+
+    int getReplQueueMarshallingThreads();
+
+    void setReplQueueMarshallingThreads(int threads);
+
+    int getReplQueueMaxBatchesInFlight();
+
+    void setReplQueueMaxBatchesInFlight(int batches);
+
+    /**
+     * Returns the replication queue statistics: batches sent, average batch size,
+     * coalescing ratio, queue delay and batches in flight; empty if no replication queue is used.
+     */
+    Map dumpReplQueueStatistics();
+
+    int getCompressionThreshold();
+
+    /**
+     * Sets the size in bytes from which marshalled calls and state transfers are
+     * compressed; 0 disables compression.
+     */
+    void setCompressionThreshold(int compression_threshold);
+
+    int getStateTransferThreads();
+
+    /**
+     * Sets the number of threads marshalling and integrating streamed state; 1 streams
+     * it on the calling thread.
+     */
+    void setStateTransferThreads(int threads);
+
+    boolean getNonBlockingStateTransfer();
+
+    /**
+     * Sets whether streamed transient state is generated without locking the subtree,
+     * logging the modifications made meanwhile and sending them after the state.
+     */
+    void setNonBlockingStateTransfer(boolean non_blocking_state_transfer);
+
+    /**
+     * Returns the compression statistics: buffers compressed, bytes before and after, and
+     * the time spent compressing and decompressing.
+     */
+    Map dumpCompressionStatistics();
+
     void setPojoCacheConfig(Element config) throws CacheException;
 
     Element getPojoCacheConfig();
@@ -250,7 +326,74 @@ public interface TreeCacheMBean extends ServiceMBean
      * The default value is <code>false</code>
      */
     void setLockParentForChildInsertRemove(boolean lockParentForChildInsertRemove);
-    
+
+    /**
+     * Gets whether the parent write lock taken when LockParentForChildInsertRemove
+     * is set is only held while a child is inserted; it is held until the transaction
+     * completes for removes.
+     * <p/>
+     * The default value is <code>false</code>
+     */
+    boolean getLatchParentForChildInsertRemove();
+
+    /**
+     * Sets whether the parent write lock taken when LockParentForChildInsertRemove
+     * is set is only held while a child is inserted; it is held until the transaction
+     * completes for removes.
+     * <p/>
+     * The default value is <code>false</code>
+     */
+    void setLatchParentForChildInsertRemove(boolean latchParentForChildInsertRemove);
+
+    /**
+     * Returns true if the interceptor chain is compiled into one chain per method.
+     * <p/>
+     * The default value is <code>false</code>
+     */
+    boolean getUsePrecompiledInterceptorChains();
+
+    /**
+     * Sets whether the interceptor chain is compiled into one chain per method, leaving
+     * out the interceptors which only pass the method on.  Must be set before the cache
+     * is started.
+     * <p/>
+     * The default value is <code>false</code>
+     */
+    void setUsePrecompiledInterceptorChains(boolean usePrecompiledInterceptorChains);
+
+    /**
+     * Gets whether read locks on the ancestors of the node an operation acts on
+     * are skipped (when pessimistic locking is used.)
+     * <p/>
+     * The default value is <code>false</code>
+     */
+    boolean getAncestorLockElision();
+
+    /**
+     * Sets whether read locks on the ancestors of the node an operation acts on
+     * are skipped (when pessimistic locking is used.)
+     * <p/>
+     * The default value is <code>false</code>
+     */
+    void setAncestorLockElision(boolean ancestorLockElision);
+
+    /**
+     * Gets whether reads are served from the last committed copy of each node's
+     * data without acquiring any locks.
+     * <p/>
+     * The default value is <code>false</code>
+     */
+    boolean getLockFreeReads();
+
+    /**
+     * Sets whether reads are served from the last committed copy of each node's
+     * data without acquiring any locks.  Only supported with pessimistic locking
+     * and an isolation level of READ_COMMITTED or NONE.
+     * <p/>
+     * The default value is <code>false</code>
+     */
+    void setLockFreeReads(boolean lockFreeReads);
+
     /**
      * Returns whether or not on startup the initial state will be acquired
      * from existing members.
@@ -383,6 +526,12 @@ public interface TreeCacheMBean extends ServiceMBean
      */
     int getEvictionThreadWakeupIntervalSeconds();
 
+    /**
+     * Returns, by eviction region, the statistics of the passes of the eviction algorithm
+     * and the number of events queued.
+     */
+    Map dumpEvictionStatistics();
+
     /**
      * Sets the TransactionManagerLookup object
      *
@@ -567,6 +716,30 @@ public interface TreeCacheMBean extends ServiceMBean
 
     void removeData(Fqn fqn) throws CacheException;
 
+    /**
+     * Returns the values associated with <code>key</code> in each of the given nodes, as a
+     * map from Fqn to value.  The nodes are read in a single pass through the interceptor chain.
+     */
+    Map getAll(Collection fqns, Object key) throws CacheException;
+
+    /**
+     * Returns the given nodes which exist, as a map from Fqn to Node.
+     */
+    Map getAll(Collection fqns) throws CacheException;
+
+    /**
+     * Puts the attributes of each entry, which maps an Fqn to a map of attributes, into the
+     * named node.  All nodes are written in a single pass through the interceptor chain;
+     * outside a transaction, in a transaction of their own if there is a transaction manager.
+     */
+    void putAll(Map data) throws CacheException;
+
+    /**
+     * Removes the given nodes and their subtrees in a single pass through the interceptor chain;
+     * outside a transaction, in a transaction of their own if there is a transaction manager.
+     */
+    void removeAll(Collection fqns) throws CacheException;
+
     /**
      * Force-releases all locks in this node and the entire subtree
      *
@@ -0,0 +1,261 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.jboss.cache.Fqn;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An abstract SortedEvictionQueue kept as a binary heap.
+ * <p/>
+ * The first node to evict is at the top of the heap.  A NodeEntry knows its position in the
+ * heap and tells the queue when its number of visits or elements changes, so that adding,
+ * removing or updating an entry takes O(log n) and the queue never needs to be resorted.
+ * Entries the comparator finds equal are evicted oldest first, as the stable sort of the
+ * former list based queues did.
+ *
+ * @version $Revision$
+ */
+public abstract class BaseSortedEvictionQueue implements SortedEvictionQueue
+{
+   private Map nodeMap;
+   private NodeEntry[] heap;
+   private int size = 0;
+   private Comparator comparator;
+   private int numElements = 0;
+
+   BaseSortedEvictionQueue(Comparator comparator)
+   {
+      nodeMap = new HashMap();
+      heap = new NodeEntry[16];
+      this.comparator = comparator;
+   }
+
+   /**
+    * Return the first node to evict.
+    */
+   public NodeEntry getFirstNodeEntry()
+   {
+      return size > 0 ? heap[0] : null;
+   }
+
+   public NodeEntry getNodeEntry(Fqn fqn)
+   {
+      return (NodeEntry) nodeMap.get(fqn);
+   }
+
+   public NodeEntry getNodeEntry(String fqn)
+   {
+      return this.getNodeEntry(Fqn.fromString(fqn));
+   }
+
+   public boolean containsNodeEntry(NodeEntry entry)
+   {
+      return nodeMap.containsKey(entry.getFqn());
+   }
+
+   public void removeNodeEntry(NodeEntry entry)
+   {
+      NodeEntry ne = (NodeEntry) nodeMap.remove(entry.getFqn());
+      if (ne == null)
+      {
+         return;
+      }
+      this.numElements -= ne.getNumberOfElements();
+      // its setters no longer touch this queue
+      ne.queue = null;
+
+      NodeEntry last = heap[--size];
+      heap[size] = null;
+      if (ne.index != size)
+      {
+         heap[ne.index] = last;
+         last.index = ne.index;
+         if (!siftUp(last.index))
+         {
+            siftDown(last.index);
+         }
+      }
+   }
+
+   public void addNodeEntry(NodeEntry entry)
+   {
+      if (this.containsNodeEntry(entry))
+      {
+         return;
+      }
+      if (size == heap.length)
+      {
+         NodeEntry[] grown = new NodeEntry[heap.length * 2];
+         System.arraycopy(heap, 0, grown, 0, size);
+         heap = grown;
+      }
+      entry.queue = this;
+      entry.index = size;
+      heap[size++] = entry;
+      siftUp(entry.index);
+      nodeMap.put(entry.getFqn(), entry);
+      this.numElements += entry.getNumberOfElements();
+   }
+
+   public int getNumberOfNodes()
+   {
+      return size;
+   }
+
+   public int getNumberOfElements()
+   {
+      return this.numElements;
+   }
+
+   public void modifyElementCount(int difference)
+   {
+      this.numElements += difference;
+   }
+
+   public void clear()
+   {
+      for (int i = 0; i < size; i++)
+      {
+         heap[i].queue = null;
+      }
+      nodeMap.clear();
+      heap = new NodeEntry[16];
+      size = 0;
+      this.numElements = 0;
+   }
+
+   /**
+    * The heap is kept in order as entries change; there is nothing to resort.
+    */
+   public void resortEvictionQueue()
+   {
+   }
+
+   /**
+    * Moves an entry whose number of visits or elements has changed to its place in the heap.
+    */
+   void reorder(NodeEntry ne)
+   {
+      if (ne.index < size && heap[ne.index] == ne && !siftUp(ne.index))
+      {
+         siftDown(ne.index);
+      }
+   }
+
+   /**
+    * Iterates over a copy of the heap, in no particular order; {@link Iterator#remove()}
+    * removes the entry from the queue.
+    */
+   public Iterator iterate()
+   {
+      final NodeEntry[] entries = new NodeEntry[size];
+      System.arraycopy(heap, 0, entries, 0, size);
+      return new Iterator()
+      {
+         private int next = 0;
+         private NodeEntry current;
+
+         public boolean hasNext()
+         {
+            return next < entries.length;
+         }
+
+         public Object next()
+         {
+            if (next >= entries.length)
+            {
+               throw new NoSuchElementException();
+            }
+            current = entries[next++];
+            return current;
+         }
+
+         public void remove()
+         {
+            if (current == null)
+            {
+               throw new IllegalStateException();
+            }
+            removeNodeEntry(current);
+            current = null;
+         }
+      };
+   }
+
+   /**
+    * Moves the entry at <code>i</code> up to its place.
+    *
+    * @return true if the entry moved
+    */
+   private boolean siftUp(int i)
+   {
+      NodeEntry ne = heap[i];
+      int start = i;
+      while (i > 0)
+      {
+         int parent = (i - 1) >>> 1;
+         NodeEntry p = heap[parent];
+         if (compare(ne, p) >= 0)
+         {
+            break;
+         }
+         heap[i] = p;
+         p.index = i;
+         i = parent;
+      }
+      heap[i] = ne;
+      ne.index = i;
+      return i != start;
+   }
+
+   /**
+    * Moves the entry at <code>i</code> down to its place.
+    */
+   private void siftDown(int i)
+   {
+      NodeEntry ne = heap[i];
+      int half = size >>> 1;
+      while (i < half)
+      {
+         int child = 2 * i + 1;
+         NodeEntry c = heap[child];
+         int right = child + 1;
+         if (right < size && compare(heap[right], c) < 0)
+         {
+            child = right;
+            c = heap[child];
+         }
+         if (compare(ne, c) <= 0)
+         {
+            break;
+         }
+         heap[i] = c;
+         c.index = i;
+         i = child;
+      }
+      heap[i] = ne;
+      ne.index = i;
+   }
+
+   private int compare(NodeEntry ne, NodeEntry ne2)
+   {
+      int result = comparator.compare(ne, ne2);
+      if (result != 0)
+      {
+         return result;
+      }
+      long created = ne.getCreationTimeStamp();
+      long created2 = ne2.getCreationTimeStamp();
+      return created < created2 ? -1 : (created == created2 ? 0 : 1);
+   }
+}
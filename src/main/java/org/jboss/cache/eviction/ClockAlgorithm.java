@@ -0,0 +1,146 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+
+/**
+ * CLOCK algorithm, an approximation of LRU.
+ * <p/>
+ * When the region holds more than <tt>maxNodes</tt> nodes the hand of the {@link ClockQueue}
+ * goes round: a node used since the hand last passed it has its reference bit cleared and is
+ * passed over, the first node not used is evicted.  Visits thus cost a lookup, and eviction
+ * a few steps of the hand, however many nodes the region holds.  Nodes idle for longer than
+ * <tt>timeToLiveSeconds</tt> or older than <tt>maxAgeSeconds</tt> are found by checking every
+ * node, as the queue is not ordered by idle time or age; leave both at 0 on very large regions.
+ * Note that this algorithm is not thread-safe.
+ *
+ * @version $Revision$
+ */
+public class ClockAlgorithm extends BaseEvictionAlgorithm implements EvictionAlgorithm
+{
+   private static final Log log = LogFactory.getLog(ClockAlgorithm.class);
+
+   public ClockAlgorithm()
+   {
+      super();
+   }
+
+   protected EvictionQueue setupEvictionQueue(Region region) throws EvictionException
+   {
+      return new ClockQueue();
+   }
+
+   protected boolean shouldEvictNode(NodeEntry entry)
+   {
+      ClockConfiguration config = this.getConfiguration();
+      long currentTime = System.currentTimeMillis();
+      if (config.getTimeToLiveSeconds() != 0)
+      {
+         long idleTime = currentTime - entry.getModifiedTimeStamp();
+         if (idleTime >= (config.getTimeToLiveSeconds() * 1000))
+         {
+            if (log.isTraceEnabled())
+            {
+               log.trace("Node " + entry.getFqn() + " should be evicted because of idle time");
+            }
+            return true;
+         }
+      }
+
+      if (config.getMaxAgeSeconds() != 0)
+      {
+         long objectLifeTime = currentTime - entry.getCreationTimeStamp();
+         if (objectLifeTime >= (config.getMaxAgeSeconds() * 1000))
+         {
+            if (log.isTraceEnabled())
+            {
+               log.trace("Node " + entry.getFqn() + " should be evicted because of max age");
+            }
+            return true;
+         }
+      }
+      return false;
+   }
+
+   protected void evict(NodeEntry ne)
+   {
+      // prune() has removed the entry from the queue
+      if (ne != null)
+      {
+         if (!this.evictCacheNode(ne.getFqn()))
+         {
+            try
+            {
+               recycleQueue.put(ne.getFqn());
+            }
+            catch (InterruptedException e)
+            {
+               log.debug("InterruptedException", e);
+            }
+         }
+      }
+   }
+
+   protected void prune() throws EvictionException
+   {
+      ClockQueue clockQueue = (ClockQueue) evictionQueue;
+      ClockConfiguration config = this.getConfiguration();
+      NodeEntry ne;
+
+      if (config.getTimeToLiveSeconds() != 0 || config.getMaxAgeSeconds() != 0)
+      {
+         Iterator it = clockQueue.iterate();
+         while (it.hasNext())
+         {
+            ne = (NodeEntry) it.next();
+            if (!isNodeInUseAndNotTimedOut(ne) && this.shouldEvictNode(ne))
+            {
+               it.remove();
+               this.evict(ne);
+            }
+         }
+      }
+
+      int maxNodes = config.getMaxNodes();
+      if (maxNodes <= 0)
+      {
+         return;
+      }
+
+      // the hand passes every node at most twice, once to clear its reference bit and once
+      // to evict it, unless it is in use
+      long steps = 2L * clockQueue.getNumberOfNodes();
+      while (clockQueue.getNumberOfNodes() > maxNodes && steps-- > 0)
+      {
+         ne = clockQueue.getFirstNodeEntry();
+         if (ne.referenced || this.isNodeInUseAndNotTimedOut(ne))
+         {
+            ne.referenced = false;
+            clockQueue.advance();
+            continue;
+         }
+
+         if (log.isTraceEnabled())
+         {
+            log.trace("Node " + ne.getFqn() + " will be evicted because of exceeding the maxNode limit." +
+                  " maxNode: " + maxNodes + " but current queue size is: " + clockQueue.getNumberOfNodes());
+         }
+         // the hand is now on the entry that took the place of the evicted one
+         clockQueue.removeNodeEntry(ne);
+         this.evict(ne);
+      }
+   }
+
+   protected ClockConfiguration getConfiguration()
+   {
+      return (ClockConfiguration) region.getEvictionConfiguration();
+   }
+}
@@ -0,0 +1,45 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.jboss.cache.TreeCache;
+
+/**
+ * Provider to provide eviction policy. This one is based on the CLOCK algorithm, an
+ * approximation of LRU which takes less time and memory per node on large regions; it
+ * is configured like the {@link LRUPolicy}.
+ *
+ * @version $Revision$
+ */
+public class ClockPolicy extends BaseEvictionPolicy implements EvictionPolicy
+{
+   protected RegionManager regionManager_;
+
+   protected EvictionAlgorithm algorithm;
+
+   public ClockPolicy()
+   {
+      super();
+      algorithm = new ClockAlgorithm();
+   }
+
+   public EvictionAlgorithm getEvictionAlgorithm()
+   {
+      return algorithm;
+   }
+
+   public Class getEvictionConfigurationClass()
+   {
+      return ClockConfiguration.class;
+   }
+
+   public void configure(TreeCache cache)
+   {
+      super.configure(cache);
+      regionManager_ = cache_.getEvictionRegionManager();
+   }
+}
@@ -0,0 +1,198 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.jboss.cache.Fqn;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * CLOCK Eviction Queue implementation for the CLOCK Policy.
+ * <p/>
+ * The entries are kept in an array, the ring, which a hand sweeps round; each entry has a
+ * reference bit, set when the node is used and cleared when the hand passes it.  Unlike
+ * {@link LRUQueue} a visit does not move the entry, and an entry takes one slot of the
+ * ring and one entry of a HashMap instead of an entry in each of two linked maps.  All
+ * operations are O(1); a removed entry is replaced by the last one of the ring.
+ *
+ * @version $Revision$
+ */
+public class ClockQueue implements EvictionQueue
+{
+   private Map nodeMap;
+   private NodeEntry[] ring;
+   private int size = 0;
+   private int hand = 0;
+   private int numElements = 0;
+
+   ClockQueue()
+   {
+      nodeMap = new HashMap();
+      ring = new NodeEntry[16];
+   }
+
+   /**
+    * Returns the entry under the hand, without moving it.
+    */
+   public NodeEntry getFirstNodeEntry()
+   {
+      return size > 0 ? ring[hand] : null;
+   }
+
+   /**
+    * Returns the entry under the hand and moves the hand on to the next entry.
+    */
+   NodeEntry advance()
+   {
+      if (size == 0)
+      {
+         return null;
+      }
+      NodeEntry ne = ring[hand];
+      if (++hand >= size)
+      {
+         hand = 0;
+      }
+      return ne;
+   }
+
+   /**
+    * Returns the entry of a node and sets its reference bit; like the lookup in the access
+    * ordered map of the {@link LRUQueue}, every lookup by the algorithm counts as a use.
+    */
+   public NodeEntry getNodeEntry(Fqn fqn)
+   {
+      NodeEntry ne = (NodeEntry) nodeMap.get(fqn);
+      if (ne != null)
+      {
+         ne.referenced = true;
+      }
+      return ne;
+   }
+
+   public NodeEntry getNodeEntry(String fqn)
+   {
+      return this.getNodeEntry(Fqn.fromString(fqn));
+   }
+
+   public boolean containsNodeEntry(NodeEntry entry)
+   {
+      return nodeMap.containsKey(entry.getFqn());
+   }
+
+   public void removeNodeEntry(NodeEntry entry)
+   {
+      NodeEntry e = (NodeEntry) nodeMap.remove(entry.getFqn());
+      if (e == null)
+      {
+         return;
+      }
+      this.numElements -= e.getNumberOfElements();
+
+      NodeEntry last = ring[--size];
+      ring[size] = null;
+      if (e.index != size)
+      {
+         ring[e.index] = last;
+         last.index = e.index;
+      }
+      if (hand >= size)
+      {
+         hand = 0;
+      }
+   }
+
+   /**
+    * Adds an entry with its reference bit set, so that it is not evicted before the hand
+    * has gone round once.
+    */
+   public void addNodeEntry(NodeEntry entry)
+   {
+      if (this.containsNodeEntry(entry))
+      {
+         return;
+      }
+      if (size == ring.length)
+      {
+         NodeEntry[] grown = new NodeEntry[ring.length * 2];
+         System.arraycopy(ring, 0, grown, 0, size);
+         ring = grown;
+      }
+      entry.queue = this;
+      entry.referenced = true;
+      entry.index = size;
+      ring[size++] = entry;
+      nodeMap.put(entry.getFqn(), entry);
+      this.numElements += entry.getNumberOfElements();
+   }
+
+   public int getNumberOfNodes()
+   {
+      return size;
+   }
+
+   public int getNumberOfElements()
+   {
+      return this.numElements;
+   }
+
+   public void modifyElementCount(int difference)
+   {
+      this.numElements += difference;
+   }
+
+   public void clear()
+   {
+      nodeMap.clear();
+      ring = new NodeEntry[16];
+      size = 0;
+      hand = 0;
+      this.numElements = 0;
+   }
+
+   /**
+    * Iterates over the ring in array order; {@link Iterator#remove()} is supported.
+    */
+   public Iterator iterate()
+   {
+      return new Iterator()
+      {
+         private int next = 0;
+         private NodeEntry current;
+
+         public boolean hasNext()
+         {
+            return next < size;
+         }
+
+         public Object next()
+         {
+            if (next >= size)
+            {
+               throw new NoSuchElementException();
+            }
+            current = ring[next++];
+            return current;
+         }
+
+         public void remove()
+         {
+            if (current == null)
+            {
+               throw new IllegalStateException();
+            }
+            removeNodeEntry(current);
+            current = null;
+            // the last entry of the ring has taken the place of the removed one
+            next--;
+         }
+      };
+   }
+}
@@ -31,13 +31,4 @@ public class ElementSizeAlgorithm extends BaseSortedEvictionAlgorithm
       return ne.getNumberOfElements() > config.getMaxElementsPerNode();
    }
 
-
-   protected void prune() throws EvictionException
-   {
-      super.prune();
-
-      // clean up the Queue's eviction removals
-      ((ElementSizeQueue) this.evictionQueue).prune();
-   }
-
 }
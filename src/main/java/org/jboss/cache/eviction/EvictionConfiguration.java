@@ -28,6 +28,8 @@ public interface EvictionConfiguration
 
    public static final String REGION = "region";
    public static final String WAKEUP_INTERVAL_SECONDS = "wakeUpIntervalSeconds";
+   public static final String EVICTION_THREADS = "evictionThreads";
+   public static final String VISIT_BUFFER_SIZE = "visitBufferSize";
    public static final String MAX_NODES = "maxNodes";
    public static final String MAX_ELEMENTS_PER_NODE = "maxElementsPerNode";
    public static final String TIME_TO_IDLE_SECONDS = "timeToIdleSeconds";
@@ -35,6 +37,7 @@ public interface EvictionConfiguration
    public static final String MAX_AGE_SECONDS = "maxAgeSeconds";
    public static final String MIN_NODES = "minNodes";
    public static final String MIN_ELEMENTS = "minElements";
+   public static final String WINDOW_PERCENT = "windowPercent";
    public static final String REGION_POLICY_CLASS = "policyClass";
 
    public static final int NODE_GRANULARITY = 0;
@@ -0,0 +1,153 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the eviction algorithms of the regions on a bounded pool of threads.
+ * <p/>
+ * Every region is scheduled on its own, every <tt>wakeUpIntervalSeconds</tt> of the region or
+ * else of the cache, counted from the end of its previous pass.  A region is processed by one
+ * thread at a time, synchronized on the region as by the {@link EvictionTimerTask}, but regions
+ * no longer wait for each other: a slow region only delays itself, and a pass over many
+ * regions takes as many times less as there are threads.
+ *
+ * @version $Id$
+ */
+public class EvictionScheduler
+{
+   private static final Log log = LogFactory.getLog(EvictionScheduler.class);
+
+   /**
+    * Map<Region,ScheduledFuture> of the regions to process; the futures are null until started.
+    */
+   private final Map regions = new HashMap();
+
+   private ScheduledThreadPoolExecutor executor;
+   private int defaultIntervalSeconds;
+
+   /**
+    * Add a Region to process.
+    */
+   public synchronized void addRegion(Region region)
+   {
+      ScheduledFuture old = (ScheduledFuture) regions.put(region, null);
+      if (old != null)
+         old.cancel(false);
+      if (executor != null)
+         regions.put(region, schedule(region));
+   }
+
+   /**
+    * Stop processing a Region.
+    */
+   public synchronized void removeRegion(Region region)
+   {
+      if (region == null)
+         return;
+      ScheduledFuture future = (ScheduledFuture) regions.remove(region);
+      if (future != null)
+         future.cancel(false);
+   }
+
+   /**
+    * Starts processing the regions.
+    *
+    * @param threads                number of threads processing regions
+    * @param defaultIntervalSeconds interval of the regions which do not set their own
+    */
+   public synchronized void start(int threads, int defaultIntervalSeconds)
+   {
+      if (executor != null)
+         return;
+      this.defaultIntervalSeconds = defaultIntervalSeconds;
+      executor = new ScheduledThreadPoolExecutor(Math.max(threads, 1), new ThreadFactory()
+      {
+         int count;
+
+         public synchronized Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, "EvictionScheduler-" + (++count));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      for (Iterator it = regions.entrySet().iterator(); it.hasNext();)
+      {
+         Map.Entry entry = (Map.Entry) it.next();
+         entry.setValue(schedule((Region) entry.getKey()));
+      }
+      if (log.isDebugEnabled())
+         log.debug("processing " + regions.size() + " regions on " + threads + " threads");
+   }
+
+   /**
+    * Stops processing the regions; a region being processed is processed to the end.
+    */
+   public synchronized void stop()
+   {
+      if (executor == null)
+         return;
+      executor.shutdown();
+      executor = null;
+      for (Iterator it = regions.entrySet().iterator(); it.hasNext();)
+         ((Map.Entry) it.next()).setValue(null);
+   }
+
+   private ScheduledFuture schedule(final Region region)
+   {
+      long interval = region.getWakeUpIntervalSeconds() > 0
+            ? region.getWakeUpIntervalSeconds() : defaultIntervalSeconds;
+      return executor.scheduleWithFixedDelay(new Runnable()
+      {
+         public void run()
+         {
+            process(region);
+         }
+      }, interval, interval, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Runs the eviction algorithm of a region and records the duration of the pass.
+    */
+   static void process(Region region)
+   {
+      final EvictionAlgorithm algo = region.getEvictionPolicy().getEvictionAlgorithm();
+      synchronized (region)
+      {
+         int events = region.nodeEventQueueSize();
+         long start = System.nanoTime();
+         try
+         {
+            algo.process(region);
+         }
+         catch (EvictionException e)
+         {
+            log.error("run(): error processing eviction with exception: " + e.toString()
+                  + " will reset the eviction queue list.");
+            region.resetEvictionQueues();
+            log.debug("trace", e);
+         }
+         catch (RuntimeException e)
+         {
+            // keep the region scheduled
+            log.error("error processing eviction of region " + region.getFqn(), e);
+         }
+         region.recordPass(System.nanoTime() - start, events);
+      }
+   }
+}
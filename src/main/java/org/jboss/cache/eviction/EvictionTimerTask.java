@@ -18,6 +18,9 @@ import java.util.TimerTask;
 
 /**
  * Timer threads to do periodic node clean up by running the eviction policy.
+ * <p/>
+ * Processes every region in turn on one thread; the {@link RegionManager} now uses an
+ * {@link EvictionScheduler} instead.
  *
  * @author Ben Wang 2-2004
  * @author Daniel Huang (dhuang@jboss.org)
@@ -69,24 +72,7 @@ public class EvictionTimerTask extends TimerTask
          Iterator it = processedRegions.iterator();
          while (it.hasNext())
          {
-            final Region region = (Region) it.next();
-            final EvictionPolicy policy = region.getEvictionPolicy();
-
-            synchronized (region)
-            {
-               final EvictionAlgorithm algo = policy.getEvictionAlgorithm();
-               try
-               {
-                  algo.process(region);
-               }
-               catch (EvictionException e)
-               {
-                  log.error("run(): error processing eviction with exception: " + e.toString()
-                        + " will reset the eviction queue list.");
-                  region.resetEvictionQueues();
-                  log.debug("trace", e);
-               }
-            }
+            EvictionScheduler.process((Region) it.next());
          }
       }
    }
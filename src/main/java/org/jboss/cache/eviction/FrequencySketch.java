@@ -0,0 +1,120 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+/**
+ * Count-min sketch estimating how often nodes have been used recently, for the
+ * {@link TinyLFUAlgorithm}.
+ * <p/>
+ * The counters are 4 bits wide, sixteen to a long, and an object is counted in four of
+ * them, in the longs chosen by four hash functions; its frequency is the smallest of the
+ * four, at most 15.  After ten times as many increments as the sketch is sized for, all counters
+ * are halved, so that the frequencies follow changes in the workload.  The sketch takes 8
+ * bytes per node of the region, and is not thread-safe.
+ *
+ * @version $Revision$
+ */
+class FrequencySketch
+{
+   private static final long[] SEEDS = {
+         0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+   private static final long RESET_MASK = 0x7777777777777777L;
+   private static final long ONE_MASK = 0x1111111111111111L;
+
+   private final long[] table;
+   private final int tableMask;
+   private final int sampleSize;
+   private int size;
+
+   /**
+    * @param maximum the number of nodes of the region
+    */
+   FrequencySketch(int maximum)
+   {
+      int max = Math.min(Math.max(maximum, 16), 1 << 30);
+      int length = 1;
+      while (length < max) length <<= 1;
+      table = new long[length];
+      tableMask = length - 1;
+      sampleSize = (int) Math.min(10L * max, Integer.MAX_VALUE);
+   }
+
+   /**
+    * Returns the estimated number of recent uses of an object, from 0 to 15.
+    */
+   int frequency(Object o)
+   {
+      int hash = spread(o.hashCode());
+      int start = (hash & 3) << 2;
+      int frequency = 15;
+      for (int i = 0; i < 4; i++)
+      {
+         int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+         frequency = Math.min(frequency, count);
+      }
+      return frequency;
+   }
+
+   /**
+    * Counts a use of an object, halving all counters when the sample is complete.
+    */
+   void increment(Object o)
+   {
+      int hash = spread(o.hashCode());
+      int start = (hash & 3) << 2;
+      boolean added = false;
+      for (int i = 0; i < 4; i++)
+      {
+         added |= incrementAt(indexOf(hash, i), start + i);
+      }
+      if (added && ++size == sampleSize)
+      {
+         reset();
+      }
+   }
+
+   private boolean incrementAt(int i, int j)
+   {
+      int offset = j << 2;
+      long mask = 0xfL << offset;
+      if ((table[i] & mask) != mask)
+      {
+         table[i] += 1L << offset;
+         return true;
+      }
+      return false;
+   }
+
+   private void reset()
+   {
+      int odd = 0;
+      for (int i = 0; i < table.length; i++)
+      {
+         odd += Long.bitCount(table[i] & ONE_MASK);
+         table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+      // every increment is counted in four counters, each of which lost half a count if odd
+      size = (size >>> 1) - (odd >>> 2);
+   }
+
+   private int indexOf(int hash, int i)
+   {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return ((int) h) & tableMask;
+   }
+
+   /**
+    * Spreads the bits of a hash code, which are often poor in the low bits.
+    */
+   private static int spread(int x)
+   {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+   }
+}
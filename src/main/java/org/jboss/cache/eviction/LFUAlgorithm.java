@@ -73,12 +73,4 @@ public class LFUAlgorithm extends BaseSortedEvictionAlgorithm implements Evictio
    {
       return new LFUQueue();
    }
-
-   protected void prune() throws EvictionException
-   {
-      super.prune();
-
-      // clean up the Queue's eviction removals
-      ((LFUQueue) this.evictionQueue).prune();
-   }
 }
@@ -4,6 +4,12 @@ import org.jboss.cache.Fqn;
 
 /**
  * Value object used in queue
+ * <p/>
+ * A {@link BaseSortedEvictionQueue} sorts its entries on their number of node visits, number
+ * of elements and creation time stamp, and keeps an entry in its place in the heap as these
+ * change.  While the entry is in such a queue they must therefore only be changed through
+ * {@link #setNumberOfNodeVisits(int)}, {@link #setNumberOfElements(int)} and
+ * {@link #setCreationTimeStamp(long)}, which tell the queue.
  *
  * @author Ben Wang 2-2004
  * @author Daniel Huang - dhuang@jboss.org
@@ -21,6 +27,16 @@ public class NodeEntry
 
    EvictionQueue queue;
 
+   /**
+    * Reference bit of a {@link ClockQueue}.
+    */
+   boolean referenced;
+
+   /**
+    * Position in the ring of a {@link ClockQueue} or in the heap of a {@link BaseSortedEvictionQueue}.
+    */
+   int index;
+
    /**
     * Private constructor that automatically sets the creation time stamp of the node entry.
     */
@@ -94,6 +110,10 @@ public class NodeEntry
    public void setCreationTimeStamp(long creationTimeStamp)
    {
       this.creationTimeStamp = creationTimeStamp;
+      if (queue instanceof BaseSortedEvictionQueue)
+      {
+         ((BaseSortedEvictionQueue) queue).reorder(this);
+      }
    }
 
    public int getNumberOfNodeVisits()
@@ -104,6 +124,10 @@ public class NodeEntry
    public void setNumberOfNodeVisits(int numberOfNodeVisits)
    {
       this.numberOfNodeVisits = numberOfNodeVisits;
+      if (queue instanceof BaseSortedEvictionQueue)
+      {
+         ((BaseSortedEvictionQueue) queue).reorder(this);
+      }
    }
 
    public int getNumberOfElements()
@@ -119,6 +143,10 @@ public class NodeEntry
          queue.modifyElementCount(difference);
       }
       this.numberOfElements = numberOfElements;
+      if (queue instanceof BaseSortedEvictionQueue)
+      {
+         ((BaseSortedEvictionQueue) queue).reorder(this);
+      }
    }
 
    public Fqn getFqn()
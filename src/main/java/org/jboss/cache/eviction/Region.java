@@ -12,6 +12,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.cache.Fqn;
 
+import java.util.HashMap;
+import java.util.Map;
+
 
 /**
  * A region is a collection of tree cache nodes that share the same eviction
@@ -38,6 +41,25 @@ public class Region
    // Count of how many times between attempt to check capacity
    protected int checkCapacityCount = 0;
 
+   // Lossy buffer of visits, or null to queue visits with the other events
+   private volatile VisitBuffer visitBuffer_;
+   // Visits the current pass takes from the visit buffer before the queued events, and whether
+   // a pass is in progress, i.e. the last call to takeLastEventNode() did not return null
+   private int visitsToTake;
+   private boolean passInProgress;
+
+   // Seconds between passes of the eviction algorithm; 0 to use the interval of the cache
+   private int wakeUpIntervalSeconds = 0;
+
+   // Statistics of the passes of the eviction algorithm, guarded by passStatisticsLock so that
+   // reading them does not wait for a pass holding the region's monitor
+   private final Object passStatisticsLock = new Object();
+   private long passes;
+   private long totalPassTime;
+   private long maxPassTime;
+   private long lastPassTime;
+   private int lastPassEvents;
+
    // Added capacity warning threshold constant with correct calculation. Plus 100 to be on the safe side.
    private final static int CAPACITY_WARN_THRESHOLD = (98 * RegionManager.CAPACITY) / 100 - 100;
 
@@ -103,6 +125,88 @@ public class Region
       return fqn_;
    }
 
+   /**
+    * Returns the seconds between passes of the eviction algorithm over this region, or 0 if
+    * the region uses the <tt>wakeUpIntervalSeconds</tt> of the cache.
+    */
+   public int getWakeUpIntervalSeconds()
+   {
+      return wakeUpIntervalSeconds;
+   }
+
+   /**
+    * Sets the seconds between passes of the eviction algorithm over this region; 0 to use the
+    * <tt>wakeUpIntervalSeconds</tt> of the cache.  Takes effect when the region is scheduled.
+    */
+   public void setWakeUpIntervalSeconds(int wakeUpIntervalSeconds)
+   {
+      this.wakeUpIntervalSeconds = wakeUpIntervalSeconds;
+   }
+
+   /**
+    * Returns true if visits are recorded in a lossy buffer.
+    */
+   public boolean isRecordingVisits()
+   {
+      return visitBuffer_ != null;
+   }
+
+   /**
+    * Sets the number of visits each stripe of a lossy visit buffer holds, or 0 to queue
+    * visits with the other events.  With a buffer, recording a visit never blocks nor
+    * allocates, and visits are dropped while the buffer is full; the other events are still
+    * queued and never lost.  Visits recorded before a change of the size are dropped.
+    */
+   public void setVisitBufferSize(int size)
+   {
+      visitBuffer_ = size > 0 ? new VisitBuffer(size) : null;
+   }
+
+   /**
+    * Records a pass of the eviction algorithm.
+    *
+    * @param nanos  duration of the pass
+    * @param events number of events queued when the pass started
+    */
+   void recordPass(long nanos, int events)
+   {
+      synchronized (passStatisticsLock)
+      {
+         passes++;
+         totalPassTime += nanos;
+         maxPassTime = Math.max(maxPassTime, nanos);
+         lastPassTime = nanos;
+         lastPassEvents = events;
+      }
+   }
+
+   /**
+    * Returns the statistics of the passes of the eviction algorithm over this region: number
+    * of passes, last, average and longest duration in milliseconds, events processed by the
+    * last pass, and the events now queued.
+    */
+   public Map dumpStatistics()
+   {
+      Map retval = new HashMap();
+      synchronized (passStatisticsLock)
+      {
+         retval.put("Passes", new Long(passes));
+         retval.put("LastPassTime", new Long(lastPassTime / 1000000));
+         retval.put("AveragePassTime", new Long(passes == 0 ? 0 : totalPassTime / passes / 1000000));
+         retval.put("MaxPassTime", new Long(maxPassTime / 1000000));
+         retval.put("LastPassEvents", new Integer(lastPassEvents));
+      }
+      retval.put("QueueDepth", new Integer(nodeEventQueueSize()));
+      VisitBuffer visits = visitBuffer_;
+      if (visits != null)
+      {
+         retval.put("BufferedVisits", new Integer(visits.size()));
+         retval.put("DroppedVisits", new Long(visits.getDropped()));
+      }
+      retval.put("WakeUpIntervalSeconds", new Integer(wakeUpIntervalSeconds));
+      return retval;
+   }
+
    public void setAddedNode(Fqn fqn)
    {
       putNodeEvent(fqn, EvictedEventNode.ADD_NODE_EVENT);
@@ -115,7 +219,11 @@ public class Region
 
    public void setVisitedNode(Fqn fqn)
    {
-      putNodeEvent(fqn, EvictedEventNode.VISIT_NODE_EVENT);
+      VisitBuffer visits = visitBuffer_;
+      if (visits != null)
+         visits.record(fqn);
+      else
+         putNodeEvent(fqn, EvictedEventNode.VISIT_NODE_EVENT);
    }
 
    public void putNodeEvent(Fqn fqn, int event)
@@ -125,6 +233,12 @@ public class Region
 
    public void putNodeEvent(EvictedEventNode event)
    {
+      VisitBuffer visits = visitBuffer_;
+      if (visits != null && event.getEvent() == EvictedEventNode.VISIT_NODE_EVENT)
+      {
+         visits.record(event.getFqn());
+         return;
+      }
       try
       {
          // Don't check capacity every time as this is an expensive operation for
@@ -135,7 +249,7 @@ public class Region
             if (nodeEventQueue_.size() > (CAPACITY_WARN_THRESHOLD))
             {
                log_.warn("putNodeEvent(): eviction node event queue size is at 98% threshold value of capacity: "
-                     + RegionManager.CAPACITY + " You will need to reduce the wakeUpIntervalSeconds parameter.");
+                     + RegionManager.CAPACITY + " You will need to reduce the wakeUpIntervalSeconds parameter or raise evictionThreads.");
             }
          }
          nodeEventQueue_.put(event);
@@ -149,20 +263,46 @@ public class Region
    /**
     * Take the last node from node queue. It will also
     * remove it from the queue.
+    * <p/>
+    * With a visit buffer, a pass, i.e. the calls up to the one returning null, first takes
+    * the visits buffered when it started, then the queued events.  Visits thus come before
+    * the removal of the node they visited, and visits recorded during the pass wait for the
+    * next one, so that a pass ends even while nodes are visited.
     *
     * @return The EvictedEventNode
     */
    public EvictedEventNode takeLastEventNode()
    {
+      VisitBuffer visits = visitBuffer_;
+      if (visits != null)
+      {
+         if (!passInProgress)
+         {
+            passInProgress = true;
+            visitsToTake = visits.size();
+         }
+         if (visitsToTake > 0)
+         {
+            visitsToTake--;
+            Fqn fqn = visits.poll();
+            if (fqn != null)
+               return new EvictedEventNode(fqn, EvictedEventNode.VISIT_NODE_EVENT);
+            visitsToTake = 0;
+         }
+      }
+
+      EvictedEventNode event = null;
       try
       {
-         return (EvictedEventNode) nodeEventQueue_.poll(0);
+         event = (EvictedEventNode) nodeEventQueue_.poll(0);
       }
       catch (InterruptedException e)
       {
          log_.debug("trace", e);
       }
-      return null;
+      if (event == null)
+         passInProgress = false;
+      return event;
    }
 
    public int nodeEventQueueSize()
@@ -24,8 +24,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Iterator;
 
@@ -56,9 +56,10 @@ public class RegionManager
    private final Map regionMap_ = new ConcurrentHashMap();
    private int longestFqn = 0;
 
-   private Timer evictionThread_;
-   private EvictionTimerTask evictionTimerTask_;
+   private EvictionScheduler evictionScheduler_;
    private int evictionThreadWakeupIntervalSeconds_;
+   private int evictionThreads_ = 1;
+   private int visitBufferSize_ = 0;
    private TreeCache cache_;
 
    /**
@@ -68,7 +69,7 @@ public class RegionManager
 
    public RegionManager()
    {
-      evictionTimerTask_ = new EvictionTimerTask();
+      evictionScheduler_ = new EvictionScheduler();
    }
 
    public int getEvictionThreadWakeupIntervalSeconds()
@@ -76,6 +77,25 @@ public class RegionManager
       return evictionThreadWakeupIntervalSeconds_;
    }
 
+   /**
+    * Returns the number of visits each stripe of the visit buffer of a region holds, or 0 if
+    * visits are queued with the other events.
+    *
+    * @see Region#setVisitBufferSize(int)
+    */
+   public int getVisitBufferSize()
+   {
+      return visitBufferSize_;
+   }
+
+   /**
+    * Returns the number of threads processing the regions.
+    */
+   public int getEvictionThreads()
+   {
+      return evictionThreads_;
+   }
+
    /**
     * @deprecated DO NOT USE THIS METHOD. IT IS PROVIDED FOR EJB3 INTEGRATION BACKWARDS COMPATIBILITY
     */
@@ -110,10 +130,7 @@ public class RegionManager
          throw new RuntimeException("Could not instantiate EvictionConfigurationClass", e);
       }
 
-      Region region = new Region(fqn, policy_, configuration);
-      addRegion(fqn, region);
-      evictionTimerTask_.addRegionToProcess(region);
-      return region;
+      return createRegion(new Region(fqn, policy_, configuration));
    }
 
    private void addRegion(Fqn fqn, Region region) throws RegionNameConflictException
@@ -141,7 +158,12 @@ public class RegionManager
    {
       EvictionPolicy policy = this.createEvictionPolicy(regionConfig);
       EvictionConfiguration config = this.configureEvictionPolicy(policy, regionConfig);
-      return this.createRegion(fqn, policy, config);
+      Region region = new Region(fqn, policy, config);
+      String interval = XmlHelper.getAttr(regionConfig,
+            EvictionConfiguration.WAKEUP_INTERVAL_SECONDS, EvictionConfiguration.ATTR, EvictionConfiguration.NAME);
+      if (interval != null && interval.length() > 0)
+         region.setWakeUpIntervalSeconds(Integer.parseInt(interval));
+      return this.createRegion(region);
    }
 
    public Region createRegion(String fqn, EvictionPolicy policy, EvictionConfiguration config) throws RegionNameConflictException
@@ -156,9 +178,14 @@ public class RegionManager
          log_.debug("createRegion(): creating region for fqn- " + fqn);
       }
 
-      Region region = new Region(fqn, policy, config);
-      addRegion(fqn, region);
-      evictionTimerTask_.addRegionToProcess(region);
+      return createRegion(new Region(fqn, policy, config));
+   }
+
+   private Region createRegion(Region region) throws RegionNameConflictException
+   {
+      region.setVisitBufferSize(visitBufferSize_);
+      addRegion(region.getFqnObject(), region);
+      evictionScheduler_.addRegion(region);
       return region;
    }
 
@@ -205,6 +232,16 @@ public class RegionManager
       if (evictionThreadWakeupIntervalSeconds_ <= 0)
          evictionThreadWakeupIntervalSeconds_ = EvictionConfiguration.WAKEUP_DEFAULT;
 
+      temp = XmlHelper.getAttr(elem,
+            EvictionConfiguration.EVICTION_THREADS, EvictionConfiguration.ATTR, EvictionConfiguration.NAME);
+      if (temp != null && temp.length() > 0)
+         evictionThreads_ = Math.max(Integer.parseInt(temp), 1);
+
+      temp = XmlHelper.getAttr(elem,
+            EvictionConfiguration.VISIT_BUFFER_SIZE, EvictionConfiguration.ATTR, EvictionConfiguration.NAME);
+      if (temp != null && temp.length() > 0)
+         visitBufferSize_ = Integer.parseInt(temp);
+
       NodeList list = elem.getElementsByTagName(EvictionConfiguration.REGION);
       for (int i = 0; i < list.getLength(); i++)
       {
@@ -242,7 +279,7 @@ public class RegionManager
    public boolean removeRegion(Fqn fqn)
    {
       Region region = (Region) regionMap_.remove(fqn);
-      evictionTimerTask_.removeRegionToProcess(region);
+      evictionScheduler_.removeRegion(region);
       return region != null;
    }
 
@@ -315,6 +352,23 @@ public class RegionManager
         return (Region[]) s.toArray(new Region[]{});
    }
 
+   /**
+    * Returns the statistics of the passes of the eviction algorithm over each region, by
+    * region Fqn.
+    *
+    * @see Region#dumpStatistics()
+    */
+   public Map dumpStatistics()
+   {
+      Map retval = new TreeMap();
+      for (Iterator i = regionMap_.values().iterator(); i.hasNext();)
+      {
+         Region region = (Region) i.next();
+         retval.put(region.getFqn(), region.dumpStatistics());
+      }
+      return retval;
+   }
+
    /**
     * Check for conflict in the current regions. There is a conflict
     * if fqn is any parent fqn of the current regions.
@@ -495,18 +549,14 @@ public class RegionManager
 
       public void cacheStarted(TreeCache cache)
       {
-         if (log_.isDebugEnabled()) log_.debug("Starting eviction timer");
-         evictionThread_ = new Timer();
-         evictionThread_.schedule(evictionTimerTask_, RegionManager.this.getEvictionThreadWakeupIntervalSeconds() * 1000,
-               RegionManager.this.getEvictionThreadWakeupIntervalSeconds() * 1000);
+         if (log_.isDebugEnabled()) log_.debug("Starting eviction scheduler");
+         evictionScheduler_.start(evictionThreads_, RegionManager.this.getEvictionThreadWakeupIntervalSeconds());
       }
 
       public void cacheStopped(TreeCache cache)
       {
-         if (log_.isDebugEnabled()) log_.info("Stopping eviction timer ... ");
-         if (evictionThread_ != null)
-            evictionThread_.cancel();
-         evictionThread_ = null;
+         if (log_.isDebugEnabled()) log_.info("Stopping eviction scheduler ... ");
+         evictionScheduler_.stop();
       }
 
       public void viewChange(View new_view)  // might be MergeView after merging
@@ -0,0 +1,157 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.cache.Fqn;
+
+/**
+ * Window TinyLFU algorithm: frequency based admission in front of a segmented LRU.
+ * <p/>
+ * Nodes are added to a small LRU window, <tt>windowPercent</tt> of <tt>maxNodes</tt>, so that
+ * a burst of new nodes can be used before it is judged.  When the region holds more than
+ * <tt>maxNodes</tt> nodes, the least recently used node of the window is checked against the
+ * victim of the main space, and whichever has been used less often recently, according to a
+ * {@link FrequencySketch} of all uses, is evicted.  A scan over many nodes used once thus
+ * passes through the window and is evicted, instead of flushing the nodes used often, and
+ * no pass sorts the queue.
+ * Note that this algorithm is not thread-safe.
+ *
+ * @version $Revision$
+ */
+public class TinyLFUAlgorithm extends BaseEvictionAlgorithm implements EvictionAlgorithm
+{
+   private static final Log log = LogFactory.getLog(TinyLFUAlgorithm.class);
+
+   private FrequencySketch sketch;
+
+   public TinyLFUAlgorithm()
+   {
+      super();
+   }
+
+   protected EvictionQueue setupEvictionQueue(Region region) throws EvictionException
+   {
+      TinyLFUConfiguration config = (TinyLFUConfiguration) region.getEvictionConfiguration();
+      sketch = new FrequencySketch(config.getMaxNodes());
+      return new TinyLFUQueue(config.getMaxNodes(), config.getWindowPercent());
+   }
+
+   /**
+    * Nodes are only evicted to keep the region within <tt>maxNodes</tt>, by {@link #prune()}.
+    */
+   protected boolean shouldEvictNode(NodeEntry ne)
+   {
+      return false;
+   }
+
+   protected void processAddedNodes(Fqn fqn, int numAddedElements, boolean resetElementCount) throws EvictionException
+   {
+      sketch.increment(fqn);
+      super.processAddedNodes(fqn, numAddedElements, resetElementCount);
+   }
+
+   protected void processVisitedNodes(Fqn fqn) throws EvictionException
+   {
+      sketch.increment(fqn);
+      super.processVisitedNodes(fqn);
+   }
+
+   protected void evict(NodeEntry ne)
+   {
+      // prune() has removed the entry from the queue
+      if (ne != null)
+      {
+         if (!this.evictCacheNode(ne.getFqn()))
+         {
+            try
+            {
+               recycleQueue.put(ne.getFqn());
+            }
+            catch (InterruptedException e)
+            {
+               log.debug("InterruptedException", e);
+            }
+         }
+      }
+   }
+
+   protected void prune() throws EvictionException
+   {
+      TinyLFUQueue queue = (TinyLFUQueue) evictionQueue;
+      int maxNodes = this.getConfiguration().getMaxNodes();
+      if (maxNodes <= 0)
+      {
+         return;
+      }
+      // every node in use is passed over at most once per pass
+      int skips = queue.getNumberOfNodes();
+
+      while (queue.getNumberOfNodes() > maxNodes)
+      {
+         NodeEntry candidate = queue.getWindowOverflow();
+         NodeEntry victim = queue.getFirstNodeEntry();
+         if (candidate == null && victim == null)
+         {
+            break;
+         }
+         if (victim == null)
+         {
+            queue.admit(candidate);
+            continue;
+         }
+
+         NodeEntry evicted = victim;
+         if (candidate != null && sketch.frequency(candidate.getFqn()) <= sketch.frequency(victim.getFqn()))
+         {
+            evicted = candidate;
+         }
+
+         if (this.isNodeInUseAndNotTimedOut(evicted))
+         {
+            if (skips-- <= 0)
+            {
+               break;
+            }
+            if (evicted == candidate)
+            {
+               queue.admit(candidate);
+            }
+            else
+            {
+               queue.skip(victim);
+            }
+            continue;
+         }
+
+         if (log.isTraceEnabled())
+         {
+            log.trace("Node " + evicted.getFqn() + " will be evicted because of exceeding the maxNode limit." +
+                  " maxNode: " + maxNodes + " but current queue size is: " + queue.getNumberOfNodes());
+         }
+         queue.removeNodeEntry(evicted);
+         if (candidate != null && evicted == victim)
+         {
+            queue.admit(candidate);
+         }
+         this.evict(evicted);
+      }
+
+      // the window keeps its size, the nodes leaving it when the region is not full are admitted
+      NodeEntry candidate;
+      while ((candidate = queue.getWindowOverflow()) != null)
+      {
+         queue.admit(candidate);
+      }
+   }
+
+   protected TinyLFUConfiguration getConfiguration()
+   {
+      return (TinyLFUConfiguration) region.getEvictionConfiguration();
+   }
+}
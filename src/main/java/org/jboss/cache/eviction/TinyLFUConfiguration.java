@@ -0,0 +1,112 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.cache.ConfigureException;
+import org.jboss.cache.xml.XmlHelper;
+import org.w3c.dom.Element;
+
+/**
+ * TinyLFU Configuration for the TinyLFU Eviction Policy.
+ *
+ * @see TinyLFUAlgorithm
+ * @version $Revision$
+ */
+public class TinyLFUConfiguration implements EvictionConfiguration
+{
+   private static final Log log = LogFactory.getLog(TinyLFUConfiguration.class);
+
+   private int maxNodes;
+   private int windowPercent = 1;
+
+   public int getMaxNodes()
+   {
+      return maxNodes;
+   }
+
+   public void setMaxNodes(int maxNodes)
+   {
+      this.maxNodes = maxNodes;
+   }
+
+   /**
+    * Get the share of <tt>maxNodes</tt>, in percent, kept by the window of recently added
+    * nodes that are not yet checked against the frequency of the other nodes.
+    *
+    * @return windowPercent
+    */
+   public int getWindowPercent()
+   {
+      return windowPercent;
+   }
+
+   public void setWindowPercent(int windowPercent)
+   {
+      this.windowPercent = windowPercent;
+   }
+
+   /**
+    * Configure the TinyLFU Policy with XML.
+    * <p/>
+    * This method expects the following XML:
+    * <p/>
+    * <region name="/hot/" policyClass="org.jboss.cache.eviction.TinyLFUPolicy">
+    * <attribute name="maxNodes">10000</attribute>
+    * <attribute name="windowPercent">1</attribute>
+    * </region>
+    *
+    * @param element DOM XML containing TinyLFU Policy configuration.
+    * @throws ConfigureException
+    */
+   public void parseXMLConfig(Element element) throws ConfigureException
+   {
+      String name = element.getAttribute(EvictionConfiguration.NAME);
+      if (name == null || name.equals(""))
+      {
+         throw new ConfigureException("Name is required for the eviction region");
+      }
+
+      String maxNodes = XmlHelper.getAttr(element, EvictionConfiguration.MAX_NODES,
+            EvictionConfiguration.ATTR, EvictionConfiguration.NAME);
+      if (maxNodes == null || maxNodes.equals(""))
+      {
+         throw new ConfigureException("TinyLFUConfiguration.parseXMLConfig(): Null maxNodes element");
+      }
+      setMaxNodes(Integer.parseInt(maxNodes));
+      if (getMaxNodes() <= 0)
+      {
+         throw new ConfigureException("TinyLFUConfiguration.parseXMLConfig(): maxNodes must be positive");
+      }
+
+      String windowPercent = XmlHelper.getAttr(element, EvictionConfiguration.WINDOW_PERCENT,
+            EvictionConfiguration.ATTR, EvictionConfiguration.NAME);
+      if (windowPercent != null && !windowPercent.equals(""))
+      {
+         setWindowPercent(Integer.parseInt(windowPercent));
+         if (getWindowPercent() <= 0 || getWindowPercent() >= 100)
+         {
+            throw new ConfigureException("TinyLFUConfiguration.parseXMLConfig(): windowPercent must be between 1 and 99");
+         }
+      }
+
+      if (log.isDebugEnabled())
+      {
+         log.debug("parseConfig: name -- " + name + " maxNodes -- " + getMaxNodes()
+               + " windowPercent -- " + getWindowPercent());
+      }
+   }
+
+   public String toString()
+   {
+      StringBuffer str = new StringBuffer();
+      str.append("TinyLFUConfiguration: maxNodes = ").append(getMaxNodes());
+      str.append(" windowPercent = ").append(getWindowPercent());
+      return str.toString();
+   }
+}
@@ -0,0 +1,46 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.jboss.cache.TreeCache;
+
+/**
+ * Provider to provide eviction policy. This one is based on the Window TinyLFU algorithm,
+ * which admits a node into the region only if it is used more often than the node it
+ * would replace, so that scans do not flush the nodes used often.  A user specifies the
+ * maximum number of nodes and optionally the share of the admission window.
+ *
+ * @version $Revision$
+ */
+public class TinyLFUPolicy extends BaseEvictionPolicy implements EvictionPolicy
+{
+   protected RegionManager regionManager_;
+
+   protected EvictionAlgorithm algorithm;
+
+   public TinyLFUPolicy()
+   {
+      super();
+      algorithm = new TinyLFUAlgorithm();
+   }
+
+   public EvictionAlgorithm getEvictionAlgorithm()
+   {
+      return algorithm;
+   }
+
+   public Class getEvictionConfigurationClass()
+   {
+      return TinyLFUConfiguration.class;
+   }
+
+   public void configure(TreeCache cache)
+   {
+      super.configure(cache);
+      regionManager_ = cache_.getEvictionRegionManager();
+   }
+}
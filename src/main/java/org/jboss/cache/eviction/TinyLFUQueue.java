@@ -0,0 +1,241 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.jboss.cache.Fqn;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * TinyLFU Eviction Queue implementation for the TinyLFU Policy.
+ * <p/>
+ * New entries go into the window; entries leaving the window enter probation, if the
+ * {@link TinyLFUAlgorithm} admits them, and move on to the protected segment when used
+ * again.  Entries pushed out of the protected segment go back to probation, the victims
+ * of the algorithm are taken from there.  Every segment is an access ordered map, like the
+ * LRU queue of the {@link LRUQueue}, and every lookup by the algorithm counts as a use.
+ *
+ * @version $Revision$
+ */
+public class TinyLFUQueue implements EvictionQueue
+{
+   private Map window;
+   private Map probation;
+   private Map protectedSegment;
+   private int windowMax;
+   private int protectedMax;
+   private int numElements = 0;
+
+   /**
+    * @param maxNodes      the number of nodes of the region
+    * @param windowPercent the share of the window, in percent
+    */
+   TinyLFUQueue(int maxNodes, int windowPercent)
+   {
+      window = new LinkedHashMap(16, 0.75f, true);
+      probation = new LinkedHashMap(16, 0.75f, true);
+      protectedSegment = new LinkedHashMap(16, 0.75f, true);
+      windowMax = Math.max(1, (int) ((long) maxNodes * windowPercent / 100));
+      // the protected segment takes 80% of the main space, as in the segmented LRU
+      protectedMax = (int) ((long) (maxNodes - windowMax) * 80 / 100);
+   }
+
+   /**
+    * Returns the entry the algorithm would evict from the main space, if any.
+    */
+   public NodeEntry getFirstNodeEntry()
+   {
+      NodeEntry ne = first(probation);
+      if (ne == null)
+      {
+         ne = first(protectedSegment);
+      }
+      return ne;
+   }
+
+   /**
+    * Returns the least recently used entry of the window if the window is over its size,
+    * otherwise null.
+    */
+   NodeEntry getWindowOverflow()
+   {
+      return window.size() > windowMax ? first(window) : null;
+   }
+
+   /**
+    * Moves an entry from the window to probation.
+    */
+   void admit(NodeEntry ne)
+   {
+      Fqn fqn = ne.getFqn();
+      window.remove(fqn);
+      probation.put(fqn, ne);
+   }
+
+   /**
+    * Makes an entry the most recently used of its segment, without promoting it.
+    */
+   void skip(NodeEntry ne)
+   {
+      Fqn fqn = ne.getFqn();
+      if (window.get(fqn) == null && probation.get(fqn) == null)
+      {
+         protectedSegment.get(fqn);
+      }
+   }
+
+   private static NodeEntry first(Map segment)
+   {
+      if (segment.size() > 0)
+      {
+         return (NodeEntry) segment.values().iterator().next();
+      }
+      return null;
+   }
+
+   /**
+    * Returns the entry of a node; an entry in probation is promoted to the protected
+    * segment, whose least recently used entries go back to probation.
+    */
+   public NodeEntry getNodeEntry(Fqn fqn)
+   {
+      NodeEntry ne = (NodeEntry) window.get(fqn);
+      if (ne != null)
+      {
+         return ne;
+      }
+      ne = (NodeEntry) protectedSegment.get(fqn);
+      if (ne != null)
+      {
+         return ne;
+      }
+      ne = (NodeEntry) probation.remove(fqn);
+      if (ne != null)
+      {
+         protectedSegment.put(fqn, ne);
+         while (protectedSegment.size() > protectedMax)
+         {
+            NodeEntry demoted = first(protectedSegment);
+            protectedSegment.remove(demoted.getFqn());
+            probation.put(demoted.getFqn(), demoted);
+         }
+      }
+      return ne;
+   }
+
+   public NodeEntry getNodeEntry(String fqn)
+   {
+      return this.getNodeEntry(Fqn.fromString(fqn));
+   }
+
+   public boolean containsNodeEntry(NodeEntry entry)
+   {
+      Fqn fqn = entry.getFqn();
+      return window.containsKey(fqn) || probation.containsKey(fqn) || protectedSegment.containsKey(fqn);
+   }
+
+   public void removeNodeEntry(NodeEntry entry)
+   {
+      Fqn fqn = entry.getFqn();
+      NodeEntry ne = (NodeEntry) window.remove(fqn);
+      if (ne == null)
+      {
+         ne = (NodeEntry) probation.remove(fqn);
+      }
+      if (ne == null)
+      {
+         ne = (NodeEntry) protectedSegment.remove(fqn);
+      }
+      if (ne != null)
+      {
+         this.numElements -= ne.getNumberOfElements();
+      }
+   }
+
+   public void addNodeEntry(NodeEntry entry)
+   {
+      if (!this.containsNodeEntry(entry))
+      {
+         entry.queue = this;
+         window.put(entry.getFqn(), entry);
+         this.numElements += entry.getNumberOfElements();
+      }
+   }
+
+   public int getNumberOfNodes()
+   {
+      return window.size() + probation.size() + protectedSegment.size();
+   }
+
+   public int getNumberOfElements()
+   {
+      return this.numElements;
+   }
+
+   public void modifyElementCount(int difference)
+   {
+      this.numElements += difference;
+   }
+
+   public void clear()
+   {
+      window.clear();
+      probation.clear();
+      protectedSegment.clear();
+      this.numElements = 0;
+   }
+
+   /**
+    * Iterates over the window, probation and the protected segment in turn, each from
+    * least to most recently used; {@link Iterator#remove()} is supported.
+    */
+   public Iterator iterate()
+   {
+      return new Iterator()
+      {
+         private final Iterator[] segments = {
+               window.values().iterator(), probation.values().iterator(), protectedSegment.values().iterator()};
+         private int segment = 0;
+         private Iterator last;
+         private NodeEntry current;
+
+         public boolean hasNext()
+         {
+            while (segment < segments.length - 1 && !segments[segment].hasNext())
+            {
+               segment++;
+            }
+            return segments[segment].hasNext();
+         }
+
+         public Object next()
+         {
+            if (!hasNext())
+            {
+               throw new NoSuchElementException();
+            }
+            last = segments[segment];
+            current = (NodeEntry) last.next();
+            return current;
+         }
+
+         public void remove()
+         {
+            if (current == null)
+            {
+               throw new IllegalStateException();
+            }
+            last.remove();
+            numElements -= current.getNumberOfElements();
+            current = null;
+         }
+      };
+   }
+}
@@ -0,0 +1,137 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import org.jboss.cache.Fqn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lossy buffer of the Fqns of visited nodes, recorded by application threads without
+ * blocking or allocating and drained by the eviction thread.
+ * <p/>
+ * The buffer is split into stripes, ring buffers chosen by thread id, so that threads on
+ * different processors rarely contend.  A visit is dropped if its stripe is full, or if
+ * another thread is recording into the same slot at the same time: losing some visits only
+ * makes the eviction order less exact, whereas blocking would put the eviction thread on the
+ * read path.  Only one thread drains the buffer at a time, under the monitor of the region.
+ *
+ * @version $Id$
+ */
+class VisitBuffer
+{
+   /**
+    * Number of stripes; the number of processors rounded up to a power of two, at most 16.
+    */
+   private static final int STRIPES;
+
+   static
+   {
+      int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+      int stripes = 1;
+      while (stripes < cpus) stripes <<= 1;
+      STRIPES = stripes;
+   }
+
+   private final Stripe[] stripes = new Stripe[STRIPES];
+   private final int mask;
+
+   /**
+    * Stripe the next {@link #poll()} starts with.
+    */
+   private int next;
+
+   /**
+    * @param capacity the number of visits a stripe holds; rounded up to a power of two
+    */
+   VisitBuffer(int capacity)
+   {
+      int size = 1;
+      while (size < capacity) size <<= 1;
+      mask = size - 1;
+      for (int i = 0; i < STRIPES; i++)
+         stripes[i] = new Stripe(size);
+   }
+
+   private static final class Stripe
+   {
+      final AtomicReferenceArray slots;
+      final AtomicLong writeIndex = new AtomicLong();
+      final AtomicLong dropped = new AtomicLong();
+      volatile long readIndex;
+
+      Stripe(int size)
+      {
+         slots = new AtomicReferenceArray(size);
+      }
+   }
+
+   /**
+    * Records a visit, unless the stripe of the calling thread is full.
+    *
+    * @return false if the visit was dropped
+    */
+   boolean record(Fqn fqn)
+   {
+      Stripe stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+      long index = stripe.writeIndex.get();
+      if (index - stripe.readIndex > mask || !stripe.writeIndex.compareAndSet(index, index + 1))
+      {
+         stripe.dropped.incrementAndGet();
+         return false;
+      }
+      stripe.slots.lazySet((int) index & mask, fqn);
+      return true;
+   }
+
+   /**
+    * Takes a recorded visit; called by one thread at a time.
+    *
+    * @return the Fqn of the visited node, or null if no visit is ready
+    */
+   Fqn poll()
+   {
+      for (int i = 0; i < STRIPES; i++)
+      {
+         Stripe stripe = stripes[(next + i) & (STRIPES - 1)];
+         long index = stripe.readIndex;
+         if (index == stripe.writeIndex.get())
+            continue;
+         // null while the recording thread has claimed the slot but not yet filled it
+         Fqn fqn = (Fqn) stripe.slots.getAndSet((int) index & mask, null);
+         if (fqn == null)
+            continue;
+         stripe.readIndex = index + 1;
+         next = (next + i + 1) & (STRIPES - 1);
+         return fqn;
+      }
+      return null;
+   }
+
+   /**
+    * Returns the number of visits recorded and not yet taken.
+    */
+   int size()
+   {
+      long size = 0;
+      for (int i = 0; i < STRIPES; i++)
+         size += stripes[i].writeIndex.get() - stripes[i].readIndex;
+      return (int) size;
+   }
+
+   /**
+    * Returns the number of visits dropped since the buffer was created.
+    */
+   long getDropped()
+   {
+      long dropped = 0;
+      for (int i = 0; i < STRIPES; i++)
+         dropped += stripes[i].dropped.get();
+      return dropped;
+   }
+}
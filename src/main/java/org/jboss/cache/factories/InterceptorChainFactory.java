@@ -11,6 +11,7 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.cache.TreeCache;
 import org.jboss.cache.interceptors.Interceptor;
 import org.jboss.cache.loader.CacheLoaderManager;
+import org.jboss.cache.marshall.MethodDeclarations;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -491,6 +492,44 @@ public class InterceptorChainFactory
       return first;
    }
 
+   /**
+    * Compiles the chain starting at <code>first</code> into one chain per method id, which
+    * leaves out the interceptors that {@link Interceptor#passesThrough(int) pass} the method
+    * through.  Each interceptor is given the successor to forward each method id to, and the
+    * returned array holds the interceptor each method id enters the chain at.  The last
+    * interceptor of the chain is never left out.
+    *
+    * @return the head of the chain for each method id, indexed by method id
+    */
+   public static Interceptor[] compileInterceptorChain(Interceptor first)
+   {
+      List chain = asList(first);
+      Interceptor[] heads = new Interceptor[MethodDeclarations.getMaxMethodId() + 1];
+      // walking back from the end, heads holds the first interceptor after i which handles each id
+      for (int i = chain.size() - 1; i >= 0; i--)
+      {
+         Interceptor interceptor = (Interceptor) chain.get(i);
+         if (interceptor.getNext() != null)
+            interceptor.setNextByMethodId((Interceptor[]) heads.clone());
+         for (int id = 0; id < heads.length; id++)
+         {
+            if (heads[id] == null || !interceptor.passesThrough(id))
+               heads[id] = interceptor;
+         }
+      }
+      return heads;
+   }
+
+   /**
+    * Drops the per method successors set by {@link #compileInterceptorChain(Interceptor)},
+    * so that every interceptor forwards to its next one again.
+    */
+   public static void uncompileInterceptorChain(Interceptor first)
+   {
+      for (Interceptor i = first; i != null; i = i.getNext())
+         i.setNextByMethodId(null);
+   }
+
    public static String printInterceptorChain(Interceptor i)
    {
       StringBuffer sb = new StringBuffer();
@@ -55,7 +55,6 @@ public class ActivationInterceptor extends CacheLoaderInterceptor implements Act
     */
    public Object invoke(MethodCall call) throws Throwable {
       JBCMethodCall m = (JBCMethodCall) call;
-      Fqn          fqn=null;
       Method       meth=m.getMethod();
       Object[]     args=m.getArgs();
       Object       retval=null;
@@ -63,9 +62,6 @@ public class ActivationInterceptor extends CacheLoaderInterceptor implements Act
       // First call the parent class to load the node
       retval = super.invoke(m);
       
-      // is this a node removal operation?
-      boolean nodeRemoved = false;
-      
       // Could be TRANSACTIONAL. If so, we register for TX completion (if we haven't done so yet)
       if(tx_mgr != null && tx_mgr.getTransaction() != null) {
          GlobalTransaction gtx = getInvocationContext().getGlobalTransaction();
@@ -98,6 +94,26 @@ public class ActivationInterceptor extends CacheLoaderInterceptor implements Act
       
       // if we're here then it's not transactional
 
+      if (m.getMethodId() == MethodDeclarations.bulkMethodLocal_id) {
+         for (Iterator i = ((List) args[0]).iterator(); i.hasNext();)
+            activate((JBCMethodCall) i.next());
+      }
+      else
+         activate(m);
+      return retval;
+   }
+
+   /**
+    * Removes the node the call acted on from the CacheLoader, if it has been fully loaded into
+    * memory.
+    */
+   private void activate(JBCMethodCall m) throws Exception {
+      Fqn          fqn=null;
+      Object[]     args=m.getArgs();
+
+      // is this a node removal operation?
+      boolean nodeRemoved = false;
+
       // CacheLoaderInterceptor normally doesn't load the node
       // since CacheStoreInterceptor.put() returns the old value
       switch (m.getMethodId())
@@ -159,7 +175,6 @@ public class ActivationInterceptor extends CacheLoaderInterceptor implements Act
             }
          }
       }
-      return retval;
    }
 
    private void remove(Fqn fqn) throws Exception {
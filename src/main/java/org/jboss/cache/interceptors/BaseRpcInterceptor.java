@@ -8,8 +8,11 @@ import org.jboss.cache.buddyreplication.BuddyManager;
 import org.jboss.cache.marshall.MethodCallFactory;
 import org.jboss.cache.marshall.MethodDeclarations;
 import org.jboss.cache.marshall.JBCMethodCall;
+import org.jboss.cache.util.LatencyHistogram;
 import org.jgroups.blocks.MethodCall;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -23,6 +26,7 @@ public abstract class BaseRpcInterceptor extends Interceptor
 
     private BuddyManager buddyManager;
     private boolean usingBuddyReplication;
+    private final LatencyHistogram remoteCallLatency = new LatencyHistogram();
 
     public void setCache(TreeCache cache)
     {
@@ -31,6 +35,15 @@ public abstract class BaseRpcInterceptor extends Interceptor
        usingBuddyReplication = buddyManager != null;
     }
 
+    /**
+     * Returns the time taken by the remote calls made by this interceptor, reported by the
+     * {@link CacheMgmtInterceptor}.
+     */
+    public LatencyHistogram getRemoteCallLatency()
+    {
+        return remoteCallLatency;
+    }
+
 //
 //   public Object replicate(MethodCall method_call) throws Throwable {
 //      try {
@@ -107,19 +120,67 @@ public abstract class BaseRpcInterceptor extends Interceptor
                 callRecipients = usingBuddyReplication ? buddyManager.getBuddyAddresses() : cache.getMembers();
             }
 
-            List rsps = cache.callRemoteMethods(callRecipients,
-                                                MethodDeclarations.replicateMethod,
-                                                new Object[]{call},
-                                                sync, // is synchronised?
-                                                true, // ignore self?
-                                                cache.getSyncReplTimeout());
+            List rsps = callRemoteMethods(callRecipients, MethodDeclarations.replicateMethod, new Object[]{call}, sync);
+            if (log.isTraceEnabled())
+            {
+               log.trace("responses=" + rsps);
+            }
+            if (sync) checkResponses(rsps);
+        }
+
+    }
+
+    /**
+     * Replicates a list of calls as a single {@link MethodDeclarations#replicateAllMethod} call,
+     * which the recipients apply in order.
+     */
+    protected void replicateCalls(List calls, boolean sync) throws Throwable
+    {
+        if (log.isTraceEnabled()) log.trace("Broadcasting " + calls.size() + " calls");
+
+        if (!sync && cache.getUseReplQueue() && cache.getReplQueue() != null && !usingBuddyReplication)
+        {
+            for (Iterator i = calls.iterator(); i.hasNext();)
+                putCallOnAsyncReplicationQueue((MethodCall) i.next());
+        }
+        else
+        {
+            List callRecipients = null;
+            if (usingBuddyReplication)
+            {
+                List transformed = new ArrayList(calls.size());
+                for (Iterator i = calls.iterator(); i.hasNext();)
+                    transformed.add(buddyManager.transformFqns((JBCMethodCall) i.next()));
+                calls = transformed;
+                callRecipients = buddyManager.getBuddyAddresses();
+            }
+            else
+            {
+                callRecipients = cache.getMembers();
+            }
+
+            List rsps = callRemoteMethods(callRecipients, MethodDeclarations.replicateAllMethod, new Object[]{calls}, sync);
             if (log.isTraceEnabled())
             {
                log.trace("responses=" + rsps);
             }
             if (sync) checkResponses(rsps);
         }
+    }
 
+    private List callRemoteMethods(List recipients, Method method, Object[] args, boolean sync) throws Exception
+    {
+        if (!(cache.getUseInterceptorMbeans() && statsEnabled))
+            return cache.callRemoteMethods(recipients, method, args, sync, true, cache.getSyncReplTimeout());
+        long start = System.nanoTime();
+        try
+        {
+            return cache.callRemoteMethods(recipients, method, args, sync, true, cache.getSyncReplTimeout());
+        }
+        finally
+        {
+            remoteCallLatency.record(System.nanoTime() - start);
+        }
     }
 
     protected void putCallOnAsyncReplicationQueue(MethodCall call)
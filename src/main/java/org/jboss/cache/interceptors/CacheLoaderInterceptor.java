@@ -95,13 +95,6 @@ public class CacheLoaderInterceptor extends Interceptor implements CacheLoaderIn
    public Object invoke(MethodCall call) throws Throwable
    {
       JBCMethodCall m = (JBCMethodCall) call;
-      Fqn fqn = null; // if set, load the data
-      Method meth = m.getMethod();
-      Object[] args = m.getArgs();
-      boolean acquireLock = false; // do we need to acquire a lock if we load this node from cloader?
-      Map nodeData = null;
-      boolean initNode = false; // keep uninitialized
-      Object key = null;
       InvocationContext ctx = getInvocationContext();
       TransactionEntry entry = null;
       GlobalTransaction gtx = null;
@@ -112,6 +105,28 @@ public class CacheLoaderInterceptor extends Interceptor implements CacheLoaderIn
 
       if (log.isTraceEnabled())
          log.trace("invoke " + m);
+      if (m.getMethodId() == MethodDeclarations.bulkMethodLocal_id)
+      {
+         for (Iterator i = ((List) m.getArgs()[0]).iterator(); i.hasNext();)
+            load((JBCMethodCall) i.next(), entry);
+      }
+      else
+         load(m, entry);
+
+      return super.invoke(m);
+   }
+
+   /**
+    * Loads the node the call acts on from the CacheLoader, if it is not yet in the cache.
+    */
+   private void load(JBCMethodCall m, TransactionEntry entry) throws Throwable
+   {
+      Fqn fqn = null; // if set, load the data
+      Object[] args = m.getArgs();
+      boolean acquireLock = false; // do we need to acquire a lock if we load this node from cloader?
+      boolean initNode = false; // keep uninitialized
+      Object key = null;
+
       switch (m.getMethodId())
       {
          case MethodDeclarations.putDataEraseMethodLocal_id:
@@ -205,8 +220,6 @@ public class CacheLoaderInterceptor extends Interceptor implements CacheLoaderIn
          }
 
       }
-
-      return super.invoke(m);
    }
 
    /**
@@ -24,12 +24,16 @@ package org.jboss.cache.interceptors;
 import org.jboss.cache.*;
 import org.jboss.cache.marshall.MethodDeclarations;
 import org.jboss.cache.marshall.JBCMethodCall;
+import org.jboss.cache.util.LatencyHistogram;
 import org.jgroups.blocks.MethodCall;
 import org.jgroups.View;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.ListenerNotFoundException;
 import javax.management.MBeanNotificationInfo;
@@ -85,16 +89,19 @@ public class CacheMgmtInterceptor extends Interceptor implements CacheMgmtInterc
    // Notification Info 
    private static final String NOTIFICATION_NAME = Notification.class.getName();
    private static final String NOTIFICATION_DESCR = "JBossCache event notifications";
+
+   private static final long NANOS_PER_MICRO = 1000;
+   private static final long NANOS_PER_MILLI = 1000000;
+   private static final LatencyHistogram[] NO_HISTOGRAMS = new LatencyHistogram[0];
    
    private SynchronizedLong m_seq = new SynchronizedLong(0);
    private int m_listeners = 0;
-   private long m_hit_times = 0;
-   private long m_miss_times = 0;
-   private long m_store_times = 0;
-   private long m_hits = 0;
-   private long m_misses = 0;
-   private long m_stores = 0;
-   private long m_evictions = 0;
+   private final AtomicLong m_stores = new AtomicLong();
+   private final AtomicLong m_evictions = new AtomicLong();
+   private final LatencyHistogram m_hit_latency = new LatencyHistogram();
+   private final LatencyHistogram m_miss_latency = new LatencyHistogram();
+   private final LatencyHistogram m_store_latency = new LatencyHistogram();
+   private final LatencyHistogram m_remove_latency = new LatencyHistogram();
    private long m_start = System.currentTimeMillis();
    private long m_reset = m_start;
    private CacheMgmtListener m_listener = new CacheMgmtListener();
@@ -119,7 +126,6 @@ public class CacheMgmtInterceptor extends Interceptor implements CacheMgmtInterc
       JBCMethodCall m = (JBCMethodCall) call;
       //Object key;
       //Object value;
-      Method meth = m.getMethod();
       Object[]args = m.getArgs();
       Object retval = null;
 
@@ -128,56 +134,56 @@ public class CacheMgmtInterceptor extends Interceptor implements CacheMgmtInterc
       if (!statsEnabled)
          return super.invoke(m);
       
-      long t1, t2;
+      long t1;
       switch (m.getMethodId()) 
       {
          case MethodDeclarations.getKeyValueMethodLocal_id:
             //fqn = (Fqn) args[0];
             //key = args[1];
-            t1 = System.currentTimeMillis();
+            t1 = System.nanoTime();
             retval=super.invoke(m);
-            t2 = System.currentTimeMillis();
             if (retval == null)
-            {
-               m_miss_times = m_miss_times + (t2 - t1);
-               m_misses++;
-            }
+               m_miss_latency.record(System.nanoTime() - t1);
             else
-            {
-               m_hit_times = m_hit_times + (t2 - t1);
-               m_hits++;
-            }
+               m_hit_latency.record(System.nanoTime() - t1);
             break;
          case MethodDeclarations.putKeyValMethodLocal_id:
          case MethodDeclarations.putFailFastKeyValueMethodLocal_id:
             //fqn = (Fqn) args[1];
             //key = args[2];
             //value = args[3];
-            t1 = System.currentTimeMillis();
+            t1 = System.nanoTime();
             retval=super.invoke(m);
-            t2 = System.currentTimeMillis();
-            m_store_times = m_store_times + (t2 - t1);
-            m_stores++;
+            m_store_latency.record(System.nanoTime() - t1);
+            m_stores.incrementAndGet();
             break;
          case MethodDeclarations.putDataMethodLocal_id:
          case MethodDeclarations.putDataEraseMethodLocal_id:
             //fqn = (Fqn) args[1];
             attributes = (Map)args[2];
-            t1 = System.currentTimeMillis();
+            t1 = System.nanoTime();
             retval=super.invoke(m);
-            t2 = System.currentTimeMillis();
-            
+            m_store_latency.record(System.nanoTime() - t1);
             if (attributes != null  && attributes.size() > 0)
-            {
-               m_store_times = m_store_times + (t2 - t1);
-               m_stores = m_stores + attributes.size();            
-            }
+               m_stores.addAndGet(attributes.size());
+            break;
+         case MethodDeclarations.removeNodeMethodLocal_id:
+         case MethodDeclarations.removeKeyMethodLocal_id:
+         case MethodDeclarations.removeDataMethodLocal_id:
+            t1 = System.nanoTime();
+            retval=super.invoke(m);
+            m_remove_latency.record(System.nanoTime() - t1);
+            break;
+         case MethodDeclarations.bulkMethodLocal_id:
+            t1 = System.nanoTime();
+            retval=super.invoke(m);
+            updateBulkStatistics((List)args[0], (List)retval, System.nanoTime() - t1);
             break;
          case MethodDeclarations.evictNodeMethodLocal_id:
          case MethodDeclarations.evictVersionedNodeMethodLocal_id:
             //fqn = (Fqn) args[0];
             retval=super.invoke(m);
-            m_evictions++;  
+            m_evictions.incrementAndGet();
             break;
          default :
             retval=super.invoke(m);
@@ -187,56 +193,264 @@ public class CacheMgmtInterceptor extends Interceptor implements CacheMgmtInterc
       return retval;
    }
    
+   /**
+    * Counts the gets, puts and removes of a bulk call, recording each with an equal share of
+    * the time the bulk call took.
+    */
+   private void updateBulkStatistics(List calls, List results, long time)
+   {
+      int hits = 0, misses = 0, puts = 0, removes = 0;
+      long stores = 0;
+      for (int i = 0; i < calls.size(); i++)
+      {
+         JBCMethodCall call = (JBCMethodCall) calls.get(i);
+         switch (call.getMethodId())
+         {
+            case MethodDeclarations.getKeyValueMethodLocal_id:
+               if (results.get(i) == null)
+                  misses++;
+               else
+                  hits++;
+               break;
+            case MethodDeclarations.putKeyValMethodLocal_id:
+               puts++;
+               stores++;
+               break;
+            case MethodDeclarations.putDataMethodLocal_id:
+            case MethodDeclarations.putDataEraseMethodLocal_id:
+               puts++;
+               Map attributes = (Map)call.getArgs()[2];
+               if (attributes != null)
+                  stores = stores + attributes.size();
+               break;
+            case MethodDeclarations.removeNodeMethodLocal_id:
+            case MethodDeclarations.removeKeyMethodLocal_id:
+            case MethodDeclarations.removeDataMethodLocal_id:
+               removes++;
+               break;
+         }
+      }
+      int total = hits + misses + puts + removes;
+      if (total == 0)
+         return;
+      long share = time / total;
+      if (hits > 0) m_hit_latency.record(share, hits);
+      if (misses > 0) m_miss_latency.record(share, misses);
+      if (puts > 0) m_store_latency.record(share, puts);
+      if (removes > 0) m_remove_latency.record(share, removes);
+      m_stores.addAndGet(stores);
+   }
+
    public long getHits()
    {
-      return m_hits;  
+      return m_hit_latency.getCount();
    }
    
    public long getMisses()
    {
-      return m_misses;  
+      return m_miss_latency.getCount();
    }
    
    public long getStores()
    {
-      return m_stores;  
+      return m_stores.get();
    }
    
    public long getEvictions()
    {
-      return m_evictions;  
+      return m_evictions.get();
    }
    
    public double getHitMissRatio()
    {
-      double total = m_hits + m_misses;
+      long hits = getHits();
+      double total = hits + getMisses();
       if (total == 0)
          return 0;
-      return (m_hits/total);  
+      return (hits/total);  
    }
    
    public double getReadWriteRatio()
    {
-      if (m_stores == 0)
+      long stores = getStores();
+      if (stores == 0)
          return 0;
-      return (((double)(m_hits + m_misses)/(double)m_stores));  
+      return (((double)(getHits() + getMisses()))/(double)stores);
    }
    
    public long getAverageReadTime()
    {
-      long total = m_hits + m_misses;
+      long total = getHits() + getMisses();
       if (total == 0)
          return 0;
-      return (m_hit_times + m_miss_times)/total;  
+      return (m_hit_latency.getTotalTime() + m_miss_latency.getTotalTime())/total/NANOS_PER_MILLI;
    }
    
    public long getAverageWriteTime()
    {
-      if (m_stores == 0)
+      long stores = getStores();
+      if (stores == 0)
          return 0;
-      return (m_store_times)/m_stores;  
+      return m_store_latency.getTotalTime()/stores/NANOS_PER_MILLI;
    }
    
+   public long getHitLatencyP50()
+   {
+      return micros(m_hit_latency, 50);
+   }
+
+   public long getHitLatencyP99()
+   {
+      return micros(m_hit_latency, 99);
+   }
+
+   public long getHitLatencyP999()
+   {
+      return micros(m_hit_latency, 99.9);
+   }
+
+   public long getMissLatencyP50()
+   {
+      return micros(m_miss_latency, 50);
+   }
+
+   public long getMissLatencyP99()
+   {
+      return micros(m_miss_latency, 99);
+   }
+
+   public long getMissLatencyP999()
+   {
+      return micros(m_miss_latency, 99.9);
+   }
+
+   public long getStoreLatencyP50()
+   {
+      return micros(m_store_latency, 50);
+   }
+
+   public long getStoreLatencyP99()
+   {
+      return micros(m_store_latency, 99);
+   }
+
+   public long getStoreLatencyP999()
+   {
+      return micros(m_store_latency, 99.9);
+   }
+
+   public long getRemoveLatencyP50()
+   {
+      return micros(m_remove_latency, 50);
+   }
+
+   public long getRemoveLatencyP99()
+   {
+      return micros(m_remove_latency, 99);
+   }
+
+   public long getRemoveLatencyP999()
+   {
+      return micros(m_remove_latency, 99.9);
+   }
+
+   public long getPrepareLatencyP50()
+   {
+      return micros(prepareLatencies(), 50);
+   }
+
+   public long getPrepareLatencyP99()
+   {
+      return micros(prepareLatencies(), 99);
+   }
+
+   public long getPrepareLatencyP999()
+   {
+      return micros(prepareLatencies(), 99.9);
+   }
+
+   public long getCommitLatencyP50()
+   {
+      return micros(commitLatencies(), 50);
+   }
+
+   public long getCommitLatencyP99()
+   {
+      return micros(commitLatencies(), 99);
+   }
+
+   public long getCommitLatencyP999()
+   {
+      return micros(commitLatencies(), 99.9);
+   }
+
+   public long getRemoteCallLatencyP50()
+   {
+      return micros(remoteCallLatencies(), 50);
+   }
+
+   public long getRemoteCallLatencyP99()
+   {
+      return micros(remoteCallLatencies(), 99);
+   }
+
+   public long getRemoteCallLatencyP999()
+   {
+      return micros(remoteCallLatencies(), 99.9);
+   }
+
+   private static long micros(LatencyHistogram histogram, double percentile)
+   {
+      return histogram.getValueAtPercentile(percentile)/NANOS_PER_MICRO;
+   }
+
+   private static long micros(LatencyHistogram[] histograms, double percentile)
+   {
+      return LatencyHistogram.getValueAtPercentile(histograms, percentile)/NANOS_PER_MICRO;
+   }
+
+   /**
+    * Prepares and commits are timed by the {@link TxInterceptor}, as local ones are run by
+    * its transaction synchronization and never pass through this interceptor.
+    */
+   private LatencyHistogram[] prepareLatencies()
+   {
+      TxInterceptor tx = findTxInterceptor();
+      return tx == null ? NO_HISTOGRAMS : new LatencyHistogram[]{tx.getPrepareLatency()};
+   }
+
+   private LatencyHistogram[] commitLatencies()
+   {
+      TxInterceptor tx = findTxInterceptor();
+      return tx == null ? NO_HISTOGRAMS : new LatencyHistogram[]{tx.getCommitLatency()};
+   }
+
+   /**
+    * Remote calls are timed by each {@link BaseRpcInterceptor} in the chain.
+    */
+   private LatencyHistogram[] remoteCallLatencies()
+   {
+      List histograms = new ArrayList();
+      for (Iterator i = cache.getInterceptors().iterator(); i.hasNext();)
+      {
+         Object interceptor = i.next();
+         if (interceptor instanceof BaseRpcInterceptor)
+            histograms.add(((BaseRpcInterceptor) interceptor).getRemoteCallLatency());
+      }
+      return (LatencyHistogram[]) histograms.toArray(new LatencyHistogram[histograms.size()]);
+   }
+
+   private TxInterceptor findTxInterceptor()
+   {
+      for (Iterator i = cache.getInterceptors().iterator(); i.hasNext();)
+      {
+         Object interceptor = i.next();
+         if (interceptor instanceof TxInterceptor)
+            return (TxInterceptor) interceptor;
+      }
+      return null;
+   }
+
    public int getNumberOfAttributes()
    {
       return cache.getNumberOfAttributes();
@@ -260,10 +474,10 @@ public class CacheMgmtInterceptor extends Interceptor implements CacheMgmtInterc
    public Map dumpStatistics()
    {
       Map retval=new HashMap();
-      retval.put("Hits", new Long(m_hits));
-      retval.put("Misses", new Long(m_misses));
-      retval.put("Stores", new Long(m_stores));
-      retval.put("Evictions", new Long(m_evictions));
+      retval.put("Hits", new Long(getHits()));
+      retval.put("Misses", new Long(getMisses()));
+      retval.put("Stores", new Long(getStores()));
+      retval.put("Evictions", new Long(getEvictions()));
       retval.put("NumberOfAttributes", new Integer(cache.getNumberOfAttributes()));
       retval.put("NumberOfNodes", new Integer(cache.getNumberOfNodes()));
       retval.put("ElapsedTime", new Long(getElapsedTime()));
@@ -272,20 +486,41 @@ public class CacheMgmtInterceptor extends Interceptor implements CacheMgmtInterc
       retval.put("AverageWriteTime", new Long(getAverageWriteTime()));
       retval.put("HitMissRatio", new Double(getHitMissRatio()));
       retval.put("ReadWriteRatio", new Double(getReadWriteRatio()));
+      putLatencies(retval, "HitLatency", new LatencyHistogram[]{m_hit_latency});
+      putLatencies(retval, "MissLatency", new LatencyHistogram[]{m_miss_latency});
+      putLatencies(retval, "StoreLatency", new LatencyHistogram[]{m_store_latency});
+      putLatencies(retval, "RemoveLatency", new LatencyHistogram[]{m_remove_latency});
+      putLatencies(retval, "PrepareLatency", prepareLatencies());
+      putLatencies(retval, "CommitLatency", commitLatencies());
+      putLatencies(retval, "RemoteCallLatency", remoteCallLatencies());
       return retval;
    }
+
+   private static void putLatencies(Map map, String name, LatencyHistogram[] histograms)
+   {
+      map.put(name + "P50", new Long(micros(histograms, 50)));
+      map.put(name + "P99", new Long(micros(histograms, 99)));
+      map.put(name + "P999", new Long(micros(histograms, 99.9)));
+   }
    
    public void resetStatistics()
    {
-      m_hits = 0;
-      m_misses = 0;
-      m_stores = 0;
-      m_evictions = 0;
-      m_hit_times = 0;
-      m_miss_times = 0;
-      m_store_times = 0;
+      m_stores.set(0);
+      m_evictions.set(0);
+      m_hit_latency.reset();
+      m_miss_latency.reset();
+      m_store_latency.reset();
+      m_remove_latency.reset();
+      resetAll(prepareLatencies());
+      resetAll(commitLatencies());
+      resetAll(remoteCallLatencies());
       m_reset = System.currentTimeMillis();
    }
+
+   private static void resetAll(LatencyHistogram[] histograms)
+   {
+      for (int i = 0; i < histograms.length; i++) histograms[i].reset();
+   }
    
    private synchronized void emitNotifications(boolean emit)
    {
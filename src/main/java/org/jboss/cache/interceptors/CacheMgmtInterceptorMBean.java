@@ -111,4 +111,151 @@ public interface CacheMgmtInterceptorMBean extends InterceptorMBean
     * @return the number of seconds since the cache statistics were last reset
     */
    long getTimeSinceReset();
+   
+   /**
+    * Returns the median latency of cache attribute reads which found a value, in microseconds
+    * 
+    * @return the median latency in microseconds, 0 if none were recorded
+    */
+   long getHitLatencyP50();
+   
+   /**
+    * Returns the 99th percentile latency of cache attribute reads which found a value, in microseconds
+    * 
+    * @return the 99th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getHitLatencyP99();
+   
+   /**
+    * Returns the 99.9th percentile latency of cache attribute reads which found a value, in microseconds
+    * 
+    * @return the 99.9th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getHitLatencyP999();
+   
+   /**
+    * Returns the median latency of cache attribute reads which found no value, in microseconds
+    * 
+    * @return the median latency in microseconds, 0 if none were recorded
+    */
+   long getMissLatencyP50();
+   
+   /**
+    * Returns the 99th percentile latency of cache attribute reads which found no value, in microseconds
+    * 
+    * @return the 99th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getMissLatencyP99();
+   
+   /**
+    * Returns the 99.9th percentile latency of cache attribute reads which found no value, in microseconds
+    * 
+    * @return the 99.9th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getMissLatencyP999();
+   
+   /**
+    * Returns the median latency of put operations, in microseconds
+    * 
+    * @return the median latency in microseconds, 0 if none were recorded
+    */
+   long getStoreLatencyP50();
+   
+   /**
+    * Returns the 99th percentile latency of put operations, in microseconds
+    * 
+    * @return the 99th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getStoreLatencyP99();
+   
+   /**
+    * Returns the 99.9th percentile latency of put operations, in microseconds
+    * 
+    * @return the 99.9th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getStoreLatencyP999();
+   
+   /**
+    * Returns the median latency of remove operations, in microseconds
+    * 
+    * @return the median latency in microseconds, 0 if none were recorded
+    */
+   long getRemoveLatencyP50();
+   
+   /**
+    * Returns the 99th percentile latency of remove operations, in microseconds
+    * 
+    * @return the 99th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getRemoveLatencyP99();
+   
+   /**
+    * Returns the 99.9th percentile latency of remove operations, in microseconds
+    * 
+    * @return the 99.9th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getRemoveLatencyP999();
+   
+   /**
+    * Returns the median latency of transaction prepares, local and remote, in microseconds
+    * 
+    * @return the median latency in microseconds, 0 if none were recorded
+    */
+   long getPrepareLatencyP50();
+   
+   /**
+    * Returns the 99th percentile latency of transaction prepares, local and remote, in microseconds
+    * 
+    * @return the 99th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getPrepareLatencyP99();
+   
+   /**
+    * Returns the 99.9th percentile latency of transaction prepares, local and remote, in microseconds
+    * 
+    * @return the 99.9th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getPrepareLatencyP999();
+   
+   /**
+    * Returns the median latency of transaction commits, local and remote, in microseconds
+    * 
+    * @return the median latency in microseconds, 0 if none were recorded
+    */
+   long getCommitLatencyP50();
+   
+   /**
+    * Returns the 99th percentile latency of transaction commits, local and remote, in microseconds
+    * 
+    * @return the 99th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getCommitLatencyP99();
+   
+   /**
+    * Returns the 99.9th percentile latency of transaction commits, local and remote, in microseconds
+    * 
+    * @return the 99.9th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getCommitLatencyP999();
+   
+   /**
+    * Returns the median latency of remote calls made to replicate or invalidate, in microseconds
+    * 
+    * @return the median latency in microseconds, 0 if none were recorded
+    */
+   long getRemoteCallLatencyP50();
+   
+   /**
+    * Returns the 99th percentile latency of remote calls made to replicate or invalidate, in microseconds
+    * 
+    * @return the 99th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getRemoteCallLatencyP99();
+   
+   /**
+    * Returns the 99.9th percentile latency of remote calls made to replicate or invalidate, in microseconds
+    * 
+    * @return the 99.9th percentile latency in microseconds, 0 if none were recorded
+    */
+   long getRemoteCallLatencyP999();
 }
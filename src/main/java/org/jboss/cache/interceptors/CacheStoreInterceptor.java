@@ -47,6 +47,13 @@ public class CacheStoreInterceptor extends Interceptor implements CacheStoreInte
       this.loader = cache.getCacheLoaderManager().getCacheLoader();
    }
 
+   /**
+    * Reads never modify the store.
+    */
+   public boolean passesThrough(int methodId) {
+      return MethodDeclarations.isGetMethod(methodId);
+   }
+
    /**
     * Pass the method on. When it returns, store the modification back to the store using the CacheLoader.
     * In case of a transaction, register for TX completion (2PC) and at TX commit, write modifications made
@@ -1,14 +1,22 @@
 package org.jboss.cache.interceptors;
 
+import org.jboss.cache.DataNode;
+import org.jboss.cache.Fqn;
 import org.jboss.cache.GlobalTransaction;
 import org.jboss.cache.InvocationContext;
+import org.jboss.cache.TransactionEntry;
 import org.jboss.cache.TreeCache;
 import org.jboss.cache.config.Option;
+import org.jboss.cache.marshall.JBCMethodCall;
 import org.jboss.cache.marshall.MethodDeclarations;
 import org.jgroups.blocks.MethodCall;
 
 import javax.transaction.Transaction;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -43,13 +51,18 @@ public class CallInterceptor extends Interceptor
     {
 
         Object retval = null;
+        InvocationContext ctx = getInvocationContext();
+        List delta = null;
 
-        if (!transactionLifecycleMethods.contains(m.getMethod()))
+        if (!isTransactionLifecycleMethod(m))
         {
+            // the delta is computed against the data before the call
+            if (cache.getDeltaReplication()) delta = createDelta(m, ctx);
+
             if (log.isTraceEnabled()) log.trace("Invoking method " + m + " on cache.");
             try
             {
-                retval = m.invoke(cache);
+                retval = invokeOnCache(m);
             }
             catch (Throwable t)
             {
@@ -61,7 +74,6 @@ public class CallInterceptor extends Interceptor
             if (log.isTraceEnabled()) log.trace("Suppressing invocation of method " + m + " on cache.");
         }
 
-        InvocationContext ctx = getInvocationContext();
         Transaction tx = ctx.getTransaction();
         if (tx != null && isValid(tx))
         {
@@ -77,36 +89,24 @@ public class CallInterceptor extends Interceptor
                 // in case a method has been invoked that the OptimisticNodeInterceptor knows nothing about, it will
                 // filter down here.
 
-                if (!cache.isNodeLockingOptimistic() && MethodDeclarations.isCrudMethod(m.getMethod()))
+                if (!cache.isNodeLockingOptimistic())
                 {
-                    // if method is a CRUD (Create/Remove/Update/Delete) method: add it to the modification
-                    // list, otherwise skip (e.g. get() is not added)
-                    // add the modification to the TX's modification list. this is used to later
-                    // (on TX commit) send all modifications done in this TX to all members
-                    GlobalTransaction gtx = ctx.getGlobalTransaction();
-                    if (gtx == null)
+                    if (m instanceof JBCMethodCall && ((JBCMethodCall) m).getMethodId() == MethodDeclarations.bulkMethodLocal_id)
                     {
-                        if (log.isDebugEnabled())
-                        {
-                            log.debug("didn't find GlobalTransaction for " + tx + "; won't add modification to transaction list");
-                        }
+                        // record the calls of a bulk call, which is not replicated or stored as such
+                        for (Iterator i = ((List) m.getArgs()[0]).iterator(); i.hasNext();)
+                            addModification((MethodCall) i.next(), null, ctx, tx);
                     }
                     else
-                    {
-                        Option o = getInvocationContext().getOptionOverrides();
-                        if (o != null && o.isCacheModeLocal())
-                        {
-                            log.debug("Not adding method to modification list since cache mode local is set.");
-                        }
-                        else
-                        {
-                            cache.getTransactionTable().addModification(gtx, m);
-                        }
-                        if (cache.getCacheLoaderManager() != null) cache.getTransactionTable().addCacheLoaderModification(gtx, m);
-                    }
+                        addModification(m, delta, ctx, tx);
                 }
             }
         }
+        else if (delta != null && !(retval instanceof Throwable))
+        {
+            // replicated by the ReplicationInterceptor in place of the call
+            ctx.setDeltaCalls(delta);
+        }
 
         if (retval instanceof Throwable)
         {
@@ -115,4 +115,144 @@ public class CallInterceptor extends Interceptor
 
         return retval;
     }
+
+    /**
+     * Returns the calls replicating a put of a map as a delta against the current data of
+     * the node, or null if the call is not replicated as a delta.  Only puts originating
+     * here, in a replicated cache, using pessimistic locking, are; the node is write
+     * locked by now.  With eviction, each replica evicts the node on its own, so its data
+     * may differ from the data here, and puts are replicated as is.
+     *
+     * @see TransactionEntry#createDelta
+     */
+    private List createDelta(MethodCall m, InvocationContext ctx)
+    {
+        if (!(m instanceof JBCMethodCall) || !ctx.isOriginLocal() || cache.isNodeLockingOptimistic() || cache.isUsingEviction())
+            return null;
+        JBCMethodCall call = (JBCMethodCall) m;
+        if (call.getMethodId() != MethodDeclarations.putDataMethodLocal_id && call.getMethodId() != MethodDeclarations.putDataEraseMethodLocal_id)
+            return null;
+        int mode = cache.getCacheModeInternal();
+        if (mode != TreeCache.REPL_SYNC && mode != TreeCache.REPL_ASYNC)
+            return null;
+        Option o = ctx.getOptionOverrides();
+        if (o != null && o.isCacheModeLocal())
+            return null;
+
+        DataNode node = cache.peek((Fqn) call.getArgs()[1]);
+        return TransactionEntry.createDelta(call, node == null ? null : node.getData());
+    }
+
+    /**
+     * Adds the call to the modification lists of the transaction, if it is a CRUD method.
+     * If <code>delta</code> is not null, it is replicated in place of the call.
+     */
+    private void addModification(MethodCall m, List delta, InvocationContext ctx, Transaction tx)
+    {
+        if (MethodDeclarations.isCrudMethod(m.getMethod()))
+        {
+            // if method is a CRUD (Create/Remove/Update/Delete) method: add it to the modification
+            // list, otherwise skip (e.g. get() is not added)
+            // add the modification to the TX's modification list. this is used to later
+            // (on TX commit) send all modifications done in this TX to all members
+            GlobalTransaction gtx = ctx.getGlobalTransaction();
+            if (gtx == null)
+            {
+                if (log.isDebugEnabled())
+                {
+                    log.debug("didn't find GlobalTransaction for " + tx + "; won't add modification to transaction list");
+                }
+            }
+            else
+            {
+                Option o = ctx.getOptionOverrides();
+                if (o != null && o.isCacheModeLocal())
+                {
+                    log.debug("Not adding method to modification list since cache mode local is set.");
+                }
+                else if (delta != null)
+                {
+                    cache.getTransactionTable().addDeltaModification(gtx, delta);
+                }
+                else
+                {
+                    cache.getTransactionTable().addModification(gtx, m);
+                }
+                if (cache.getCacheLoaderManager() != null) cache.getTransactionTable().addCacheLoaderModification(gtx, m);
+            }
+        }
+    }
+
+    private static boolean isTransactionLifecycleMethod(MethodCall m)
+    {
+        if (m instanceof JBCMethodCall)
+        {
+            switch (((JBCMethodCall) m).getMethodId())
+            {
+                case MethodDeclarations.commitMethod_id:
+                case MethodDeclarations.rollbackMethod_id:
+                case MethodDeclarations.prepareMethod_id:
+                case MethodDeclarations.optimisticPrepareMethod_id:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return transactionLifecycleMethods.contains(m.getMethod());
+    }
+
+    /**
+     * Invokes the method on the cache.  The common local reads and writes are called
+     * directly, which saves the reflective call and the boxing of its arguments; the
+     * argument layouts are those declared in {@link MethodDeclarations}.
+     */
+    private Object invokeOnCache(MethodCall m) throws Throwable
+    {
+        if (m instanceof JBCMethodCall)
+        {
+            Object[] args = m.getArgs();
+            switch (((JBCMethodCall) m).getMethodId())
+            {
+                case MethodDeclarations.getKeyValueMethodLocal_id:
+                    return cache._get((Fqn) args[0], args[1], ((Boolean) args[2]).booleanValue());
+                case MethodDeclarations.getNodeMethodLocal_id:
+                    return cache._get((Fqn) args[0]);
+                case MethodDeclarations.getKeysMethodLocal_id:
+                    return cache._getKeys((Fqn) args[0]);
+                case MethodDeclarations.getChildrenNamesMethodLocal_id:
+                    return cache._getChildrenNames((Fqn) args[0]);
+                case MethodDeclarations.getDataMapMethodLocal_id:
+                    return cache._getData((Fqn) args[0]);
+                case MethodDeclarations.existsMethod_id:
+                    return cache.exists((Fqn) args[0]) ? Boolean.TRUE : Boolean.FALSE;
+                case MethodDeclarations.putKeyValMethodLocal_id:
+                    return cache._put((GlobalTransaction) args[0], (Fqn) args[1], args[2], args[3],
+                            ((Boolean) args[4]).booleanValue());
+                case MethodDeclarations.putDataMethodLocal_id:
+                    cache._put((GlobalTransaction) args[0], (Fqn) args[1], (Map) args[2],
+                            ((Boolean) args[3]).booleanValue());
+                    return null;
+                case MethodDeclarations.putDataEraseMethodLocal_id:
+                    cache._put((GlobalTransaction) args[0], (Fqn) args[1], (Map) args[2],
+                            ((Boolean) args[3]).booleanValue(), ((Boolean) args[4]).booleanValue());
+                    return null;
+                case MethodDeclarations.removeNodeMethodLocal_id:
+                    cache._remove((GlobalTransaction) args[0], (Fqn) args[1], ((Boolean) args[2]).booleanValue());
+                    return null;
+                case MethodDeclarations.removeKeyMethodLocal_id:
+                    return cache._remove((GlobalTransaction) args[0], (Fqn) args[1], args[2],
+                            ((Boolean) args[3]).booleanValue());
+                case MethodDeclarations.removeDataMethodLocal_id:
+                    cache._removeData((GlobalTransaction) args[0], (Fqn) args[1], ((Boolean) args[2]).booleanValue());
+                    return null;
+                case MethodDeclarations.bulkMethodLocal_id:
+                    List calls = (List) args[0];
+                    List results = new ArrayList(calls.size());
+                    for (Iterator i = calls.iterator(); i.hasNext();)
+                        results.add(invokeOnCache((MethodCall) i.next()));
+                    return results;
+            }
+        }
+        return m.invoke(cache);
+    }
 }
@@ -14,10 +14,12 @@ import org.jboss.cache.TreeCache;
 import org.jboss.cache.eviction.EvictedEventNode;
 import org.jboss.cache.eviction.Region;
 import org.jboss.cache.eviction.RegionManager;
+import org.jboss.cache.marshall.JBCMethodCall;
 import org.jboss.cache.marshall.MethodDeclarations;
 import org.jgroups.blocks.MethodCall;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -94,7 +96,16 @@ public class EvictionInterceptor extends Interceptor
 
       // skip the TX. this interceptor will invoke around/after the call and lock. if the ret == null or if an exception
       // is thrown, this interceptor is terminated. there is no need for explicit rollback logic.
-      this.updateNode(m, ret);
+      if (m instanceof JBCMethodCall && ((JBCMethodCall) m).getMethodId() == MethodDeclarations.bulkMethodLocal_id)
+      {
+         // a bulk call returns the results of its calls, in order
+         List calls = (List) m.getArgs()[0];
+         List results = (List) ret;
+         for (int i = 0; i < calls.size(); i++)
+            this.updateNode((MethodCall) calls.get(i), results.get(i));
+      }
+      else
+         this.updateNode(m, ret);
 
       if (log.isTraceEnabled())
       {
@@ -178,6 +189,12 @@ public class EvictionInterceptor extends Interceptor
             {
                return null;
             }
+            if (region.isRecordingVisits())
+            {
+               // recorded without allocating an event
+               region.setVisitedNode(fqn);
+               return null;
+            }
             return new EvictedEventNode(fqn, EvictedEventNode.VISIT_NODE_EVENT);
          }
 
@@ -204,6 +221,13 @@ public class EvictionInterceptor extends Interceptor
          Object key = args[1];
          if (fqn != null && key != null && !EvictionInterceptor.this.canIgnoreEvent(fqn))
          {
+            Region region = EvictionInterceptor.this.regionManager.getRegion(fqn);
+            if (region.isRecordingVisits())
+            {
+               // recorded without allocating an event
+               region.setVisitedNode(fqn);
+               return null;
+            }
             return new EvictedEventNode(fqn, EvictedEventNode.VISIT_NODE_EVENT);
          }
 
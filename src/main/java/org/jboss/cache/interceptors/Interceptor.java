@@ -47,6 +47,13 @@ public abstract class Interceptor implements InterceptorMBean {
    Log         log=null;
    boolean statsEnabled = true;      
 
+   /**
+    * The interceptor each method id is forwarded to, skipping interceptors which pass
+    * that method through. Set when the chain is compiled, see
+    * {@link org.jboss.cache.factories.InterceptorChainFactory#compileInterceptorChain(Interceptor)}.
+    */
+   Interceptor[] nextByMethodId=null;
+
    public Interceptor() {
       log=LogFactory.getLog(getClass());
    }
@@ -65,8 +72,28 @@ public abstract class Interceptor implements InterceptorMBean {
    }
 
    public Object invoke(MethodCall m) throws Throwable {
+      Interceptor[] table=nextByMethodId;
+      if(table != null && m instanceof JBCMethodCall) {
+         int id=((JBCMethodCall)m).getMethodId();
+         if(id >= 0 && id < table.length)
+            return table[id].invoke(m);
+      }
       return next.invoke(m);
    }
+
+   /**
+    * Returns true if this interceptor does nothing for calls to the given method but
+    * forward them to the next interceptor, so that it can be left out of the chain
+    * compiled for that method. The answer may only depend on configuration which does
+    * not change once the cache has been started.
+    */
+   public boolean passesThrough(int methodId) {
+      return false;
+   }
+
+   public void setNextByMethodId(Interceptor[] table) {
+      nextByMethodId=table;
+   }
    
    public boolean getStatisticsEnabled()
    {
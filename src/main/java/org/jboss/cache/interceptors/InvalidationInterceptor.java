@@ -45,6 +45,14 @@ public class InvalidationInterceptor extends BaseRpcInterceptor implements Inval
         txTable=cache.getTransactionTable();
     }
 
+    /**
+     * Reads never cause invalidations.
+     */
+    public boolean passesThrough(int methodId)
+    {
+        return MethodDeclarations.isGetMethod(methodId);
+    }
+
     public Object invoke(MethodCall call) throws Throwable
     {
         JBCMethodCall m = (JBCMethodCall) call;
@@ -29,6 +29,13 @@ public class PassivationInterceptor extends Interceptor implements PassivationIn
       this.loader = cache.getCacheLoader();
    }
 
+   /**
+    * Only evictions are acted upon.
+    */
+   public boolean passesThrough(int methodId) {
+      return methodId != MethodDeclarations.evictNodeMethodLocal_id;
+   }
+
    /**
     * Notifies the cache instance listeners that the evicted node is about to
     * be passivated and stores the evicted node and its attributes back to the
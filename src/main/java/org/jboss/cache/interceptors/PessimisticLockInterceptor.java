@@ -22,6 +22,7 @@ import org.jboss.cache.marshall.MethodDeclarations;
 import org.jgroups.blocks.MethodCall;
 
 import javax.transaction.Transaction;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -44,6 +45,22 @@ public class PessimisticLockInterceptor extends Interceptor
 
    boolean writeLockOnChildInsertRemove = true;
 
+   /**
+    * If true, parent write locks for child inserts are released when {@link #lock} returns.
+    */
+   boolean latchParentForChildInsertRemove = false;
+
+   /**
+    * If true, ancestors of the target node are only read locked when another owner write locks them, or
+    * when they are write locked before the target is locked.
+    */
+   boolean ancestorLockElision = false;
+
+   /**
+    * If true, reads are served from committed node data and take no locks.
+    */
+   boolean lockFreeReads = false;
+
    /**
     * Map<Object, java.util.List>. Keys = threads, values = lists of locks held by that thread
     */
@@ -58,37 +75,100 @@ public class PessimisticLockInterceptor extends Interceptor
       lock_table = cache.getLockTable();
       lock_acquisition_timeout = cache.getLockAcquisitionTimeout();
       writeLockOnChildInsertRemove = cache.getLockParentForChildInsertRemove();
+      latchParentForChildInsertRemove = cache.getLatchParentForChildInsertRemove();
+      lockFreeReads = cache.isUsingLockFreeReads();
+      ancestorLockElision = cache.getAncestorLockElision();
    }
 
 
    public Object invoke(MethodCall call) throws Throwable
    {
       JBCMethodCall m = (JBCMethodCall) call;
-      Fqn fqn = null;
-      int lock_type = DataNode.LOCK_TYPE_NONE;
-      long lock_timeout = lock_acquisition_timeout;
-      Object[] args = m.getArgs();
       InvocationContext ctx = getInvocationContext();
-      boolean storeLockedNode = false;
 
       if (log.isTraceEnabled()) log.trace("PessimisticLockInterceptor invoked for method " + m);
       if (ctx.getOptionOverrides() != null && ctx.getOptionOverrides().isSuppressLocking())
       {
          log.trace("Suppressing locking");
-         switch (m.getMethodId())
+         if (m.getMethodId() == MethodDeclarations.bulkMethodLocal_id)
          {
-            case MethodDeclarations.putDataMethodLocal_id:
-            case MethodDeclarations.putDataEraseMethodLocal_id:
-            case MethodDeclarations.putKeyValMethodLocal_id:
-            case MethodDeclarations.putFailFastKeyValueMethodLocal_id:
-               log.trace("Creating nodes if necessary");
-               createNodes((Fqn) args[1], ctx.getGlobalTransaction());
-               break;
+            for (Iterator i = ((List) m.getArgs()[0]).iterator(); i.hasNext();)
+               createNodesForPut((JBCMethodCall) i.next(), ctx);
          }
+         else
+            createNodesForPut(m, ctx);
 
          return super.invoke(m);
       }
 
+      if (m.getMethodId() == MethodDeclarations.bulkMethodLocal_id)
+         return invokeBulk(m, ctx);
+
+      boolean storeLockedNode = acquireLocks(m, ctx);
+      if (m.getMethodId() == MethodDeclarations.lockMethodLocal_id)
+         return null;
+
+      Object o = super.invoke(m);
+
+      // FIXME this should be done in UnlockInterceptor, but I didn't want
+      // to add the removedNodes map to TreeCache
+      if (storeLockedNode && ctx.getGlobalTransaction() == null)
+      {
+         // do a REAL remove here.
+         // this is for NON TRANSACTIONAL calls
+         cache.realRemove((Fqn) m.getArgs()[1], true);
+      }
+      else if (m.getMethodId() == MethodDeclarations.commitMethod_id || isOnePhaseCommitPrepareMehod(m) || m.getMethodId() == MethodDeclarations.rollbackMethod_id)
+      {
+         // and this is for transactional ones
+         cleanup(ctx.getGlobalTransaction());
+      }
+
+      return o;
+   }
+
+   private void createNodesForPut(JBCMethodCall m, InvocationContext ctx)
+   {
+      switch (m.getMethodId())
+      {
+         case MethodDeclarations.putDataMethodLocal_id:
+         case MethodDeclarations.putDataEraseMethodLocal_id:
+         case MethodDeclarations.putKeyValMethodLocal_id:
+         case MethodDeclarations.putFailFastKeyValueMethodLocal_id:
+            log.trace("Creating nodes if necessary");
+            createNodes((Fqn) m.getArgs()[1], ctx.getGlobalTransaction());
+            break;
+      }
+   }
+
+   /**
+    * Acquires the locks for each call of a bulk call, in the order of the calls, then passes
+    * the bulk call on.  All locks are held until the bulk call has completed.  Outside a
+    * transaction a bulk call only reads (see {@link TreeCache#invokeBulk}), so removed nodes
+    * are left to the transaction to really remove.
+    */
+   private Object invokeBulk(JBCMethodCall m, InvocationContext ctx) throws Throwable
+   {
+      for (Iterator i = ((List) m.getArgs()[0]).iterator(); i.hasNext();)
+         acquireLocks((JBCMethodCall) i.next(), ctx);
+
+      return super.invoke(m);
+   }
+
+   /**
+    * Acquires the lock the call needs, if any, and handles commit and rollback calls.
+    *
+    * @return true if the call removes a node, which outside a transaction must really be
+    *         removed once the call has completed
+    */
+   private boolean acquireLocks(JBCMethodCall m, InvocationContext ctx) throws Throwable
+   {
+      Fqn fqn = null;
+      int lock_type = DataNode.LOCK_TYPE_NONE;
+      long lock_timeout = lock_acquisition_timeout;
+      Object[] args = m.getArgs();
+      boolean storeLockedNode = false;
+
       /** List<IdentityLock> locks. Locks acquired during the current method; will be released later by UnlockInterceptor.
        *  This list is only populated when there is no TX, otherwise the TransactionTable maintains the locks
        * (keyed by TX) */
@@ -141,6 +221,13 @@ public class PessimisticLockInterceptor extends Interceptor
          case MethodDeclarations.getNodeMethodLocal_id:
          case MethodDeclarations.getKeysMethodLocal_id:
          case MethodDeclarations.getChildrenNamesMethodLocal_id:
+            // with lock-free reads the nodes serve their committed data, no lock needed
+            if (!lockFreeReads)
+            {
+               fqn = (Fqn) args[0];
+               lock_type = DataNode.LOCK_TYPE_READ;
+            }
+            break;
          case MethodDeclarations.releaseAllLocksMethodLocal_id:
          case MethodDeclarations.printMethodLocal_id:
             fqn = (Fqn) args[0];
@@ -200,26 +287,7 @@ public class PessimisticLockInterceptor extends Interceptor
          if (log.isTraceEnabled())
             log.trace("bypassed locking as method " + m.getName() + "() doesn't require locking");
       }
-      if (m.getMethodId() == MethodDeclarations.lockMethodLocal_id)
-         return null;
-
-      Object o = super.invoke(m);
-
-      // FIXME this should be done in UnlockInterceptor, but I didn't want
-      // to add the removedNodes map to TreeCache
-      if (storeLockedNode && ctx.getGlobalTransaction() == null)
-      {
-         // do a REAL remove here.
-         // this is for NON TRANSACTIONAL calls
-         cache.realRemove(fqn, true);
-      }
-      else if (m.getMethodId() == MethodDeclarations.commitMethod_id || isOnePhaseCommitPrepareMehod(m) || m.getMethodId() == MethodDeclarations.rollbackMethod_id)
-      {
-         // and this is for transactional ones
-         cleanup(ctx.getGlobalTransaction());
-      }
-
-      return o;
+      return storeLockedNode;
    }
 
    private void cleanup(GlobalTransaction gtx)
@@ -248,6 +316,26 @@ public class PessimisticLockInterceptor extends Interceptor
    private void lock(Fqn fqn, GlobalTransaction gtx, int lock_type, boolean recursive,
                      long lock_timeout, boolean createIfNotExists, boolean isRemoveNodeOperation, boolean isRemoveDataOperation)
            throws TimeoutException, LockingException, InterruptedException
+   {
+      // a removal write locks the subtree it removes and locks its ancestors as usual
+      if (ancestorLockElision && !recursive
+              && lock(fqn, gtx, lock_type, recursive, lock_timeout, createIfNotExists, isRemoveNodeOperation, isRemoveDataOperation, true))
+         return;
+      lock(fqn, gtx, lock_type, recursive, lock_timeout, createIfNotExists, isRemoveNodeOperation, isRemoveDataOperation, false);
+   }
+
+   /**
+    * Locks a given node, optionally without read locking its ancestors.
+    *
+    * @param elide if true, an ancestor is only read locked if another owner write locks it
+    * @return false if an ancestor which was not read locked has been write locked since it was
+    *         traversed, or the node is no longer in the tree; the locks acquired by this call
+    *         have then been released, and the call must be retried with <code>elide</code> false
+    */
+   private boolean lock(Fqn fqn, GlobalTransaction gtx, int lock_type, boolean recursive,
+                        long lock_timeout, boolean createIfNotExists, boolean isRemoveNodeOperation, boolean isRemoveDataOperation,
+                        boolean elide)
+           throws TimeoutException, LockingException, InterruptedException
    {
       DataNode n;
       DataNode child_node;
@@ -263,67 +351,115 @@ public class PessimisticLockInterceptor extends Interceptor
       if (fqn == null)
       {
          log.error("fqn is null - this should not be the case");
-         return;
+         return true;
       }
 
       if ((treeNodeSize = fqn.size()) == 0)
-         return;
+         return true;
 
       if (cache.getIsolationLevelClass() == IsolationLevel.NONE)
          lock_type = DataNode.LOCK_TYPE_NONE;
 
-      n = cache.getRoot();
-      for (int i = -1; i < treeNodeSize; i++)
+      // parents write locked only for the duration of this call, see TreeCache.setLatchParentForChildInsertRemove()
+      List latches = null;
+      // ancestors not read locked, with the sum of their structural versions when traversed
+      List elided = null;
+      long elidedVersions = 0;
+      // locks recorded by this call, released if the ancestors have to be locked after all
+      List acquired = elide ? new ArrayList(2) : null;
+      DataNode target = null;
+      boolean targetOwned = false;
+      try
       {
-         if (i == -1)
-         {
-            child_name = Fqn.ROOT.getName();
-            child_node = cache.getRoot();
-         }
-         else
+         n = cache.getRoot();
+         for (int i = -1; i < treeNodeSize; i++)
          {
-            child_name = fqn.get(i);
-            child_node = (DataNode) n.getOrCreateChild(child_name, gtx, createIfNotExists);
-         }
+            if (i == -1)
+            {
+               child_name = Fqn.ROOT.getName();
+               child_node = cache.getRoot();
+            }
+            else
+            {
+               child_name = fqn.get(i);
+               child_node = (DataNode) n.getOrCreateChild(child_name, gtx, createIfNotExists);
+            }
 
-         if (child_node == null)
-         {
-            if (log.isTraceEnabled())
-               log.trace("failed to find or create child " + child_name + " of node " + n.getFqn());
-            return;
-         }
+            if (child_node == null)
+            {
+               if (log.isTraceEnabled())
+                  log.trace("failed to find or create child " + child_name + " of node " + n.getFqn());
+               return true;
+            }
 
-         if (lock_type == DataNode.LOCK_TYPE_NONE)
-         {
-            // acquired=false;
-            n = child_node;
-            continue;
-         }
-         else
-         {
-            if (writeLockNeeded(lock_type, i, treeNodeSize, isRemoveNodeOperation, createIfNotExists, isRemoveDataOperation, fqn, child_node.getFqn()))
+            if (lock_type == DataNode.LOCK_TYPE_NONE)
             {
-               currentLockType = DataNode.LOCK_TYPE_WRITE;
+               // acquired=false;
+               n = child_node;
+               continue;
             }
             else
             {
-               currentLockType = DataNode.LOCK_TYPE_READ;
+               if (writeLockNeeded(lock_type, i, treeNodeSize, isRemoveNodeOperation, createIfNotExists, isRemoveDataOperation, fqn, child_node.getFqn()))
+               {
+                  currentLockType = DataNode.LOCK_TYPE_WRITE;
+               }
+               else
+               {
+                  currentLockType = DataNode.LOCK_TYPE_READ;
+               }
             }
-         }
 
-         // reverse the "remove" if the node has been previously removed in the same tx, if this operation is a put()
-         if (gtx != null && needToReverseRemove(child_node, tx_table.get(gtx), lock_type, isRemoveNodeOperation, createIfNotExists))
-         {
-            reverseRemove(child_node);
-         }
+            // reverse the "remove" if the node has been previously removed in the same tx, if this operation is a put()
+            if (gtx != null && needToReverseRemove(child_node, tx_table.get(gtx), lock_type, isRemoveNodeOperation, createIfNotExists))
+            {
+               reverseRemove(child_node);
+            }
 
+            // An ancestor is not read locked unless a writer holds it, so that we wait for the writer.  A removal
+            // write locks the subtree it finds, which misses a target created or locked after it passed; any write
+            // lock taken on the ancestor after this point changes its structural version, checked once the target
+            // is locked.
+            if (elide && currentLockType == DataNode.LOCK_TYPE_READ && !isTargetNode(i, treeNodeSize))
+            {
+               long version = child_node.getStructuralVersion();
+               if (!isWriteLockedByOther(child_node, owner))
+               {
+                  if (elided == null) elided = new ArrayList(treeNodeSize);
+                  elided.add(child_node);
+                  elidedVersions += version;
+                  n = child_node;
+                  continue;
+               }
+            }
+
+            // a removed child only leaves the tree after this call, when it is invoked or the transaction
+            // completes: the parent stays locked, so that no other owner locks the child meanwhile (JBCACHE-1165)
+            if (latchParentForChildInsertRemove && !isRemoveNodeOperation && currentLockType == DataNode.LOCK_TYPE_WRITE
+                    && !isTargetNode(i, treeNodeSize) && !child_node.getLock().isOwner(owner))
+            {
+               if (child_node.acquire(owner, lock_timeout, DataNode.LOCK_TYPE_WRITE))
+               {
+                  if (latches == null) latches = new ArrayList(2);
+                  latches.add(child_node);
+               }
+               n = child_node;
+               continue;
+            }
 
-         // Try to acquire the lock; recording that we did if successful
-         acquireNodeLock(child_node, owner, gtx, currentLockType, lock_timeout);
+            if (elide && isTargetNode(i, treeNodeSize))
+            {
+               target = child_node;
+               targetOwned = child_node.getLock().isOwner(owner);
+            }
+
+            // Try to acquire the lock; recording that we did if successful
+            IdentityLock recorded = acquireNodeLock(child_node, owner, gtx, currentLockType, lock_timeout);
+            if (acquired != null && recorded != null) acquired.add(recorded);
          
-         // BES 2007/12/12 -- Revert JBCACHE-1165 fix as it causes endless loop
-         // in TransactionTest.testDoubleNodeRemoval, plus another failure 
-         // in that test
+            // BES 2007/12/12 -- Revert JBCACHE-1165 fix as it causes endless loop
+            // in TransactionTest.testDoubleNodeRemoval, plus another failure 
+            // in that test
 //         // make sure the lock we acquired isn't on a deleted node/is an orphan!!
 //         DataNode repeek = cache.peek(child_node.getFqn());
 //         if (repeek != null && child_node != repeek)
@@ -337,29 +473,78 @@ public class PessimisticLockInterceptor extends Interceptor
 //            continue;
 //         }
 
-         if (recursive && isTargetNode(i, treeNodeSize))
-         {
+            if (recursive && isTargetNode(i, treeNodeSize))
             {
-               Set acquired_locks = child_node.acquireAll(owner, lock_timeout, lock_type);
-               if (acquired_locks.size() > 0)
                {
-                  if (gtx != null)
-                  {
-                     cache.getTransactionTable().addLocks(gtx, acquired_locks);
-                  }
-                  else
+                  Set acquired_locks = child_node.acquireAll(owner, lock_timeout, lock_type);
+                  if (acquired_locks.size() > 0)
                   {
-                     List locks = getLocks(Thread.currentThread());
-                     locks.addAll(acquired_locks);
+                     if (gtx != null)
+                     {
+                        cache.getTransactionTable().addLocks(gtx, acquired_locks);
+                     }
+                     else
+                     {
+                        List locks = getLocks(Thread.currentThread());
+                        locks.addAll(acquired_locks);
+                     }
                   }
                }
             }
+            n = child_node;
+         }
+      }
+      finally
+      {
+         if (latches != null)
+         {
+            for (int i = latches.size() - 1; i >= 0; i--)
+               ((DataNode) latches.get(i)).getLock().release(owner);
          }
-         n = child_node;
+      }
+
+      // A target this owner already held cannot have been missed by a removal begun since
+      if (elided != null && target != null && !targetOwned && elidedAncestorsChanged(fqn, target, elided, elidedVersions))
+      {
+         if (log.isTraceEnabled())
+            log.trace("an ancestor of " + fqn + " was write locked meanwhile, locking the ancestors for " + owner);
+         releaseLocks(acquired, gtx, owner);
+         return false;
       }
 
       // Add the Fqn to be removed to the transaction entry so we can clean up after ourselves during commit/rollback
       if (isRemoveNodeOperation && gtx != null) cache.getTransactionTable().get(gtx).addRemovedNode(fqn);
+      return true;
+   }
+
+   /**
+    * Returns true if one of the ancestors which were not read locked has been write locked
+    * since it was traversed, which a removal of the ancestor does before it locks the subtree,
+    * or if the target has been removed from the tree.  Structural versions only increase, so
+    * their sum does if one of them does.
+    */
+   private boolean elidedAncestorsChanged(Fqn fqn, DataNode target, List elided, long versions)
+   {
+      long current = 0;
+      for (Iterator it = elided.iterator(); it.hasNext();)
+         current += ((DataNode) it.next()).getStructuralVersion();
+      return current != versions || cache.peek(fqn) != target;
+   }
+
+   /**
+    * Releases locks recorded by {@link #acquireNodeLock}, before the call or transaction completes.
+    */
+   private void releaseLocks(List locks, GlobalTransaction gtx, Object owner)
+   {
+      for (int i = locks.size() - 1; i >= 0; i--)
+      {
+         IdentityLock lock = (IdentityLock) locks.get(i);
+         if (gtx != null)
+            cache.getTransactionTable().removeLock(gtx, lock);
+         else
+            getLocks(Thread.currentThread()).remove(lock);
+         lock.release(owner);
+      }
    }
 
    private boolean needToReverseRemove(DataNode n, TransactionEntry te, int lockTypeRequested, boolean isRemoveOperation, boolean createIfNotExists)
@@ -400,19 +585,33 @@ public class PessimisticLockInterceptor extends Interceptor
       return lock_type == DataNode.LOCK_TYPE_WRITE && isTargetNode(currentNodeIndex, treeNodeSize) && (isPutOperation || isRemoveOperation || isRemoveDataOperation); //normal operation, write lock explicitly requested and this is the target to be written to.
    }
 
+   private boolean isWriteLockedByOther(DataNode node, Object owner)
+   {
+      Object writer = node.getLock().getWriterOwner();
+      return writer != null && !writer.equals(owner);
+   }
+
    private boolean isTargetNode(int nodePosition, int treeNodeSize)
    {
       return nodePosition == (treeNodeSize - 1);
    }
 
-   private void acquireNodeLock(DataNode node, Object owner, GlobalTransaction gtx, int lock_type, long lock_timeout) throws LockingException, TimeoutException, InterruptedException
+   /**
+    * @return the lock, if it was recorded for release on method return or tx commit/rollback
+    */
+   private IdentityLock acquireNodeLock(DataNode node, Object owner, GlobalTransaction gtx, int lock_type, long lock_timeout) throws LockingException, TimeoutException, InterruptedException
    {
+      // acquire() only returns true for a lock the owner already holds when it upgrades a
+      // read lock, which outside a tx is already on the thread's list
+      boolean upgrade = gtx == null && lock_type == DataNode.LOCK_TYPE_WRITE && node.getLock().isOwner(owner);
       boolean acquired = node.acquire(owner, lock_timeout, lock_type);
-      if (acquired)
+      if (acquired && !upgrade)
       {
          // Record the lock for release on method return or tx commit/rollback
          recordNodeLock(gtx, node.getLock());
+         return node.getLock();
       }
+      return null;
    }
 
    private void recordNodeLock(GlobalTransaction gtx, IdentityLock lock)
@@ -425,9 +624,7 @@ public class PessimisticLockInterceptor extends Interceptor
       }
       else
       {
-         List locks = getLocks(Thread.currentThread());
-         if (!locks.contains(lock))
-            locks.add(lock);
+         getLocks(Thread.currentThread()).add(lock);
       }
    }
 
@@ -9,6 +9,7 @@ import org.jboss.cache.marshall.MethodDeclarations;
 import org.jgroups.blocks.MethodCall;
 
 import java.lang.reflect.Method;
+import java.util.List;
 
 /**
  * Takes care of replicating modifications to other nodes in a cluster. Also
@@ -21,6 +22,14 @@ import java.lang.reflect.Method;
 public class ReplicationInterceptor extends BaseRpcInterceptor
 {
 
+    /**
+     * Reads are never replicated.
+     */
+    public boolean passesThrough(int methodId)
+    {
+        return MethodDeclarations.isGetMethod(methodId);
+    }
+
     public Object invoke(MethodCall call) throws Throwable
     {
 
@@ -36,7 +45,19 @@ public class ReplicationInterceptor extends BaseRpcInterceptor
 
 
         // pass up the chain if not a local commit or rollback (in which case replicate first)
-        Object o = isLocalCommitOrRollback ? null : super.invoke(m);
+        Object o = null;
+        // a put the CallInterceptor recorded as a delta; cleared even if the call fails, so that it
+        // is not replicated in place of a later call
+        List delta;
+        try
+        {
+           if (!isLocalCommitOrRollback) o = super.invoke(m);
+        }
+        finally
+        {
+           delta = ctx.getDeltaCalls();
+           ctx.setDeltaCalls(null);
+        }
 
         Option optionOverride = ctx.getOptionOverrides();
 
@@ -85,7 +106,10 @@ public class ReplicationInterceptor extends BaseRpcInterceptor
             if (ctx.isOriginLocal())
             {
                 // don't re-broadcast if we've received this from anotehr cache in the cluster.
-                handleReplicatedMethod(m, cache.getCacheModeInternal());
+                if (delta == null)
+                    handleReplicatedMethod(m, cache.getCacheModeInternal());
+                else
+                    handleReplicatedDelta(delta, cache.getCacheModeInternal());
             }
         }
         else
@@ -126,6 +150,19 @@ public class ReplicationInterceptor extends BaseRpcInterceptor
         }
     }
 
+    /**
+     * Replicates the calls replicating a put as a delta; nothing if the put changed nothing.
+     */
+    void handleReplicatedDelta(List delta, int mode) throws Throwable
+    {
+        if (log.isTraceEnabled()) log.trace("replicating delta " + delta);
+        boolean sync = mode == TreeCache.REPL_SYNC;
+        if (delta.size() == 1)
+            replicateCall((JBCMethodCall) delta.get(0), sync);
+        else if (!delta.isEmpty())
+            replicateCalls(delta, sync);
+    }
+
     /**
      * Calls prepare(GlobalTransaction,List,org.jgroups.Address,boolean)) in all members except self.
      * Waits for all responses. If one of the members failed to prepare, its return value
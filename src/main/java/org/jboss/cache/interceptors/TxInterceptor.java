@@ -20,6 +20,7 @@ import org.jboss.cache.marshall.JBCMethodCall;
 import org.jboss.cache.marshall.MethodCallFactory;
 import org.jboss.cache.marshall.MethodDeclarations;
 import org.jboss.cache.optimistic.DataVersion;
+import org.jboss.cache.util.LatencyHistogram;
 import org.jgroups.Address;
 import org.jgroups.blocks.MethodCall;
 
@@ -52,6 +53,8 @@ public class TxInterceptor extends OptimisticInterceptor implements TxIntercepto
     private long m_prepares = 0;
     private long m_commits = 0;
     private long m_rollbacks = 0;
+    private final LatencyHistogram m_prepare_latency = new LatencyHistogram();
+    private final LatencyHistogram m_commit_latency = new LatencyHistogram();
     final static Object NULL = new Object();
     protected TransactionManager txManager = null;
     protected TransactionTable txTable = null;
@@ -142,10 +145,14 @@ public class TxInterceptor extends OptimisticInterceptor implements TxIntercepto
                    case MethodDeclarations.prepareMethod_id:
                       if (ctx.getGlobalTransaction().isRemote())
                       {
+                          long start = System.nanoTime();
                           result = handleRemotePrepare(m, ctx.getGlobalTransaction());
                           scrubTxsOnExit = true;
                           if (cache.getUseInterceptorMbeans()&& statsEnabled)
+                          {
                               m_prepares++;
+                              m_prepare_latency.record(System.nanoTime() - start);
+                          }
                       }
                       else
                       {
@@ -157,8 +164,11 @@ public class TxInterceptor extends OptimisticInterceptor implements TxIntercepto
                    case MethodDeclarations.rollbackMethod_id:
                       if (ctx.getGlobalTransaction().isRemote())
                       {
+                          long start = System.nanoTime();
                           result = handleRemoteCommitRollback(m, ctx.getGlobalTransaction());
                           scrubTxsOnExit = true;
+                          if (m.getMethodId() == MethodDeclarations.commitMethod_id && cache.getUseInterceptorMbeans()&& statsEnabled)
+                              m_commit_latency.record(System.nanoTime() - start);
                       }
                       else
                       {
@@ -233,11 +243,31 @@ public class TxInterceptor extends OptimisticInterceptor implements TxIntercepto
         return m_rollbacks;
     }
 
+    /**
+     * Returns the time taken by local and remote prepares, reported by the
+     * {@link CacheMgmtInterceptor}.
+     */
+    public LatencyHistogram getPrepareLatency()
+    {
+        return m_prepare_latency;
+    }
+
+    /**
+     * Returns the time taken by local and remote commits, including one phase commits,
+     * reported by the {@link CacheMgmtInterceptor}.
+     */
+    public LatencyHistogram getCommitLatency()
+    {
+        return m_commit_latency;
+    }
+
     public void resetStatistics()
     {
         m_prepares = 0;
         m_commits = 0;
         m_rollbacks = 0;
+        m_prepare_latency.reset();
+        m_commit_latency.reset();
     }
 
     public Map dumpStatistics()
@@ -772,7 +802,10 @@ public class TxInterceptor extends OptimisticInterceptor implements TxIntercepto
             }
 
             if (log.isTraceEnabled()) {log.trace(" running commit for " + gtx);}
+            long start = System.nanoTime();
             handleCommitRollback(commitMethod);
+            if (cache.getUseInterceptorMbeans()&& statsEnabled)
+                m_commit_latency.record(System.nanoTime() - start);
         }
         catch (Throwable e)
         {
@@ -884,7 +917,10 @@ public class TxInterceptor extends OptimisticInterceptor implements TxIntercepto
         //if ltx is not null and it is already running
         if (txManager.getTransaction() != null && ltx != null && txManager.getTransaction().equals(ltx))
         {
+            long start = System.nanoTime();
             result = super.invoke(prepareMethod);
+            if (cache.getUseInterceptorMbeans()&& statsEnabled)
+                m_prepare_latency.record(System.nanoTime() - start);
         }
         else
         {
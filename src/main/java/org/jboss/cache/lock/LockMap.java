@@ -6,21 +6,19 @@
  */
 package org.jboss.cache.lock;
 
-import EDU.oswego.cs.dl.util.concurrent.CopyOnWriteArraySet;
-
-// See IdentityLockPerfTest --
-// oswego read/write acquire/release locks/sec: 2000000, 2840909
-// Java   read/write acquire/release locks/sec: 2173913, 3048780
-// about 7% improvement on single proc
-// import java.util.concurrent.CopyOnWriteArraySet;
-
 import java.util.Collections;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
  * Provide lock ownership mapping.
+ * <p/>
+ * Reader owners are kept in a set of stripes, each a small open addressing hash
+ * table guarded by its own monitor.  An owner always maps to the same stripe, so
+ * adding, removing and checking a reader is O(1), only contends with readers hashing
+ * to the same stripe and does not allocate unless a stripe has to grow.  The stripes
+ * are only created when the first reader is added, as most locks never see one.
+ * A set of all readers is only built on demand, see {@link #readerOwners()}.
  *
  * @author Ben Wang
  * @version $Id: LockMap.java 1519 2006-04-08 05:24:39Z genman $
@@ -31,13 +29,25 @@ public class LockMap
    public static final int OWNER_READ = 1;
    public static final int OWNER_WRITE = 2;
 
+   /**
+    * Number of reader stripes; the number of processors rounded up to a power of two, at most 16.
+    */
+   private static final int STRIPES;
+
+   static
+   {
+      int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+      int stripes = 1;
+      while (stripes < cpus) stripes <<= 1;
+      STRIPES = stripes;
+   }
+
    private Object writeOwner_=null;
 
    /**
-    * Set of owners.  As this set is small (not like 100+) this structure is
-    * sufficient.
+    * Reader owners, created on the first call to {@link #addReader(Object)}.
     */
-   private final Set readOwnerList_ = new CopyOnWriteArraySet();
+   private volatile ReaderStripe[] readers_ = null;
 
    public LockMap()
    {
@@ -51,7 +61,7 @@ public class LockMap
     * @param ownership Either <code>OWNER_ANY</code>, <code>OWNER_READ</code>,
     *                  or <code>OWNER_WRITE</code>.
     * @return
-    * 
+    *
     * @throws NullPointerException if <code>caller</code> is <code>null</code>.
     */
    public boolean isOwner(Object caller, int ownership)
@@ -62,9 +72,9 @@ public class LockMap
 
       switch (ownership) {
          case OWNER_ANY:
-            return (writeOwner_ != null && caller.equals(writeOwner_) || readOwnerList_.contains(caller));
+            return (writeOwner_ != null && caller.equals(writeOwner_) || isReader(caller));
          case OWNER_READ:
-            return (readOwnerList_.contains(caller));
+            return (isReader(caller));
          case OWNER_WRITE:
             return (writeOwner_ != null && caller.equals(writeOwner_));
          default:
@@ -72,6 +82,11 @@ public class LockMap
    }
    }
 
+   private boolean isReader(Object owner)
+   {
+      ReaderStripe[] readers = readers_;
+      return readers != null && stripeFor(readers, owner).contains(owner);
+   }
 
 
    /**
@@ -81,7 +96,39 @@ public class LockMap
     */
    public void addReader(Object owner)
    {
-      readOwnerList_.add(owner);
+      ReaderStripe[] readers = readers_;
+      if (readers == null)
+         readers = initReaders();
+      stripeFor(readers, owner).add(owner);
+   }
+
+   private synchronized ReaderStripe[] initReaders()
+   {
+      if (readers_ == null)
+      {
+         ReaderStripe[] readers = new ReaderStripe[STRIPES];
+         for (int i = 0; i < readers.length; i++) readers[i] = new ReaderStripe();
+         readers_ = readers;
+      }
+      return readers_;
+   }
+
+   private static ReaderStripe stripeFor(ReaderStripe[] readers, Object owner)
+   {
+      return readers[spread(owner.hashCode()) & (readers.length - 1)];
+   }
+
+   /**
+    * Spreads the owner's hash code so that both the stripe index (low bits) and the
+    * slot within the stripe (high bits) are well distributed.
+    */
+   static int spread(int h)
+   {
+      h += ~(h << 9);
+      h ^= (h >>> 14);
+      h += (h << 4);
+      h ^= (h >>> 10);
+      return h;
    }
 
    /**
@@ -116,7 +163,8 @@ public class LockMap
     */
    public boolean upgrade(Object owner) throws OwnerNotExistedException
    {
-      boolean old_value = readOwnerList_.remove(owner);
+      ReaderStripe[] readers = readers_;
+      boolean old_value = readers != null && stripeFor(readers, owner).remove(owner);
       if(!old_value) // didn't exist in the list
          throw new OwnerNotExistedException("Can't upgrade lock. Read lock owner did not exist");
       setWriter(owner);
@@ -124,16 +172,22 @@ public class LockMap
    }
 
    /**
-    * Returns an unmodifiable set of reader owner objects.
+    * Returns an unmodifiable set of reader owner objects.  The set is a copy
+    * taken when this method is called, and is meant for diagnostics.
     */
    public Set readerOwners()
    {
-      return Collections.unmodifiableSet(readOwnerList_);
+      ReaderStripe[] readers = readers_;
+      if (readers == null)
+         return Collections.EMPTY_SET;
+      Set owners = new HashSet();
+      for (int i = 0; i < readers.length; i++) readers[i].addTo(owners);
+      return Collections.unmodifiableSet(owners);
    }
 
    public void releaseReaderOwners(LockStrategy lock)
    {
-      int size = readOwnerList_.size();
+      int size = readerCount();
       for (int i = 0; i < size; i++)
          lock.readLock().release();
    }
@@ -151,7 +205,9 @@ public class LockMap
     */
    public void removeReader(Object owner)
    {
-      readOwnerList_.remove(owner);
+      ReaderStripe[] readers = readers_;
+      if (readers != null)
+         stripeFor(readers, owner).remove(owner);
    }
 
    /**
@@ -170,7 +226,11 @@ public class LockMap
    public void removeAll()
    {
       removeWriter();
-      readOwnerList_.clear();
+      ReaderStripe[] readers = readers_;
+      if (readers != null)
+      {
+         for (int i = 0; i < readers.length; i++) readers[i].clear();
+      }
    }
 
    /**
@@ -181,12 +241,118 @@ public class LockMap
    public String printInfo()
    {
       StringBuffer buf = new StringBuffer(64);
-      buf.append("Read lock owners: ").append(readOwnerList_).append('\n');
+      buf.append("Read lock owners: ").append(readerOwners()).append('\n');
       buf.append("Write lock owner: ").append(writeOwner_).append('\n');
       return buf.toString();
    }
 
    public boolean isReadLocked() {
-      return !readOwnerList_.isEmpty();
+      return readerCount() > 0;
+   }
+
+   private int readerCount()
+   {
+      ReaderStripe[] readers = readers_;
+      if (readers == null)
+         return 0;
+      int count = 0;
+      for (int i = 0; i < readers.length; i++) count += readers[i].size;
+      return count;
+   }
+
+   /**
+    * An open addressing hash set with linear probing.  Removal shifts the following
+    * entries back, so no tombstones are needed.
+    */
+   private static final class ReaderStripe
+   {
+      private Object[] owners = new Object[4];
+
+      /**
+       * Written holding the stripe's monitor, read without it by {@link LockMap#readerCount()}.
+       */
+      volatile int size;
+
+      synchronized boolean contains(Object owner)
+      {
+         return owners[indexOf(owners, owner)] != null;
+      }
+
+      synchronized void add(Object owner)
+      {
+         int i = indexOf(owners, owner);
+         if (owners[i] != null)
+            return;
+         owners[i] = owner;
+         size++;
+         // keep the table at most half full, so that probe sequences stay short
+         if (size << 1 > owners.length)
+            resize();
+      }
+
+      synchronized boolean remove(Object owner)
+      {
+         Object[] tab = owners;
+         int i = indexOf(tab, owner);
+         if (tab[i] == null)
+            return false;
+         tab[i] = null;
+         size--;
+         // shift back entries of the probe sequence that would no longer be found
+         int mask = tab.length - 1;
+         for (int j = (i + 1) & mask; tab[j] != null; j = (j + 1) & mask)
+         {
+            int home = slot(tab[j], mask);
+            if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j)))
+            {
+               tab[i] = tab[j];
+               tab[j] = null;
+               i = j;
+            }
+         }
+         return true;
+      }
+
+      synchronized void clear()
+      {
+         for (int i = 0; i < owners.length; i++) owners[i] = null;
+         size = 0;
+      }
+
+      synchronized void addTo(Set set)
+      {
+         for (int i = 0; i < owners.length; i++)
+         {
+            if (owners[i] != null) set.add(owners[i]);
+         }
+      }
+
+      private void resize()
+      {
+         Object[] old = owners;
+         Object[] tab = new Object[old.length << 1];
+         for (int i = 0; i < old.length; i++)
+         {
+            if (old[i] != null) tab[indexOf(tab, old[i])] = old[i];
+         }
+         owners = tab;
+      }
+
+      /**
+       * Returns the slot holding <code>owner</code>, or the empty slot where it would go.
+       */
+      private static int indexOf(Object[] tab, Object owner)
+      {
+         int mask = tab.length - 1;
+         int i = slot(owner, mask);
+         while (tab[i] != null && !owner.equals(tab[i]))
+            i = (i + 1) & mask;
+         return i;
+      }
+
+      private static int slot(Object owner, int mask)
+      {
+         return (spread(owner.hashCode()) >>> 16) & mask;
+      }
    }
 }
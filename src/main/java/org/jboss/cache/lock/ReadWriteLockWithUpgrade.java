@@ -53,11 +53,11 @@ import EDU.oswego.cs.dl.util.concurrent.Sync;
 */
 public class ReadWriteLockWithUpgrade implements ReadWriteLock
 {
-   private long                  activeReaders_ = 0;
+   private int                   activeReaders_ = 0;
    protected Thread              activeWriter_ = null;
-   private long                  waitingReaders_ = 0;
-   private long                  waitingWriters_ = 0;
-   private long                  waitingUpgrader_ = 0;
+   private int                   waitingReaders_ = 0;
+   private int                   waitingWriters_ = 0;
+   private int                   waitingUpgrader_ = 0;
    // Store a default object to signal that we are upgrade thread.
    //protected final ThreadLocal   upgraderLocal_ = new ThreadLocal();
    protected static final Map upgraderLocal_ = new ThreadLocalMap();
@@ -0,0 +1,151 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.marshall;
+
+import org.jboss.cache.util.LZ4Codec;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses marshalled calls and state transfers of at least a threshold size with the
+ * {@link LZ4Codec}.  A compressed buffer starts with {@link #COMPRESSED_MAGIC}, which no
+ * uncompressed buffer starts with, followed by the uncompressed length as an int and the
+ * LZ4 block; buffers which do not get smaller are sent as they are.  Compressed buffers are
+ * always read, so compression can be enabled member by member once every member runs a
+ * version which reads them.
+ * <p/>
+ * The time spent compressing and decompressing is recorded next to the bytes saved, see
+ * {@link #dumpStatistics()}, so that the threshold can be chosen per cache.
+ *
+ * @version $Id$
+ */
+public class Compressor
+{
+   /**
+    * First byte of a compressed buffer; object streams start with 0xAC or 'j', direct
+    * buffers with {@link VersionAwareMarshaller#DIRECT_STREAM_MAGIC} or the byte after it.
+    */
+   public static final byte COMPRESSED_MAGIC = (byte) 0xDE;
+
+   private static final int HEADER_LENGTH = 5;
+
+   private volatile int threshold;
+
+   private final AtomicLong compressed = new AtomicLong();
+   private final AtomicLong uncompressible = new AtomicLong();
+   private final AtomicLong bytesIn = new AtomicLong();
+   private final AtomicLong bytesOut = new AtomicLong();
+   private final AtomicLong compressNanos = new AtomicLong();
+   private final AtomicLong decompressed = new AtomicLong();
+   private final AtomicLong decompressNanos = new AtomicLong();
+
+   /**
+    * Returns the size from which buffers are compressed; 0 if compression is disabled.
+    */
+   public int getThreshold()
+   {
+      return threshold;
+   }
+
+   /**
+    * Sets the size from which buffers are compressed; 0 or less disables compression.
+    */
+   public void setThreshold(int threshold)
+   {
+      this.threshold = Math.max(threshold, 0);
+   }
+
+   /**
+    * Returns true if the buffer was written by {@link #compress(byte[])}.
+    */
+   public static boolean isCompressed(byte[] buf)
+   {
+      return buf != null && buf.length >= HEADER_LENGTH && buf[0] == COMPRESSED_MAGIC;
+   }
+
+   /**
+    * Returns the buffer compressed if compression is enabled, it is at least as large as the
+    * threshold and it gets smaller, otherwise the buffer itself.
+    */
+   public byte[] compress(byte[] buf)
+   {
+      int t = threshold;
+      if (t == 0 || buf == null || buf.length < t) return buf;
+
+      long start = System.nanoTime();
+      byte[] block = new byte[HEADER_LENGTH + LZ4Codec.maxCompressedLength(buf.length)];
+      int length = HEADER_LENGTH + LZ4Codec.compress(buf, 0, buf.length, block, HEADER_LENGTH);
+      byte[] retval;
+      if (length < buf.length)
+      {
+         block[0] = COMPRESSED_MAGIC;
+         block[1] = (byte) (buf.length >>> 24);
+         block[2] = (byte) (buf.length >>> 16);
+         block[3] = (byte) (buf.length >>> 8);
+         block[4] = (byte) buf.length;
+         retval = new byte[length];
+         System.arraycopy(block, 0, retval, 0, length);
+         compressed.incrementAndGet();
+      }
+      else
+      {
+         retval = buf;
+         uncompressible.incrementAndGet();
+      }
+      compressNanos.addAndGet(System.nanoTime() - start);
+      bytesIn.addAndGet(buf.length);
+      bytesOut.addAndGet(retval.length);
+      return retval;
+   }
+
+   /**
+    * Returns the original of a buffer written by {@link #compress(byte[])}.
+    */
+   public byte[] decompress(byte[] buf) throws IOException
+   {
+      if (!isCompressed(buf)) throw new IOException("Not a compressed buffer");
+      long start = System.nanoTime();
+      int length = ((buf[1] & 0xFF) << 24) | ((buf[2] & 0xFF) << 16) | ((buf[3] & 0xFF) << 8) | (buf[4] & 0xFF);
+      if (length < 0) throw new IOException("Invalid uncompressed length " + length);
+      byte[] retval = new byte[length];
+      LZ4Codec.decompress(buf, HEADER_LENGTH, buf.length - HEADER_LENGTH, retval, 0, length);
+      decompressed.incrementAndGet();
+      decompressNanos.addAndGet(System.nanoTime() - start);
+      return retval;
+   }
+
+   public Map dumpStatistics()
+   {
+      Map retval = new HashMap();
+      long in = bytesIn.get(), out = bytesOut.get(), nanos = compressNanos.get();
+      retval.put("Threshold", new Integer(threshold));
+      retval.put("CompressedBuffers", new Long(compressed.get()));
+      retval.put("UncompressibleBuffers", new Long(uncompressible.get()));
+      retval.put("BytesBeforeCompression", new Long(in));
+      retval.put("BytesAfterCompression", new Long(out));
+      retval.put("CompressionRatio", new Double(in == 0 ? 1.0 : (double) out / in));
+      retval.put("CompressionMillis", new Double(nanos / 1000000.0));
+      retval.put("BytesSavedPerCompressionMilli", new Double(nanos == 0 ? 0.0 : (in - out) * 1000000.0 / nanos));
+      retval.put("DecompressedBuffers", new Long(decompressed.get()));
+      retval.put("DecompressionMillis", new Double(decompressNanos.get() / 1000000.0));
+      return retval;
+   }
+
+   public void resetStatistics()
+   {
+      compressed.set(0);
+      uncompressible.set(0);
+      bytesIn.set(0);
+      bytesOut.set(0);
+      compressNanos.set(0);
+      decompressed.set(0);
+      decompressNanos.set(0);
+   }
+}
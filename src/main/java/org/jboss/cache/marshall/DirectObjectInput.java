@@ -0,0 +1,270 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.marshall;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads what a {@link DirectObjectOutput} wrote, straight from the byte array.  Besides
+ * the <code>ObjectInput</code> methods it lets the {@link TreeCacheMarshaller140} read
+ * from an earlier position, to decode a reference again.  Objects read by
+ * {@link #readObject()} are kept, so that decoding one again returns the same instance.
+ *
+ * @version $Id$
+ */
+class DirectObjectInput extends ObjectInputStream
+{
+   private final byte[] buf;
+
+   private final int end;
+
+   private int pos;
+
+   private final int objectsStart;
+
+   private final int objectsEnd;
+
+   private ObjectInputStream objectStream;
+
+   private List objects;
+
+   /**
+    * @param withObjects true if the bytes end with an object stream, see
+    *                    {@link DirectObjectOutput#finishObjects()}
+    */
+   DirectObjectInput(byte[] buf, int offset, int length, boolean withObjects) throws IOException
+   {
+      super();
+      this.buf = buf;
+      this.pos = offset;
+      if (withObjects)
+      {
+         objectsEnd = offset + length - 4;
+         if (objectsEnd < offset) throw new EOFException();
+         objectsStart = ((buf[objectsEnd] & 0xFF) << 24) | ((buf[objectsEnd + 1] & 0xFF) << 16) | ((buf[objectsEnd + 2] & 0xFF) << 8) | (buf[objectsEnd + 3] & 0xFF);
+         if (objectsStart < offset || objectsStart > objectsEnd) throw new IOException("Invalid object stream position " + objectsStart);
+         end = objectsStart;
+      }
+      else
+      {
+         objectsStart = objectsEnd = offset + length;
+         end = objectsEnd;
+      }
+   }
+
+   /**
+    * Returns the position of the next byte, relative to the start of the buffer.
+    */
+   int position()
+   {
+      return pos;
+   }
+
+   /**
+    * Continues reading at the given position, relative to the start of the buffer.
+    */
+   void seek(int position)
+   {
+      pos = position;
+   }
+
+   /**
+    * Reads an int written by {@link DirectObjectOutput#writeVarInt(int)}.
+    */
+   int readVarInt() throws IOException
+   {
+      int v = 0;
+      for (int shift = 0; shift < 32; shift += 7)
+      {
+         int b = readUnsignedByte();
+         v |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) return v;
+      }
+      throw new IOException("malformed variable length int");
+   }
+
+   /**
+    * Reads a long written by {@link DirectObjectOutput#writeVarLong(long)}.
+    */
+   long readVarLong() throws IOException
+   {
+      long v = 0;
+      for (int shift = 0; shift < 64; shift += 7)
+      {
+         int b = readUnsignedByte();
+         v |= (long) (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) return v;
+      }
+      throw new IOException("malformed variable length long");
+   }
+
+   // -------- ObjectInput
+
+   /**
+    * Returns the object with the index read from the object stream, which is created with
+    * the {@link ObjectSerializationFactory} on first use.
+    */
+   protected Object readObjectOverride() throws IOException, ClassNotFoundException
+   {
+      int index = readVarInt();
+      if (objects == null)
+      {
+         if (objectsEnd == objectsStart) throw new IOException("No object stream to read object " + index + " from");
+         byte[] bytes = new byte[objectsEnd - objectsStart];
+         System.arraycopy(buf, objectsStart, bytes, 0, bytes.length);
+         objectStream = ObjectSerializationFactory.createObjectInputStream(bytes);
+         objects = new ArrayList();
+      }
+      while (objects.size() <= index) objects.add(objectStream.readObject());
+      return objects.get(index);
+   }
+
+   public int read()
+   {
+      return pos < end ? buf[pos++] & 0xFF : -1;
+   }
+
+   public int read(byte[] b, int off, int len)
+   {
+      if (len == 0) return 0;
+      if (pos >= end) return -1;
+      int n = Math.min(len, end - pos);
+      System.arraycopy(buf, pos, b, off, n);
+      pos += n;
+      return n;
+   }
+
+   public int available()
+   {
+      return end - pos;
+   }
+
+   public long skip(long n)
+   {
+      int skipped = (int) Math.max(0, Math.min(n, end - pos));
+      pos += skipped;
+      return skipped;
+   }
+
+   public int skipBytes(int n)
+   {
+      return (int) skip(n);
+   }
+
+   public void readFully(byte[] b) throws IOException
+   {
+      readFully(b, 0, b.length);
+   }
+
+   public void readFully(byte[] b, int off, int len) throws IOException
+   {
+      require(len);
+      System.arraycopy(buf, pos, b, off, len);
+      pos += len;
+   }
+
+   public boolean readBoolean() throws IOException
+   {
+      return readByte() != 0;
+   }
+
+   public byte readByte() throws IOException
+   {
+      require(1);
+      return buf[pos++];
+   }
+
+   public int readUnsignedByte() throws IOException
+   {
+      require(1);
+      return buf[pos++] & 0xFF;
+   }
+
+   public short readShort() throws IOException
+   {
+      return (short) readUnsignedShort();
+   }
+
+   public int readUnsignedShort() throws IOException
+   {
+      require(2);
+      int v = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+      pos += 2;
+      return v;
+   }
+
+   public char readChar() throws IOException
+   {
+      return (char) readUnsignedShort();
+   }
+
+   public int readInt() throws IOException
+   {
+      require(4);
+      int v = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+      pos += 4;
+      return v;
+   }
+
+   public long readLong() throws IOException
+   {
+      return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+   }
+
+   public float readFloat() throws IOException
+   {
+      return Float.intBitsToFloat(readInt());
+   }
+
+   public double readDouble() throws IOException
+   {
+      return Double.longBitsToDouble(readLong());
+   }
+
+   /**
+    * Reads a String written by {@link DirectObjectOutput#writeUTF(String)}, widening the bytes
+    * straight into the chars of the String if they are all ASCII.
+    */
+   public String readUTF() throws IOException
+   {
+      int start = pos;
+      int length = readUnsignedShort();
+      require(length);
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++)
+      {
+         byte b = buf[pos + i];
+         if (b <= 0)
+         {
+            pos = start;
+            return DataInputStream.readUTF(this);
+         }
+         chars[i] = (char) b;
+      }
+      pos += length;
+      return new String(chars);
+   }
+
+   public String readLine() throws IOException
+   {
+      throw new IOException("readLine is not supported");
+   }
+
+   public void close()
+   {
+   }
+
+   private void require(int n) throws EOFException
+   {
+      if (n < 0 || pos + n > end) throw new EOFException();
+   }
+}
@@ -0,0 +1,424 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.marshall;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.GlobalTransaction;
+import org.jgroups.stack.IpAddress;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+
+/**
+ * An object output writing straight into a growable byte array, for the
+ * {@link TreeCacheMarshaller140}.  Unlike an <code>ObjectOutputStream</code> it writes no
+ * stream header and no block data headers, so a call made up of the types the marshaller
+ * has magic numbers for costs only the bytes of the values.  Other objects are written by
+ * {@link #writeObject(Object)} to an object stream, created on first use, whose bytes
+ * {@link #finishObjects()} appends after the call; the call itself only holds the index of
+ * the object in that stream.
+ * <p/>
+ * Instances are meant to be reused by one thread at a time, see {@link #reset(int)}; the
+ * buffer and the reference table then survive from one call to the next.
+ * <p/>
+ * The reference table maps the Strings, {@link Fqn}s, {@link GlobalTransaction}s and
+ * addresses written so far to their position in the buffer; a repeated one is written as
+ * a reference to that position, which {@link DirectObjectInput} decodes again.  A second
+ * table maps the parents of the Fqns written to the position of one of them, so that a
+ * sibling is written as that position and its last element.  Both are allocated on first
+ * use and cleared on reset.
+ *
+ * @version $Id$
+ */
+class DirectObjectOutput extends ObjectOutputStream
+{
+   private static final int INITIAL_SIZE = 512;
+
+   private static final int INITIAL_REFERENCES = 32;
+
+   private byte[] buf;
+
+   private int count;
+
+   private PositionTable refs;
+
+   private PositionTable prefixes;
+
+   private DirectObjectOutput objectBuffer;
+
+   private ObjectOutputStream objectStream;
+
+   private int numObjects;
+
+   DirectObjectOutput() throws IOException
+   {
+      this(INITIAL_SIZE);
+   }
+
+   DirectObjectOutput(int size) throws IOException
+   {
+      super();
+      buf = new byte[size];
+   }
+
+   /**
+    * Discards the bytes written and the reference table, keeping the buffer for the next
+    * call if it is no larger than <code>maxRetained</code>.
+    */
+   void reset(int maxRetained)
+   {
+      count = 0;
+      if (buf.length > maxRetained) buf = new byte[INITIAL_SIZE];
+      if (refs != null) refs.clear();
+      if (prefixes != null) prefixes.clear();
+      if (objectBuffer != null) objectBuffer.reset(maxRetained);
+      objectStream = null;
+      numObjects = 0;
+   }
+
+   /**
+    * Appends the object stream written by {@link #writeObject(Object)}, if any, followed by
+    * its position as an int.
+    *
+    * @return true if anything was appended
+    */
+   boolean finishObjects() throws IOException
+   {
+      if (objectStream == null) return false;
+      objectStream.flush();
+      int start = count;
+      write(objectBuffer.buf, 0, objectBuffer.count);
+      writeInt(start);
+      return true;
+   }
+
+   /**
+    * Overwrites the byte at the given position.
+    */
+   void setByte(int position, int b)
+   {
+      buf[position] = (byte) b;
+   }
+
+   /**
+    * Returns the number of bytes written.
+    */
+   int size()
+   {
+      return count;
+   }
+
+   /**
+    * Returns a copy of the bytes written.
+    */
+   byte[] toByteArray()
+   {
+      byte[] copy = new byte[count];
+      System.arraycopy(buf, 0, copy, 0, count);
+      return copy;
+   }
+
+   // -------- references
+
+   /**
+    * Returns true if <code>o</code> is a type which is written as a reference when it
+    * repeats.
+    */
+   static boolean isReferenceable(Object o)
+   {
+      return o instanceof String || o instanceof Fqn || o instanceof GlobalTransaction || o instanceof IpAddress;
+   }
+
+   /**
+    * If an object equal to <code>o</code> was remembered, writes <code>refMagic</code> and
+    * its position and returns true.
+    */
+   boolean writeReference(Object o, int refMagic) throws IOException
+   {
+      if (refs == null || !isReferenceable(o)) return false;
+      int position = refs.get(o);
+      if (position < 0) return false;
+      writeByte(refMagic);
+      writeVarInt(position);
+      return true;
+   }
+
+   /**
+    * Remembers that <code>o</code> is about to be written at the current position.
+    */
+   void rememberReference(Object o)
+   {
+      if (refs == null) refs = new PositionTable();
+      refs.put(o, count);
+   }
+
+   /**
+    * Returns the position of an Fqn written earlier whose parent is <code>prefix</code>, or -1.
+    */
+   int findPrefix(Fqn prefix)
+   {
+      return prefixes == null ? -1 : prefixes.get(prefix);
+   }
+
+   /**
+    * Remembers that the Fqn at <code>position</code> has the parent <code>prefix</code>,
+    * unless one such Fqn is known already.
+    */
+   void rememberPrefix(Fqn prefix, int position)
+   {
+      if (prefixes == null) prefixes = new PositionTable();
+      if (prefixes.get(prefix) < 0) prefixes.put(prefix, position);
+   }
+
+   /**
+    * Maps objects to positions in the buffer; an open addressing table, grown to stay at
+    * most half full.
+    */
+   private static class PositionTable
+   {
+      private Object[] keys = new Object[INITIAL_REFERENCES];
+
+      private int[] positions = new int[INITIAL_REFERENCES];
+
+      private int size;
+
+      int get(Object o)
+      {
+         if (size == 0) return -1;
+         int mask = keys.length - 1;
+         for (int i = o.hashCode() & mask; keys[i] != null; i = (i + 1) & mask)
+         {
+            // IpAddress.equals fails on other types
+            if (keys[i].getClass() == o.getClass() && keys[i].equals(o)) return positions[i];
+         }
+         return -1;
+      }
+
+      void put(Object o, int position)
+      {
+         if ((size + 1) * 2 > keys.length)
+         {
+            Object[] oldKeys = keys;
+            int[] oldPositions = positions;
+            keys = new Object[oldKeys.length * 2];
+            positions = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+               if (oldKeys[i] != null) insert(oldKeys[i], oldPositions[i]);
+            }
+         }
+         insert(o, position);
+         size++;
+      }
+
+      void clear()
+      {
+         if (size > 0)
+         {
+            Arrays.fill(keys, null);
+            size = 0;
+         }
+      }
+
+      private void insert(Object o, int position)
+      {
+         int mask = keys.length - 1;
+         int i = o.hashCode() & mask;
+         while (keys[i] != null) i = (i + 1) & mask;
+         keys[i] = o;
+         positions[i] = position;
+      }
+   }
+
+   /**
+    * Writes a non negative int in 1 to 5 bytes, 7 bits at a time.
+    */
+   void writeVarInt(int v) throws IOException
+   {
+      ensureCapacity(5);
+      while ((v & ~0x7F) != 0)
+      {
+         buf[count++] = (byte) ((v & 0x7F) | 0x80);
+         v >>>= 7;
+      }
+      buf[count++] = (byte) v;
+   }
+
+   /**
+    * Writes a non negative long in 1 to 10 bytes, 7 bits at a time.
+    */
+   void writeVarLong(long v)
+   {
+      ensureCapacity(10);
+      while ((v & ~0x7FL) != 0)
+      {
+         buf[count++] = (byte) ((v & 0x7F) | 0x80);
+         v >>>= 7;
+      }
+      buf[count++] = (byte) v;
+   }
+
+   // -------- ObjectOutput
+
+   /**
+    * Writes the object to the object stream, created with the
+    * {@link ObjectSerializationFactory} on first use, and its index in that stream here.
+    * Objects written to the same stream share class descriptors.
+    */
+   protected void writeObjectOverride(Object obj) throws IOException
+   {
+      if (objectStream == null)
+      {
+         if (objectBuffer == null) objectBuffer = new DirectObjectOutput();
+         objectStream = ObjectSerializationFactory.createObjectOutputStream(objectBuffer);
+      }
+      objectStream.writeObject(obj);
+      writeVarInt(numObjects++);
+   }
+
+   public void writeUnshared(Object obj) throws IOException
+   {
+      writeObjectOverride(obj);
+   }
+
+   public void write(int b)
+   {
+      ensureCapacity(1);
+      buf[count++] = (byte) b;
+   }
+
+   public void write(byte[] b)
+   {
+      write(b, 0, b.length);
+   }
+
+   public void write(byte[] b, int off, int len)
+   {
+      ensureCapacity(len);
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+   }
+
+   public void writeBoolean(boolean v)
+   {
+      write(v ? 1 : 0);
+   }
+
+   public void writeByte(int v)
+   {
+      write(v);
+   }
+
+   public void writeShort(int v)
+   {
+      ensureCapacity(2);
+      buf[count++] = (byte) (v >>> 8);
+      buf[count++] = (byte) v;
+   }
+
+   public void writeChar(int v)
+   {
+      writeShort(v);
+   }
+
+   public void writeInt(int v)
+   {
+      ensureCapacity(4);
+      buf[count++] = (byte) (v >>> 24);
+      buf[count++] = (byte) (v >>> 16);
+      buf[count++] = (byte) (v >>> 8);
+      buf[count++] = (byte) v;
+   }
+
+   public void writeLong(long v)
+   {
+      writeInt((int) (v >>> 32));
+      writeInt((int) v);
+   }
+
+   public void writeFloat(float v)
+   {
+      writeInt(Float.floatToIntBits(v));
+   }
+
+   public void writeDouble(double v)
+   {
+      writeLong(Double.doubleToLongBits(v));
+   }
+
+   public void writeBytes(String s)
+   {
+      int len = s.length();
+      ensureCapacity(len);
+      for (int i = 0; i < len; i++) buf[count++] = (byte) s.charAt(i);
+   }
+
+   public void writeChars(String s)
+   {
+      int len = s.length();
+      for (int i = 0; i < len; i++) writeChar(s.charAt(i));
+   }
+
+   /**
+    * Writes the String in modified UTF-8 with an unsigned short length, as
+    * {@link java.io.DataOutput#writeUTF} does.
+    */
+   public void writeUTF(String s) throws IOException
+   {
+      int len = s.length();
+      int utfLength = len;
+      for (int i = 0; i < len; i++)
+      {
+         char c = s.charAt(i);
+         if (c >= 0x80 || c == 0) utfLength += c >= 0x800 ? 2 : 1;
+      }
+      if (utfLength > 0xFFFF) throw new UTFDataFormatException("encoded string too long: " + utfLength + " bytes");
+
+      ensureCapacity(utfLength + 2);
+      buf[count++] = (byte) (utfLength >>> 8);
+      buf[count++] = (byte) utfLength;
+      for (int i = 0; i < len; i++)
+      {
+         char c = s.charAt(i);
+         if (c > 0 && c < 0x80)
+         {
+            buf[count++] = (byte) c;
+         }
+         else if (c >= 0x800)
+         {
+            buf[count++] = (byte) (0xE0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[count++] = (byte) (0x80 | (c & 0x3F));
+         }
+         else
+         {
+            buf[count++] = (byte) (0xC0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3F));
+         }
+      }
+   }
+
+   public void flush()
+   {
+   }
+
+   public void close()
+   {
+   }
+
+   private void ensureCapacity(int n)
+   {
+      if (count + n > buf.length)
+      {
+         byte[] larger = new byte[Math.max(buf.length << 1, count + n)];
+         System.arraycopy(buf, 0, larger, 0, count);
+         buf = larger;
+      }
+   }
+}
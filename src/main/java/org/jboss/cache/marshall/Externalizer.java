@@ -0,0 +1,35 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.marshall;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Writes and reads instances of an application class in a compact form of its own, in place
+ * of object serialization.  Register one with an id through
+ * {@link org.jboss.cache.TreeCache#registerExternalizer(int, Class, Externalizer)}; the
+ * {@link TreeCacheMarshaller140} then writes the id followed by whatever
+ * {@link #writeObject(ObjectOutput, Object)} writes.
+ * <p/>
+ * Implementations must be thread safe, and must read exactly what they wrote.
+ *
+ * @version $Id$
+ */
+public interface Externalizer
+{
+   /**
+    * Writes <code>o</code>, an instance of the class this externalizer is registered for.
+    */
+   void writeObject(ObjectOutput out, Object o) throws IOException;
+
+   /**
+    * Reads an object written by {@link #writeObject(ObjectOutput, Object)}.
+    */
+   Object readObject(ObjectInput in) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,221 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.marshall;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jgroups.Address;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * The {@link Externalizer}s registered with a cache, by id and by class.
+ * <p/>
+ * An externalizer is only used to write values once every other member of the cluster has
+ * registered one with the same id; until then, and for members which do not answer, such as
+ * members running an older version, values are written with object serialization as before.
+ * Each member's ids are recorded with {@link #setMemberIds(Address, List)}, and the ids which
+ * can be used are worked out again on every view change and registration.  Externalized
+ * values are read whatever the view.
+ *
+ * @version $Id$
+ */
+public class ExternalizerRegistry
+{
+   private static Log log = LogFactory.getLog(ExternalizerRegistry.class);
+
+   /**
+    * Highest id an externalizer can be registered with; ids are written as shorts.
+    */
+   public static final int MAX_ID = Short.MAX_VALUE;
+
+   /**
+    * Map<Class, Registration>
+    */
+   private final Map byClass = new ConcurrentHashMap();
+
+   /**
+    * Map<Integer, Registration>
+    */
+   private final Map byId = new ConcurrentHashMap();
+
+   /**
+    * Map<Address, BitSet> of the ids registered by other members
+    */
+   private final Map memberIds = new ConcurrentHashMap();
+
+   private List otherMembers = Collections.EMPTY_LIST;
+
+   /**
+    * Ids which every other member has registered; replaced, never modified.
+    */
+   private volatile BitSet usableIds = new BitSet();
+
+   static class Registration
+   {
+      final int id;
+      final Class type;
+      final Externalizer externalizer;
+
+      Registration(int id, Class type, Externalizer externalizer)
+      {
+         this.id = id;
+         this.type = type;
+         this.externalizer = externalizer;
+      }
+   }
+
+   /**
+    * Registers an externalizer for instances of exactly <code>type</code>; subclasses are not
+    * externalized.  Every member of the cluster must register the same id for the same class.
+    *
+    * @throws IllegalArgumentException if the id is out of range, or the id or the class is
+    *                                  registered already
+    */
+   public synchronized void register(int id, Class type, Externalizer externalizer)
+   {
+      if (id < 0 || id > MAX_ID)
+      {
+         throw new IllegalArgumentException("Externalizer id " + id + " is not between 0 and " + MAX_ID);
+      }
+      if (type == null || externalizer == null)
+      {
+         throw new IllegalArgumentException("Externalizer and type must not be null");
+      }
+      Integer key = new Integer(id);
+      if (byId.containsKey(key))
+      {
+         throw new IllegalArgumentException("An externalizer is already registered with id " + id);
+      }
+      if (byClass.containsKey(type))
+      {
+         throw new IllegalArgumentException("An externalizer is already registered for " + type);
+      }
+      Registration registration = new Registration(id, type, externalizer);
+      byId.put(key, registration);
+      byClass.put(type, registration);
+      if (log.isDebugEnabled()) log.debug("Registered externalizer " + externalizer + " for " + type + " with id " + id);
+      computeUsableIds();
+   }
+
+   /**
+    * Returns the ids registered with this cache, in ascending order.
+    */
+   public List getIds()
+   {
+      List ids = new ArrayList(byId.keySet());
+      Collections.sort(ids);
+      return ids;
+   }
+
+   /**
+    * Returns true if no externalizer is registered.
+    */
+   public boolean isEmpty()
+   {
+      return byId.isEmpty();
+   }
+
+   /**
+    * Returns the externalizer registered with <code>id</code>, or null.
+    */
+   public Externalizer getExternalizer(int id)
+   {
+      Registration registration = (Registration) byId.get(new Integer(id));
+      return registration == null ? null : registration.externalizer;
+   }
+
+   /**
+    * Returns the registration for the class of <code>o</code> if values of that class can be
+    * written with it in the current view, otherwise null.
+    */
+   Registration getWritable(Object o)
+   {
+      if (byClass.isEmpty()) return null;
+      Registration registration = (Registration) byClass.get(o.getClass());
+      return registration != null && usableIds.get(registration.id) ? registration : null;
+   }
+
+   /**
+    * Returns true if values can be written with the externalizer registered with
+    * <code>id</code> in the current view.
+    */
+   public boolean isUsable(int id)
+   {
+      return id >= 0 && id <= MAX_ID && usableIds.get(id);
+   }
+
+   /**
+    * Records the ids of the externalizers registered by a member.
+    *
+    * @param ids list of Integers
+    */
+   public synchronized void setMemberIds(Address member, List ids)
+   {
+      BitSet set = new BitSet();
+      for (Iterator i = ids.iterator(); i.hasNext();)
+      {
+         Object id = i.next();
+         if (id instanceof Integer) set.set(((Integer) id).intValue());
+      }
+      memberIds.put(member, set);
+      if (log.isDebugEnabled()) log.debug("Member " + member + " has externalizers " + ids);
+      computeUsableIds();
+   }
+
+   /**
+    * Returns true if the ids of <code>member</code> have been recorded.
+    */
+   public boolean hasMemberIds(Address member)
+   {
+      return memberIds.containsKey(member);
+   }
+
+   /**
+    * Forgets the ids of members which left, and works out the usable ids for the new view.
+    *
+    * @param members the members of the new view
+    * @param self    the local address, which is not taken into account
+    */
+   public synchronized void viewAccepted(Vector members, Address self)
+   {
+      List others = new ArrayList(members);
+      others.remove(self);
+      memberIds.keySet().retainAll(others);
+      otherMembers = others;
+      computeUsableIds();
+   }
+
+   private void computeUsableIds()
+   {
+      BitSet usable = new BitSet();
+      for (Iterator i = byId.keySet().iterator(); i.hasNext();)
+      {
+         usable.set(((Integer) i.next()).intValue());
+      }
+      for (Iterator i = otherMembers.iterator(); i.hasNext();)
+      {
+         BitSet ids = (BitSet) memberIds.get(i.next());
+         if (ids == null)
+         {
+            // not (yet) known to have any
+            usable.clear();
+            break;
+         }
+         usable.and(ids);
+      }
+      usableIds = usable;
+      if (log.isTraceEnabled()) log.trace("Usable externalizer ids are " + usable);
+   }
+}
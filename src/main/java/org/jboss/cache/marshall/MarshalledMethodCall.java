@@ -0,0 +1,36 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.marshall;
+
+/**
+ * A method call which has already been marshalled by the {@link VersionAwareMarshaller}.
+ * When the marshaller is asked to marshall it, it returns the stored bytes unchanged, so
+ * the call can be marshalled ahead of time, in another thread than the one sending it.
+ * The method, arguments and id of the original call are kept for logging.
+ *
+ * @version $Id$
+ */
+public class MarshalledMethodCall extends JBCMethodCall
+{
+   private static final long serialVersionUID = 3305211826853817146L;
+
+   private transient byte[] buffer;
+
+   public MarshalledMethodCall(JBCMethodCall call, byte[] buffer)
+   {
+      super(call.getMethod(), call.getArgs(), call.getMethodId());
+      this.buffer = buffer;
+   }
+
+   /**
+    * Returns the marshalled call.
+    */
+   public byte[] getBuffer()
+   {
+      return buffer;
+   }
+}
@@ -127,6 +127,7 @@ public abstract class Marshaller
             fqnStr = args[1].toString();
             break;
          case MethodDeclarations.remoteAnnounceBuddyPoolNameMethod_id:
+         case MethodDeclarations.getExternalizerIdsMethod_id:
          case MethodDeclarations.remoteAssignToBuddyGroupMethod_id:
          case MethodDeclarations.remoteRemoveFromBuddyGroupMethod_id:
             break;
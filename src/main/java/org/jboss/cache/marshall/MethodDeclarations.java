@@ -22,6 +22,7 @@ import org.jgroups.stack.IpAddress;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +49,11 @@ public class MethodDeclarations
     // and for reverse lookup
     private static Map methodIds = new HashMap();
 
+    // the Method constants below are the instances callers pass in, so most lookups hit this map
+    private static Map methodIdsByIdentity = new IdentityHashMap();
+
+    private static int maxMethodId = -1;
+
     public static final Method putDataMethodLocal;
 
     public static final Method putDataEraseMethodLocal;
@@ -132,6 +138,10 @@ public class MethodDeclarations
 
    public static final Method removeDataVersionedMethodLocal;
 
+   public static final Method bulkMethodLocal;
+
+   public static final Method getExternalizerIdsMethod;
+
 
 
     //not all of these are used for RPC - trim accordingly.
@@ -220,6 +230,12 @@ public class MethodDeclarations
 
    public static final int removeDataVersionedMethodLocal_id = 41;
 
+   // runs a list of get, put and remove calls through the interceptor chain at once
+   public static final int bulkMethodLocal_id = 42;
+
+   // asks a member for the ids of its externalizers, see ExternalizerRegistry
+   public static final int getExternalizerIdsMethod_id = 43;
+
 
     static
     {
@@ -318,6 +334,8 @@ public class MethodDeclarations
                     {GlobalTransaction.class, Fqn.class, Object.class, boolean.class, DataVersion.class});
             removeDataVersionedMethodLocal = TreeCache.class.getDeclaredMethod("_removeData", new Class[]
                     {GlobalTransaction.class, Fqn.class, boolean.class, DataVersion.class});
+            bulkMethodLocal = TreeCache.class.getDeclaredMethod("_bulk", new Class[]{List.class});
+            getExternalizerIdsMethod = TreeCache.class.getDeclaredMethod("_getExternalizerIds", new Class[]{});
         }
         catch (NoSuchMethodException ex)
         {
@@ -369,6 +387,8 @@ public class MethodDeclarations
        methods.put(new Integer(removeDataVersionedMethodLocal_id), removeDataVersionedMethodLocal);
        methods.put(new Integer(removeKeyVersionedMethodLocal_id), removeKeyVersionedMethodLocal);
        methods.put(new Integer(removeNodeVersionedMethodLocal_id), removeNodeVersionedMethodLocal);
+       methods.put(new Integer(bulkMethodLocal_id), bulkMethodLocal);
+       methods.put(new Integer(getExternalizerIdsMethod_id), getExternalizerIdsMethod);
 
         Iterator it = methods.keySet().iterator();
         while (it.hasNext())
@@ -376,6 +396,8 @@ public class MethodDeclarations
             Object id = it.next();
             Object method = methods.get(id);
             methodIds.put(method, id);
+            methodIdsByIdentity.put(method, id);
+            maxMethodId = Math.max(maxMethodId, ((Integer) id).intValue());
         }
 
         crud_method_ids.add(new Integer(putDataMethodLocal_id));
@@ -420,7 +442,11 @@ public class MethodDeclarations
 
     protected static int lookupMethodId(Method method)
     {
-        Integer methodIdInteger = (Integer) methodIds.get(method);
+        Integer methodIdInteger = (Integer) methodIdsByIdentity.get(method);
+        if (methodIdInteger == null)
+        {
+            methodIdInteger = (Integer) methodIds.get(method);
+        }
         int methodId = -1;
 
         if (methodIdInteger != null)
@@ -529,6 +555,14 @@ public class MethodDeclarations
       else throw new RuntimeException("Attempting to look up a versioned equivalent of a non-crud method");
    }
 
+   /**
+    * Returns the highest method id in use; ids start at 1.
+    */
+   public static int getMaxMethodId()
+   {
+      return maxMethodId;
+   }
+
    public static boolean isDataGravitationMethod(int methodId)
    {
       return methodId == MethodDeclarations.dataGravitationCleanupMethod_id || methodId == MethodDeclarations.dataGravitationMethod_id;
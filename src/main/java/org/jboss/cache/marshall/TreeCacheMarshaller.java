@@ -447,6 +447,7 @@ public class TreeCacheMarshaller implements RpcDispatcher.Marshaller {
             fqnStr = fqn1.toString();
             break;
          case MethodDeclarations.remoteAnnounceBuddyPoolNameMethod_id:
+         case MethodDeclarations.getExternalizerIdsMethod_id:
          case MethodDeclarations.remoteAssignToBuddyGroupMethod_id:
          case MethodDeclarations.remoteRemoveFromBuddyGroupMethod_id:
             break;
@@ -56,10 +56,13 @@ public class TreeCacheMarshaller140 extends Marshaller
     protected static final int MAGICNUMBER_TREE_MAP = 12;
     protected static final int MAGICNUMBER_HASH_SET = 13;
     protected static final int MAGICNUMBER_TREE_SET = 14;
+    protected static final int MAGICNUMBER_EXTERNALIZED = 15;
     protected static final int MAGICNUMBER_NULL = 99;
     protected static final int MAGICNUMBER_SERIALIZABLE = 100;
     protected static final int MAGICNUMBER_REF = 101;
 
+    private ExternalizerRegistry externalizers = new ExternalizerRegistry();
+
     public TreeCacheMarshaller140(RegionManager manager, boolean defaultInactive, boolean useRegionBasedMarshalling)
     {
         init(manager, defaultInactive, useRegionBasedMarshalling);
@@ -69,12 +72,21 @@ public class TreeCacheMarshaller140 extends Marshaller
         }
     }
 
+    /**
+     * Sets the externalizers used for application values, shared with the {@link VersionAwareMarshaller}.
+     */
+    void setExternalizerRegistry(ExternalizerRegistry externalizers)
+    {
+        this.externalizers = externalizers;
+    }
+
     // -------- Marshaller interface
 
     public void objectToStream(Object o, ObjectOutputStream out) throws Exception
     {
         if (log.isTraceEnabled()) log.trace("Marshalling object " + o);
-        Map refMap = new HashMap();
+        // a DirectObjectOutput keeps its own reference table
+        Map refMap = out instanceof DirectObjectOutput ? null : new HashMap();
 
         if (useRegionBasedMarshalling)
         {
@@ -108,7 +120,7 @@ public class TreeCacheMarshaller140 extends Marshaller
     public Object objectFromStream(ObjectInputStream in) throws Exception
     {
         Object retValue;
-        Map refMap = new HashMap();
+        Map refMap = in instanceof DirectObjectInput ? null : new HashMap();
 
         if (useRegionBasedMarshalling)
         {
@@ -207,10 +219,9 @@ public class TreeCacheMarshaller140 extends Marshaller
         {
             out.writeByte(MAGICNUMBER_NULL);
         }
-        else if (refMap.containsKey(o)) // see if this object has been marshalled before.
+        else if (marshallReference(o, out, refMap)) // see if this object has been marshalled before.
         {
-            out.writeByte(MAGICNUMBER_REF);
-            out.writeShort(((Integer) refMap.get(o)).intValue());
+            // written as a reference
         }
         else if (o instanceof JBCMethodCall)
         {
@@ -236,20 +247,22 @@ public class TreeCacheMarshaller140 extends Marshaller
         }
         else if (o instanceof Fqn)
         {
-            int refId = createReference(o, refMap);
+            int refId = createReference(o, out, refMap);
             out.writeByte(MAGICNUMBER_FQN);
-            out.writeShort(refId);
+            writeReferenceId(refId, out);
             marshallFqn((Fqn) o, out, refMap);
         }
         else if (o instanceof GlobalTransaction)
         {
-            int refId = createReference(o, refMap);
+            int refId = createReference(o, out, refMap);
             out.writeByte(MAGICNUMBER_GTX);
-            out.writeShort(refId);
+            writeReferenceId(refId, out);
             marshallGlobalTransaction((GlobalTransaction) o, out, refMap);
         }
         else if (o instanceof IpAddress)
         {
+            // only referenced in direct buffers, object streams have no reference id for addresses
+            if (out instanceof DirectObjectOutput) createReference(o, out, refMap);
             out.writeByte(MAGICNUMBER_IPADDRESS);
             marshallIpAddress((IpAddress) o, out);
         }
@@ -300,17 +313,21 @@ public class TreeCacheMarshaller140 extends Marshaller
         }
         else if (o instanceof String)
         {
-            int refId = createReference(o, refMap);
+            int refId = createReference(o, out, refMap);
             out.writeByte(MAGICNUMBER_STRING);
-            out.writeShort(refId);
+            writeReferenceId(refId, out);
             out.writeUTF((String) o);
         }
+        else if (marshallExternalized(o, out))
+        {
+            // written by the externalizer registered for its class
+        }
         else if (o instanceof Serializable || ObjectSerializationFactory.useJBossSerialization())
         {
-            int refId = createReference(o, refMap);
+            int refId = createReference(o, out, refMap);
             if (log.isTraceEnabled()) log.trace("Warning: using object serialization for " + o.getClass());
             out.writeByte(MAGICNUMBER_SERIALIZABLE);
-            out.writeShort(refId);
+            writeReferenceId(refId, out);
             out.writeObject(o);
         }
         else
@@ -319,16 +336,101 @@ public class TreeCacheMarshaller140 extends Marshaller
         }
     }
 
-    private int createReference(Object o, Map refMap)
+    /**
+     * Writes <code>o</code> with the externalizer registered for its class, if every member of the cluster has it.
+     *
+     * @return true if <code>o</code> was written
+     */
+    private boolean marshallExternalized(Object o, ObjectOutputStream out) throws Exception
+    {
+        ExternalizerRegistry.Registration registration = externalizers.getWritable(o);
+        if (registration == null)
+        {
+            return false;
+        }
+        out.writeByte(MAGICNUMBER_EXTERNALIZED);
+        out.writeShort(registration.id);
+        registration.externalizer.writeObject(out, o);
+        return true;
+    }
+
+    /**
+     * Writes a reference to <code>o</code> if an equal object has been marshalled before.
+     *
+     * @return true if a reference was written
+     */
+    private boolean marshallReference(Object o, ObjectOutputStream out, Map refMap) throws Exception
     {
+        if (out instanceof DirectObjectOutput)
+        {
+            return ((DirectObjectOutput) out).writeReference(o, MAGICNUMBER_REF);
+        }
+        if (!refMap.containsKey(o))
+        {
+            return false;
+        }
+        out.writeByte(MAGICNUMBER_REF);
+        out.writeShort(((Integer) refMap.get(o)).intValue());
+        return true;
+    }
+
+    /**
+     * Registers <code>o</code>, which is about to be marshalled, as a target for later
+     * references.
+     *
+     * @return the reference id to write after the magic number, or -1 if none is written
+     */
+    private int createReference(Object o, ObjectOutputStream out, Map refMap)
+    {
+        if (out instanceof DirectObjectOutput)
+        {
+            // referenced by position, and only if it is cheap to compare
+            if (DirectObjectOutput.isReferenceable(o)) ((DirectObjectOutput) out).rememberReference(o);
+            return -1;
+        }
         int reference = refMap.size();
         refMap.put(o, new Integer(reference));
         return reference;
     }
 
+    private void writeReferenceId(int refId, ObjectOutputStream out) throws Exception
+    {
+        if (refId >= 0)
+        {
+            out.writeShort(refId);
+        }
+    }
+
+    /**
+     * Writes the size of a collection or map, in as few bytes as it takes in a direct buffer.
+     */
+    private void writeSize(int size, ObjectOutputStream out) throws Exception
+    {
+        if (out instanceof DirectObjectOutput)
+        {
+            ((DirectObjectOutput) out).writeVarInt(size);
+        }
+        else
+        {
+            out.writeInt(size);
+        }
+    }
+
+    private int readSize(ObjectInputStream in) throws Exception
+    {
+        return in instanceof DirectObjectInput ? ((DirectObjectInput) in).readVarInt() : in.readInt();
+    }
+
     private void marshallMethodCall(JBCMethodCall methodCall, ObjectOutputStream out, Map refMap) throws Exception
     {
-        out.writeShort(methodCall.getMethodId());
+        if (out instanceof DirectObjectOutput)
+        {
+            ((DirectObjectOutput) out).writeVarInt(methodCall.getMethodId());
+        }
+        else
+        {
+            out.writeShort(methodCall.getMethodId());
+        }
         Object[] args = methodCall.getArgs();
         byte numArgs = (byte) (args == null ? 0 : args.length);
         out.writeByte(numArgs);
@@ -341,13 +443,25 @@ public class TreeCacheMarshaller140 extends Marshaller
 
     private void marshallGlobalTransaction(GlobalTransaction globalTransaction, ObjectOutputStream out, Map refMap) throws Exception
     {
-        out.writeLong(globalTransaction.getId());
+        if (out instanceof DirectObjectOutput)
+        {
+            ((DirectObjectOutput) out).writeVarLong(globalTransaction.getId());
+        }
+        else
+        {
+            out.writeLong(globalTransaction.getId());
+        }
         marshallObject(globalTransaction.getAddress(), out, refMap);
     }
 
 
     private void marshallFqn(Fqn fqn, ObjectOutputStream out, Map refMap) throws Exception
     {
+        if (out instanceof DirectObjectOutput)
+        {
+            marshallFqn(fqn, (DirectObjectOutput) out);
+            return;
+        }
         boolean isRoot = fqn.isRoot();
         out.writeBoolean(isRoot);
         if (!isRoot)
@@ -360,6 +474,35 @@ public class TreeCacheMarshaller140 extends Marshaller
         }
     }
 
+    /**
+     * Writes an Fqn into a direct buffer, after its magic number.  The header is the number of elements shifted left
+     * by one.  If the lowest bit is set, the header is followed by the position of an Fqn written earlier whose
+     * parent is the parent of this one, and only the last element follows; otherwise all elements follow.
+     */
+    private void marshallFqn(Fqn fqn, DirectObjectOutput out) throws Exception
+    {
+        // the magic number was just written
+        int position = out.size() - 1;
+        int size = fqn.size();
+        Fqn parent = size > 1 ? fqn.getParent() : null;
+        int siblingPosition = parent == null ? -1 : out.findPrefix(parent);
+        if (siblingPosition >= 0)
+        {
+            out.writeVarInt((1 << 1) | 1);
+            out.writeVarInt(siblingPosition);
+            marshallObject(fqn.getLast(), out, null);
+        }
+        else
+        {
+            out.writeVarInt(size << 1);
+            for (int i = 0; i < size; i++)
+            {
+                marshallObject(fqn.get(i), out, null);
+            }
+        }
+        if (parent != null) out.rememberPrefix(parent, position);
+    }
+
     private void marshallIpAddress(IpAddress ipAddress, ObjectOutputStream out) throws Exception
     {
         ipAddress.writeExternal(out);
@@ -367,7 +510,7 @@ public class TreeCacheMarshaller140 extends Marshaller
 
     private void marshallCollection(Collection c, ObjectOutputStream out, Map refMap) throws Exception
     {
-        out.writeInt(c.size());
+        writeSize(c.size(), out);
         Iterator i = c.iterator();
         while (i.hasNext())
         {
@@ -377,7 +520,7 @@ public class TreeCacheMarshaller140 extends Marshaller
 
    private void marshallMap(Map m, ObjectOutputStream out, Map refMap) throws Exception
    {
-      out.writeInt(m.size());
+      writeSize(m.size(), out);
       Iterator i = m.keySet().iterator();
       while (i.hasNext())
       {
@@ -421,6 +564,10 @@ public class TreeCacheMarshaller140 extends Marshaller
             case MAGICNUMBER_NULL:
                 return null;
             case MAGICNUMBER_REF:
+                if (in instanceof DirectObjectInput)
+                {
+                    return unmarshallReference((DirectObjectInput) in);
+                }
                 reference = new Integer(in.readShort());
                 if (!refMap.containsKey(reference))
                 {
@@ -428,22 +575,22 @@ public class TreeCacheMarshaller140 extends Marshaller
                 }
                 return refMap.get(reference);
             case MAGICNUMBER_SERIALIZABLE:
-                reference = new Integer(in.readShort());
+                reference = readReferenceId(in);
                 retVal = in.readObject();
-                refMap.put(reference, retVal);
+                rememberReference(reference, retVal, refMap);
                 return retVal;
             case MAGICNUMBER_METHODCALL:
                 retVal = unmarshallMethodCall(in, refMap);
                 return retVal;
             case MAGICNUMBER_FQN:
-                reference = new Integer(in.readShort());
+                reference = readReferenceId(in);
                 retVal = unmarshallFqn(in, refMap);
-                refMap.put(reference, retVal);
+                rememberReference(reference, retVal, refMap);
                 return retVal;
             case MAGICNUMBER_GTX:
-                reference = new Integer(in.readShort());
+                reference = readReferenceId(in);
                 retVal = unmarshallGlobalTransaction(in, refMap);
-                refMap.put(reference, retVal);
+                rememberReference(reference, retVal, refMap);
                 return retVal;
             case MAGICNUMBER_IPADDRESS:
                 retVal = unmarshallIpAddress(in);
@@ -468,19 +615,70 @@ public class TreeCacheMarshaller140 extends Marshaller
                 retVal = new Long(in.readLong());
                 return retVal;
             case MAGICNUMBER_STRING:
-                reference = new Integer(in.readShort());
+                reference = readReferenceId(in);
                 retVal = in.readUTF();
-                refMap.put(reference, retVal);
+                rememberReference(reference, retVal, refMap);
                 return retVal;
+            case MAGICNUMBER_EXTERNALIZED:
+                int id = in.readShort();
+                Externalizer externalizer = externalizers.getExternalizer(id);
+                if (externalizer == null)
+                {
+                    throw new IOException("No externalizer registered with id " + id);
+                }
+                return externalizer.readObject(in);
             default:
                 if (log.isErrorEnabled()) log.error("Unknown Magic Number " + magicNumber);
                 throw new Exception("Unknown magic number " + magicNumber);
         }
     }
 
+    private Integer readReferenceId(ObjectInputStream in) throws Exception
+    {
+        // a DirectObjectInput refers to objects by position
+        return in instanceof DirectObjectInput ? null : new Integer(in.readShort());
+    }
+
+    private void rememberReference(Integer reference, Object o, Map refMap)
+    {
+        if (reference != null)
+        {
+            refMap.put(reference, o);
+        }
+    }
+
+    /**
+     * Decodes the object at the position a reference points to again.
+     */
+    private Object unmarshallReference(DirectObjectInput in) throws Exception
+    {
+        return unmarshallAt(in, in.readVarInt());
+    }
+
+    /**
+     * Decodes the object written at an earlier position of a direct buffer, and carries on after the current one.
+     */
+    private Object unmarshallAt(DirectObjectInput in, int position) throws Exception
+    {
+        int next = in.position();
+        if (position >= next)
+        {
+            throw new IOException("Invalid object reference " + position + " in byte stream!");
+        }
+        in.seek(position);
+        try
+        {
+            return unmarshallObject(in, null);
+        }
+        finally
+        {
+            in.seek(next);
+        }
+    }
+
     private MethodCall unmarshallMethodCall(ObjectInputStream in, Map refMap) throws Exception
     {
-        short methodId = in.readShort();
+        int methodId = in instanceof DirectObjectInput ? ((DirectObjectInput) in).readVarInt() : in.readShort();
         byte numArgs = in.readByte();
         Object[] args = null;
 
@@ -499,7 +697,7 @@ public class TreeCacheMarshaller140 extends Marshaller
     private GlobalTransaction unmarshallGlobalTransaction(ObjectInputStream in, Map refMap) throws Exception
     {
         GlobalTransaction gtx = new GlobalTransaction();
-        long id = in.readLong();
+        long id = in instanceof DirectObjectInput ? ((DirectObjectInput) in).readVarLong() : in.readLong();
         Object address = unmarshallObject(in, refMap);
         gtx.setId(id);
         gtx.setAddress((Address) address);
@@ -508,6 +706,10 @@ public class TreeCacheMarshaller140 extends Marshaller
 
     private Fqn unmarshallFqn(ObjectInputStream in, Map refMap) throws Exception
     {
+        if (in instanceof DirectObjectInput)
+        {
+            return unmarshallFqn((DirectObjectInput) in);
+        }
 
         boolean isRoot = in.readBoolean();
         Fqn fqn;
@@ -528,6 +730,35 @@ public class TreeCacheMarshaller140 extends Marshaller
         return fqn;
     }
 
+    /**
+     * Reads an Fqn written by {@link #marshallFqn(Fqn, DirectObjectOutput)}.
+     */
+    private Fqn unmarshallFqn(DirectObjectInput in) throws Exception
+    {
+        int header = in.readVarInt();
+        int numElements = header >>> 1;
+        Fqn parent = null;
+        if ((header & 1) != 0)
+        {
+            Object sibling = unmarshallAt(in, in.readVarInt());
+            if (!(sibling instanceof Fqn) || ((Fqn) sibling).size() < 2)
+            {
+                throw new IOException("Invalid Fqn prefix reference in byte stream!");
+            }
+            parent = ((Fqn) sibling).getParent();
+        }
+        if (parent == null && numElements == 0)
+        {
+            return Fqn.ROOT;
+        }
+        List elements = new ArrayList(numElements);
+        for (int i = 0; i < numElements; i++)
+        {
+            elements.add(unmarshallObject(in, null));
+        }
+        return parent == null ? new Fqn(elements) : new Fqn(parent, elements);
+    }
+
     private IpAddress unmarshallIpAddress(ObjectInputStream in) throws Exception
     {
         IpAddress ipAddress = new IpAddress();
@@ -537,7 +768,7 @@ public class TreeCacheMarshaller140 extends Marshaller
 
     private List unmarshallArrayList(ObjectInputStream in, Map refMap) throws Exception
     {
-        int listSize = in.readInt();
+        int listSize = readSize(in);
         List list = new ArrayList(listSize);
         for (int i = 0; i < listSize; i++)
         {
@@ -548,7 +779,7 @@ public class TreeCacheMarshaller140 extends Marshaller
 
    private List unmarshallLinkedList(ObjectInputStream in, Map refMap) throws Exception
     {
-        int listSize = in.readInt();
+        int listSize = readSize(in);
         List list = new LinkedList();
         for (int i = 0; i < listSize; i++)
         {
@@ -559,7 +790,7 @@ public class TreeCacheMarshaller140 extends Marshaller
 
    private Map unmarshallHashMap(ObjectInputStream in, Map refMap) throws Exception
     {
-        int listSize = in.readInt();
+        int listSize = readSize(in);
         Map map = new HashMap();
         for (int i = 0; i < listSize; i++)
         {
@@ -570,7 +801,7 @@ public class TreeCacheMarshaller140 extends Marshaller
 
    private Map unmarshallTreeMap(ObjectInputStream in, Map refMap) throws Exception
     {
-        int listSize = in.readInt();
+        int listSize = readSize(in);
         Map map = new TreeMap();
         for (int i = 0; i < listSize; i++)
         {
@@ -581,7 +812,7 @@ public class TreeCacheMarshaller140 extends Marshaller
 
    private Set unmarshallHashSet(ObjectInputStream in, Map refMap) throws Exception
     {
-        int listSize = in.readInt();
+        int listSize = readSize(in);
         Set map = new HashSet();
         for (int i = 0; i < listSize; i++)
         {
@@ -592,7 +823,7 @@ public class TreeCacheMarshaller140 extends Marshaller
 
    private Set unmarshallTreeSet(ObjectInputStream in, Map refMap) throws Exception
     {
-        int listSize = in.readInt();
+        int listSize = readSize(in);
         Set map = new TreeSet();
         for (int i = 0; i < listSize; i++)
         {
@@ -23,6 +23,14 @@ import java.util.StringTokenizer;
 /**
  * A facade to various other marshallers like {@link LegacyTreeCacheMarshaller} and {@link TreeCacheMarshaller140}
  * which is version-aware.
+ * <p/>
+ * With the {@link TreeCacheMarshaller140}, calls can be marshalled into a buffer reused by the marshalling thread,
+ * through a {@link DirectObjectOutput} rather than an object stream; such buffers start with
+ * {@link #DIRECT_STREAM_MAGIC} or {@link #DIRECT_STREAM_WITH_OBJECTS_MAGIC}.  Buffers in either form are read, but
+ * members of earlier versions cannot read direct buffers, so they are only written once enabled with
+ * {@link #setUseDirectMarshalling(boolean)}, the <tt>DirectMarshalling</tt> attribute of the cache.
+ * <p/>
+ * Buffers from a size threshold on can also be compressed, see {@link Compressor}; compressed buffers are always read.
  *
  * @author <a href="mailto:manik@jboss.org">Manik Surtani (manik@jboss.org)</a>
  */
@@ -41,6 +49,30 @@ public class VersionAwareMarshaller implements RpcDispatcher.Marshaller
 
     private int versionInt;
 
+    /**
+     * First byte of a buffer written by a {@link DirectObjectOutput}; object streams start with 0xAC (Java
+     * serialization) or 'j' (JBoss serialization).
+     */
+    static final byte DIRECT_STREAM_MAGIC = (byte) 0xDC;
+
+    /**
+     * First byte of a buffer written by a {@link DirectObjectOutput} which ends with an object stream.
+     */
+    static final byte DIRECT_STREAM_WITH_OBJECTS_MAGIC = (byte) 0xDD;
+
+    /**
+     * Pooled buffers larger than this are not kept for the next call.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 128 * 1024;
+
+    private static final ThreadLocal directOutputs = new ThreadLocal();
+
+    private final ExternalizerRegistry externalizers = new ExternalizerRegistry();
+
+    private final Compressor compressor = new Compressor();
+
+    private boolean useDirectMarshalling = false;
+
 
     public VersionAwareMarshaller(RegionManager manager, boolean defaultInactive, boolean useRegionBasedMarshalling, String version)
     {
@@ -58,6 +90,7 @@ public class VersionAwareMarshaller implements RpcDispatcher.Marshaller
             case VERSION_200:
             case VERSION_140:
                 defaultMarshaller = new TreeCacheMarshaller140(manager, defaultInactive, useRegionBasedMarshalling);
+                ((TreeCacheMarshaller140) defaultMarshaller).setExternalizerRegistry(externalizers);
                 marshallers.put(new Integer(VERSION_140), defaultMarshaller);
                 break;
             default:
@@ -113,7 +146,58 @@ public class VersionAwareMarshaller implements RpcDispatcher.Marshaller
         }
     }
 
+    /**
+     * Returns true if calls are marshalled through a {@link DirectObjectOutput}.
+     */
+    public boolean isUseDirectMarshalling()
+    {
+        return useDirectMarshalling && defaultMarshaller instanceof TreeCacheMarshaller140;
+    }
+
+    /**
+     * Sets whether calls are marshalled through a {@link DirectObjectOutput}, if the replication version allows.
+     */
+    public void setUseDirectMarshalling(boolean useDirectMarshalling)
+    {
+        this.useDirectMarshalling = useDirectMarshalling;
+    }
+
+    /**
+     * Returns the externalizers for application values.  They are used by the {@link TreeCacheMarshaller140} only,
+     * and only for members which registered the same ids; see {@link ExternalizerRegistry}.
+     */
+    public ExternalizerRegistry getExternalizerRegistry()
+    {
+        return externalizers;
+    }
+
+    /**
+     * Registers an externalizer for values of exactly the given class.
+     *
+     * @see ExternalizerRegistry#register(int, Class, Externalizer)
+     */
+    public void registerExternalizer(int id, Class type, Externalizer externalizer)
+    {
+        externalizers.register(id, type, externalizer);
+    }
+
+    /**
+     * Returns the compressor applied to marshalled buffers, disabled unless given a threshold.
+     */
+    public Compressor getCompressor()
+    {
+        return compressor;
+    }
+
     public byte[] objectToByteBuffer(Object obj) throws Exception
+    {
+        // marshalled ahead of time, e.g. by the replication queue
+        if (obj instanceof MarshalledMethodCall) return ((MarshalledMethodCall) obj).getBuffer();
+
+        return compressor.compress(isUseDirectMarshalling() ? objectToDirectBuffer(obj) : objectToStreamBuffer(obj));
+    }
+
+    private byte[] objectToStreamBuffer(Object obj) throws Exception
     {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutputStream out;
@@ -137,8 +221,54 @@ public class VersionAwareMarshaller implements RpcDispatcher.Marshaller
         return bos.toByteArray();
     }
 
+    /**
+     * Marshalls the object into the calling thread's pooled {@link DirectObjectOutput}, and returns a copy of the
+     * bytes.
+     */
+    private byte[] objectToDirectBuffer(Object obj) throws Exception
+    {
+        DirectObjectOutput out = (DirectObjectOutput) directOutputs.get();
+        if (out == null)
+        {
+            out = new DirectObjectOutput();
+            directOutputs.set(out);
+        }
+        else if (out.size() > 0)
+        {
+            // in use further up this thread's stack
+            out = new DirectObjectOutput();
+        }
+
+        try
+        {
+            out.writeByte(DIRECT_STREAM_MAGIC);
+            out.writeShort(versionInt);
+            defaultMarshaller.objectToStream(obj, out);
+            if (out.finishObjects()) out.setByte(0, DIRECT_STREAM_WITH_OBJECTS_MAGIC);
+            return out.toByteArray();
+        }
+        finally
+        {
+            out.reset(MAX_POOLED_BUFFER_SIZE);
+        }
+    }
+
     public Object objectFromByteBuffer(byte[] buf) throws Exception
     {
+        if (Compressor.isCompressed(buf)) buf = compressor.decompress(buf);
+
+        if (buf.length > 0 && (buf[0] == DIRECT_STREAM_MAGIC || buf[0] == DIRECT_STREAM_WITH_OBJECTS_MAGIC))
+        {
+            DirectObjectInput in = new DirectObjectInput(buf, 1, buf.length - 1, buf[0] == DIRECT_STREAM_WITH_OBJECTS_MAGIC);
+            int versionId = in.readShort();
+            Marshaller marshaller = getMarshaller(versionId);
+            if (!(marshaller instanceof TreeCacheMarshaller140))
+            {
+                throw new MarshallingException("Unsupported version " + versionId + " of a direct buffer");
+            }
+            return marshaller.objectFromStream(in);
+        }
+
         Marshaller marshaller;
         int versionId = VERSION_LEGACY;
         ObjectInputStream in = null;
@@ -211,6 +341,7 @@ public class VersionAwareMarshaller implements RpcDispatcher.Marshaller
                 if (marshaller == null)
                 {
                     marshaller = new TreeCacheMarshaller140(manager, defaultInactive, useRegionBasedMarshalling);
+                    ((TreeCacheMarshaller140) marshaller).setExternalizerRegistry(externalizers);
                     marshallers.put(new Integer(VERSION_140), marshaller);
                 }
                 break;
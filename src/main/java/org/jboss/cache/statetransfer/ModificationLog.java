@@ -0,0 +1,154 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.statetransfer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.cache.Fqn;
+import org.jboss.cache.GlobalTransaction;
+import org.jboss.cache.Modification;
+import org.jboss.cache.TransactionTable;
+
+/**
+ * Records the modifications made to a subtree while its state is generated
+ * without holding locks on it, so that they can be replayed on the joiner
+ * after the state.  Modifications are recorded in the order in which they
+ * are applied, including the undo operations of transactions rolled back.
+ * <p/>
+ * Transactions that were in progress when the log was opened, and those
+ * that wrote into the log while it was open, may be committed or rolled
+ * back after the state point, without the joiner knowing them;
+ * {@link #close()} waits for them to complete, so that their outcome, and
+ * the undo operations of a rollback, are in the log.
+ *
+ * @see org.jboss.cache.TreeCache#_getState(java.io.OutputStream, Fqn, boolean, boolean, long, boolean, boolean)
+ */
+public class ModificationLog
+{
+   private static final long POLL_INTERVAL = 10;
+
+   private Log log = LogFactory.getLog(getClass().getName());
+
+   private final Fqn root;
+   private final TransactionTable txTable;
+   private final Set transactions;
+   private final long timeout;
+   private List modifications = new ArrayList();
+
+   /**
+    * Opens the log.
+    *
+    * @param root    the root of the subtree whose state is generated
+    * @param txTable the table of transactions in progress
+    * @param timeout the time to wait for each node to be unlocked while it
+    *                is read, and for the transactions in progress to complete
+    */
+   public ModificationLog(Fqn root, TransactionTable txTable, long timeout)
+   {
+      this.root         = root;
+      this.txTable      = txTable;
+      this.transactions = new LinkedHashSet(txTable.getGlobalTransactions());
+      this.timeout      = timeout;
+   }
+
+   public Fqn getRoot()
+   {
+      return root;
+   }
+
+   public long getTimeout()
+   {
+      return timeout;
+   }
+
+   /**
+    * Returns true if a modification of <code>fqn</code> affects the
+    * subtree; a removal of an ancestor of the root removes the subtree.
+    */
+   public boolean isLogged(Fqn fqn)
+   {
+      return fqn.isChildOrEquals(root) || root.isChildOf(fqn);
+   }
+
+   /**
+    * Records a modification, unless the log is closed.
+    *
+    * @param gtx the transaction making the modification, or null; the log
+    *            is not closed before it completes
+    */
+   public synchronized void add(Modification m, GlobalTransaction gtx)
+   {
+      if (modifications != null)
+      {
+         modifications.add(m);
+         if (gtx != null)
+            transactions.add(gtx);
+      }
+   }
+
+   /**
+    * Waits for the transactions that were in progress when the log was
+    * opened, or that wrote into it, to complete, then closes the log.
+    *
+    * @return the modifications recorded, in order
+    */
+   public List close() throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + timeout;
+      while (true)
+      {
+         GlobalTransaction gtx;
+         synchronized (this)
+         {
+            gtx = nextTransaction();
+            if (gtx == null)
+            {
+               // no transaction can write into the log between the check and the close
+               List result = modifications;
+               modifications = null;
+               return result;
+            }
+         }
+
+         if (System.currentTimeMillis() >= end)
+         {
+            log.warn("transaction " + gtx + " did not complete within " + timeout +
+                     " ms; its outcome may not reach the new member");
+            synchronized (this)
+            {
+               transactions.remove(gtx);
+            }
+         }
+         else
+         {
+            Thread.sleep(POLL_INTERVAL);
+         }
+      }
+   }
+
+   /**
+    * Returns a transaction to wait for, forgetting those completed, or null
+    * if there is none.
+    */
+   private GlobalTransaction nextTransaction()
+   {
+      for (Iterator it = transactions.iterator(); it.hasNext();)
+      {
+         GlobalTransaction gtx = (GlobalTransaction) it.next();
+         if (txTable.get(gtx) != null)
+            return gtx;
+         it.remove();
+      }
+      return null;
+   }
+}
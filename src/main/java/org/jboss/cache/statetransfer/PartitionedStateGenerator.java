@@ -0,0 +1,235 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ * 
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.statetransfer;
+
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.cache.DataNode;
+import org.jboss.cache.loader.NodeData;
+import org.jboss.cache.util.ExposedByteArrayOutputStream;
+import org.jboss.invocation.MarshalledValueOutputStream;
+
+/**
+ * Marshals the transient state of a subtree on several threads.  Every child
+ * of the root of the subtree is a partition, which one thread walks, writing
+ * its nodes into chunks of about {@link StateTransferGenerator_140#STREAMING_CHUNK_SIZE}
+ * bytes; each chunk is an object stream of its own, ending with 
+ * <code>null</code>.  The calling thread writes the chunks to the state stream
+ * as they are ready, each as the partition number, the length and the bytes, 
+ * and the end of a partition as its number and a length of 0.  A partition 
+ * number of -1 ends the transient state.
+ * <p/>
+ * At most two chunks per thread wait to be written, so memory use does not 
+ * depend on the size of the state.  The caller holds the locks on the subtree,
+ * unless a lock timeout is given.
+ *
+ * @see PartitionedStateIntegrator
+ */
+class PartitionedStateGenerator
+{
+   static final int END_OF_PARTITIONS = -1;
+   
+   private Log log = LogFactory.getLog(getClass().getName());
+   
+   private final Set internalFqns;
+   private final int threads;
+   private final long lockTimeout;
+   private final BlockingQueue chunks;
+   private volatile boolean aborted;
+   
+   /**
+    * @param lockTimeout if not negative, the caller holds no locks and each
+    *                    node is read locked while its data is copied
+    */
+   PartitionedStateGenerator(Set internalFqns, int threads, long lockTimeout)
+   {
+      this.internalFqns = internalFqns;
+      this.threads      = threads;
+      this.lockTimeout  = lockTimeout;
+      this.chunks       = new ArrayBlockingQueue(threads * 2);
+   }
+   
+   /**
+    * A chunk of a partition; <code>bytes</code> is null at the end of the
+    * partition, and <code>error</code> is set if marshalling it failed.
+    */
+   private static class Chunk
+   {
+      final int partition;
+      final ExposedByteArrayOutputStream bytes;
+      final Throwable error;
+      
+      Chunk(int partition, ExposedByteArrayOutputStream bytes, Throwable error)
+      {
+         this.partition = partition;
+         this.bytes     = bytes;
+         this.error     = error;
+      }
+   }
+   
+   /**
+    * Writes the children of <code>root</code>, which has been written, to 
+    * <code>out</code>.
+    */
+   void generate(DataNode root, ObjectOutputStream out) throws Throwable
+   {
+      List partitions = new ArrayList();
+      Map children = root.getChildren();
+      if (children != null) {
+         for (Iterator it = children.values().iterator(); it.hasNext();) {
+            DataNode child = (DataNode) it.next();
+            if (!internalFqns.contains(child.getFqn()))
+               partitions.add(child);
+         }
+      }
+      
+      ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(threads, Math.max(partitions.size(), 1)), new ThreadFactory() {
+               int count;
+               public synchronized Thread newThread(Runnable r)
+               {
+                  Thread t = new Thread(r, "StateTransfer generator-" + (++count));
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+      try {
+         for (int i = 0; i < partitions.size(); i++) {
+            final int partition = i;
+            final DataNode node = (DataNode) partitions.get(i);
+            executor.execute(new Runnable() {
+               public void run()
+               {
+                  marshallPartition(partition, node);
+               }
+            });
+         }
+         
+         int remaining = partitions.size();
+         while (remaining > 0) {
+            Chunk chunk = (Chunk) chunks.take();
+            if (chunk.error != null)
+               throw chunk.error;
+            out.writeInt(chunk.partition);
+            if (chunk.bytes == null) {
+               out.writeInt(0);
+               remaining--;
+            }
+            else {
+               out.writeInt(chunk.bytes.size());
+               out.write(chunk.bytes.getRawBuffer(), 0, chunk.bytes.size());
+            }
+         }
+         out.writeInt(END_OF_PARTITIONS);
+         
+         if (log.isDebugEnabled())
+            log.debug("streamed " + partitions.size() + " partitions on " + threads + " threads");
+      }
+      finally {
+         aborted = true;
+         chunks.clear();
+         executor.shutdownNow();
+      }
+   }
+   
+   private void marshallPartition(int partition, DataNode node)
+   {
+      try {
+         PartitionWriter writer = new PartitionWriter(partition);
+         marshallNode(node, writer);
+         writer.finish();
+      }
+      catch (InterruptedException e) {
+         // aborted
+      }
+      catch (Throwable t) {
+         if (aborted)
+            return;
+         log.error("failed marshalling partition " + node.getFqn(), t);
+         try {
+            chunks.put(new Chunk(partition, null, t));
+         }
+         catch (InterruptedException e) {
+            // aborted
+         }
+      }
+   }
+   
+   /**
+    * Writes the subtree preorder.
+    */
+   private void marshallNode(DataNode node, PartitionWriter writer) throws Exception
+   {
+      if (aborted)
+         throw new InterruptedException("state transfer aborted");
+      if (internalFqns.contains(node.getFqn()))
+         return;
+      
+      writer.write(StateTransferGenerator_140.createNodeData(node, lockTimeout));
+      
+      Map children = node.getChildren();
+      if (children != null) {
+         for (Iterator it = children.values().iterator(); it.hasNext();)
+            marshallNode((DataNode) it.next(), writer);
+      }
+   }
+   
+   /**
+    * Writes the nodes of a partition into chunks, and hands each over when
+    * it is full.
+    */
+   private class PartitionWriter
+   {
+      private final int partition;
+      private ExposedByteArrayOutputStream bytes;
+      private MarshalledValueOutputStream out;
+      
+      PartitionWriter(int partition)
+      {
+         this.partition = partition;
+      }
+      
+      void write(NodeData nd) throws Exception
+      {
+         if (out == null) {
+            bytes = new ExposedByteArrayOutputStream(1024);
+            out = new MarshalledValueOutputStream(bytes);
+         }
+         out.writeObject(nd);
+         if (bytes.size() >= StateTransferGenerator_140.STREAMING_CHUNK_SIZE)
+            handOver();
+      }
+      
+      void finish() throws Exception
+      {
+         if (out != null)
+            handOver();
+         chunks.put(new Chunk(partition, null, null));
+      }
+      
+      private void handOver() throws Exception
+      {
+         out.writeObject(null);
+         out.close();
+         chunks.put(new Chunk(partition, bytes, null));
+         bytes = null;
+         out = null;
+      }
+   }
+}
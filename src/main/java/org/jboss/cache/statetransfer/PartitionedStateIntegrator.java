@@ -0,0 +1,286 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.statetransfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.cache.DataNode;
+import org.jboss.cache.Fqn;
+import org.jboss.cache.TreeCache;
+import org.jboss.cache.eviction.RegionManager;
+import org.jboss.cache.factories.NodeFactory;
+import org.jboss.cache.loader.NodeData;
+import org.jboss.invocation.MarshalledValueInputStream;
+
+/**
+ * Integrates the partitions written by a {@link PartitionedStateGenerator}
+ * on several threads.  All chunks of a partition go to the same thread,
+ * which builds the subtree of the partition apart from the tree and adds it
+ * to the target node once the end of the partition is read, so that the
+ * subtree never shows in the tree half built.  The calling thread reads the
+ * stream and hands the chunks over; at most two chunks per thread wait to
+ * be integrated.  The caller holds the lock on the target node.
+ */
+class PartitionedStateIntegrator
+{
+   private Log log = LogFactory.getLog(getClass().getName());
+
+   private final TreeCache cache;
+   private final NodeFactory factory;
+   private final byte nodeType;
+   private final int threads;
+   private volatile Throwable failure;
+
+   PartitionedStateIntegrator(TreeCache cache, NodeFactory factory,
+                              byte nodeType, int threads)
+   {
+      this.cache    = cache;
+      this.factory  = factory;
+      this.nodeType = nodeType;
+      this.threads  = Math.max(threads, 1);
+   }
+
+   /**
+    * A chunk of a partition; <code>bytes</code> is null at the end of the
+    * partition.
+    */
+   private static class Chunk
+   {
+      static final Chunk END_OF_PARTITIONS = new Chunk(-1, null);
+
+      final int partition;
+      final byte[] bytes;
+
+      Chunk(int partition, byte[] bytes)
+      {
+         this.partition = partition;
+         this.bytes     = bytes;
+      }
+   }
+
+   /**
+    * Reads the partitions from <code>in</code> and adds their subtrees to
+    * <code>target</code>, whose own state has been read.
+    *
+    * @param offset number of levels the Fqns of the state are moved down,
+    *               when integrating into the buddy backup subtree
+    * @param erm    the eviction region manager, or <code>null</code>
+    */
+   void integrate(DataNode target, int offset, ObjectInputStream in,
+                  RegionManager erm) throws Exception
+   {
+      final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+         int count;
+         public synchronized Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, "StateTransfer integrator-" + (++count));
+            t.setDaemon(true);
+            t.setContextClassLoader(cl);
+            return t;
+         }
+      });
+
+      List workers = new ArrayList(threads);
+      try {
+         for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(target, offset, erm);
+            workers.add(worker);
+            executor.execute(worker);
+         }
+
+         int partitions = 0;
+         int partition;
+         while ((partition = in.readInt()) != PartitionedStateGenerator.END_OF_PARTITIONS) {
+            int length = in.readInt();
+            byte[] bytes = null;
+            if (length > 0) {
+               bytes = new byte[length];
+               in.readFully(bytes);
+            }
+            else {
+               partitions++;
+            }
+            handOver((Worker) workers.get(partition % threads), new Chunk(partition, bytes));
+         }
+
+         for (int i = 0; i < threads; i++)
+            handOver((Worker) workers.get(i), Chunk.END_OF_PARTITIONS);
+         executor.shutdown();
+         while (!executor.awaitTermination(100, TimeUnit.MILLISECONDS))
+            checkFailure();
+         checkFailure();
+
+         if (log.isDebugEnabled())
+            log.debug("integrated " + partitions + " partitions on " + threads + " threads");
+      }
+      finally {
+         executor.shutdownNow();
+      }
+   }
+
+   private void handOver(Worker worker, Chunk chunk) throws Exception
+   {
+      while (!worker.chunks.offer(chunk, 100, TimeUnit.MILLISECONDS))
+         checkFailure();
+   }
+
+   private void checkFailure() throws Exception
+   {
+      Throwable t = failure;
+      if (t == null)
+         return;
+      if (t instanceof Exception)
+         throw (Exception) t;
+      if (t instanceof Error)
+         throw (Error) t;
+      throw new IllegalStateException("failed integrating partition: " + t);
+   }
+
+   /**
+    * Integrates the partitions handed to one thread.
+    */
+   private class Worker implements Runnable
+   {
+      final BlockingQueue chunks = new ArrayBlockingQueue(2);
+      private final DataNode target;
+      private final int offset;
+      private final RegionManager erm;
+      /** The subtrees being built, by partition */
+      private final Map subtrees = new HashMap();
+
+      Worker(DataNode target, int offset, RegionManager erm)
+      {
+         this.target = target;
+         this.offset = offset;
+         this.erm    = erm;
+      }
+
+      public void run()
+      {
+         try {
+            Chunk chunk;
+            while ((chunk = (Chunk) chunks.take()) != Chunk.END_OF_PARTITIONS) {
+               Integer partition = new Integer(chunk.partition);
+               Subtree subtree = (Subtree) subtrees.get(partition);
+               if (subtree == null) {
+                  subtree = new Subtree(target, offset, erm);
+                  subtrees.put(partition, subtree);
+               }
+               if (chunk.bytes != null) {
+                  integrateChunk(chunk.bytes, subtree);
+               }
+               else {
+                  subtree.attach();
+                  subtrees.remove(partition);
+               }
+            }
+         }
+         catch (InterruptedException e) {
+            // aborted
+         }
+         catch (Throwable t) {
+            log.error("failed integrating partition", t);
+            failure = t;
+         }
+      }
+
+      private void integrateChunk(byte[] bytes, Subtree subtree) throws Exception
+      {
+         MarshalledValueInputStream in =
+            new MarshalledValueInputStream(new ByteArrayInputStream(bytes));
+         try {
+            NodeData nd;
+            while ((nd = (NodeData) in.readObject()) != null)
+               subtree.add(nd);
+         }
+         finally {
+            in.close();
+         }
+      }
+   }
+
+   /**
+    * A subtree built from the NodeData of a partition, in preorder.  Its
+    * root knows the target as its parent, but is only added to the target
+    * by {@link #attach()}.
+    */
+   private class Subtree
+   {
+      private final DataNode target;
+      private final Fqn prefix;
+      private final RegionManager erm;
+      private final List path = new ArrayList();
+      private DataNode root;
+
+      Subtree(DataNode target, int offset, RegionManager erm)
+      {
+         this.target = target;
+         this.prefix = offset > 0 ? target.getFqn().getFqnChild(offset) : null;
+         this.erm    = erm;
+      }
+
+      void add(NodeData nd)
+      {
+         Fqn fqn = nd.getFqn();
+         // If we need to integrate into the buddy backup subtree,
+         // change the Fqn to fit under it
+         if (prefix != null)
+            fqn = new Fqn(prefix, fqn);
+         int size = fqn.size();
+
+         // Walk back up to the parent of the node
+         while (!path.isEmpty()
+               && ((DataNode) path.get(path.size() - 1)).getFqn().size() >= size)
+            path.remove(path.size() - 1);
+         DataNode parent = root == null ? target
+                                        : path.isEmpty() ? null
+                                        : (DataNode) path.get(path.size() - 1);
+         if (parent == null || parent.getFqn().size() != size - 1)
+            throw new IllegalStateException("NodeData " + fqn +
+                                            " is not a child of the partition " +
+                                            (root == null ? target.getFqn()
+                                                          : root.getFqn()));
+
+         Object name = fqn.get(size - 1);
+         Map attrs = nd.getAttributes();
+         DataNode node = factory.createDataNode(nodeType,
+                                                name,
+                                                fqn,
+                                                parent,
+                                                attrs,
+                                                true,
+                                                cache);
+         if (root == null)
+            root = node;
+         else
+            parent.addChild(name, node);
+         path.add(node);
+
+         StateTransferIntegrator_140.notifyEvictionRegion(erm, fqn, attrs);
+      }
+
+      void attach()
+      {
+         if (root != null)
+            target.addChild(root.getName(), root);
+      }
+   }
+}
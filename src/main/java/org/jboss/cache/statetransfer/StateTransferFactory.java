@@ -9,10 +9,13 @@ package org.jboss.cache.statetransfer;
 import org.jboss.cache.Fqn;
 import org.jboss.cache.TreeCache;
 import org.jboss.cache.Version;
+import org.jboss.cache.marshall.Compressor;
 import org.jboss.invocation.MarshalledValueInputStream;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 public abstract class StateTransferFactory
 {
@@ -49,6 +52,48 @@ public abstract class StateTransferFactory
          return new StateTransferGenerator_140(cache); // current default
    }
    
+   /**
+    * Gets the generator writing state to a stream, node by node.
+    * 
+    * @param cache the cache
+    * 
+    * @return the {@link StreamingStateTransferGenerator}
+    */
+   public static StreamingStateTransferGenerator 
+         getStreamingStateTransferGenerator(TreeCache cache)
+   {
+      // streaming was added after 1.4.0; there is only one format
+      return new StateTransferGenerator_140(cache);
+   }
+   
+   /**
+    * Gets a StateTransferIntegrator reading state from a stream written by
+    * a {@link StreamingStateTransferGenerator}.
+    * 
+    * @param is         the stream, which the integrator closes once the
+    *                   persistent state is integrated
+    * @param targetFqn  Fqn of the node to which the state will be bound
+    * @param cache      cache in which the state will be stored
+    * @return           the {@link StateTransferIntegrator}.
+    * @throws Exception
+    */
+   public static StateTransferIntegrator 
+      getStateTransferIntegrator(InputStream is, Fqn targetFqn, TreeCache cache) 
+         throws Exception
+   {
+      MarshalledValueInputStream in = new MarshalledValueInputStream(new BufferedInputStream(is, 8192));
+      short version = in.readShort();
+      if (version == StateTransferGenerator_140.STREAMING_STATE_TRANSFER_VERSION)
+         return new StateTransferIntegrator_140(in, false, false, targetFqn, cache);
+      else if (version == StateTransferGenerator_140.PARTITIONED_STATE_TRANSFER_VERSION)
+         return new StateTransferIntegrator_140(in, true, false, targetFqn, cache);
+      else if (version == StateTransferGenerator_140.LOGGED_STATE_TRANSFER_VERSION)
+         return new StateTransferIntegrator_140(in, in.readBoolean(), true, targetFqn, cache);
+      
+      in.close();
+      throw new IllegalStateException("Unsupported streamed state version " + version);
+   }
+   
    /**
     * Gets a StateTransferIntegrator able to handle the given state.
     * 
@@ -62,6 +107,9 @@ public abstract class StateTransferFactory
       getStateTransferIntegrator(byte[] state, Fqn targetFqn, TreeCache cache) 
          throws Exception
    {
+      if (Compressor.isCompressed(state))
+         state = cache.getMarshaller().getCompressor().decompress(state);
+      
       ByteArrayInputStream bais = new ByteArrayInputStream(state);
       bais.mark(1024);      
       
@@ -6,10 +6,13 @@
  */
 package org.jboss.cache.statetransfer;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -17,6 +20,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.cache.DataNode;
 import org.jboss.cache.Fqn;
+import org.jboss.cache.Modification;
 import org.jboss.cache.TreeCache;
 import org.jboss.cache.Version;
 import org.jboss.cache.aop.InternalDelegate;
@@ -27,11 +31,37 @@ import org.jboss.cache.loader.NodeData;
 import org.jboss.cache.util.ExposedByteArrayOutputStream;
 import org.jboss.invocation.MarshalledValueOutputStream;
 
-class StateTransferGenerator_140 implements StateTransferGenerator
+class StateTransferGenerator_140 implements StateTransferGenerator, 
+                                               StreamingStateTransferGenerator
 {
    public static final short STATE_TRANSFER_VERSION = 
       Version.getVersionShort("1.4.0.GA");
    
+   /** Version written at the head of streamed state */
+   public static final short STREAMING_STATE_TRANSFER_VERSION = 
+      Version.getVersionShort("1.4.1.GA");
+   
+   /** 
+    * Version written at the head of streamed state whose transient state 
+    * is marshalled on several threads by a {@link PartitionedStateGenerator}
+    */
+   public static final short PARTITIONED_STATE_TRANSFER_VERSION = 
+      Version.getVersionShort("1.4.2.GA");
+   
+   /** 
+    * Version written at the head of streamed state generated without 
+    * holding locks, which ends the transient state with a 
+    * {@link ModificationLog}
+    */
+   public static final short LOGGED_STATE_TRANSFER_VERSION = 
+      Version.getVersionShort("1.4.3.GA");
+   
+   /** 
+    * Number of bytes of streamed state after which the object stream is
+    * reset, so that neither side keeps references to the objects written
+    */
+   static final int STREAMING_CHUNK_SIZE = 64 * 1024;
+   
    private Log log = LogFactory.getLog(getClass().getName());
    
    private TreeCache cache;
@@ -153,10 +183,13 @@ class StateTransferGenerator_140 implements StateTransferGenerator
          overwriteInt(bytes, 8, sizes[0]);
          overwriteInt(bytes, 12, sizes[1]);
          overwriteInt(bytes, 16, sizes[2]);
-         retval = bytes;
+         // compressed if the cache has a compression threshold it reaches;
+         // StateTransferFactory decompresses it for the integrator
+         retval = cache.getMarshaller().getCompressor().compress(bytes);
          
          log.info("returning the state for tree rooted in " + fqn.toString() +
-                  "(" + retval.length + " bytes)");
+                  "(" + retval.length + " bytes" + 
+                  (retval != bytes ? ", " + bytes.length + " uncompressed)" : ")"));
          
          return retval;
       }
@@ -169,6 +202,256 @@ class StateTransferGenerator_140 implements StateTransferGenerator
       
    }
    
+   /**
+    * Writes the state to the stream as it walks the tree.  The stream holds 
+    * the version short, then a boolean telling whether transient state
+    * follows; if so, the NodeData of each node followed by 
+    * <code>null</code>, a boolean telling whether associated state follows 
+    * and, if so, its name/value pairs followed by <code>null</code>.  Last 
+    * come the length of the persistent state and its bytes.
+    * <p/>
+    * If the cache has more than one state transfer thread, the nodes below 
+    * the root are instead written by a {@link PartitionedStateGenerator} 
+    * after the NodeData of the root, and are not followed by 
+    * <code>null</code>.
+    * <p/>
+    * If a modification log is given, no locks are held on the subtree: each 
+    * node is read locked only while its data is copied.  The version is then 
+    * followed by a boolean telling whether the nodes come in partitions, and
+    * the associated state by the modifications made while the state was 
+    * generated, followed by <code>null</code>.
+    * <p/>
+    * Once anything was written the stream cannot be taken back, so unlike 
+    * {@link #generateStateTransfer(DataNode, boolean, boolean, boolean)}
+    * this fails on any error in the transient state, even if errors are 
+    * to be suppressed, rather than send part of it.
+    */
+   public void generateStateTransfer(DataNode rootNode, OutputStream os,
+                                     boolean generateTransient,
+                                     boolean generatePersistent,
+                                     boolean suppressErrors,
+                                     ModificationLog modificationLog)
+         throws Throwable
+   {
+      boolean debug = log.isDebugEnabled();
+      ChunkingOutputStream chunks = new ChunkingOutputStream(os);
+      MarshalledValueOutputStream out = new MarshalledValueOutputStream(chunks);
+      int threads = cache.getStateTransferThreads();
+      boolean partitioned = threads > 1;
+      boolean logged = modificationLog != null && rootNode != null && generateTransient;
+      long lockTimeout = modificationLog != null ? modificationLog.getTimeout() : -1;
+      try {
+         if (logged) {
+            out.writeShort(LOGGED_STATE_TRANSFER_VERSION);
+            out.writeBoolean(partitioned);
+         }
+         else {
+            out.writeShort(partitioned ? PARTITIONED_STATE_TRANSFER_VERSION 
+                                       : STREAMING_STATE_TRANSFER_VERSION);
+         }
+         
+         if (rootNode == null) {
+            // nothing to transfer
+            out.writeBoolean(false);
+            out.writeInt(0);
+            return;
+         }
+         
+         Fqn fqn = rootNode.getFqn();
+         out.writeBoolean(generateTransient);
+         if (generateTransient) {
+            if (partitioned) {
+               if (internalFqns.contains(fqn)) {
+                  out.writeObject(null);
+               }
+               else {
+                  out.writeObject(createNodeData(rootNode, lockTimeout));
+                  new PartitionedStateGenerator(internalFqns, threads, lockTimeout)
+                        .generate(rootNode, out);
+               }
+            }
+            else {
+               streamTransientState(rootNode, out, chunks, lockTimeout);
+               out.writeObject(null);
+            }
+            boolean associated = cache instanceof PojoCache;
+            out.writeBoolean(associated);
+            if (associated) {
+               marshallAssociatedState(fqn, out);
+               out.writeObject(null);
+            }
+            if (logged)
+               streamModifications(modificationLog, out, chunks);
+            if (debug) {
+               log.debug("streamed the in-memory state (" + chunks.getCount() + 
+                         " bytes)");
+            }
+         }
+         
+         byte[] persState = null;
+         if (generatePersistent) {
+            try {
+               if (fqn.size() == 0)
+                  persState = cache.getCacheLoader().loadEntireState();
+               else
+                  persState = ((ExtendedCacheLoader)cache.getCacheLoader()).loadState(fqn);
+            }
+            catch(Throwable t) {
+               log.error("failed getting the persistent state", t);
+               if (!suppressErrors)
+                  throw t;
+               persState = null;
+            }
+         }
+         if (persState != null) {
+            out.writeInt(persState.length);
+            out.write(persState);
+         }
+         else {
+            out.writeInt(0);
+         }
+         
+         log.info("streamed the state for tree rooted in " + fqn.toString() +
+                  "(" + chunks.getCount() + " bytes)");
+      }
+      finally {
+         out.close();
+      }
+   }
+   
+   /**
+    * Same as {@link #marshallTransientState(DataNode, ObjectOutputStream)},
+    * resetting the stream whenever another chunk of it was written.
+    */
+   private void streamTransientState(DataNode node, 
+                                     ObjectOutputStream out,
+                                     ChunkingOutputStream chunks,
+                                     long lockTimeout) throws Exception 
+   {  
+      if (internalFqns.contains(node.getFqn()))
+         return;
+      
+      out.writeObject(createNodeData(node, lockTimeout));
+      if (chunks.isChunkFull()) {
+         out.reset();
+         chunks.startChunk();
+      }
+
+      Map children = node.getChildren();
+      if(children == null)
+         return;
+      for(Iterator it=children.entrySet().iterator(); it.hasNext();) {
+         Map.Entry entry = (Map.Entry) it.next();
+         streamTransientState((DataNode) entry.getValue(), out, chunks, lockTimeout);
+      }
+   }
+   
+   /**
+    * Closes the log and writes the modifications recorded, but those of 
+    * internal nodes, followed by <code>null</code>.
+    */
+   private void streamModifications(ModificationLog modificationLog,
+                                    ObjectOutputStream out,
+                                    ChunkingOutputStream chunks) throws Exception
+   {
+      List modifications = modificationLog.close();
+      int count = 0;
+      for (Iterator it = modifications.iterator(); it.hasNext();) {
+         Modification m = (Modification) it.next();
+         if (isInternal(m.getFqn()))
+            continue;
+         out.writeObject(m);
+         count++;
+         if (chunks.isChunkFull()) {
+            out.reset();
+            chunks.startChunk();
+         }
+      }
+      out.writeObject(null);
+      
+      if (log.isDebugEnabled())
+         log.debug("streamed " + count + " modifications made during the state transfer");
+   }
+   
+   private boolean isInternal(Fqn fqn)
+   {
+      for (Iterator it = internalFqns.iterator(); it.hasNext();) {
+         if (fqn.isChildOrEquals((Fqn) it.next()))
+            return true;
+      }
+      return false;
+   }
+   
+   /**
+    * Returns the NodeData of a node.  If <code>lockTimeout</code> is not
+    * negative the caller holds no lock on the node, which is read locked
+    * while its data is copied.
+    */
+   static NodeData createNodeData(DataNode node, long lockTimeout) 
+         throws Exception
+   {
+      if (lockTimeout < 0) {
+         Map attrs = node.getData();
+         if (attrs == null || attrs.size() == 0)
+            return new NodeData(node.getFqn());
+         return new NodeData(node.getFqn(), attrs);
+      }
+      
+      Object owner = Thread.currentThread();
+      node.acquire(owner, lockTimeout, DataNode.LOCK_TYPE_READ);
+      try {
+         Map attrs = node.getData();
+         if (attrs == null || attrs.size() == 0)
+            return new NodeData(node.getFqn());
+         return new NodeData(node.getFqn(), new HashMap(attrs));
+      }
+      finally {
+         node.release(owner);
+      }
+   }
+   
+   /**
+    * Buffers the stream, and counts the bytes written to tell when a chunk
+    * of {@link #STREAMING_CHUNK_SIZE} bytes is full.
+    */
+   private static class ChunkingOutputStream extends BufferedOutputStream
+   {
+      private long total;
+      private long chunkStart;
+      
+      ChunkingOutputStream(OutputStream os)
+      {
+         super(os, 8192);
+      }
+      
+      public synchronized void write(int b) throws IOException
+      {
+         super.write(b);
+         total++;
+      }
+      
+      public synchronized void write(byte[] b, int off, int len) throws IOException
+      {
+         super.write(b, off, len);
+         total += len;
+      }
+      
+      long getCount()
+      {
+         return total;
+      }
+      
+      boolean isChunkFull()
+      {
+         return total - chunkStart >= STREAMING_CHUNK_SIZE;
+      }
+      
+      void startChunk()
+      {
+         chunkStart = total;
+      }
+   }
+
    private void initializeStateTransfer(OutputStream baos) throws IOException
    {
       MarshalledValueOutputStream out = new MarshalledValueOutputStream(baos);
@@ -19,6 +19,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.cache.DataNode;
 import org.jboss.cache.Fqn;
+import org.jboss.cache.Modification;
 import org.jboss.cache.TreeNode;
 import org.jboss.cache.TreeCache;
 import org.jboss.cache.aop.InternalDelegate;
@@ -55,6 +56,51 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
    private byte nodeType;
    private Set internalFqns;
    
+   /** The streamed state, positioned after the version; null for a byte[] */
+   private ObjectInputStream stream;
+   /** Whether the streamed state holds transient state */
+   private boolean streamedTransient;
+   /** Set once the streamed transient and associated state was read through */
+   private boolean streamPositioned;
+   /** Whether the streamed nodes below the root come in partitions */
+   private boolean partitioned;
+   /** Whether the streamed state ends with a modification log */
+   private boolean logged;
+   /** 
+    * The Fqn the Fqns of the state are moved under when integrating into 
+    * the buddy backup subtree, or <code>null</code>
+    */
+   private Fqn movedTo;
+   
+   /**
+    * Integrates state streamed by 
+    * {@link StateTransferGenerator_140#generateStateTransfer(DataNode, java.io.OutputStream, boolean, boolean, boolean)},
+    * reading it node by node.
+    * 
+    * @param in          the stream, from which the version has been read
+    * @param partitioned whether the nodes below the root were written by a 
+    *                    {@link PartitionedStateGenerator}
+    * @param logged      whether the transient state ends with the 
+    *                    modifications of a {@link ModificationLog}
+    */
+   StateTransferIntegrator_140(ObjectInputStream in, boolean partitioned,
+                               boolean logged, Fqn targetFqn, 
+                               TreeCache cache) throws Exception
+   {
+      this.targetFqn = targetFqn;
+      this.cache     = cache;
+      this.stream    = in;
+      this.partitioned = partitioned;
+      this.logged    = logged;
+      this.factory = NodeFactory.getInstance();
+      this.nodeType = cache.isNodeLockingOptimistic() 
+                                    ? NodeFactory.NODE_TYPE_OPTIMISTIC_NODE 
+                                    : NodeFactory.NODE_TYPE_TREENODE;
+      this.internalFqns = cache.getInternalFqns();
+      
+      streamedTransient = in.readBoolean();
+      streamPositioned = !streamedTransient;
+   }
    
    StateTransferIntegrator_140(byte[] state, Fqn targetFqn,  
                                TreeCache cache) throws Exception
@@ -85,7 +131,7 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
    public void integrateTransientState(DataNode target, ClassLoader cl) 
       throws Exception
    {
-      if (transientSize > 0) {
+      if (transientSize > 0 || streamedTransient) {
          
          ClassLoader oldCL = null;         
          try {
@@ -108,6 +154,13 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
             // 3. Set the associated state.  We only do this if the normal
             // transient state was set.
             integrateAssociatedState();
+            
+            if (stream != null) {
+               // 4. Replay what was modified while the state was generated
+               if (logged)
+                  integrateModifications(target);
+               streamPositioned = true;
+            }
          }
          finally {
             if (!transientSet) {
@@ -124,12 +177,26 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
    
    private void integrateAssociatedState() throws Exception
    {
-      if (associatedSize > 0 && cache instanceof PojoCache) {
+      ObjectInputStream in = null;
+      if (stream != null) {
+         if (stream.readBoolean()) {
+            if (cache instanceof PojoCache) {
+               in = stream;
+            }
+            else {
+               // skip it
+               while (stream.readObject() != null);
+            }
+         }
+      }
+      else if (associatedSize > 0 && cache instanceof PojoCache) {
+         ByteArrayInputStream in_stream=new ByteArrayInputStream(state, HEADER_LENGTH + transientSize, associatedSize);
+         in=new MarshalledValueInputStream(in_stream);
+      }
+      
+      if (in != null) {
          
          DataNode refMapNode = cache.get(InternalDelegate.JBOSS_INTERNAL_MAP);
-
-         ByteArrayInputStream in_stream=new ByteArrayInputStream(state, HEADER_LENGTH + transientSize, associatedSize);
-         MarshalledValueInputStream in=new MarshalledValueInputStream(in_stream);
          
          try {
             Object[] nameValue;
@@ -166,6 +233,23 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
    
    public void integratePersistentState() throws Exception
    {
+      if (stream != null) {
+         try {
+            if (!streamPositioned) {
+               log.error("transient state was not read through, cannot set persistent state");
+               return;
+            }
+            persistentSize = stream.readInt();
+            if (persistentSize > 0) {
+               state = new byte[persistentSize];
+               stream.readFully(state);
+            }
+         }
+         finally {
+            stream.close();
+         }
+      }
+      
       if(persistentSize > 0) {
          CacheLoader loader = cache.getCacheLoader();
          if(loader == null) {
@@ -203,11 +287,23 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
       
       target.removeAllChildren();
       
-      ByteArrayInputStream in_stream=new ByteArrayInputStream(state, HEADER_LENGTH, transientSize);
-      MarshalledValueInputStream in=new MarshalledValueInputStream(in_stream);
+      ObjectInputStream in;
+      if (stream != null) {
+         in = stream;
+      }
+      else {
+         ByteArrayInputStream in_stream=new ByteArrayInputStream(state, HEADER_LENGTH, transientSize);
+         in=new MarshalledValueInputStream(in_stream);
+      }
       
       // Read the first NodeData and integrate into our target
       NodeData nd = (NodeData) in.readObject();
+      if (nd == null) {
+         // streamed state of an internal subtree
+         target.clear();
+         integrateRetainedNodes(target, retainedNodes);
+         return;
+      }
       Map attrs = nd.getAttributes();
       if (attrs != null)
          target.put(attrs, true);
@@ -221,6 +317,8 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
                      && !tferFqn.isChildOrEquals(tgtFqn);
       // If it is an integration, calculate how many levels of offset
       int offset = move ? tgtFqn.size() - tferFqn.size() : 0;
+      if (offset > 0)
+         movedTo = tgtFqn.getFqnChild(offset);
       
       RegionManager erm = cache.getEvictionRegionManager();
       if (erm != null)
@@ -229,9 +327,14 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
          if (regions == null || regions.length == 0)
             erm = null;
       }
-      integrateStateTransferChildren(target, offset, in, erm);
+      if (partitioned)
+         new PartitionedStateIntegrator(cache, factory, nodeType, 
+               cache.getStateTransferThreads()).integrate(target, offset, in, erm);
+      else
+         integrateStateTransferChildren(target, offset, in, erm);
       
-      in.close();
+      if (stream == null)
+         in.close();
       
       integrateRetainedNodes(target, retainedNodes);
    }
@@ -280,26 +383,7 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
             parent.addChild(name, target);
             
             // Make sure any eviction policy is aware of this node
-            if (erm != null)
-            {
-               Region region = null;
-               try
-               {
-                  region = erm.getRegion(fqn);
-               }
-               catch (RuntimeException e)
-               {
-                  if (erm.hasRegion(RegionManager.DEFAULT_REGION))
-                     throw e;
-                  // else the fqn is not associated with an eviction region
-               }
-               
-               if (region != null)
-               {
-                  region.putNodeEvent(new EvictedEventNode(fqn, EvictedEventNode.ADD_NODE_EVENT, 
-                                                           attrs == null ? 0 : attrs.size()));
-               }
-            }
+            notifyEvictionRegion(erm, fqn, attrs);
             
             // Recursively call, which will walk down the tree
             // and return the next NodeData that's a child of our parent
@@ -313,8 +397,152 @@ class StateTransferIntegrator_140 implements StateTransferIntegrator
       return null;
    }
    
+   /**
+    * Applies the modifications read from the stream, which were made on the
+    * provider while it generated the state, to the integrated subtree.
+    */
+   private void integrateModifications(DataNode target) 
+         throws IOException, ClassNotFoundException
+   {
+      int count = 0;
+      Modification m;
+      while ((m = (Modification) stream.readObject()) != null) {
+         integrateModification(target, m);
+         count++;
+      }
+      
+      if (log.isTraceEnabled())
+         log.trace(count + " modifications successfully integrated for " + targetFqn);
+   }
+   
+   private void integrateModification(DataNode target, Modification m)
+   {
+      Fqn fqn = m.getFqn();
+      if (movedTo != null)
+         fqn = new Fqn(movedTo, fqn);
+      Fqn tgtFqn = target.getFqn();
+      
+      if (!fqn.isChildOrEquals(tgtFqn)) {
+         // an ancestor of the subtree was removed
+         if (m.getType() == Modification.REMOVE_NODE) {
+            target.clear();
+            removeChildren(target);
+         }
+         return;
+      }
+      
+      DataNode node;
+      switch (m.getType()) {
+         case Modification.PUT_KEY_VALUE:
+            getOrCreateNode(target, fqn).put(m.getKey(), m.getValue());
+            break;
+         case Modification.PUT_DATA:
+            getOrCreateNode(target, fqn).put(m.getData());
+            break;
+         case Modification.PUT_DATA_ERASE:
+            getOrCreateNode(target, fqn).put(m.getData(), true);
+            break;
+         case Modification.REMOVE_NODE:
+            if (fqn.equals(tgtFqn)) {
+               target.clear();
+               removeChildren(target);
+            }
+            else if ((node = findNode(target, fqn)) != null) {
+               node.getParent().removeChild(node.getName());
+            }
+            break;
+         case Modification.REMOVE_KEY_VALUE:
+            if ((node = findNode(target, fqn)) != null)
+               node.remove(m.getKey());
+            break;
+         case Modification.REMOVE_DATA:
+            if ((node = findNode(target, fqn)) != null)
+               node.clear();
+            break;
+         default:
+            log.warn("Ignoring unexpected modification " + m + " in transferred state");
+      }
+   }
+   
+   private DataNode findNode(DataNode target, Fqn fqn)
+   {
+      DataNode node = target;
+      for (int i = target.getFqn().size(); i < fqn.size() && node != null; i++)
+         node = (DataNode) node.getChild(fqn.get(i));
+      return node;
+   }
+   
+   private DataNode getOrCreateNode(DataNode target, Fqn fqn)
+   {
+      DataNode node = target;
+      for (int i = target.getFqn().size(); i < fqn.size(); i++) {
+         Object name = fqn.get(i);
+         DataNode child = (DataNode) node.getChild(name);
+         if (child == null) {
+            child = factory.createDataNode(nodeType, 
+                                           name, 
+                                           fqn.getFqnChild(i + 1), 
+                                           node, 
+                                           null, 
+                                           true,
+                                           cache);
+            node.addChild(name, child);
+         }
+         node = child;
+      }
+      return node;
+   }
+   
+   /**
+    * Removes the children of a node, but for internal nodes.
+    */
+   private void removeChildren(DataNode node)
+   {
+      Map children = node.getChildren();
+      if (children == null)
+         return;
+      Object[] names = children.keySet().toArray();
+      for (int i = 0; i < names.length; i++) {
+         if (!internalFqns.contains(new Fqn(node.getFqn(), names[i])))
+            node.removeChild(names[i]);
+      }
+   }
+   
+   /**
+    * Tells the eviction region of <code>fqn</code>, if any, that the node 
+    * was added.
+    * 
+    * @param erm the eviction region manager, or <code>null</code>
+    */
+   static void notifyEvictionRegion(RegionManager erm, Fqn fqn, Map attrs)
+   {
+      if (erm == null)
+         return;
+      
+      Region region = null;
+      try
+      {
+         region = erm.getRegion(fqn);
+      }
+      catch (RuntimeException e)
+      {
+         if (erm.hasRegion(RegionManager.DEFAULT_REGION))
+            throw e;
+         // else the fqn is not associated with an eviction region
+      }
+      
+      if (region != null)
+      {
+         region.putNodeEvent(new EvictedEventNode(fqn, EvictedEventNode.ADD_NODE_EVENT, 
+                                                  attrs == null ? 0 : attrs.size()));
+      }
+   }
+   
    private byte[] getPersistentState()
    {
+      if (stream != null)
+         return state;
+      
       byte[] result = new byte[persistentSize];
       System.arraycopy(state, HEADER_LENGTH + transientSize + associatedSize, result, 0, persistentSize);
       return result;
@@ -0,0 +1,34 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ * 
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.statetransfer;
+
+import java.io.OutputStream;
+
+import org.jboss.cache.DataNode;
+
+/**
+ * Writes state to a stream node by node, rather than into a byte[], so
+ * that memory use does not grow with the size of the state.
+ */
+public interface StreamingStateTransferGenerator
+{
+
+   /**
+    * Writes the state of the subtree to <code>os</code> and closes it.
+    * 
+    * @param rootNode         the root of the subtree, or <code>null</code> 
+    *                         to write an empty state
+    * @param modificationLog  the log of the modifications made while the 
+    *                         state is generated, if the caller does not hold
+    *                         the locks on the subtree, or <code>null</code>
+    */
+   void generateStateTransfer(DataNode rootNode, OutputStream os, 
+         boolean generateTransient, boolean generatePersistent, 
+         boolean suppressErrors, ModificationLog modificationLog) 
+         throws Throwable;
+
+}
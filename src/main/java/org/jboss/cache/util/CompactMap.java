@@ -0,0 +1,296 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+
+package org.jboss.cache.util;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map for the small attribute maps held by most nodes.  Up to
+ * {@link #MAX_INLINE_ENTRIES} entries are kept in a single array of alternating
+ * keys and values and looked up by a linear scan; a map with one entry costs an
+ * array of two slots instead of a <code>HashMap</code> with its table and entry
+ * objects.  Once the map grows past that size, the entries move into a
+ * <code>HashMap</code> which is used from then on.
+ * <p>
+ * Like <code>HashMap</code>, this class allows <code>null</code> keys and values
+ * and is not synchronized.  Iteration order is unspecified; removing an inline
+ * entry moves the last entry into its place.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class CompactMap extends AbstractMap implements Cloneable, Serializable
+{
+   private static final long serialVersionUID = 2516823720426310284L;
+
+   /**
+    * Maximum number of entries held in the inline array.
+    */
+   public static final int MAX_INLINE_ENTRIES = 8;
+
+   /**
+    * Keys at even and values at odd indices; <code>null</code> until the first put
+    * and after the entries moved into {@link #map}.
+    */
+   private Object[] table;
+
+   /**
+    * Number of inline entries.
+    */
+   private int size;
+
+   /**
+    * Holds the entries once there are more than {@link #MAX_INLINE_ENTRIES}.
+    */
+   private HashMap map;
+
+   public CompactMap()
+   {
+   }
+
+   public CompactMap(Map m)
+   {
+      putAll(m);
+   }
+
+   public int size()
+   {
+      return map != null ? map.size() : size;
+   }
+
+   public boolean isEmpty()
+   {
+      return size() == 0;
+   }
+
+   public boolean containsKey(Object key)
+   {
+      return map != null ? map.containsKey(key) : indexOf(key) >= 0;
+   }
+
+   public Object get(Object key)
+   {
+      if (map != null)
+         return map.get(key);
+      int i = indexOf(key);
+      return i < 0 ? null : table[i + 1];
+   }
+
+   public Object put(Object key, Object value)
+   {
+      if (map != null)
+         return map.put(key, value);
+      int i = indexOf(key);
+      if (i >= 0)
+      {
+         Object old = table[i + 1];
+         table[i + 1] = value;
+         return old;
+      }
+      if (size == MAX_INLINE_ENTRIES)
+      {
+         HashMap m = new HashMap(MAX_INLINE_ENTRIES * 4);
+         for (int j = 0; j < size << 1; j += 2)
+            m.put(table[j], table[j + 1]);
+         map = m;
+         table = null;
+         size = 0;
+         return m.put(key, value);
+      }
+      if (table == null)
+      {
+         table = new Object[2];
+      }
+      else if (size << 1 == table.length)
+      {
+         Object[] grown = new Object[Math.min(table.length << 1, MAX_INLINE_ENTRIES << 1)];
+         System.arraycopy(table, 0, grown, 0, table.length);
+         table = grown;
+      }
+      table[size << 1] = key;
+      table[(size << 1) + 1] = value;
+      size++;
+      return null;
+   }
+
+   public Object remove(Object key)
+   {
+      if (map != null)
+         return map.remove(key);
+      int i = indexOf(key);
+      if (i < 0)
+         return null;
+      Object old = table[i + 1];
+      removeAt(i);
+      return old;
+   }
+
+   public void clear()
+   {
+      table = null;
+      size = 0;
+      map = null;
+   }
+
+   public Set entrySet()
+   {
+      return new EntrySet();
+   }
+
+   public Object clone()
+   {
+      try
+      {
+         CompactMap clone = (CompactMap) super.clone();
+         if (table != null)
+            clone.table = (Object[]) table.clone();
+         if (map != null)
+            clone.map = (HashMap) map.clone();
+         return clone;
+      }
+      catch (CloneNotSupportedException e)
+      {
+         throw new InternalError(e.toString());
+      }
+   }
+
+   /**
+    * Returns the index of the key's slot in {@link #table}, or -1.
+    */
+   private int indexOf(Object key)
+   {
+      Object[] tab = table;
+      int end = size << 1;
+      for (int i = 0; i < end; i += 2)
+      {
+         Object k = tab[i];
+         if (k == key || (key != null && key.equals(k)))
+            return i;
+      }
+      return -1;
+   }
+
+   /**
+    * Removes the inline entry at the given key index by moving the last entry into its place.
+    */
+   private void removeAt(int i)
+   {
+      int last = (size - 1) << 1;
+      table[i] = table[last];
+      table[i + 1] = table[last + 1];
+      table[last] = null;
+      table[last + 1] = null;
+      size--;
+   }
+
+   private class EntrySet extends AbstractSet
+   {
+      public int size()
+      {
+         return CompactMap.this.size();
+      }
+
+      public void clear()
+      {
+         CompactMap.this.clear();
+      }
+
+      public Iterator iterator()
+      {
+         if (map != null)
+            return map.entrySet().iterator();
+         return new InlineIterator();
+      }
+   }
+
+   private class InlineIterator implements Iterator
+   {
+      private int next = 0;
+      private int lastReturned = -1;
+
+      public boolean hasNext()
+      {
+         return next < size << 1;
+      }
+
+      public Object next()
+      {
+         if (!hasNext())
+            throw new NoSuchElementException();
+         lastReturned = next;
+         next += 2;
+         return new InlineEntry(table[lastReturned], table[lastReturned + 1]);
+      }
+
+      public void remove()
+      {
+         if (lastReturned < 0)
+            throw new IllegalStateException();
+         removeAt(lastReturned);
+         // the last entry now sits at lastReturned, and has not been returned yet
+         next = lastReturned;
+         lastReturned = -1;
+      }
+   }
+
+   private class InlineEntry implements Map.Entry
+   {
+      private final Object key;
+      private Object value;
+
+      InlineEntry(Object key, Object value)
+      {
+         this.key = key;
+         this.value = value;
+      }
+
+      public Object getKey()
+      {
+         return key;
+      }
+
+      public Object getValue()
+      {
+         return value;
+      }
+
+      public Object setValue(Object value)
+      {
+         Object old = this.value;
+         this.value = value;
+         put(key, value);
+         return old;
+      }
+
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Map.Entry))
+            return false;
+         Map.Entry e = (Map.Entry) o;
+         return (key == null ? e.getKey() == null : key.equals(e.getKey())) &&
+                (value == null ? e.getValue() == null : value.equals(e.getValue()));
+      }
+
+      public int hashCode()
+      {
+         return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+      }
+
+      public String toString()
+      {
+         return key + "=" + value;
+      }
+   }
+}
@@ -0,0 +1,206 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+
+package org.jboss.cache.util;
+
+import java.io.IOException;
+
+/**
+ * A pure Java compressor writing the LZ4 block format: a sequence of literal runs, each
+ * followed by a copy of earlier bytes given by a 2 byte offset and a length.  Matches are
+ * found through a hash table of the last position of every 4 byte sequence, so compression
+ * makes a single pass over the input, and decompression is mostly array copies.  It
+ * compresses less than deflate, at a small fraction of the cost.
+ * <p/>
+ * The original length is not part of the block; callers keep it, see
+ * {@link #decompress(byte[], int, int, byte[], int, int)}.
+ *
+ * @version $Id$
+ */
+public class LZ4Codec
+{
+   private static final int MIN_MATCH = 4;
+
+   /**
+    * The last bytes are always literals, and no match starts in the last MFLIMIT bytes.
+    */
+   private static final int LAST_LITERALS = 5;
+
+   private static final int MFLIMIT = 12;
+
+   private static final int MAX_OFFSET = 0xFFFF;
+
+   private static final int HASH_BITS = 12;
+
+   private static final int RUN_MASK = 0xF;
+
+   /**
+    * Returns the largest number of bytes a block of <code>length</code> bytes compresses to.
+    */
+   public static int maxCompressedLength(int length)
+   {
+      return length + length / 255 + 16;
+   }
+
+   /**
+    * Compresses <code>srcLen</code> bytes into <code>dst</code>, which must have room for
+    * {@link #maxCompressedLength(int)} bytes.
+    *
+    * @return the number of bytes written
+    */
+   public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff)
+   {
+      int end = srcOff + srcLen;
+      int anchor = srcOff;
+      int d = dstOff;
+
+      if (srcLen > MFLIMIT)
+      {
+         // positions relative to srcOff, plus one so that 0 means none
+         int[] table = new int[1 << HASH_BITS];
+         int matchLimit = end - MFLIMIT;
+         int i = srcOff;
+         while (i < matchLimit)
+         {
+            int sequence = readInt(src, i);
+            int h = hash(sequence);
+            int ref = table[h] - 1 + srcOff;
+            table[h] = i - srcOff + 1;
+            if (ref < srcOff || i - ref > MAX_OFFSET || readInt(src, ref) != sequence)
+            {
+               // skip faster through data which does not compress
+               i += 1 + ((i - anchor) >>> 6);
+               continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            int matchEnd = end - LAST_LITERALS;
+            while (i + matchLength < matchEnd && src[i + matchLength] == src[ref + matchLength]) matchLength++;
+
+            d = writeSequence(src, anchor, i - anchor, i - ref, matchLength, dst, d);
+            i += matchLength;
+            anchor = i;
+            if (i - 2 > srcOff && i - 2 < matchLimit) table[hash(readInt(src, i - 2))] = i - 2 - srcOff + 1;
+         }
+      }
+
+      // the remaining literals, without a match
+      int literals = end - anchor;
+      int tokenPos = d++;
+      dst[tokenPos] = (byte) (Math.min(literals, RUN_MASK) << 4);
+      if (literals >= RUN_MASK) d = writeLength(literals - RUN_MASK, dst, d);
+      System.arraycopy(src, anchor, dst, d, literals);
+      d += literals;
+      return d - dstOff;
+   }
+
+   /**
+    * Decompresses a block into exactly <code>dstLen</code> bytes.
+    *
+    * @throws IOException if the block is malformed or does not decompress to dstLen bytes
+    */
+   public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException
+   {
+      int s = srcOff;
+      int srcEnd = srcOff + srcLen;
+      int d = dstOff;
+      int dstEnd = dstOff + dstLen;
+      try
+      {
+         while (s < srcEnd)
+         {
+            int token = src[s++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK)
+            {
+               int b;
+               do
+               {
+                  if (s == srcEnd) throw new IOException("Malformed LZ4 block: truncated");
+                  b = src[s++] & 0xFF;
+                  literals += b;
+               }
+               while (b == 255);
+            }
+            if (literals > srcEnd - s || literals > dstEnd - d) throw new IOException("Malformed LZ4 block: literals overrun");
+            System.arraycopy(src, s, dst, d, literals);
+            s += literals;
+            d += literals;
+            if (s == srcEnd) break;
+
+            if (srcEnd - s < 2) throw new IOException("Malformed LZ4 block: truncated");
+            int offset = (src[s] & 0xFF) | ((src[s + 1] & 0xFF) << 8);
+            s += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK)
+            {
+               int b;
+               do
+               {
+                  if (s == srcEnd) throw new IOException("Malformed LZ4 block: truncated");
+                  b = src[s++] & 0xFF;
+                  matchLength += b;
+               }
+               while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int ref = d - offset;
+            if (offset == 0 || ref < dstOff || matchLength > dstEnd - d) throw new IOException("Malformed LZ4 block: invalid match");
+            if (offset >= matchLength)
+            {
+               System.arraycopy(dst, ref, dst, d, matchLength);
+               d += matchLength;
+            }
+            else
+            {
+               // overlapping, repeats the last offset bytes
+               for (int n = 0; n < matchLength; n++) dst[d++] = dst[ref++];
+            }
+         }
+      }
+      catch (ArrayIndexOutOfBoundsException e)
+      {
+         throw new IOException("Malformed LZ4 block: truncated");
+      }
+      if (d != dstEnd) throw new IOException("Malformed LZ4 block: " + (d - dstOff) + " bytes instead of " + dstLen);
+   }
+
+   private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLength, byte[] dst, int d)
+   {
+      int match = matchLength - MIN_MATCH;
+      int tokenPos = d++;
+      dst[tokenPos] = (byte) ((Math.min(literals, RUN_MASK) << 4) | Math.min(match, RUN_MASK));
+      if (literals >= RUN_MASK) d = writeLength(literals - RUN_MASK, dst, d);
+      System.arraycopy(src, literalStart, dst, d, literals);
+      d += literals;
+      dst[d++] = (byte) offset;
+      dst[d++] = (byte) (offset >>> 8);
+      if (match >= RUN_MASK) d = writeLength(match - RUN_MASK, dst, d);
+      return d;
+   }
+
+   private static int writeLength(int length, byte[] dst, int d)
+   {
+      while (length >= 255)
+      {
+         dst[d++] = (byte) 255;
+         length -= 255;
+      }
+      dst[d++] = (byte) length;
+      return d;
+   }
+
+   private static int readInt(byte[] b, int i)
+   {
+      return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | (b[i + 3] << 24);
+   }
+
+   private static int hash(int sequence)
+   {
+      return (sequence * -1640531535) >>> (32 - HASH_BITS);
+   }
+}
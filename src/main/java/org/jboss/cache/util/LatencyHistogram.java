@@ -0,0 +1,217 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+
+package org.jboss.cache.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A histogram of latencies in nanoseconds, cheap enough to be updated on every cache call.
+ * <p/>
+ * Like an HDR histogram, buckets are log-linear: values below 64 have a bucket each, and
+ * every power of two above that is split into 32 buckets, so a value is known to within
+ * about 3%.  Values of 2^36 nanoseconds (about 68 seconds) and more go into the last
+ * bucket.  Reported percentiles are the highest value of the bucket they fall into.
+ * <p/>
+ * Recording is lock free.  Threads update one of a set of stripes chosen by thread id,
+ * each an array of counters created on first use, so threads on different processors
+ * rarely write to the same counters.  Reads sum up the stripes; a read concurrent with
+ * recording or {@link #reset()} may see some of the latest values but not others.
+ *
+ * @version $Id$
+ */
+public class LatencyHistogram
+{
+   /**
+    * Each power of two is split into 2^SUB_BUCKET_BITS buckets.
+    */
+   private static final int SUB_BUCKET_BITS = 5;
+
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+   /**
+    * Values from 2^MAX_BITS on are recorded in the last bucket.
+    */
+   private static final int MAX_BITS = 36;
+
+   private static final int BUCKETS = bucketFor((1L << MAX_BITS) - 1) + 1;
+
+   /**
+    * Slot after the buckets holding the sum of all recorded values.
+    */
+   private static final int TOTAL = BUCKETS;
+
+   /**
+    * Number of stripes; the number of processors rounded up to a power of two, at most 8.
+    */
+   private static final int STRIPES;
+
+   static
+   {
+      int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+      int stripes = 1;
+      while (stripes < cpus) stripes <<= 1;
+      STRIPES = stripes;
+   }
+
+   private final AtomicReferenceArray stripes = new AtomicReferenceArray(STRIPES);
+
+   /**
+    * Records one value.
+    *
+    * @param nanos the latency in nanoseconds; negative values are recorded as 0
+    */
+   public void record(long nanos)
+   {
+      record(nanos, 1);
+   }
+
+   /**
+    * Records the same value a number of times.
+    *
+    * @param nanos   the latency in nanoseconds; negative values are recorded as 0
+    * @param samples how often to record it
+    */
+   public void record(long nanos, int samples)
+   {
+      if (nanos < 0) nanos = 0;
+      AtomicLongArray stripe = stripe();
+      stripe.getAndAdd(bucketFor(nanos), samples);
+      stripe.getAndAdd(TOTAL, nanos * samples);
+   }
+
+   /**
+    * Returns the number of recorded values.
+    */
+   public long getCount()
+   {
+      long[] counts = new long[BUCKETS];
+      addTo(counts);
+      long count = 0;
+      for (int i = 0; i < counts.length; i++) count += counts[i];
+      return count;
+   }
+
+   /**
+    * Returns the sum of all recorded values, in nanoseconds.
+    */
+   public long getTotalTime()
+   {
+      long total = 0;
+      for (int i = 0; i < STRIPES; i++)
+      {
+         AtomicLongArray stripe = (AtomicLongArray) stripes.get(i);
+         if (stripe != null) total += stripe.get(TOTAL);
+      }
+      return total;
+   }
+
+   /**
+    * Returns the value below which the given percentage of recorded values fall, in
+    * nanoseconds, or 0 if nothing has been recorded.
+    *
+    * @param percentile between 0 and 100, e.g. 99.9
+    */
+   public long getValueAtPercentile(double percentile)
+   {
+      long[] counts = new long[BUCKETS];
+      addTo(counts);
+      return valueAtPercentile(counts, percentile);
+   }
+
+   /**
+    * Returns the value at the given percentile of all values recorded in the given histograms,
+    * in nanoseconds, or 0 if nothing has been recorded.
+    *
+    * @param histograms the histograms to combine
+    * @param percentile between 0 and 100, e.g. 99.9
+    */
+   public static long getValueAtPercentile(LatencyHistogram[] histograms, double percentile)
+   {
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < histograms.length; i++) histograms[i].addTo(counts);
+      return valueAtPercentile(counts, percentile);
+   }
+
+   /**
+    * Discards all recorded values.
+    */
+   public void reset()
+   {
+      for (int i = 0; i < STRIPES; i++)
+      {
+         AtomicLongArray stripe = (AtomicLongArray) stripes.get(i);
+         if (stripe == null) continue;
+         for (int j = 0; j < stripe.length(); j++) stripe.set(j, 0);
+      }
+   }
+
+   private AtomicLongArray stripe()
+   {
+      int i = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+      AtomicLongArray stripe = (AtomicLongArray) stripes.get(i);
+      if (stripe == null)
+      {
+         stripes.compareAndSet(i, null, new AtomicLongArray(BUCKETS + 1));
+         stripe = (AtomicLongArray) stripes.get(i);
+      }
+      return stripe;
+   }
+
+   private void addTo(long[] counts)
+   {
+      for (int i = 0; i < STRIPES; i++)
+      {
+         AtomicLongArray stripe = (AtomicLongArray) stripes.get(i);
+         if (stripe == null) continue;
+         for (int j = 0; j < BUCKETS; j++) counts[j] += stripe.get(j);
+      }
+   }
+
+   private static long valueAtPercentile(long[] counts, double percentile)
+   {
+      long count = 0;
+      for (int i = 0; i < counts.length; i++) count += counts[i];
+      if (count == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++)
+      {
+         seen += counts[i];
+         if (seen >= rank)
+            return highestValueIn(i);
+      }
+      return highestValueIn(counts.length - 1);
+   }
+
+   /**
+    * Values below 2 * SUB_BUCKETS have a bucket each.  Above, a value whose highest bit is
+    * bit <code>b</code> is shifted right by <code>s = b - SUB_BUCKET_BITS</code>, leaving
+    * SUB_BUCKET_BITS + 1 bits in [SUB_BUCKETS, 2 * SUB_BUCKETS), and goes to bucket
+    * <code>s * SUB_BUCKETS + (value >>> s)</code>.
+    */
+   static int bucketFor(long nanos)
+   {
+      if (nanos >= 1L << MAX_BITS)
+         nanos = (1L << MAX_BITS) - 1;
+      if (nanos < SUB_BUCKETS << 1)
+         return (int) nanos;
+      int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+      return (shift << SUB_BUCKET_BITS) + (int) (nanos >>> shift);
+   }
+
+   static long highestValueIn(int bucket)
+   {
+      if (bucket < SUB_BUCKETS << 1)
+         return bucket;
+      int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+      long mantissa = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+      return ((mantissa + 1) << shift) - 1;
+   }
+}
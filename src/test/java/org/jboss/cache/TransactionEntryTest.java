@@ -0,0 +1,96 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.jboss.cache.marshall.JBCMethodCall;
+import org.jboss.cache.marshall.MethodCallFactory;
+import org.jboss.cache.marshall.MethodDeclarations;
+
+/**
+ * Tests the deltas replicating puts of a map, see {@link TransactionEntry#createDelta}.
+ */
+public class TransactionEntryTest extends TestCase
+{
+   private static final Fqn FQN = Fqn.fromString("/a/b");
+
+   private static JBCMethodCall put(Map data)
+   {
+      return MethodCallFactory.create(MethodDeclarations.putDataMethodLocal,
+              new Object[]{null, FQN, data, Boolean.TRUE});
+   }
+
+   private static Map changed(List delta)
+   {
+      assertEquals(1, delta.size());
+      JBCMethodCall call = (JBCMethodCall) delta.get(0);
+      assertEquals(MethodDeclarations.putDataMethodLocal_id, call.getMethodId());
+      return (Map) call.getArgs()[2];
+   }
+
+   public void testChangedValue()
+   {
+      Map before = new HashMap();
+      before.put("a", "1");
+      before.put("b", "2");
+      Map data = new HashMap(before);
+      data.put("b", "3");
+
+      Map changed = changed(TransactionEntry.createDelta(put(data), before));
+      assertEquals(1, changed.size());
+      assertEquals("3", changed.get("b"));
+   }
+
+   /**
+    * The data before the put holds the instance the application mutated, so the two
+    * compare equal; the value must be replicated all the same.
+    */
+   public void testValueMutatedInPlaceAndPutAgain()
+   {
+      List list = new ArrayList();
+      list.add("x");
+      Map before = new HashMap();
+      before.put("a", "1");
+      before.put("b", list);
+      before.put("c", new ArrayList(list));
+
+      list.add("y");
+      Map data = new HashMap();
+      data.put("a", "1");
+      data.put("b", list);
+      // equal to the previous value, but another instance
+      data.put("c", new ArrayList((List) before.get("c")));
+
+      Map changed = changed(TransactionEntry.createDelta(put(data), before));
+      assertEquals(1, changed.size());
+      assertSame(list, changed.get("b"));
+   }
+
+   public void testNothingChanged()
+   {
+      Map before = new HashMap();
+      before.put("a", "1");
+      before.put("b", new Integer(2));
+
+      assertTrue(TransactionEntry.createDelta(put(new HashMap(before)), before).isEmpty());
+   }
+
+   public void testNoSmallerDelta()
+   {
+      Map before = new HashMap();
+      before.put("a", "1");
+      Map data = new HashMap();
+      data.put("a", "2");
+
+      assertNull(TransactionEntry.createDelta(put(data), before));
+   }
+}
@@ -0,0 +1,186 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.eviction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import org.jboss.cache.Fqn;
+
+/**
+ * Tests the heap of a {@link BaseSortedEvictionQueue}, through the {@link LFUQueue} and the
+ * {@link ElementSizeQueue}.
+ */
+public class BaseSortedEvictionQueueTest extends TestCase
+{
+   private static final Fqn PARENT = Fqn.fromString("/region");
+
+   private Random random = new Random(42);
+
+   private static NodeEntry entry(int i)
+   {
+      return new NodeEntry(new Fqn(PARENT, new Integer(i)));
+   }
+
+   /**
+    * Compares as the queue does: by its comparator, then oldest first.
+    */
+   private static int compare(Comparator comparator, NodeEntry ne, NodeEntry ne2)
+   {
+      int result = comparator.compare(ne, ne2);
+      if (result != 0)
+         return result;
+      long created = ne.getCreationTimeStamp();
+      long created2 = ne2.getCreationTimeStamp();
+      return created < created2 ? -1 : (created == created2 ? 0 : 1);
+   }
+
+   /**
+    * Checks that every entry knows its position and is not sorted before its parent, and
+    * that the first entry is the first to evict.  {@link BaseSortedEvictionQueue#iterate()}
+    * iterates in heap order.
+    */
+   private static void assertHeap(BaseSortedEvictionQueue queue, Comparator comparator, List entries)
+   {
+      List heap = new ArrayList();
+      for (Iterator it = queue.iterate(); it.hasNext();)
+         heap.add(it.next());
+      assertEquals(entries.size(), heap.size());
+      assertEquals(entries.size(), queue.getNumberOfNodes());
+
+      int elements = 0;
+      for (int i = 0; i < heap.size(); i++)
+      {
+         NodeEntry ne = (NodeEntry) heap.get(i);
+         assertEquals("index of " + ne, i, ne.index);
+         assertSame(ne, queue.getNodeEntry(ne.getFqn()));
+         if (i > 0)
+         {
+            NodeEntry parent = (NodeEntry) heap.get((i - 1) / 2);
+            assertTrue(parent + " sorted after its child " + ne, compare(comparator, parent, ne) <= 0);
+         }
+         elements += ne.getNumberOfElements();
+      }
+      assertEquals(elements, queue.getNumberOfElements());
+
+      for (Iterator it = entries.iterator(); it.hasNext();)
+      {
+         NodeEntry ne = (NodeEntry) it.next();
+         assertTrue(compare(comparator, queue.getFirstNodeEntry(), ne) <= 0);
+      }
+   }
+
+   private void checkRandomOperations(BaseSortedEvictionQueue queue, Comparator comparator)
+   {
+      List entries = new ArrayList();
+      int next = 0;
+      for (int op = 0; op < 2000; op++)
+      {
+         int action = entries.isEmpty() ? 0 : random.nextInt(4);
+         switch (action)
+         {
+            case 0:
+               NodeEntry added = entry(next++);
+               added.setCreationTimeStamp(random.nextInt(50));
+               added.setNumberOfNodeVisits(random.nextInt(10));
+               added.setNumberOfElements(random.nextInt(10));
+               queue.addNodeEntry(added);
+               entries.add(added);
+               break;
+            case 1:
+               NodeEntry removed = (NodeEntry) entries.remove(random.nextInt(entries.size()));
+               queue.removeNodeEntry(removed);
+               assertNull(queue.getNodeEntry(removed.getFqn()));
+               break;
+            case 2:
+               NodeEntry visited = (NodeEntry) entries.get(random.nextInt(entries.size()));
+               visited.setNumberOfNodeVisits(random.nextInt(10));
+               break;
+            default:
+               NodeEntry resized = (NodeEntry) entries.get(random.nextInt(entries.size()));
+               resized.setNumberOfElements(random.nextInt(10));
+         }
+         assertHeap(queue, comparator, entries);
+      }
+
+      // a removed entry is no longer moved by its setters
+      NodeEntry removed = (NodeEntry) entries.remove(0);
+      queue.removeNodeEntry(removed);
+      removed.setNumberOfNodeVisits(-1);
+      removed.setNumberOfElements(Integer.MAX_VALUE);
+      assertHeap(queue, comparator, entries);
+   }
+
+   public void testLFUHeap()
+   {
+      checkRandomOperations(new LFUQueue(), new LFUQueue.LFUComparator());
+   }
+
+   public void testElementSizeHeap()
+   {
+      checkRandomOperations(new ElementSizeQueue(), new ElementSizeQueue.MaxElementComparator());
+   }
+
+   /**
+    * Entries the comparator finds equal are evicted oldest first, whatever the order in
+    * which they were added or changed.
+    */
+   public void testEqualEntriesEvictedOldestFirst()
+   {
+      LFUQueue queue = new LFUQueue();
+      List entries = new ArrayList();
+      for (int i = 0; i < 100; i++)
+      {
+         NodeEntry ne = entry(i);
+         ne.setCreationTimeStamp(1000 + i);
+         entries.add(ne);
+      }
+      Collections.shuffle(entries, random);
+      for (Iterator it = entries.iterator(); it.hasNext();)
+      {
+         NodeEntry ne = (NodeEntry) it.next();
+         ne.setNumberOfNodeVisits(5);
+         queue.addNodeEntry(ne);
+      }
+      // a visit which leaves the count unchanged does not change the order either
+      for (Iterator it = entries.iterator(); it.hasNext();)
+         ((NodeEntry) it.next()).setNumberOfNodeVisits(5);
+
+      long last = Long.MIN_VALUE;
+      while (queue.getNumberOfNodes() > 0)
+      {
+         NodeEntry first = queue.getFirstNodeEntry();
+         assertTrue(first.getCreationTimeStamp() > last);
+         last = first.getCreationTimeStamp();
+         queue.removeNodeEntry(first);
+      }
+      assertEquals(1099, last);
+   }
+
+   public void testFewerVisitsEvictedFirst()
+   {
+      LFUQueue queue = new LFUQueue();
+      NodeEntry older = entry(1);
+      older.setCreationTimeStamp(1);
+      NodeEntry newer = entry(2);
+      newer.setCreationTimeStamp(2);
+      queue.addNodeEntry(older);
+      queue.addNodeEntry(newer);
+      assertSame(older, queue.getFirstNodeEntry());
+
+      older.setNumberOfNodeVisits(1);
+      assertSame(newer, queue.getFirstNodeEntry());
+
+      newer.setNumberOfNodeVisits(2);
+      assertSame(older, queue.getFirstNodeEntry());
+   }
+}
@@ -0,0 +1,108 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.interceptors;
+
+import javax.transaction.TransactionManager;
+
+import junit.framework.TestCase;
+import org.jboss.cache.DataNode;
+import org.jboss.cache.Fqn;
+import org.jboss.cache.TreeCache;
+
+/**
+ * Tests that an operation which does not read lock the ancestors of its node, see
+ * {@link TreeCache#setAncestorLockElision(boolean)}, is not lost to a concurrent
+ * removal of one of them.
+ */
+public class AncestorLockElisionTest extends TestCase
+{
+   private static final Fqn PARENT = Fqn.fromString("/a/b");
+   private static final Fqn CHILD = Fqn.fromString("/a/b/c");
+
+   private TreeCache cache;
+
+   protected void setUp() throws Exception
+   {
+      cache = new TreeCache();
+      cache.setCacheMode("LOCAL");
+      cache.setUseInterceptorMbeans(false);
+      cache.setTransactionManagerLookupClass("org.jboss.cache.DummyTransactionManagerLookup");
+      cache.setNodeLockingScheme("PESSIMISTIC");
+      cache.setIsolationLevel("REPEATABLE_READ");
+      cache.setLockAcquisitionTimeout(10000);
+      cache.setAncestorLockElision(true);
+      cache.startService();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      cache.stopService();
+      cache.destroyService();
+   }
+
+   /**
+    * The node a transaction has written must be in the tree until the transaction
+    * completes, whichever of the put and the removal of its parent locks first.
+    */
+   public void testPutRacingAncestorRemove() throws Exception
+   {
+      TransactionManager tm = cache.getTransactionManager();
+      for (int i = 0; i < 500; i++)
+      {
+         cache.put(PARENT, "k", "v");
+
+         final Exception[] failure = new Exception[1];
+         Thread remover = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  cache.remove(PARENT);
+               }
+               catch (Exception e)
+               {
+                  failure[0] = e;
+               }
+            }
+         };
+
+         tm.begin();
+         try
+         {
+            remover.start();
+            if (i % 2 == 0) Thread.yield();
+            cache.put(CHILD, "k", new Integer(i));
+
+            DataNode child = cache.peek(CHILD);
+            assertNotNull("iteration " + i + ": the put was removed", child);
+            assertEquals(new Integer(i), child.get("k"));
+         }
+         finally
+         {
+            tm.commit();
+         }
+
+         remover.join(20000);
+         assertFalse(remover.isAlive());
+         if (failure[0] != null) throw failure[0];
+         cache.remove(Fqn.fromString("/a"));
+      }
+   }
+
+   /**
+    * A node put once its ancestor has been removed is added to the tree again.
+    */
+   public void testPutAfterAncestorRemove() throws Exception
+   {
+      cache.put(CHILD, "k", "v");
+      cache.remove(PARENT);
+      cache.put(CHILD, "k", "v2");
+      assertEquals("v2", cache.get(CHILD, "k"));
+      assertSame(cache.peek(CHILD), cache.peek(PARENT).getChild("c"));
+   }
+}
@@ -0,0 +1,261 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.marshall;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.jboss.cache.Fqn;
+import org.jboss.cache.GlobalTransaction;
+import org.jgroups.stack.IpAddress;
+
+/**
+ * Round trips of method calls through a {@link DirectObjectOutput} and a
+ * {@link DirectObjectInput}, as the {@link TreeCacheMarshaller140} writes and reads them
+ * with direct marshalling enabled.
+ */
+public class DirectMarshallingTest extends TestCase
+{
+   private VersionAwareMarshaller marshaller;
+
+   protected void setUp() throws Exception
+   {
+      marshaller = new VersionAwareMarshaller(new RegionManager(), false, false, "1.4.0.GA");
+      marshaller.setUseDirectMarshalling(true);
+   }
+
+   private static JBCMethodCall put(GlobalTransaction gtx, Fqn fqn, Object key, Object value)
+   {
+      return MethodCallFactory.create(MethodDeclarations.putKeyValMethodLocal,
+              new Object[]{gtx, fqn, key, value, Boolean.TRUE});
+   }
+
+   private static JBCMethodCall replicateAll(List calls)
+   {
+      return MethodCallFactory.create(MethodDeclarations.replicateAllMethod, new Object[]{calls});
+   }
+
+   private static void assertCallEquals(JBCMethodCall expected, Object actual)
+   {
+      assertTrue(actual instanceof JBCMethodCall);
+      JBCMethodCall call = (JBCMethodCall) actual;
+      assertEquals(expected.getMethodId(), call.getMethodId());
+      assertEquals(Arrays.asList(expected.getArgs()), Arrays.asList(call.getArgs()));
+   }
+
+   private byte[] marshall(Object o) throws Exception
+   {
+      byte[] buf = marshaller.objectToByteBuffer(o);
+      assertTrue(buf[0] == VersionAwareMarshaller.DIRECT_STREAM_MAGIC || buf[0] == VersionAwareMarshaller.DIRECT_STREAM_WITH_OBJECTS_MAGIC);
+      return buf;
+   }
+
+   private JBCMethodCall roundTrip(JBCMethodCall call) throws Exception
+   {
+      Object read = marshaller.objectFromByteBuffer(marshall(call));
+      assertCallEquals(call, read);
+      return (JBCMethodCall) read;
+   }
+
+   public void testRepeatedValuesWrittenAsReferences() throws Exception
+   {
+      IpAddress address = new IpAddress("127.0.0.1", 7800);
+      GlobalTransaction gtx = GlobalTransaction.create(address);
+      GlobalTransaction gtx2 = GlobalTransaction.create(address);
+      String key = "a fairly long key, repeated in every call of the batch";
+      List calls = new ArrayList();
+      for (int i = 0; i < 50; i++)
+      {
+         // equal, but not the same instances
+         calls.add(put(i % 2 == 0 ? gtx : gtx2, Fqn.fromString("/a/b"), new String(key), new Integer(i)));
+      }
+      JBCMethodCall call = replicateAll(calls);
+
+      byte[] buf = marshall(call);
+      assertEquals(VersionAwareMarshaller.DIRECT_STREAM_MAGIC, buf[0]);
+      assertTrue("the key is written once: " + buf.length, buf.length < key.length() + 50 * 24);
+
+      JBCMethodCall read = (JBCMethodCall) marshaller.objectFromByteBuffer(buf);
+      assertCallEquals(call, read);
+      List readCalls = (List) read.getArgs()[0];
+      for (int i = 0; i < readCalls.size(); i++)
+      {
+         Object[] args = ((JBCMethodCall) readCalls.get(i)).getArgs();
+         GlobalTransaction readGtx = (GlobalTransaction) args[0];
+         assertEquals(i % 2 == 0 ? gtx : gtx2, readGtx);
+         assertEquals(address, readGtx.getAddress());
+      }
+   }
+
+   public void testSiblingFqns() throws Exception
+   {
+      List calls = new ArrayList();
+      calls.add(put(null, Fqn.fromString("/a/b/c"), "k", "v"));
+      calls.add(put(null, Fqn.fromString("/a/b/d"), "k", "v"));
+      calls.add(put(null, Fqn.fromString("/a/b/e"), "k", "v"));
+      calls.add(put(null, Fqn.fromString("/a/b"), "k", "v"));
+      calls.add(put(null, Fqn.fromString("/a/x"), "k", "v"));
+      calls.add(put(null, Fqn.fromString("/a"), "k", "v"));
+      calls.add(put(null, Fqn.fromString("/z"), "k", "v"));
+      calls.add(put(null, Fqn.fromString("/a/b/d"), "k", "v"));
+      calls.add(put(null, new Fqn(Fqn.fromString("/a/b"), new Integer(7)), "k", "v"));
+      calls.add(put(null, new Fqn(new Object[]{new Integer(1), new Integer(2)}), "k", "v"));
+      calls.add(put(null, new Fqn(new Object[]{new Integer(1), new Integer(3)}), "k", "v"));
+      roundTrip(replicateAll(calls));
+   }
+
+   public void testRootFqn() throws Exception
+   {
+      List calls = new ArrayList();
+      calls.add(put(null, Fqn.ROOT, "k", "v"));
+      calls.add(put(null, Fqn.fromString("/a"), "k", "v"));
+      calls.add(put(null, Fqn.ROOT, "k", "v"));
+      JBCMethodCall read = roundTrip(replicateAll(calls));
+      Fqn fqn = (Fqn) ((JBCMethodCall) ((List) read.getArgs()[0]).get(0)).getArgs()[1];
+      assertTrue(fqn.isRoot());
+   }
+
+   public void testValuesInObjectStream() throws Exception
+   {
+      Map data = new HashMap();
+      data.put("date", new Date(1000));
+      data.put("value", new Value("x", 1));
+      data.put("bytes", new byte[]{1, 2, 3});
+      Value shared = new Value("shared", 2);
+      List calls = new ArrayList();
+      calls.add(MethodCallFactory.create(MethodDeclarations.putDataMethodLocal,
+              new Object[]{null, Fqn.fromString("/a"), new HashMap(data), Boolean.TRUE}));
+      calls.add(put(null, Fqn.fromString("/a/b"), "k", shared));
+      calls.add(put(null, Fqn.fromString("/a/c"), "k", shared));
+
+      byte[] buf = marshall(replicateAll(calls));
+      assertEquals(VersionAwareMarshaller.DIRECT_STREAM_WITH_OBJECTS_MAGIC, buf[0]);
+      List read = (List) ((JBCMethodCall) marshaller.objectFromByteBuffer(buf)).getArgs()[0];
+
+      Map readData = (Map) ((JBCMethodCall) read.get(0)).getArgs()[2];
+      assertEquals(new Date(1000), readData.get("date"));
+      assertEquals(new Value("x", 1), readData.get("value"));
+      assertTrue(Arrays.equals(new byte[]{1, 2, 3}, (byte[]) readData.get("bytes")));
+      Object first = ((JBCMethodCall) read.get(1)).getArgs()[3];
+      assertEquals(shared, first);
+      assertSame(first, ((JBCMethodCall) read.get(2)).getArgs()[3]);
+   }
+
+   public void testExternalizedValues() throws Exception
+   {
+      marshaller.registerExternalizer(1, Point.class, new PointExternalizer());
+      List calls = new ArrayList();
+      calls.add(put(null, Fqn.fromString("/a/b"), "p", new Point(1, 2, null)));
+      // the externalizer writes the label to the object stream
+      calls.add(put(null, Fqn.fromString("/a/c"), "p", new Point(-3, Integer.MAX_VALUE, new Value("label", 3))));
+      calls.add(put(null, Fqn.fromString("/a/d"), "p", new Point(4, 5, null)));
+      JBCMethodCall read = roundTrip(replicateAll(calls));
+      Object p = ((JBCMethodCall) ((List) read.getArgs()[0]).get(1)).getArgs()[3];
+      assertEquals(new Value("label", 3), ((Point) p).label);
+   }
+
+   /**
+    * The output reused by the marshalling thread keeps no reference from one call to the next.
+    */
+   public void testPooledOutputReused() throws Exception
+   {
+      GlobalTransaction gtx = GlobalTransaction.create(new IpAddress("127.0.0.1", 7801));
+      roundTrip(put(gtx, Fqn.fromString("/a/b/c"), "key", new Value("v", 1)));
+      roundTrip(put(gtx, Fqn.fromString("/a/b/d"), "key", "v"));
+      roundTrip(put(null, Fqn.fromString("/a/b/d"), "other", "v"));
+   }
+
+   /**
+    * Buffers written without direct marshalling are still read.
+    */
+   public void testStreamBufferRead() throws Exception
+   {
+      JBCMethodCall call = put(GlobalTransaction.create(new IpAddress("127.0.0.1", 7802)), Fqn.fromString("/a/b"), "k", "v");
+      marshaller.setUseDirectMarshalling(false);
+      byte[] buf = marshaller.objectToByteBuffer(call);
+      marshaller.setUseDirectMarshalling(true);
+      assertCallEquals(call, marshaller.objectFromByteBuffer(buf));
+   }
+
+   static class Value implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      final String name;
+      final int n;
+
+      Value(String name, int n)
+      {
+         this.name = name;
+         this.n = n;
+      }
+
+      public boolean equals(Object o)
+      {
+         return o instanceof Value && ((Value) o).name.equals(name) && ((Value) o).n == n;
+      }
+
+      public int hashCode()
+      {
+         return name.hashCode() + n;
+      }
+   }
+
+   /**
+    * Not serializable: only written by its externalizer.
+    */
+   static class Point
+   {
+      final int x;
+      final int y;
+      final Value label;
+
+      Point(int x, int y, Value label)
+      {
+         this.x = x;
+         this.y = y;
+         this.label = label;
+      }
+
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Point)) return false;
+         Point p = (Point) o;
+         return p.x == x && p.y == y && (label == null ? p.label == null : label.equals(p.label));
+      }
+
+      public int hashCode()
+      {
+         return x * 31 + y;
+      }
+   }
+
+   static class PointExternalizer implements Externalizer
+   {
+      public void writeObject(ObjectOutput out, Object o) throws IOException
+      {
+         Point p = (Point) o;
+         out.writeInt(p.x);
+         out.writeInt(p.y);
+         out.writeObject(p.label);
+      }
+
+      public Object readObject(ObjectInput in) throws IOException, ClassNotFoundException
+      {
+         return new Point(in.readInt(), in.readInt(), (Value) in.readObject());
+      }
+   }
+}
@@ -0,0 +1,100 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.statetransfer;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.jboss.cache.Fqn;
+import org.jboss.cache.GlobalTransaction;
+import org.jboss.cache.Modification;
+import org.jboss.cache.TransactionEntry;
+import org.jboss.cache.TransactionTable;
+
+/**
+ * Tests that a {@link ModificationLog} is closed only once the
+ * transactions that wrote into it have completed.
+ */
+public class ModificationLogTest extends TestCase
+{
+   private static final Fqn ROOT = Fqn.fromString("/a");
+   private static final Fqn NODE = Fqn.fromString("/a/b");
+
+   private TransactionTable txTable;
+
+   protected void setUp() throws Exception
+   {
+      txTable = new TransactionTable();
+   }
+
+   /**
+    * A transaction started after the log was opened writes into the subtree
+    * and is rolled back once the log is being closed; the undo operation
+    * must be in the log.
+    */
+   public void testTransactionStartedDuringStreamRolledBackAfterClose() throws Exception
+   {
+      final ModificationLog modificationLog = new ModificationLog(ROOT, txTable, 10000);
+
+      GlobalTransaction gtx = GlobalTransaction.create(null);
+      txTable.put(gtx, new TransactionEntry());
+      modificationLog.add(new Modification(Modification.PUT_KEY_VALUE, NODE, "k", "v"), gtx);
+
+      final List[] result = new List[1];
+      Thread closer = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               result[0] = modificationLog.close();
+            }
+            catch (InterruptedException e)
+            {
+            }
+         }
+      };
+      closer.start();
+
+      closer.join(200);
+      assertTrue("close() returned before the transaction completed", closer.isAlive());
+
+      // rollback: the undo operation is applied, then the transaction is removed
+      modificationLog.add(new Modification(Modification.REMOVE_KEY_VALUE, NODE, "k"), gtx);
+      txTable.remove(gtx);
+
+      closer.join(5000);
+      assertFalse(closer.isAlive());
+      assertEquals(2, result[0].size());
+      assertEquals(Modification.PUT_KEY_VALUE, ((Modification) result[0].get(0)).getType());
+      assertEquals(Modification.REMOVE_KEY_VALUE, ((Modification) result[0].get(1)).getType());
+   }
+
+   public void testTransactionInProgressWhenOpened() throws Exception
+   {
+      GlobalTransaction gtx = GlobalTransaction.create(null);
+      txTable.put(gtx, new TransactionEntry());
+      ModificationLog modificationLog = new ModificationLog(ROOT, txTable, 10000);
+
+      modificationLog.add(new Modification(Modification.PUT_KEY_VALUE, NODE, "k", "v"), null);
+      txTable.remove(gtx);
+
+      assertEquals(1, modificationLog.close().size());
+   }
+
+   public void testCloseGivesUpAfterTimeout() throws Exception
+   {
+      ModificationLog modificationLog = new ModificationLog(ROOT, txTable, 100);
+      GlobalTransaction gtx = GlobalTransaction.create(null);
+      txTable.put(gtx, new TransactionEntry());
+      modificationLog.add(new Modification(Modification.PUT_KEY_VALUE, NODE, "k", "v"), gtx);
+
+      assertEquals(1, modificationLog.close().size());
+      // the log is closed
+      modificationLog.add(new Modification(Modification.REMOVE_KEY_VALUE, NODE, "k"), gtx);
+   }
+}
@@ -0,0 +1,225 @@
+/*
+ * JBoss, the OpenSource J2EE webOS
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jboss.cache.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips through the {@link LZ4Codec}, and blocks it must refuse.
+ */
+public class LZ4CodecTest extends TestCase
+{
+   private Random random = new Random(42);
+
+   /**
+    * Compresses and decompresses <code>data</code>, at offsets in larger arrays.
+    *
+    * @return the compressed block
+    */
+   private static byte[] roundTrip(byte[] data) throws IOException
+   {
+      byte[] src = new byte[data.length + 3];
+      System.arraycopy(data, 0, src, 3, data.length);
+      byte[] compressed = new byte[LZ4Codec.maxCompressedLength(data.length) + 7];
+      int length = LZ4Codec.compress(src, 3, data.length, compressed, 7);
+      assertTrue(length <= LZ4Codec.maxCompressedLength(data.length));
+
+      byte[] block = new byte[length];
+      System.arraycopy(compressed, 7, block, 0, length);
+
+      byte[] dst = new byte[data.length + 5];
+      LZ4Codec.decompress(compressed, 7, length, dst, 5, data.length);
+      byte[] result = new byte[data.length];
+      System.arraycopy(dst, 5, result, 0, data.length);
+      assertTrue(Arrays.equals(data, result));
+      return block;
+   }
+
+   private static void assertMalformed(byte[] block, int length)
+   {
+      try
+      {
+         LZ4Codec.decompress(block, 0, block.length, new byte[length], 0, length);
+         fail("decompressed a malformed block");
+      }
+      catch (IOException e)
+      {
+         // expected
+      }
+   }
+
+   private byte[] randomBytes(int length)
+   {
+      byte[] data = new byte[length];
+      random.nextBytes(data);
+      return data;
+   }
+
+   public void testEmpty() throws Exception
+   {
+      byte[] block = roundTrip(new byte[0]);
+      assertEquals(1, block.length);
+   }
+
+   /**
+    * Blocks of at most MFLIMIT bytes hold literals only.
+    */
+   public void testShortInputs() throws Exception
+   {
+      for (int length = 1; length <= 13; length++)
+      {
+         byte[] data = new byte[length];
+         Arrays.fill(data, (byte) 'a');
+         byte[] block = roundTrip(data);
+         if (length <= 12) assertEquals(length + 1, block.length);
+         roundTrip(randomBytes(length));
+      }
+   }
+
+   public void testIncompressible() throws Exception
+   {
+      for (int length = 14; length < 100000; length *= 3)
+      {
+         byte[] data = randomBytes(length);
+         byte[] block = roundTrip(data);
+         assertTrue(block.length > length);
+      }
+   }
+
+   /**
+    * Runs of one byte, or of a few, are copied from the bytes just written.
+    */
+   public void testOverlappingMatches() throws Exception
+   {
+      byte[] data = new byte[100000];
+      Arrays.fill(data, (byte) 7);
+      assertTrue(roundTrip(data).length < 1000);
+
+      for (int period = 2; period <= 8; period++)
+      {
+         byte[] pattern = randomBytes(period);
+         byte[] repeated = new byte[5000 + period];
+         for (int i = 0; i < repeated.length; i++) repeated[i] = pattern[i % period];
+         assertTrue(roundTrip(repeated).length < 100);
+      }
+   }
+
+   /**
+    * Literal and match lengths around the lengths which take one and two extra bytes.
+    */
+   public void testLengthBoundaries() throws Exception
+   {
+      int[] lengths = {14, 15, 16, 18, 19, 20, 269, 270, 271, 273, 274, 275, 524, 525, 530};
+      for (int i = 0; i < lengths.length; i++)
+      {
+         for (int j = 0; j < lengths.length; j++)
+         {
+            // random literals, then a match of the given length, then more literals
+            byte[] literals = randomBytes(lengths[i]);
+            byte[] data = new byte[lengths[i] + lengths[j] + 20];
+            System.arraycopy(literals, 0, data, 0, literals.length);
+            for (int k = 0; k < lengths[j]; k++) data[literals.length + k] = literals[k % literals.length];
+            System.arraycopy(randomBytes(20), 0, data, literals.length + lengths[j], 20);
+            roundTrip(data);
+         }
+      }
+   }
+
+   /**
+    * Random bytes, none of them zero, at the start and at <code>gap</code>, with zeros
+    * between them.
+    */
+   private byte[] gapped(byte[] first, byte[] second, int gap)
+   {
+      byte[] data = new byte[gap + second.length + 32];
+      System.arraycopy(first, 0, data, 0, first.length);
+      System.arraycopy(second, 0, data, gap, second.length);
+      System.arraycopy(randomBytes(32), 0, data, gap + second.length, 32);
+      return data;
+   }
+
+   private byte[] nonZeroBytes(int length)
+   {
+      byte[] data = new byte[length];
+      for (int i = 0; i < length; i++) data[i] = (byte) (1 + random.nextInt(255));
+      return data;
+   }
+
+   /**
+    * Matches at the largest offset are found, and decompressed; beyond it, they are not.
+    */
+   public void testOffsetsNearLimit() throws Exception
+   {
+      int[] gaps = {0xFFFF - 64, 0xFFFF - 16, 0xFFFF - 1, 0xFFFF, 0xFFFF + 1, 0xFFFF + 16};
+      for (int i = 0; i < gaps.length; i++)
+      {
+         byte[] repeated = nonZeroBytes(64);
+         byte[] block = roundTrip(gapped(repeated, repeated, gaps[i]));
+         byte[] unmatched = roundTrip(gapped(repeated, nonZeroBytes(64), gaps[i]));
+         if (gaps[i] <= 0xFFFF)
+            assertTrue("no match at offset " + gaps[i], block.length + 40 < unmatched.length);
+         else
+            assertEquals(unmatched.length, block.length);
+      }
+   }
+
+   public void testTruncatedBlock() throws Exception
+   {
+      byte[] data = new byte[2000];
+      for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 300 < 150 ? i : random.nextInt());
+      byte[] block = roundTrip(data);
+      for (int length = 0; length < block.length; length++)
+      {
+         byte[] truncated = new byte[length];
+         System.arraycopy(block, 0, truncated, 0, length);
+         assertMalformed(truncated, data.length);
+         // the rest of the array is not part of the block
+         try
+         {
+            LZ4Codec.decompress(block, 0, length, new byte[data.length], 0, data.length);
+            fail("decompressed a block truncated to " + length + " bytes");
+         }
+         catch (IOException e)
+         {
+            // expected
+         }
+      }
+   }
+
+   public void testCorruptBlock() throws Exception
+   {
+      byte[] data = new byte[1000];
+      Arrays.fill(data, (byte) 1);
+      byte[] block = roundTrip(data);
+      // a literal, then a match at offset 1
+      assertEquals(1, block[2]);
+      assertEquals(0, block[3]);
+
+      // offset 0
+      byte[] corrupt = (byte[]) block.clone();
+      corrupt[2] = 0;
+      assertMalformed(corrupt, data.length);
+
+      // offset before the start of the output
+      corrupt = (byte[]) block.clone();
+      corrupt[2] = 2;
+      assertMalformed(corrupt, data.length);
+
+      // more literals than the block holds
+      corrupt = (byte[]) block.clone();
+      corrupt[0] = (byte) 0xF0;
+      assertMalformed(corrupt, data.length);
+
+      // not the expected length
+      assertMalformed(block, data.length - 1);
+      assertMalformed(block, data.length + 1);
+   }
+}